@@ -0,0 +1,89 @@
+package justinethier;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sums over key ranges covering a fixed fraction of the tree: a scan of
+ * a subSet view, the boxed AggregatingAvlTree and the primitive
+ * SummingAvlTree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class AggregateBenchmark {
+
+  @Param({"100000", "1000000"})
+  public int size;
+
+  /** Share of the key space each query covers, in percent. */
+  @Param({"1", "50"})
+  public int widthPercent;
+
+  private AvlTree<Integer> plain;
+  private AggregatingAvlTree<Integer, Long> boxed;
+  private SummingAvlTree<Integer> summing;
+
+  private Integer[] from;
+  private Integer[] to;
+  private int cursor;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    plain = new AvlTree<Integer>();
+    boxed = new AggregatingAvlTree<Integer, Long>(Monoid.<Integer, Long>of(0L, Integer::longValue, Long::sum));
+    summing = new SummingAvlTree<Integer>(Integer::longValue);
+    for (Integer k : TreeState.box(KeyDistribution.RANDOM.keys(size, 42))){
+      plain.insert(k);
+      boxed.insert(k);
+      summing.insert(k);
+    }
+
+    Random r = new Random(4242);
+    int span = plain.findMax() - plain.findMin();
+    int width = (int)((long) span * widthPercent / 100);
+    from = new Integer[1 << 10];
+    to = new Integer[from.length];
+    for (int i = 0; i < from.length; i++){
+      from[i] = plain.findMin() + r.nextInt(span - width + 1);
+      to[i] = from[i] + width;
+    }
+  }
+
+  @Benchmark
+  public long scan(){
+    int i = cursor++ & (from.length - 1);
+    long sum = 0;
+    for (Integer x : plain.subSet(from[i], true, to[i], false))
+      sum += x;
+    return sum;
+  }
+
+  @Benchmark
+  public Long aggregate(){
+    int i = cursor++ & (from.length - 1);
+    return boxed.aggregate(from[i], to[i]);
+  }
+
+  @Benchmark
+  public long sum(){
+    int i = cursor++ & (from.length - 1);
+    return summing.sum(from[i], to[i]);
+  }
+}
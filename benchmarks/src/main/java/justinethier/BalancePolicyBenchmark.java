@@ -0,0 +1,122 @@
+package justinethier;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updates at a steady tree size under each BalancePolicy. In churn every
+ * operation removes a random element and inserts a new random key in its
+ * place; in slidingWindow it removes the smallest element and appends a
+ * key above the largest, as a time-ordered queue would. Besides the
+ * throughput, the rotations done by the inserts and by the removes are
+ * reported as secondary results, counted over the iteration; divide by
+ * the operation count for rotations per update.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class BalancePolicyBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  /** A BalancePolicy, by name since the enum is not public */
+  @Param({"AVL", "WAVL"})
+  public String policy;
+
+  /** Rotations over the iteration, as secondary results */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Rotations {
+    public long insertRotations;
+    public long removeRotations;
+
+    @Setup(Level.Iteration)
+    public void reset(){
+      insertRotations = 0;
+      removeRotations = 0;
+    }
+  }
+
+  /** Counts rotations into whichever Rotations the benchmark passes in */
+  private static final class Counting implements AvlTreeMetrics {
+    Rotations counters;
+
+    @Override
+    public void inserted(int comparisons, InsertResult result){
+    }
+
+    @Override
+    public void removed(int comparisons, boolean found){
+    }
+
+    @Override
+    public void lookedUp(int depth, boolean found){
+    }
+
+    @Override
+    public void rotated(Rotation rotation, Cause cause){
+      if (cause == Cause.REMOVE)
+        counters.removeRotations++;
+      else
+        counters.insertRotations++;
+    }
+  }
+
+  private AvlTree<Integer> tree;
+  private Integer[] present;
+  private SplittableRandom random;
+  private final Counting counting = new Counting();
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    random = new SplittableRandom(42);
+    tree = new AvlTree<Integer>(BalancePolicy.valueOf(policy));
+    present = new Integer[size];
+    for (int i = 0; i < size; i++)
+      present[i] = freshKey();
+    counting.counters = new Rotations();
+    tree.setMetrics(counting);
+  }
+
+  private Integer freshKey(){
+    while (true){
+      // Leaves room above for slidingWindow to append
+      Integer k = random.nextInt(1 << 30);
+      if (tree.insert(k))
+        return k;
+    }
+  }
+
+  @Benchmark
+  public boolean slidingWindow(Rotations rotations){
+    counting.counters = rotations;
+    tree.remove(tree.findMin());
+    return tree.insert(tree.findMax() + 1);
+  }
+
+  @Benchmark
+  public Integer churn(Rotations rotations){
+    counting.counters = rotations;
+    int i = random.nextInt(size);
+    tree.remove(present[i]);
+    return present[i] = freshKey();
+  }
+}
@@ -0,0 +1,93 @@
+package justinethier;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * insertAll/removeAll against the equivalent per-key loops. Every
+ * invocation starts from a freshly built tree of {@code size} keys, so
+ * the rebuild is excluded from the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class BatchBenchmark {
+
+  @Param({"100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"10000", "100000"})
+  public int batchSize;
+
+  @Param({"RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private Integer[] initial;
+  private List<Integer> batch;
+  private AvlTree<Integer> tree;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    int[] keys = new int[size];
+    for (int i = 0; i < size; i++)
+      keys[i] = 2 * i;
+    initial = TreeState.box(keys);
+
+    // Batch keys land between and on top of the existing (even) keys
+    int[] raw = distribution.keys(batchSize, 99);
+    Integer[] b = new Integer[batchSize];
+    for (int i = 0; i < batchSize; i++)
+      b[i] = (int)((raw[i] & 0x7fffffffL) % (2L * size));
+    batch = Arrays.asList(b);
+
+    tree = new AvlTree<Integer>();
+  }
+
+  @Setup(Level.Invocation)
+  public void rebuild(){
+    tree.buildFromSorted(initial);
+  }
+
+  @Benchmark
+  public BatchResult insertAll(){
+    return tree.insertAll(batch);
+  }
+
+  @Benchmark
+  public int insertLoop(){
+    int inserted = 0;
+    for (Integer k : batch)
+      if (tree.insert(k))
+        inserted++;
+    return inserted;
+  }
+
+  @Benchmark
+  public BatchResult removeAll(){
+    return tree.removeAll(batch);
+  }
+
+  @Benchmark
+  public AvlTree<Integer> removeLoop(){
+    for (Integer k : batch)
+      tree.remove(k);
+    return tree;
+  }
+}
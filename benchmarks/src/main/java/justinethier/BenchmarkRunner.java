@@ -0,0 +1,33 @@
+package justinethier;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar.
+ *
+ * Accepts the regular JMH command line (benchmark regexps, -p, -f, ...)
+ * and always attaches the GC profiler, so every result comes with its
+ * allocation rate per operation.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+        || cmd.shouldListProfilers() || cmd.shouldListResultFormats()){
+      Main.main(args);
+      return;
+    }
+
+    Options options = new OptionsBuilder()
+        .parent(cmd)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
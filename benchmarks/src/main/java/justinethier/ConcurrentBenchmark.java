@@ -0,0 +1,138 @@
+package justinethier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Workload shared by all benchmark threads: ConcurrentAvlTree and a
+ * ShardedAvlTree pre-split into 64 ranges, against an AvlTree behind one
+ * global lock, with ConcurrentSkipListSet as a reference. readPercent 0
+ * is pure ingestion. Results are total throughput; run with -t 1, -t 2,
+ * -t 4, ... to see how each one scales with threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(Threads.MAX)
+public class ConcurrentBenchmark {
+
+  /**
+   * The operations the workload needs from each implementation.
+   */
+  interface Target {
+    boolean contains(Integer x);
+    boolean insert(Integer x);
+    boolean remove(Integer x);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Shared {
+    @Param({"CONCURRENT", "SHARDED", "LOCKED", "SKIPLIST"})
+    public String impl;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    Target target;
+
+    @Setup(Level.Trial)
+    public void setUp(){
+      target = create(impl, size);
+      // Keys come from twice the size, so about half of all lookups hit
+      Random r = new Random(42);
+      for (int i = 0; i < size; i++)
+        target.insert(r.nextInt(2 * size));
+    }
+
+    private static Target create(String impl, int size){
+      if (impl.equals("CONCURRENT")){
+        final ConcurrentAvlTree<Integer> tree = new ConcurrentAvlTree<Integer>();
+        return new Target(){
+          public boolean contains(Integer x){ return tree.contains(x); }
+          public boolean insert(Integer x){ return tree.insert(x); }
+          public boolean remove(Integer x){ return tree.remove(x); }
+        };
+      }
+      if (impl.equals("SHARDED")){
+        List<Integer> splitPoints = new ArrayList<Integer>();
+        for (int i = 1; i < 64; i++)
+          splitPoints.add((int)(2L * size * i / 64));
+        final ShardedAvlTree<Integer> tree = new ShardedAvlTree<Integer>(Math.max(1024, size / 16), splitPoints);
+        return new Target(){
+          public boolean contains(Integer x){ return tree.contains(x); }
+          public boolean insert(Integer x){ return tree.insert(x); }
+          public boolean remove(Integer x){ return tree.remove(x); }
+        };
+      }
+      if (impl.equals("LOCKED")){
+        final AvlTree<Integer> tree = new AvlTree<Integer>();
+        return new Target(){
+          public synchronized boolean contains(Integer x){ return tree.contains(x); }
+          public synchronized boolean insert(Integer x){ return tree.insert(x); }
+          public synchronized boolean remove(Integer x){ return tree.remove(x); }
+        };
+      }
+      final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<Integer>();
+      return new Target(){
+        public boolean contains(Integer x){ return set.contains(x); }
+        public boolean insert(Integer x){ return set.add(x); }
+        public boolean remove(Integer x){ return set.remove(x); }
+      };
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Local {
+    @Param({"0", "95"})
+    public int readPercent;
+
+    Integer[] keys;
+    boolean[] reads;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp(Shared s, ThreadParams t){
+      Random r = new Random(1000 + t.getThreadIndex());
+      keys = new Integer[1 << 16];
+      reads = new boolean[keys.length];
+      for (int i = 0; i < keys.length; i++){
+        keys[i] = r.nextInt(2 * s.size);
+        reads[i] = r.nextInt(100) < readPercent;
+      }
+    }
+  }
+
+  /**
+   * A write toggles its key, as in MixedBenchmark, so the size stays put.
+   */
+  @Benchmark
+  public boolean mixed(Shared s, Local l){
+    int i = l.cursor++ & (l.keys.length - 1);
+    Integer key = l.keys[i];
+    if (l.reads[i])
+      return s.target.contains(key);
+    if (!s.target.insert(key))
+      s.target.remove(key);
+    return true;
+  }
+}
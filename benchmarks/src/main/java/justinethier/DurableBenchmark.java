@@ -0,0 +1,113 @@
+package justinethier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Update throughput of DurableAvlTree against the same updates on an
+ * in-memory AvlTree behind a lock. Every operation toggles a random key,
+ * so each one changes the tree and writes a log record. With one thread
+ * every commit pays for its own write; with four, group commit shares
+ * them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class DurableBenchmark {
+
+  private static final int RANGE = 1 << 18;
+
+  /** Whether commits are forced to disk, or only written to the OS */
+  @Param({"true", "false"})
+  public boolean force;
+
+  private Path dir;
+  private DurableAvlTree<Integer> durable;
+  private AvlTree<Integer> memory;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("durable-benchmark");
+    memory = new AvlTree<Integer>();
+
+    // Fill half the key range without forcing, then checkpoint
+    DurableAvlTree<Integer> fill = DurableAvlTree.open(dir, ElementCodec.INTEGER, false, 0);
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    for (int i = 0; i < RANGE / 2; i++){
+      int k = r.nextInt(RANGE);
+      fill.insert(k);
+      memory.insert(k);
+    }
+    fill.checkpoint();
+    fill.close();
+
+    durable = DurableAvlTree.open(dir, ElementCodec.INTEGER, force, DurableAvlTree.DEFAULT_CHECKPOINT_BYTES);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    durable.close();
+    try (Stream<Path> files = Files.walk(dir)){
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  private boolean toggleDurable() throws IOException {
+    Integer k = ThreadLocalRandom.current().nextInt(RANGE);
+    return durable.insert(k) || durable.remove(k);
+  }
+
+  private boolean toggleMemory(){
+    Integer k = ThreadLocalRandom.current().nextInt(RANGE);
+    synchronized (memory){
+      return memory.insert(k) || memory.remove(k);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean durable1() throws IOException {
+    return toggleDurable();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean durable4() throws IOException {
+    return toggleDurable();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean memory1(){
+    return toggleMemory();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean memory4(){
+    return toggleMemory();
+  }
+}
@@ -0,0 +1,66 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a single insert while a tree grows from empty to {@code size}
+ * keys. Once every key has been inserted the tree is dropped and refilled,
+ * so the reported figure is the average over all tree sizes up to
+ * {@code size}, including the garbage the discarded trees leave behind.
+ * insertNear starts each search from the previous insertion point.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class InsertBenchmark {
+
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"SEQUENTIAL", "NEAR_SORTED", "RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private Integer[] keys;
+  private int cursor;
+  private AvlTree<Integer> tree;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    keys = TreeState.box(distribution.keys(size, 42));
+    tree = new AvlTree<Integer>();
+  }
+
+  @Benchmark
+  public boolean insert(){
+    if (cursor == keys.length){
+      tree.makeEmpty();
+      cursor = 0;
+    }
+    return tree.insert(keys[cursor++]);
+  }
+
+  @Benchmark
+  public boolean insertNear(){
+    if (cursor == keys.length){
+      tree.makeEmpty();
+      cursor = 0;
+    }
+    return tree.insertNear(keys[cursor++]);
+  }
+}
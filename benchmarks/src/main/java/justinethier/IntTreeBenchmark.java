@@ -0,0 +1,121 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IntAvlTree, PooledIntAvlTree and IntBlockAvlTree counterparts of the
+ * insert and contains benchmarks, for comparison against
+ * AvlTree&lt;Integer&gt; with the same keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class IntTreeBenchmark {
+
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private int[] keys;
+  private int[] probes;
+  private int probeMask;
+  private int cursor;
+  private IntAvlTree tree;
+  private IntAvlTree growing;
+  private int growCursor;
+  private PooledIntAvlTree pooled;
+  private PooledIntAvlTree pooledGrowing;
+  private int pooledGrowCursor;
+  private IntBlockAvlTree blocked;
+  private IntBlockAvlTree blockedGrowing;
+  private int blockedGrowCursor;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    keys = distribution.keys(size, 42);
+    tree = new IntAvlTree();
+    for (int k : keys)
+      tree.insert(k);
+    pooled = new PooledIntAvlTree(size);
+    for (int k : keys)
+      pooled.insert(k);
+    blocked = new IntBlockAvlTree();
+    for (int k : keys)
+      blocked.insert(k);
+
+    int probeCount = Integer.highestOneBit(Math.min(size, 1 << 20));
+    probes = distribution.keys(probeCount, 4242);
+    if (distribution == KeyDistribution.SEQUENTIAL)
+      for (int i = 0; i < probeCount; i++)
+        probes[i] = keys[(int)((long)i * size / probeCount)];
+    probeMask = probeCount - 1;
+
+    growing = new IntAvlTree();
+    pooledGrowing = new PooledIntAvlTree();
+    blockedGrowing = new IntBlockAvlTree();
+  }
+
+  @Benchmark
+  public boolean contains(){
+    return tree.contains(probes[cursor++ & probeMask]);
+  }
+
+  @Benchmark
+  public boolean insert(){
+    if (growCursor == keys.length){
+      growing.makeEmpty();
+      growCursor = 0;
+    }
+    return growing.insert(keys[growCursor++]);
+  }
+
+  @Benchmark
+  public boolean pooledContains(){
+    return pooled.contains(probes[cursor++ & probeMask]);
+  }
+
+  /**
+   * Refilling reuses the arrays left by the previous round, so after the
+   * first round this does not allocate at all.
+   */
+  @Benchmark
+  public boolean pooledInsert(){
+    if (pooledGrowCursor == keys.length){
+      pooledGrowing.makeEmpty();
+      pooledGrowCursor = 0;
+    }
+    return pooledGrowing.insert(keys[pooledGrowCursor++]);
+  }
+
+  @Benchmark
+  public boolean blockContains(){
+    return blocked.contains(probes[cursor++ & probeMask]);
+  }
+
+  @Benchmark
+  public boolean blockInsert(){
+    if (blockedGrowCursor == keys.length){
+      blockedGrowing.makeEmpty();
+      blockedGrowCursor = 0;
+    }
+    return blockedGrowing.insert(keys[blockedGrowCursor++]);
+  }
+}
@@ -0,0 +1,129 @@
+package justinethier;
+
+import java.util.Random;
+
+/**
+ * Key distributions used to drive the tree benchmarks.
+ *
+ * Every distribution is generated up front from a fixed seed so that the
+ * measured loops only index into an int array, and so that runs with the
+ * same parameters see exactly the same keys.
+ */
+public enum KeyDistribution {
+
+  /** Keys 0, 1, 2, ... in increasing order; the worst case for rotations. */
+  SEQUENTIAL {
+    @Override
+    int[] keys(int count, long seed){
+      int[] keys = new int[count];
+      for (int i = 0; i < count; i++)
+        keys[i] = i;
+      return keys;
+    }
+  },
+
+  /**
+   * Increasing keys with local disorder: each key is the next of an
+   * increasing sequence plus a jitter of up to 64 either way, as from a
+   * stream of timestamps that arrive slightly out of order.
+   */
+  NEAR_SORTED {
+    @Override
+    int[] keys(int count, long seed){
+      Random r = new Random(seed);
+      int[] keys = new int[count];
+      for (int i = 0; i < count; i++)
+        keys[i] = 2 * i + r.nextInt(129) - 64;
+      return keys;
+    }
+  },
+
+  /** Uniformly random keys drawn from a range ten times the key count. */
+  RANDOM {
+    @Override
+    int[] keys(int count, long seed){
+      Random r = new Random(seed);
+      int range = Math.max(count, (int)Math.min(Integer.MAX_VALUE, 10L * count));
+      int[] keys = new int[count];
+      for (int i = 0; i < count; i++)
+        keys[i] = r.nextInt(range);
+      return keys;
+    }
+  },
+
+  /**
+   * Skewed keys: a few hot keys take most of the draws. The hot ranks are
+   * scattered over the key space so that they do not all sit at one end
+   * of the tree.
+   */
+  ZIPFIAN {
+    @Override
+    int[] keys(int count, long seed){
+      ZipfianGenerator zipf = new ZipfianGenerator(count, 0.99, seed);
+      int[] keys = new int[count];
+      for (int i = 0; i < count; i++)
+        keys[i] = scatter(zipf.next());
+      return keys;
+    }
+  };
+
+  /**
+   * Generate the key sequence for this distribution.
+   *
+   * @param count Number of keys to generate
+   * @param seed  Random seed
+   * @return Generated keys, possibly containing duplicates
+   */
+  abstract int[] keys(int count, long seed);
+
+  /**
+   * Map a Zipfian rank onto a key, keeping distinct ranks distinct.
+   * The multiplier is odd, so this is a bijection on int.
+   */
+  static int scatter(int rank){
+    return rank * 0x9E3779B1;
+  }
+
+  /**
+   * Zipfian rank generator following Gray et al., "Quickly Generating
+   * Billion-Record Synthetic Databases". Setup is O(n) to compute the
+   * zeta constant; each draw is O(1).
+   */
+  static final class ZipfianGenerator {
+    private final int items;
+    private final double theta;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+    private final Random random;
+
+    ZipfianGenerator(int items, double theta, long seed){
+      this.items = items;
+      this.theta = theta;
+      this.random = new Random(seed);
+
+      double zeta = 0;
+      for (int i = 1; i <= items; i++)
+        zeta += 1.0 / Math.pow(i, theta);
+      double zeta2 = 1.0 + 1.0 / Math.pow(2, theta);
+
+      this.zetan = zeta;
+      this.alpha = 1.0 / (1.0 - theta);
+      this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+    }
+
+    /**
+     * @return Next rank in [0, items)
+     */
+    int next(){
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1.0)
+        return 0;
+      if (uz < 1.0 + Math.pow(0.5, theta))
+        return 1;
+      int rank = (int)(items * Math.pow(eta * u - eta + 1, alpha));
+      return Math.min(rank, items - 1);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package justinethier;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Read-only operations against a pre-populated tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class LookupBenchmark {
+
+  @Benchmark
+  public boolean contains(TreeState s){
+    return s.tree.contains(s.nextProbe());
+  }
+
+  @Benchmark
+  public Integer findMin(TreeState s){
+    return s.tree.findMin();
+  }
+
+  @Benchmark
+  public Integer findMax(TreeState s){
+    return s.tree.findMax();
+  }
+
+  /**
+   * Full in-order walk; reported in microseconds per call because it is
+   * linear in the tree size.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String serializeInfix(TreeState s){
+    return s.tree.serializeInfix();
+  }
+
+  @Benchmark
+  public Integer ceiling(TreeState s){
+    return s.tree.ceiling(s.nextProbe());
+  }
+
+  /**
+   * Lazily read the 100 keys at or after a probe key. The iterator's
+   * stack is the only allocation, independent of the range length.
+   */
+  @Benchmark
+  public void rangeScan100(TreeState s, Blackhole bh){
+    Iterator<Integer> it = s.tree.tailSet(s.nextProbe(), true).iterator();
+    for (int i = 0; i < 100 && it.hasNext(); i++)
+      bh.consume(it.next());
+  }
+}
@@ -0,0 +1,99 @@
+package justinethier;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counter updates: incrementing the count stored under a key. The old
+ * way keeps comparable holder objects in an AvlTree and pays for a
+ * lookup, a removal and an insertion; AvlTreeMap.merge does one descent,
+ * and TreeMap.merge is the reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class MapBenchmark {
+
+  /**
+   * Key and count, ordered by key alone.
+   */
+  static final class Counter implements Comparable<Counter> {
+    final int key;
+    final long count;
+
+    Counter(int key, long count){
+      this.key = key;
+      this.count = count;
+    }
+
+    public int compareTo(Counter o){
+      return Integer.compare(key, o.key);
+    }
+  }
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  @Param({"RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private AvlTree<Counter> holders;
+  private AvlTreeMap<Integer, Long> map;
+  private TreeMap<Integer, Long> treeMap;
+
+  private Integer[] probes;
+  private int cursor;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    holders = new AvlTree<Counter>();
+    map = new AvlTreeMap<Integer, Long>();
+    treeMap = new TreeMap<Integer, Long>();
+    for (int k : distribution.keys(size, 42)){
+      holders.insert(new Counter(k, 1));
+      map.merge(k, 1L, Long::sum);
+      treeMap.merge(k, 1L, Long::sum);
+    }
+    probes = TreeState.box(distribution.keys(1 << 16, 4242));
+  }
+
+  @Benchmark
+  public boolean holderTree(){
+    Integer k = probes[cursor++ & (probes.length - 1)];
+    Counter probe = new Counter(k, 0);
+    // The tree can only say whether the key is there, not hand back its
+    // holder, so the current count has to come from a second search
+    long count = 0;
+    if (holders.contains(probe)){
+      count = holders.ceiling(probe).count;
+      holders.remove(probe);
+    }
+    return holders.insert(new Counter(k, count + 1));
+  }
+
+  @Benchmark
+  public Long avlTreeMap(){
+    return map.merge(probes[cursor++ & (probes.length - 1)], 1L, Long::sum);
+  }
+
+  @Benchmark
+  public Long treeMap(){
+    return treeMap.merge(probes[cursor++ & (probes.length - 1)], 1L, Long::sum);
+  }
+}
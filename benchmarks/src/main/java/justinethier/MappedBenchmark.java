@@ -0,0 +1,101 @@
+package justinethier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups against a memory-mapped tree image compared with the on-heap
+ * tree, and the cost of getting each one ready: mapping the image versus
+ * deserializing the tree onto the heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class MappedBenchmark {
+
+  @Param({"100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private Integer[] probes;
+  private int cursor;
+
+  private AvlTree<Integer> tree;
+  private MappedAvlTree<Integer> mapped;
+  private Path image;
+  private Path serialized;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    tree = new AvlTree<Integer>();
+    for (int k : distribution.keys(size, 42))
+      tree.insert(k);
+    probes = TreeState.box(distribution.keys(1 << 16, 4242));
+
+    image = Files.createTempFile("avl", ".img");
+    MappedAvlTree.write(tree, FixedWidthCodec.INTEGER, image);
+    mapped = MappedAvlTree.open(image, FixedWidthCodec.INTEGER);
+
+    serialized = Files.createTempFile("avl", ".bin");
+    try (OutputStream out = Files.newOutputStream(serialized)) {
+      new AvlTreeCodec<Integer>(ElementCodec.INTEGER).write(tree, out);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(image);
+    Files.deleteIfExists(serialized);
+  }
+
+  private Integer nextProbe(){
+    return probes[cursor++ & (probes.length - 1)];
+  }
+
+  @Benchmark
+  public boolean heapContains(){
+    return tree.contains(nextProbe());
+  }
+
+  @Benchmark
+  public boolean mappedContains(){
+    return mapped.contains(nextProbe());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public MappedAvlTree<Integer> openImage() throws IOException {
+    return MappedAvlTree.open(image, FixedWidthCodec.INTEGER);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public AvlTree<Integer> deserialize() throws IOException {
+    try (InputStream in = Files.newInputStream(serialized)) {
+      return new AvlTreeCodec<Integer>(ElementCodec.INTEGER).read(in);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package justinethier;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mixed read/write workload. A write toggles its key: it inserts the key,
+ * or removes it if it was already present, which keeps the tree close to
+ * its initial size for the whole run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MixedBenchmark {
+
+  @State(Scope.Thread)
+  public static class Workload {
+    @Param({"50", "90", "99"})
+    public int readPercent;
+
+    /** True where the matching probe is a read. */
+    boolean[] reads;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState s){
+      Random r = new Random(7);
+      reads = new boolean[s.probes.length];
+      for (int i = 0; i < reads.length; i++)
+        reads[i] = r.nextInt(100) < readPercent;
+    }
+  }
+
+  @Benchmark
+  public boolean mixed(TreeState s, Workload w){
+    int i = s.cursor++ & s.probeMask;
+    Integer key = s.probes[i];
+    if (w.reads[i])
+      return s.tree.contains(key);
+    if (!s.tree.insert(key))
+      s.tree.remove(key);
+    return true;
+  }
+}
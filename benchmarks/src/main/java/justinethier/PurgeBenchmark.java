@@ -0,0 +1,71 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expiring the oldest tenth of a tree keyed by timestamp: one remove per
+ * key, against a single removeHead and a removeIf over the whole tree.
+ * The tree is rebuilt before every purge, so each measurement is one
+ * purge.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class PurgeBenchmark {
+
+  @Param({"100000", "1000000"})
+  public int size;
+
+  private Integer[] keys;
+  private Integer cutoff;
+  private AvlTree<Integer> tree;
+
+  @Setup(Level.Trial)
+  public void setUpKeys(){
+    keys = new Integer[size];
+    for (int i = 0; i < size; i++)
+      keys[i] = i;
+    cutoff = size / 10;
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp(){
+    tree = new AvlTree<Integer>();
+    tree.buildFromSorted(keys);
+  }
+
+  @Benchmark
+  public int removeEach(){
+    int n = 0;
+    for (int i = 0; i < cutoff; i++)
+      if (tree.remove(keys[i]))
+        n++;
+    return n;
+  }
+
+  @Benchmark
+  public int removeHead(){
+    return tree.removeHead(cutoff);
+  }
+
+  @Benchmark
+  public int removeIf(){
+    return tree.removeIf(x -> x < cutoff);
+  }
+}
@@ -0,0 +1,31 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removal cost at a steady tree size: each operation removes a key that
+ * is in the tree and puts it straight back, so the tree neither drains
+ * nor grows over the run. The figure therefore includes one insert.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class RemoveBenchmark {
+
+  @Benchmark
+  public boolean removeAndReinsert(TreeState s){
+    Integer key = s.keys[s.cursor++ % s.keys.length];
+    s.tree.remove(key);
+    return s.tree.insert(key);
+  }
+}
@@ -0,0 +1,82 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scans summing every element: the old route through
+ * serializeInfix and parsing, the iterator, and sequential and parallel
+ * streams over the tree's spliterator. The same keys in an
+ * IntBlockAvlTree are scanned for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+  @Param({"1000000", "10000000", "50000000"})
+  public int size;
+
+  private AvlTree<Integer> tree;
+  private IntBlockAvlTree blocked;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    Integer[] keys = new Integer[size];
+    for (int i = 0; i < size; i++)
+      keys[i] = 2 * i;
+    tree = new AvlTree<Integer>();
+    tree.buildFromSorted(keys);
+    blocked = new IntBlockAvlTree();
+    for (int i = 0; i < size; i++)
+      blocked.insert(2 * i);
+  }
+
+  @Benchmark
+  public long serializeAndParse(){
+    long sum = 0;
+    for (String s : tree.serializeInfix().split(" "))
+      sum += Integer.parseInt(s);
+    return sum;
+  }
+
+  @Benchmark
+  public long iterator(){
+    long sum = 0;
+    for (Integer x : tree)
+      sum += x;
+    return sum;
+  }
+
+  @Benchmark
+  public long stream(){
+    return tree.stream().mapToLong(Integer::longValue).sum();
+  }
+
+  @Benchmark
+  public long parallelStream(){
+    return tree.parallelStream().mapToLong(Integer::longValue).sum();
+  }
+
+  @Benchmark
+  public long blockScan(){
+    long[] sum = new long[1];
+    blocked.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, x -> sum[0] += x);
+    return sum[0];
+  }
+}
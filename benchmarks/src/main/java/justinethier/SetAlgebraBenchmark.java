@@ -0,0 +1,92 @@
+package justinethier;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Join-based union, intersection and difference of two overlapping trees,
+ * against merging by re-inserting one tree into the other. Run with
+ * -Djava.util.concurrent.ForkJoinPool.common.parallelism=N (passed through
+ * -jvmArgsAppend) to see how the set operations scale with cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Thread)
+public class SetAlgebraBenchmark {
+
+  @Param({"100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  private Integer[] first;
+  private Integer[] second;
+  private AvlTree<Integer> a;
+  private AvlTree<Integer> b;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    first = distinctSorted(distribution.keys(size, 1));
+    second = distinctSorted(distribution.keys(size, 2));
+    a = new AvlTree<Integer>();
+    b = new AvlTree<Integer>();
+  }
+
+  private static Integer[] distinctSorted(int[] keys){
+    int[] k = keys.clone();
+    Arrays.sort(k);
+    int n = 0;
+    for (int i = 0; i < k.length; i++)
+      if (n == 0 || k[i] != k[n - 1])
+        k[n++] = k[i];
+    return TreeState.box(Arrays.copyOf(k, n));
+  }
+
+  @Setup(Level.Invocation)
+  public void rebuild(){
+    a.buildFromSorted(first);
+    b.buildFromSorted(second);
+  }
+
+  @Benchmark
+  public AvlTree<Integer> union(){
+    a.union(b);
+    return a;
+  }
+
+  @Benchmark
+  public AvlTree<Integer> intersection(){
+    a.intersection(b);
+    return a;
+  }
+
+  @Benchmark
+  public AvlTree<Integer> difference(){
+    a.difference(b);
+    return a;
+  }
+
+  @Benchmark
+  public AvlTree<Integer> unionByInsert(){
+    for (Integer k : second)
+      a.insert(k);
+    return a;
+  }
+}
@@ -0,0 +1,83 @@
+package justinethier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of long String keys, in natural order and with the cached
+ * prefixes of PrefixComparator.STRING. Keys differ in eight hex digits,
+ * which may follow a part shared by every key, as in path-like keys; a
+ * shared part of eight or more characters makes all the prefixes tie,
+ * which measures the cost of the fallback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class StringKeyBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int size;
+
+  @Param({"RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  /** Characters shared by every key, ahead of the distinguishing part */
+  @Param({"0", "24"})
+  public int sharedLength;
+
+  private AvlTree<String> natural;
+  private AvlTree<String> prefixed;
+
+  private String[] probes;
+  private int cursor;
+
+  private String key(int k, String shared){
+    return shared + String.format("%08x", k) + "/item";
+  }
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < sharedLength; i++)
+      sb.append((char) ('a' + i % 26));
+    String shared = sb.toString();
+
+    natural = new AvlTree<String>();
+    prefixed = new AvlTree<String>(PrefixComparator.STRING);
+    for (int k : distribution.keys(size, 42)){
+      String s = key(k, shared);
+      natural.insert(s);
+      prefixed.insert(s);
+    }
+
+    int[] keys = distribution.keys(1 << 16, 4242);
+    probes = new String[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      probes[i] = key(keys[i], shared);
+  }
+
+  @Benchmark
+  public boolean naturalContains(){
+    return natural.contains(probes[cursor++ & (probes.length - 1)]);
+  }
+
+  @Benchmark
+  public boolean prefixContains(){
+    return prefixed.contains(probes[cursor++ & (probes.length - 1)]);
+  }
+}
@@ -0,0 +1,66 @@
+package justinethier;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Shared benchmark state: a tree pre-populated from one of the key
+ * distributions, plus a separate stream of probe keys drawn from the
+ * same distribution.
+ *
+ * Keys are boxed once during setup so the measured code pays for the
+ * tree and not for Integer allocation.
+ */
+@State(Scope.Thread)
+public class TreeState {
+
+  @Param({"1000", "100000", "1000000", "10000000"})
+  public int size;
+
+  @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+  public KeyDistribution distribution;
+
+  /** Keys that were offered to the tree during setup. */
+  Integer[] keys;
+
+  /** Keys used by the measured operations; a power of two in length. */
+  Integer[] probes;
+  int probeMask;
+  int cursor;
+
+  AvlTree<Integer> tree;
+
+  @Setup(Level.Trial)
+  public void setUp(){
+    keys = box(distribution.keys(size, 42));
+    tree = new AvlTree<Integer>();
+    for (Integer k : keys)
+      tree.insert(k);
+
+    int probeCount = Integer.highestOneBit(Math.min(size, 1 << 20));
+    probes = box(distribution.keys(probeCount, 4242));
+    // Sequential probes would all land on the low end of the tree; spread
+    // them over the populated range instead.
+    if (distribution == KeyDistribution.SEQUENTIAL)
+      for (int i = 0; i < probeCount; i++)
+        probes[i] = keys[(int)((long)i * size / probeCount)];
+    probeMask = probeCount - 1;
+  }
+
+  /**
+   * @return The next probe key, cycling through the probe stream
+   */
+  Integer nextProbe(){
+    return probes[cursor++ & probeMask];
+  }
+
+  static Integer[] box(int[] keys){
+    Integer[] boxed = new Integer[keys.length];
+    for (int i = 0; i < keys.length; i++)
+      boxed[i] = keys[i];
+    return boxed;
+  }
+}
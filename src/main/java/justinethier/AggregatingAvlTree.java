@@ -0,0 +1,173 @@
+package justinethier;
+
+/**
+ * AVL tree whose nodes each cache a monoid summary of their subtree, so
+ * that the summary of any range of elements is found in O(log n),
+ * however wide the range.
+ *
+ * The summaries are recomputed by update, which AvlTree calls whenever a
+ * node's children change: on insert, remove, every rotation, and the
+ * bulk operations. The nodes of another tree passed to union,
+ * intersection, difference or join must come from an AggregatingAvlTree
+ * with the same monoid.
+ *
+ * For plain sums of a long-valued property, SummingAvlTree does the same
+ * without boxing.
+ *
+ * @param <T> Element type
+ * @param <A> Summary type
+ */
+class AggregatingAvlTree<T extends Comparable<? super T>, A> extends AvlTree<T> {
+
+  /**
+   * Node that also holds the summary of its subtree.
+   */
+  protected static class AggregateNode<T, A> extends AvlNode<T> {
+
+    /**
+     * Summary of the subtree rooted here, this node included
+     */
+    protected A aggregate;
+
+    public AggregateNode (T theElement, AvlNode<T> lt, AvlNode<T> rt){
+      super (theElement, lt, rt);
+    }
+  }
+
+  private final Monoid<? super T, A> monoid;
+
+  /**
+   * Creates an empty tree.
+   *
+   * @param monoid Summary kept for every subtree
+   */
+  public AggregatingAvlTree (Monoid<? super T, A> monoid){
+    this.monoid = monoid;
+  }
+
+  /**
+   * @return The monoid the tree summarizes its elements with
+   */
+  public Monoid<? super T, A> getMonoid (){
+    return monoid;
+  }
+
+  @Override
+  protected AvlNode<T> newNode (T x, AvlNode<T> lt, AvlNode<T> rt){
+    AggregateNode<T, A> t = new AggregateNode<T, A> (x, lt, rt);
+    if (lt == null && rt == null)
+      t.aggregate = monoid.lift (x);
+    return t;
+  }
+
+  @Override
+  protected AvlTree<T> newEmptyTree (){
+    return new AggregatingAvlTree<T, A> (monoid);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void update (AvlNode<T> t){
+    super.update (t);
+    ((AggregateNode<T, A>) t).aggregate =
+      monoid.combine (monoid.combine (aggregate (t.left), monoid.lift (t.element)), aggregate (t.right));
+  }
+
+  /**
+   * Summary of a subtree.
+   */
+  @SuppressWarnings("unchecked")
+  private A aggregate (AvlNode<T> t){
+    return t == null ? monoid.identity () : ((AggregateNode<T, A>) t).aggregate;
+  }
+
+  /**
+   * Summarize the whole tree, in O(1).
+   *
+   * @return Summary of every element
+   */
+  public A aggregate (){
+    return aggregate (root);
+  }
+
+  /**
+   * Summarize the elements from from, inclusive, to to, exclusive.
+   *
+   * @param from Low end of the range
+   * @param to   High end of the range
+   * @return Summary of the elements in the range
+   */
+  public A aggregate (T from, T to){
+    return aggregate (from, true, to, false);
+  }
+
+  /**
+   * Summarize the elements within a range, in O(log n).
+   *
+   * The tree is descended to the highest node inside the range. Below
+   * it, the path to the low end contributes the node and right subtree
+   * of every step inside the range, and the path to the high end the
+   * node and left subtree of every step inside it.
+   *
+   * @param from          Low end of the range
+   * @param fromInclusive Whether from itself is in the range
+   * @param to            High end of the range
+   * @param toInclusive   Whether to itself is in the range
+   * @return Summary of the elements in the range, the identity if none
+   */
+  public A aggregate (T from, boolean fromInclusive, T to, boolean toInclusive){
+    AvlNode<T> t = root;
+    while (t != null){
+      if (below (t.element, from, fromInclusive))
+        t = t.right;
+      else if (above (t.element, to, toInclusive))
+        t = t.left;
+      else
+        break;
+    }
+    if (t == null)
+      return monoid.identity ();
+
+    // Elements of t.left from the low end on, in order
+    A low = monoid.identity ();
+    for (AvlNode<T> n = t.left; n != null; ){
+      if (below (n.element, from, fromInclusive)){
+        n = n.right;
+      }
+      else {
+        low = monoid.combine (monoid.combine (monoid.lift (n.element), aggregate (n.right)), low);
+        n = n.left;
+      }
+    }
+
+    // Elements of t.right up to the high end, in order
+    A high = monoid.identity ();
+    for (AvlNode<T> n = t.right; n != null; ){
+      if (above (n.element, to, toInclusive)){
+        n = n.left;
+      }
+      else {
+        high = monoid.combine (high, monoid.combine (aggregate (n.left), monoid.lift (n.element)));
+        n = n.right;
+      }
+    }
+
+    return monoid.combine (monoid.combine (low, monoid.lift (t.element)), high);
+  }
+
+  /**
+   * @return True if x is before the low end of a range
+   */
+  static <T extends Comparable<? super T>> boolean below (T x, T from, boolean inclusive){
+    int cmp = x.compareTo (from);
+    return cmp < 0 || (cmp == 0 && !inclusive);
+  }
+
+  /**
+   * @return True if x is past the high end of a range
+   */
+  static <T extends Comparable<? super T>> boolean above (T x, T to, boolean inclusive){
+    int cmp = x.compareTo (to);
+    return cmp > 0 || (cmp == 0 && !inclusive);
+  }
+}
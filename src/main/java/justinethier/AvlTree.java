@@ -1,6 +1,26 @@
 package justinethier;
 
 import java.lang.StringBuilder;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** 
  * Implementation of an AVL Tree, along with code to test insertions on the tree.
@@ -8,12 +28,17 @@ import java.lang.StringBuilder;
  *  Based on code written by Mark Allen Weiss in his book 
  *  Data Structures and Algorithm Analysis in Java.
  *
- *  Code for remove is based upon postings at:
- *  http://www.dreamincode.net/forums/topic/214510-working-example-of-avl-tree-remove-method/
+ *  Every node also records the size of its subtree, which gives O(1)
+ *  size() and O(log n) rank() and select().
+ *
+ *  Elements are ordered naturally, in which case they must be
+ *  Comparable, or by a Comparator given to the constructor. With a
+ *  PrefixComparator each node also caches its element's 64-bit prefix,
+ *  and searches compare prefixes before calling the comparator.
  *
  * @author Justin Ethier
  */
-class AvlTree<T extends Comparable<? super T>> {
+class AvlTree<T> implements Iterable<T> {
   /** 
    * AvlNode is a container class that is used to store each element 
    * (node) of an AVL tree. 
@@ -42,6 +67,11 @@ class AvlTree<T extends Comparable<? super T>> {
      */
     protected int      height;
     
+    /**
+     * Number of nodes in the subtree rooted here, this one included
+     */
+    protected int      size = 1;
+    
     /**
      * Constructor; creates a node without any children
      * 
@@ -65,25 +95,193 @@ class AvlTree<T extends Comparable<? super T>> {
     }
   }
 
+  /**
+   * Node that also caches the prefix of its element, for trees ordered
+   * by a PrefixComparator.
+   */
+  protected static class PrefixNode<T> extends AvlNode<T> {
+    
+    /**
+     * PrefixComparator.prefix of the element
+     */
+    protected long prefix;
+    
+    public PrefixNode (T theElement, long thePrefix, AvlNode<T> lt, AvlNode<T> rt){
+      super (theElement, lt, rt);
+      prefix = thePrefix;
+    }
+  }
+
   public AvlNode<T> root;
   
-  // TODO: make these optional based on some sort of 'debug' flag?
-  // at the very least, make them read-only properties
-  public int countInsertions;
-  public int countSingleRotations;
-  public int countDoubleRotations;
+  /**
+   * Ordering of the elements, or null for their natural ordering
+   */
+  private final Comparator<? super T> comparator;
+  
+  /**
+   * The comparator, if it is a PrefixComparator; otherwise null
+   */
+  private final PrefixComparator<? super T> prefixes;
+  
+  /**
+   * Rebalancing after single inserts and removes
+   */
+  private final BalancePolicy policy;
+  
+  /**
+   * False once a WAVL removal or join may have left the tree out of AVL
+   * shape, until ensureAvlShape restores it.
+   */
+  private boolean avlShape = true;
+  
+  /**
+   * Instrumentation hooks; NONE unless set with setMetrics.
+   */
+  private AvlTreeMetrics metrics = AvlTreeMetrics.NONE;
+  
+  /**
+   * Total rotations performed, from which the batch updates report their
+   * own.
+   */
+  private long rotations;
+  
+  /**
+   * Scratch space for the root-to-leaf path walked by insert.
+   */
+  private AvlNode<T>[] path;
+  
+  /**
+   * Path to the last element inserted by insertNear, or null if it has
+   * not been called.
+   */
+  private Finger<T> finger;
+  
+  /**
+   * Number of structural modifications, used by the iterators to detect
+   * concurrent modification.
+   */
+  private int modCount;
   
   /**
    * Avl Tree Constructor.
    * 
-   * Creates an empty tree
+   * Creates an empty tree ordered by the natural ordering of its
+   * elements, which must be Comparable.
    */
   public AvlTree (){
+    this (null, BalancePolicy.AVL);
+  }
+  
+  /**
+   * Creates an empty tree ordered by a comparator. If it is a
+   * PrefixComparator, nodes cache prefixes to speed up searches.
+   * 
+   * @param comparator Ordering of the elements, or null for their
+   *                   natural ordering
+   */
+  public AvlTree (Comparator<? super T> comparator){
+    this (comparator, BalancePolicy.AVL);
+  }
+  
+  /**
+   * Creates an empty tree with natural ordering and the given balancing.
+   * 
+   * @param policy How to rebalance after inserts and removes
+   */
+  public AvlTree (BalancePolicy policy){
+    this (null, policy);
+  }
+  
+  /**
+   * Creates an empty tree ordered by a comparator, with the given
+   * balancing.
+   * 
+   * @param comparator Ordering of the elements, or null for their
+   *                   natural ordering
+   * @param policy     How to rebalance after inserts and removes
+   */
+  public AvlTree (Comparator<? super T> comparator, BalancePolicy policy){
     root = null;
-        
-    countInsertions = 0;
-    countSingleRotations = 0;
-    countDoubleRotations = 0;    
+    this.comparator = comparator;
+    this.prefixes = (comparator instanceof PrefixComparator)
+      ? (PrefixComparator<? super T>) comparator : null;
+    this.policy = policy;
+  }
+  
+  /**
+   * @return How the tree rebalances after inserts and removes
+   */
+  public BalancePolicy balancePolicy (){
+    return policy;
+  }
+  
+  /**
+   * @return The comparator ordering the tree, or null for the natural
+   *         ordering
+   */
+  public Comparator<? super T> comparator (){
+    return comparator;
+  }
+  
+  /**
+   * Compare two elements in the order of the tree.
+   * 
+   * @return Negative, zero or positive as a is less than, equal to or
+   *         greater than b
+   */
+  @SuppressWarnings("unchecked")
+  protected final int compare (T a, T b){
+    return comparator == null ? ((Comparable<? super T>) a).compareTo (b) : comparator.compare (a, b);
+  }
+  
+  /**
+   * Prefix of a search key, or 0 if the tree has no PrefixComparator.
+   */
+  private long prefixOf (T x){
+    return prefixes == null ? 0 : prefixes.prefix (x);
+  }
+  
+  /**
+   * Compare a search key with a node's element, settling it on the
+   * cached prefixes where they differ.
+   * 
+   * @param x  Search key
+   * @param px prefixOf (x)
+   * @param t  Node
+   */
+  private int compare (T x, long px, AvlNode<T> t){
+    if (prefixes != null){
+      long pt = ((PrefixNode<T>) t).prefix;
+      if (px != pt)
+        return px < pt ? -1 : 1;
+    }
+    return compare (x, t.element);
+  }
+  
+  /**
+   * Install instrumentation on the tree, replacing any already there.
+   * 
+   * @param m Metrics to report to, or null for none
+   */
+  public void setMetrics (AvlTreeMetrics m){
+    metrics = (m == null) ? AvlTreeMetrics.NONE : m;
+    metrics.bind (() -> size ());
+  }
+  
+  /**
+   * @return The tree's instrumentation, AvlTreeMetrics.NONE by default
+   */
+  public AvlTreeMetrics getMetrics (){
+    return metrics;
+  }
+  
+  /**
+   * @return Number of structural modifications so far, for subclass
+   *         iterators that detect concurrent modification
+   */
+  protected int modificationCount (){
+    return modCount;
   }
   
   /**
@@ -109,6 +307,54 @@ class AvlTree<T extends Comparable<? super T>> {
     return b;
   }
   
+  /**
+   * Recompute the cached fields of a node from its children. Called
+   * whenever a node's children change.
+   * 
+   * @param t Node to update
+   */
+  protected void update (AvlNode<T> t){
+    t.height = max (height (t.left), height (t.right)) + 1;
+    t.size = size (t.left) + size (t.right) + 1;
+  }
+  
+  /**
+   * Determine the number of nodes in the given subtree.
+   * 
+   * @param t Node
+   * @return Size of the subtree rooted at t
+   */
+  protected static int size (AvlNode<?> t){
+    return t == null ? 0 : t.size;
+  }
+  
+  /**
+   * Create a node. Every node in the tree is made here, so subclasses
+   * can substitute a node type that caches more about its subtree. The
+   * caller runs update on a node made with children; a leaf is used as
+   * it comes, so its cached fields must be set up here.
+   * 
+   * @param x  Element of the node
+   * @param lt Left child
+   * @param rt Right child
+   * @return New node
+   */
+  protected AvlNode<T> newNode (T x, AvlNode<T> lt, AvlNode<T> rt){
+    if (prefixes != null)
+      return new PrefixNode<T> (x, prefixes.prefix (x), lt, rt);
+    return new AvlNode<T> (x, lt, rt);
+  }
+  
+  /**
+   * Create an empty tree of the same kind as this one, to receive nodes
+   * moved out of it by split.
+   * 
+   * @return New empty tree
+   */
+  protected AvlTree<T> newEmptyTree (){
+    return new AvlTree<T> (comparator, policy);
+  }
+  
   /**
    * Insert an element into the tree.
    * 
@@ -117,364 +363,2577 @@ class AvlTree<T extends Comparable<? super T>> {
    *         False - Error, the element was a duplicate.
    */
   public boolean insert (T x){
-    try {
-      root = insert (x, root);
-      
-      countInsertions++;
-      return true;
-    } catch(Exception e){ // TODO: catch a DuplicateValueException instead!
-      return false;
-    }
+    return insert (x, false) == InsertResult.INSERTED;
   }
   
   /**
-   * Internal method to perform an actual insertion.
+   * Insert an element into the tree, reporting what happened to it.
    * 
-   * @param x Element to add
-   * @param t Root of the tree
-   * @return New root of the tree
-   * @throws Exception 
+   * The tree is walked from the root down to the insertion point, recording
+   * the nodes visited, and then rebalanced back up along that path. Each
+   * level costs a single comparison, and a duplicate is detected without
+   * any unwinding.
+   * 
+   * @param x       Element to insert into the tree
+   * @param replace If true, an equal element already in the tree is
+   *                replaced by x; otherwise it is left untouched
+   * @return INSERTED, ALREADY_PRESENT or REPLACED
    */
-  protected AvlNode<T> insert (T x, AvlNode<T> t) throws Exception{
-    if (t == null)
-      t = new AvlNode<T> (x);
-    else if (x.compareTo (t.element) < 0){
-      t.left = insert (x, t.left);
-      
-      if (height (t.left) - height (t.right) == 2){
-        if (x.compareTo (t.left.element) < 0){
-          t = rotateWithLeftChild (t);
-          countSingleRotations++;
-        }
-        else {
-          t = doubleWithLeftChild (t);
-          countDoubleRotations++;
-        }
+  public InsertResult insert (T x, boolean replace){
+    AvlNode<T> t = findPath (x);
+    
+    if (t != null){
+      if (!replace){
+        releasePath ();
+        metrics.inserted (pathDepth + 1, InsertResult.ALREADY_PRESENT);
+        return InsertResult.ALREADY_PRESENT;
       }
-    }
-    else if (x.compareTo (t.element) > 0){
-      t.right = insert (x, t.right);
-      
-      if ( height (t.right) - height (t.left) == 2)
-        if (x.compareTo (t.right.element) > 0){
-          t = rotateWithRightChild (t);
-          countSingleRotations++;
-        }
-        else{
-          t = doubleWithRightChild (t);
-          countDoubleRotations++;
-        }
-    }
-    else {
-      throw new Exception("Attempting to insert duplicate value");
+      t.element = x;
+      // The new element may differ in more than its key, so refresh
+      // whatever the nodes above it cache
+      update (t);
+      for (int i = pathDepth - 1; i >= 0; i--){
+        update (path[i]);
+        path[i] = null;
+      }
+      metrics.inserted (pathDepth + 1, InsertResult.REPLACED);
+      return InsertResult.REPLACED;
     }
     
-    t.height = max (height (t.left), height (t.right)) + 1;
-    return t;
+    metrics.inserted (pathDepth, InsertResult.INSERTED);
+    attachAtPath (newNode (x, null, null));
+    return InsertResult.INSERTED;
   }
   
   /**
-   * Rotate binary tree node with left child.
-   * For AVL trees, this is a single rotation for case 1.
-   * Update heights, then return new root.
-   * 
-   * @param k2 Root of tree we are rotating
-   * @return New root
+   * Root-to-leaf path kept between calls to insertNear. For every node on
+   * it, lo and hi give the positions on the path of the nearest ancestors
+   * bounding its subtree from below and above, or -1 where the subtree
+   * is unbounded, so that whether a key falls within the subtree can be
+   * told without walking the path.
    */
-  protected AvlNode<T> rotateWithLeftChild (AvlNode<T> k2){
-    AvlNode<T> k1 = k2.left;
-    
-    k2.left = k1.right;
-    k1.right = k2;
-    
-    k2.height = max (height (k2.left), height (k2.right)) + 1;
-    k1.height = max (height (k1.left), k2.height) + 1;
+  private static final class Finger<T> {
+    AvlNode<T>[] nodes;
+    int[] lo;
+    int[] hi;
+    int depth;
+    int modCount;
     
-    return (k1);
+    @SuppressWarnings("unchecked")
+    void ensureCapacity (int needed){
+      if (nodes == null){
+        nodes = (AvlNode<T>[]) new AvlNode[Math.max (needed, 32)];
+        lo = new int[nodes.length];
+        hi = new int[nodes.length];
+      }
+      else if (nodes.length < needed){
+        int n = Math.max (needed, 2 * nodes.length);
+        nodes = Arrays.copyOf (nodes, n);
+        lo = Arrays.copyOf (lo, n);
+        hi = Arrays.copyOf (hi, n);
+      }
+    }
   }
   
   /**
-   * Double rotate binary tree node: first left child
-   * with its right child; then node k3 with new left child.
-   * For AVL trees, this is a double rotation for case 2.
-   * Update heights, then return new root.
+   * Insert an element.
    * 
-   * @param k3 Root of tree we are rotating
-   * @return New root
+   * Same as insert, but for elements arriving in or near sorted order.
+   * 
+   * @param x Element to insert into the tree
+   * @return True if the element was added, false if it was a duplicate
    */
-  protected AvlNode<T> doubleWithLeftChild (AvlNode<T> k3){
-    k3.left = rotateWithRightChild (k3.left);
-    return rotateWithLeftChild (k3);
+  public boolean insertNear (T x){
+    return insertNear (x, false) == InsertResult.INSERTED;
   }
   
   /**
-   * Rotate binary tree node with right child.
-   * For AVL trees, this is a single rotation for case 4.
-   * Update heights, then return new root.
+   * Insert an element, starting the search from where the previous call
+   * to insertNear left off instead of from the root.
    * 
-   * @param k1 Root of tree we are rotating.
-   * @return New root
+   * The path to the last element inserted this way is kept, with the
+   * bounds of every subtree on it. The search climbs that path only as
+   * far as the lowest subtree x belongs in, then descends from there, so
+   * a key d places away from the previous one usually costs O(log d)
+   * comparisons rather than O(log n); appending past the maximum costs
+   * O(1) of them. Heights and sizes are still maintained all the way up,
+   * but that takes no comparisons. Any other change to the tree discards
+   * the kept path, and the next call starts from the root.
+   * 
+   * Interleaving calls with keys far apart costs up to twice the
+   * comparisons of insert.
+   * 
+   * @param x       Element to insert into the tree
+   * @param replace If true, an equal element already in the tree is
+   *                replaced by x; otherwise it is left untouched
+   * @return INSERTED, ALREADY_PRESENT or REPLACED
    */
-  protected AvlNode<T> rotateWithRightChild (AvlNode<T> k1){
-    AvlNode<T> k2 = k1.right;
+  public InsertResult insertNear (T x, boolean replace){
+    Finger<T> f = finger;
+    if (f == null)
+      f = finger = new Finger<T> ();
+    f.ensureCapacity (height (root) + 2);
+    AvlNode<T>[] nodes = f.nodes;
+    int[] lo = f.lo, hi = f.hi;
+    long px = prefixOf (x);
+    int comparisons = 0;
     
-    k1.right = k2.left;
-    k2.left = k1;
+    int depth = 0;
+    AvlNode<T> t = root;
+    if (f.modCount == modCount && f.depth > 0){
+      // Climb to the lowest subtree that x falls strictly within. The
+      // bounds of enclosing subtrees nest, so a bound already passed
+      // need not be compared again.
+      int passedLo = -1, passedHi = -1;
+      depth = f.depth - 1;
+      while (depth > 0){
+        int l = lo[depth], h = hi[depth];
+        if (l >= 0 && l != passedLo){
+          comparisons++;
+          if (compare (x, px, nodes[l]) <= 0){
+            depth--;
+            continue;
+          }
+          passedLo = l;
+        }
+        if (h >= 0 && h != passedHi){
+          comparisons++;
+          if (compare (x, px, nodes[h]) >= 0){
+            depth--;
+            continue;
+          }
+          passedHi = h;
+        }
+        break;
+      }
+      t = nodes[depth];
+    }
+    else {
+      lo[0] = hi[0] = -1;
+    }
     
-    k1.height = max (height (k1.left), height (k1.right)) + 1;
-    k2.height = max (height (k2.right), k1.height) + 1;
+    int cmp = 0;
+    while (t != null){
+      comparisons++;
+      cmp = compare (x, px, t);
+      nodes[depth] = t;
+      if (cmp == 0)
+        break;
+      depth++;
+      if (cmp < 0){
+        lo[depth] = lo[depth - 1];
+        hi[depth] = depth - 1;
+        t = t.left;
+      }
+      else {
+        lo[depth] = depth - 1;
+        hi[depth] = hi[depth - 1];
+        t = t.right;
+      }
+    }
     
-    return (k2);
+    if (t != null){
+      for (int i = depth + 1; i < f.depth; i++)
+        nodes[i] = null;
+      f.depth = depth + 1;
+      f.modCount = modCount;
+      if (!replace){
+        metrics.inserted (comparisons, InsertResult.ALREADY_PRESENT);
+        return InsertResult.ALREADY_PRESENT;
+      }
+      t.element = x;
+      for (int i = depth; i >= 0; i--)
+        update (nodes[i]);
+      metrics.inserted (comparisons, InsertResult.REPLACED);
+      return InsertResult.REPLACED;
+    }
+    
+    // Attach and rebalance on a copy of the path, so the finger keeps the
+    // part above any rotation
+    AvlNode<T>[] path = pathFor (root);
+    System.arraycopy (nodes, 0, path, 0, depth);
+    AvlNode<T> leaf = newNode (x, null, null);
+    if (depth == 0)
+      root = leaf;
+    else if (cmp < 0)
+      nodes[depth - 1].left = leaf;
+    else
+      nodes[depth - 1].right = leaf;
+    int top = rebalancePath (path, depth, AvlTreeMetrics.Cause.INSERT);
+    modCount++;
+    
+    if (top == depth){
+      nodes[depth++] = leaf;
+    }
+    else {
+      // Find the leaf again below the rotated node; everything above it
+      // kept its place
+      depth = top;
+      if (depth == 0)
+        t = root;
+      else
+        t = hi[depth] == depth - 1 ? nodes[depth - 1].left : nodes[depth - 1].right;
+      while (t != leaf){
+        comparisons++;
+        cmp = compare (x, px, t);
+        nodes[depth++] = t;
+        if (cmp < 0){
+          lo[depth] = lo[depth - 1];
+          hi[depth] = depth - 1;
+          t = t.left;
+        }
+        else {
+          lo[depth] = depth - 1;
+          hi[depth] = hi[depth - 1];
+          t = t.right;
+        }
+      }
+      nodes[depth++] = leaf;
+    }
+    for (int i = depth; i < f.depth; i++)
+      nodes[i] = null;
+    f.depth = depth;
+    f.modCount = modCount;
+    metrics.inserted (comparisons, InsertResult.INSERTED);
+    return InsertResult.INSERTED;
   }
-
+  
   /**
-   * Double rotate binary tree node: first right child
-   * with its left child; then node k1 with new right child.
-   * For AVL trees, this is a double rotation for case 3.
-   * Update heights, then return new root.
+   * Get a scratch array large enough to hold a root-to-leaf path of the
+   * given tree. The array is kept between calls so that updates do not
+   * allocate.
    * 
-   * @param k1 Root of tree we are rotating
-   * @return New root
+   * @param t Root of the tree
+   * @return Path array
    */
-  protected AvlNode<T> doubleWithRightChild (AvlNode<T> k1){
-    k1.right = rotateWithLeftChild (k1.right);
-    return rotateWithRightChild (k1);
+  @SuppressWarnings("unchecked")
+  private AvlNode<T>[] pathFor (AvlNode<T> t){
+    int needed = height (t) + 2;
+    if (path == null || path.length < needed)
+      path = (AvlNode<T>[]) new AvlNode[max (needed, 32)];
+    return path;
   }
-
-
+  
   /**
-   * Serialize the tree to a string using an infix traversal.
-   * 
-   * In other words, the tree items will be serialized in numeric order. 
-   * 
-   * @return String representation of the tree
+   * Number of nodes on the path recorded by the last findPath, and the
+   * sign of the last comparison made along it.
    */
-  public String serializeInfix(){
-    StringBuilder str = new StringBuilder();
-    serializeInfix (root, str, " ");
-    return str.toString();
-  }
-
+  private int pathDepth;
+  private int pathCmp;
+  
   /**
-   * Internal method to infix-serialize a tree.
+   * Search for x, recording the nodes visited on the scratch path so
+   * that the tree can then be changed at that spot without a second
+   * descent. Exactly one of attachAtPath, removeAtPath or releasePath
+   * must follow, with no other update of the tree in between.
    * 
-   * @param t    Tree node to traverse
-   * @param str  Accumulator; string to keep appending items to.
+   * @param x Element to search for
+   * @return The node holding x, or null if there is none, in which case
+   *         the path ends at the node x would hang from
    */
-  protected void serializeInfix(AvlNode<T> t, StringBuilder str, String sep){
-    if (t != null){
-      serializeInfix (t.left, str, sep);
-      str.append(t.element.toString());
-      str.append(sep);
-      serializeInfix (t.right, str, sep);
-    }    
+  protected AvlNode<T> findPath (T x){
+    AvlNode<T>[] path = pathFor (root);
+    int depth = 0;
+    int cmp = 0;
+    long px = prefixOf (x);
+    AvlNode<T> t = root;
+    
+    while (t != null){
+      cmp = compare (x, px, t);
+      if (cmp == 0)
+        break;
+      path[depth++] = t;
+      t = cmp < 0 ? t.left : t.right;
+    }
+    pathDepth = depth;
+    pathCmp = cmp;
+    return t;
   }
   
   /**
-   * Serialize the tree to a string using a prefix traversal.
-   * 
-   * In other words, the tree items will be serialized in the order that
-   * they are stored within the tree. 
+   * Hang a new leaf where findPath found nothing, and rebalance up the
+   * path.
    * 
-   * @return String representation of the tree
-   */  
-  public String serializePrefix(){
-    StringBuilder str = new StringBuilder();
-    serializePrefix (root, str, " ");
-    return str.toString();
+   * @param leaf Node made by newNode, for the element that was searched
+   *             for
+   */
+  protected void attachAtPath (AvlNode<T> leaf){
+    int depth = pathDepth;
+    if (depth == 0)
+      root = leaf;
+    else if (pathCmp < 0)
+      path[depth - 1].left = leaf;
+    else
+      path[depth - 1].right = leaf;
+    
+    rebalancePath (path, depth, AvlTreeMetrics.Cause.INSERT);
+    modCount++;
   }
   
   /**
-   * Internal method to prefix-serialize a tree.
+   * Unlink the node found by findPath, and rebalance up the path.
    * 
-   * @param t    Tree node to traverse
-   * @param str  Accumulator; string to keep appending items to.
-   */  
-  private void serializePrefix (AvlNode<T> t, StringBuilder str, String sep){
-    if (t != null){
-      str.append(t.element.toString());
+   * A node with two children stays in place and takes over the contents
+   * of its successor, which is unlinked instead.
+   * 
+   * @param t Node returned by findPath
+   */
+  protected void removeAtPath (AvlNode<T> t){
+    AvlNode<T>[] path = this.path;
+    int depth = pathDepth;
+    
+    AvlNode<T> replacement;
+    if (t.left != null && t.right != null){
+      path[depth++] = t;
+      AvlNode<T> s = t.right;
+      while (s.left != null){
+        path[depth++] = s;
+        s = s.left;
+      }
+      moveContents (s, t);
+      t = s;
+      replacement = s.right;
+    }
+    else {
+      replacement = (t.left != null) ? t.left : t.right;
+    }
+    
+    boolean fromLeft = depth > 0 && path[depth - 1].left == t;
+    if (depth == 0)
+      root = replacement;
+    else if (fromLeft)
+      path[depth - 1].left = replacement;
+    else
+      path[depth - 1].right = replacement;
+    
+    if (policy == BalancePolicy.WAVL){
+      removeRebalanceWavl (path, depth, fromLeft);
+      avlShape = root == null;
+    }
+    else {
+      rebalancePath (path, depth, AvlTreeMetrics.Cause.REMOVE);
+    }
+    modCount++;
+  }
+  
+  /**
+   * Finish with the path recorded by findPath without changing the tree.
+   */
+  protected void releasePath (){
+    for (int i = pathDepth - 1; i >= 0; i--)
+      path[i] = null;
+  }
+  
+  /**
+   * Move what a node holds into another node that is about to lose its
+   * own, when a node with two children is removed. Subclasses whose nodes
+   * hold more than the element must move that too.
+   * 
+   * @param from Node whose contents are taken; it is unlinked next
+   * @param to   Node that receives them
+   */
+  protected void moveContents (AvlNode<T> from, AvlNode<T> to){
+    to.element = from.element;
+    if (prefixes != null)
+      ((PrefixNode<T>) to).prefix = ((PrefixNode<T>) from).prefix;
+  }
+  
+  /**
+   * Restore the balance of every node on a path, from the bottom up,
+   * after the subtree below the last node has changed.
+   * 
+   * The whole path is always walked, because subtree sizes change all the
+   * way up even once heights have settled. Entries are cleared as they are
+   * consumed so the scratch array does not keep nodes reachable.
+   * 
+   * @param path  Nodes from the root down
+   * @param depth Number of nodes on the path
+   * @param cause Operation being rebalanced after, for the metrics
+   * @return Position on the path of the highest node rotated out of its
+   *         place, or depth if there was no rotation
+   */
+  private int rebalancePath (AvlNode<T>[] path, int depth, AvlTreeMetrics.Cause cause){
+    if (policy == BalancePolicy.WAVL && cause == AvlTreeMetrics.Cause.INSERT)
+      return insertRebalanceWavl (path, depth);
+    int top = depth;
+    for (int i = depth - 1; i >= 0; i--){
+      AvlNode<T> t = path[i];
+      path[i] = null;
+      
+      AvlNode<T> r = balance (t, cause);
+      if (r != t)
+        top = i;
+      
+      if (i == 0)
+        root = r;
+      else if (path[i - 1].left == t)
+        path[i - 1].left = r;
+      else
+        path[i - 1].right = r;
+    }
+    return top;
+  }
+  
+  /**
+   * Recompute a node's cached fields from its children, keeping its rank.
+   */
+  private void refresh (AvlNode<T> t){
+    int rank = t.height;
+    update (t);
+    t.height = rank;
+  }
+  
+  /**
+   * WAVL rebalancing after a leaf has been hung below the last node of a
+   * path. While a node has a child of its own rank it is promoted if its
+   * other child is a 1-child, and otherwise a rotation finishes the job;
+   * either way balance does the work, as under AVL. Nodes above keep
+   * their rank, which need not be their height.
+   * 
+   * @return As for rebalancePath
+   */
+  private int insertRebalanceWavl (AvlNode<T>[] path, int depth){
+    int top = depth;
+    boolean rising = true;
+    for (int i = depth - 1; i >= 0; i--){
+      AvlNode<T> t = path[i];
+      path[i] = null;
+      
+      AvlNode<T> r = t;
+      if (rising && (height (t.left) == t.height || height (t.right) == t.height)){
+        r = balance (t, AvlTreeMetrics.Cause.INSERT);
+        if (r != t){
+          top = i;
+          rising = false;
+        }
+      }
+      else {
+        rising = false;
+        refresh (t);
+      }
+      
+      if (i == 0)
+        root = r;
+      else if (path[i - 1].left == t)
+        path[i - 1].left = r;
+      else
+        path[i - 1].right = r;
+    }
+    return top;
+  }
+  
+  /**
+   * WAVL rebalancing after a node has been unlinked from below the last
+   * node of a path, one removeStepWavl per node while ranks keep falling.
+   * 
+   * @param path     Nodes from the root down
+   * @param depth    Number of nodes on the path
+   * @param fromLeft Whether the unlinked node was the left child of the
+   *                 last node
+   */
+  private void removeRebalanceWavl (AvlNode<T>[] path, int depth, boolean fromLeft){
+    boolean rising = true;
+    for (int i = depth - 1; i >= 0; i--){
+      AvlNode<T> p = path[i];
+      path[i] = null;
+      
+      AvlNode<T> r = p;
+      if (rising){
+        int rp = p.height;
+        r = removeStepWavl (p, fromLeft, AvlTreeMetrics.Cause.REMOVE);
+        rising = r == p && p.height < rp;
+      }
+      else {
+        refresh (p);
+      }
+      
+      if (i == 0){
+        root = r;
+      }
+      else {
+        fromLeft = path[i - 1].left == p;
+        if (fromLeft)
+          path[i - 1].left = r;
+        else
+          path[i - 1].right = r;
+      }
+    }
+  }
+  
+  /**
+   * Rebalance a node one of whose children may have lost rank. A leaf left
+   * with rank 1 is demoted to 0. If the child x is now a 3-child, the node
+   * is demoted if the sibling of x is a 2-child, and demoted together with
+   * the sibling if that is a 2,2 node; otherwise one single or double
+   * rotation, with the ranks set as in Haeupler, Sen and Tarjan, restores
+   * the rank rule. Anything else leaves the rank as it is.
+   * 
+   * @param p        Node to rebalance
+   * @param fromLeft Whether x is p's left child
+   * @param cause    Operation being rebalanced after, for the metrics
+   * @return New root of the subtree; p, demoted, if the loss of rank
+   *         moves up to p's parent
+   */
+  private AvlNode<T> removeStepWavl (AvlNode<T> p, boolean fromLeft, AvlTreeMetrics.Cause cause){
+    if (p.left == null && p.right == null){
+      update (p);
+      return p;
+    }
+    
+    int rp = p.height;
+    if (rp - height (fromLeft ? p.left : p.right) != 3){
+      refresh (p);
+      return p;
+    }
+    
+    AvlNode<T> y = fromLeft ? p.right : p.left;
+    int ry = y.height;
+    if (rp - ry == 2){
+      refresh (p);
+      p.height--;
+      return p;
+    }
+    if (ry - height (y.left) == 2 && ry - height (y.right) == 2){
+      y.height--;
+      refresh (p);
+      p.height--;
+      return p;
+    }
+    
+    AvlNode<T> r;
+    if (ry - height (fromLeft ? y.right : y.left) == 1){
+      if (fromLeft){
+        r = rotateWithRightChild (p);
+        rotated (AvlTreeMetrics.Rotation.RR, cause);
+      }
+      else {
+        r = rotateWithLeftChild (p);
+        rotated (AvlTreeMetrics.Rotation.LL, cause);
+      }
+      p.height = (p.left == null && p.right == null) ? 0 : rp - 1;
+      y.height = rp;
+    }
+    else {
+      if (fromLeft){
+        r = doubleWithRightChild (p);
+        rotated (AvlTreeMetrics.Rotation.RL, cause);
+      }
+      else {
+        r = doubleWithLeftChild (p);
+        rotated (AvlTreeMetrics.Rotation.LR, cause);
+      }
+      p.height = rp - 2;
+      y.height = rp - 2;
+      r.height = rp;
+    }
+    return r;
+  }
+  
+  /**
+   * Restore the AVL property at a node whose subtrees are balanced but
+   * may differ in height by two, and recompute its height.
+   * 
+   * @param t Node to balance
+   * @return New root of the subtree
+   */
+  protected AvlNode<T> balance (AvlNode<T> t){
+    return balance (t, AvlTreeMetrics.Cause.BULK);
+  }
+  
+  private AvlNode<T> balance (AvlNode<T> t, AvlTreeMetrics.Cause cause){
+    int lh = height (t.left);
+    int rh = height (t.right);
+    
+    if (lh - rh == 2){
+      if (height (t.left.left) >= height (t.left.right)){
+        t = rotateWithLeftChild (t);
+        rotated (AvlTreeMetrics.Rotation.LL, cause);
+      }
+      else {
+        t = doubleWithLeftChild (t);
+        rotated (AvlTreeMetrics.Rotation.LR, cause);
+      }
+    }
+    else if (rh - lh == 2){
+      if (height (t.right.right) >= height (t.right.left)){
+        t = rotateWithRightChild (t);
+        rotated (AvlTreeMetrics.Rotation.RR, cause);
+      }
+      else {
+        t = doubleWithRightChild (t);
+        rotated (AvlTreeMetrics.Rotation.RL, cause);
+      }
+    }
+    else {
+      update (t);
+    }
+    return t;
+  }
+  
+  private void rotated (AvlTreeMetrics.Rotation rotation, AvlTreeMetrics.Cause cause){
+    rotations++;
+    metrics.rotated (rotation, cause);
+  }
+  
+  /**
+   * Rotate binary tree node with left child.
+   * For AVL trees, this is a single rotation for case 1.
+   * Update heights, then return new root.
+   * 
+   * @param k2 Root of tree we are rotating
+   * @return New root
+   */
+  protected AvlNode<T> rotateWithLeftChild (AvlNode<T> k2){
+    AvlNode<T> k1 = k2.left;
+    
+    k2.left = k1.right;
+    k1.right = k2;
+    
+    update (k2);
+    update (k1);
+    
+    return (k1);
+  }
+  
+  /**
+   * Double rotate binary tree node: first left child
+   * with its right child; then node k3 with new left child.
+   * For AVL trees, this is a double rotation for case 2.
+   * Update heights, then return new root.
+   * 
+   * @param k3 Root of tree we are rotating
+   * @return New root
+   */
+  protected AvlNode<T> doubleWithLeftChild (AvlNode<T> k3){
+    k3.left = rotateWithRightChild (k3.left);
+    return rotateWithLeftChild (k3);
+  }
+  
+  /**
+   * Rotate binary tree node with right child.
+   * For AVL trees, this is a single rotation for case 4.
+   * Update heights, then return new root.
+   * 
+   * @param k1 Root of tree we are rotating.
+   * @return New root
+   */
+  protected AvlNode<T> rotateWithRightChild (AvlNode<T> k1){
+    AvlNode<T> k2 = k1.right;
+    
+    k1.right = k2.left;
+    k2.left = k1;
+    
+    update (k1);
+    update (k2);
+    
+    return (k2);
+  }
+
+  /**
+   * Double rotate binary tree node: first right child
+   * with its left child; then node k1 with new right child.
+   * For AVL trees, this is a double rotation for case 3.
+   * Update heights, then return new root.
+   * 
+   * @param k1 Root of tree we are rotating
+   * @return New root
+   */
+  protected AvlNode<T> doubleWithRightChild (AvlNode<T> k1){
+    k1.right = rotateWithLeftChild (k1.right);
+    return rotateWithRightChild (k1);
+  }
+
+
+  /**
+   * Serialize the tree to a string using an infix traversal.
+   * 
+   * In other words, the tree items will be serialized in numeric order. 
+   * 
+   * @return String representation of the tree
+   */
+  public String serializeInfix(){
+    StringBuilder str = new StringBuilder();
+    serializeInfix (root, str, " ");
+    return str.toString();
+  }
+
+  /**
+   * Internal method to infix-serialize a tree.
+   * 
+   * @param t    Tree node to traverse
+   * @param str  Accumulator; string to keep appending items to.
+   */
+  protected void serializeInfix(AvlNode<T> t, StringBuilder str, String sep){
+    if (t != null){
+      serializeInfix (t.left, str, sep);
+      str.append(t.element.toString());
+      str.append(sep);
+      serializeInfix (t.right, str, sep);
+    }    
+  }
+  
+  /**
+   * Serialize the tree to a string using a prefix traversal.
+   * 
+   * In other words, the tree items will be serialized in the order that
+   * they are stored within the tree. 
+   * 
+   * @return String representation of the tree
+   */  
+  public String serializePrefix(){
+    StringBuilder str = new StringBuilder();
+    serializePrefix (root, str, " ");
+    return str.toString();
+  }
+  
+  /**
+   * Internal method to prefix-serialize a tree.
+   * 
+   * @param t    Tree node to traverse
+   * @param str  Accumulator; string to keep appending items to.
+   */  
+  private void serializePrefix (AvlNode<T> t, StringBuilder str, String sep){
+    if (t != null){
+      str.append(t.element.toString());
       str.append(sep);
       serializePrefix (t.left, str, sep);
       serializePrefix (t.right, str, sep);
     }
   }
-  
+  
+  /**
+   * Deletes all nodes from the tree.
+   *
+   */
+  public void makeEmpty(){
+    root = null;
+    finger = null;
+    avlShape = true;
+    modCount++;
+  }
+  
+  /**
+   * Determine if the tree is empty.
+   * 
+   * @return True if the tree is empty 
+   */
+  public boolean isEmpty(){
+    return (root == null);
+  }
+
+  /**
+   * Subtrees with at least this many elements are built in parallel by
+   * the bulk loaders.
+   */
+  private static final int PARALLEL_BUILD_THRESHOLD = 1 << 15;
+  
+  /**
+   * Replace the contents of the tree with the elements of a sorted array.
+   * 
+   * The tree is built directly in perfectly balanced form, in linear time
+   * and without any comparisons beyond checking the input order. Large
+   * inputs are built in parallel.
+   * 
+   * @param a Elements in strictly increasing order
+   * @throws IllegalArgumentException if the array is not strictly increasing
+   */
+  public void buildFromSorted (T[] a){
+    checkStrictlyIncreasing (a, a.length);
+    root = buildBalanced (a, 0, a.length);
+    avlShape = true;
+    modCount++;
+  }
+  
+  /**
+   * Replace the contents of the tree with the elements of a sorted
+   * sequence, consuming exactly size elements from the iterator.
+   * 
+   * Nodes are created in order as the iterator is read, so no intermediate
+   * array is needed.
+   * 
+   * @param it   Elements in strictly increasing order
+   * @param size Number of elements to take from it
+   * @throws IllegalArgumentException if the elements are not strictly
+   *         increasing
+   * @throws NoSuchElementException if the iterator has fewer than size
+   *         elements
+   */
+  public void buildFromSorted (Iterator<? extends T> it, int size){
+    if (size < 0)
+      throw new IllegalArgumentException ("Negative size: " + size);
+    root = buildBalanced (new SortedSource (it), size);
+    avlShape = true;
+    modCount++;
+  }
+  
+  /**
+   * Replace the contents of the tree with the elements of a sorted stream.
+   * 
+   * @param s Elements in strictly increasing order
+   * @throws IllegalArgumentException if the elements are not strictly
+   *         increasing
+   */
+  public void buildFromSorted (Stream<? extends T> s){
+    ArrayList<T> list = new ArrayList<T> ();
+    s.forEachOrdered (list::add);
+    buildFromSorted (list.iterator (), list.size ());
+  }
+  
+  /**
+   * Replace the contents of the tree with the elements of an arbitrary
+   * collection. The elements are sorted in parallel, duplicates are
+   * dropped (the first of a run of equal elements is kept), and the tree
+   * is then built as by buildFromSorted.
+   * 
+   * @param c Elements in any order
+   */
+  @SuppressWarnings("unchecked")
+  public void buildFromUnsorted (Collection<? extends T> c){
+    // Elements are kept in an Object[]: T erases to Comparable, so a cast
+    // of toArray() to T[] would fail at runtime
+    Object[] a = c.toArray ();
+    Comparator<Object> order = (x, y) -> compare ((T) x, (T) y);
+    Arrays.parallelSort (a, order);
+    
+    int n = 0;
+    for (int i = 0; i < a.length; i++)
+      if (n == 0 || order.compare (a[i], a[n - 1]) != 0)
+        a[n++] = a[i];
+    
+    root = buildBalanced (a, 0, n);
+    avlShape = true;
+    modCount++;
+  }
+  
+  /**
+   * Rebuild the tree into perfect balance if WAVL removals or joins may
+   * have left it out of AVL shape, reusing its nodes. The joins of an AVL
+   * tree, AvlTreeCodec and PersistentAvlTree rely on subtree heights
+   * differing by at most one.
+   */
+  void ensureAvlShape (){
+    if (avlShape)
+      return;
+    AvlNode<T>[] nodes = nodesInOrder ();
+    root = relinkBalanced (nodes, 0, nodes.length);
+    avlShape = true;
+    modCount++;
+  }
+  
+  /**
+   * Whether the tree is known to be in AVL shape. Readers that need AVL
+   * shape but must not change the tree take nodesInOrder otherwise, and
+   * build the balanced shape from it as relinkBalanced would.
+   */
+  boolean hasAvlShape (){
+    return avlShape;
+  }
+  
+  /**
+   * The nodes of the tree in order, leaving the tree untouched.
+   */
+  AvlNode<T>[] nodesInOrder (){
+    @SuppressWarnings("unchecked")
+    AvlNode<T>[] nodes = (AvlNode<T>[]) new AvlNode[size (root)];
+    collectInOrder (root, nodes, 0);
+    return nodes;
+  }
+  
+  private static <T> int collectInOrder (AvlNode<T> t, AvlNode<T>[] nodes, int i){
+    if (t == null)
+      return i;
+    i = collectInOrder (t.left, nodes, i);
+    nodes[i++] = t;
+    return collectInOrder (t.right, nodes, i);
+  }
+  
+  private AvlNode<T> relinkBalanced (AvlNode<T>[] nodes, int lo, int hi){
+    if (lo >= hi)
+      return null;
+    int mid = (lo + hi) >>> 1;
+    AvlNode<T> t = nodes[mid];
+    t.left = relinkBalanced (nodes, lo, mid);
+    t.right = relinkBalanced (nodes, mid + 1, hi);
+    update (t);
+    return t;
+  }
+  
+  /**
+   * Verify that the first n elements of an array are strictly increasing.
+   */
+  private void checkStrictlyIncreasing (T[] a, int n){
+    for (int i = 1; i < n; i++)
+      if (compare (a[i - 1], a[i]) >= 0)
+        throw new IllegalArgumentException ("Input is not strictly increasing at index " + i);
+  }
+  
+  /**
+   * Build a perfectly balanced tree from a sorted array range.
+   * 
+   * @param a  Sorted elements, all of type T
+   * @param lo First index, inclusive
+   * @param hi Last index, exclusive
+   * @return Root of the new tree
+   */
+  protected AvlNode<T> buildBalanced (Object[] a, int lo, int hi){
+    if (hi - lo >= PARALLEL_BUILD_THRESHOLD)
+      return ForkJoinPool.commonPool ().invoke (new BuildTask (a, lo, hi));
+    return buildSequential (a, lo, hi);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private AvlNode<T> buildSequential (Object[] a, int lo, int hi){
+    if (lo >= hi)
+      return null;
+    int mid = (lo + hi) >>> 1;
+    AvlNode<T> t = newNode ((T) a[mid], buildSequential (a, lo, mid), buildSequential (a, mid + 1, hi));
+    update (t);
+    return t;
+  }
+  
+  /**
+   * Fork/join task building the two halves of a sorted range in parallel.
+   */
+  private final class BuildTask extends RecursiveTask<AvlNode<T>> {
+    private final Object[] a;
+    private final int lo, hi;
+    
+    BuildTask (Object[] a, int lo, int hi){
+      this.a = a;
+      this.lo = lo;
+      this.hi = hi;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    protected AvlNode<T> compute (){
+      if (hi - lo < PARALLEL_BUILD_THRESHOLD)
+        return buildSequential (a, lo, hi);
+      
+      int mid = (lo + hi) >>> 1;
+      BuildTask left = new BuildTask (a, lo, mid);
+      left.fork ();
+      AvlNode<T> right = new BuildTask (a, mid + 1, hi).compute ();
+      
+      AvlNode<T> t = newNode ((T) a[mid], left.join (), right);
+      update (t);
+      return t;
+    }
+  }
+  
+  /**
+   * Build a perfectly balanced tree from the next n elements of a sorted
+   * sequence, creating nodes in order.
+   * 
+   * @param src Sorted elements
+   * @param n   Number of elements to consume
+   * @return Root of the new tree
+   */
+  private AvlNode<T> buildBalanced (SortedSource src, int n){
+    if (n == 0)
+      return null;
+    int leftCount = (n - 1) / 2;
+    AvlNode<T> l = buildBalanced (src, leftCount);
+    AvlNode<T> t = newNode (src.next (), l, null);
+    t.right = buildBalanced (src, n - 1 - leftCount);
+    update (t);
+    return t;
+  }
+  
+  /**
+   * Insert a batch of elements.
+   * 
+   * The batch is sorted and then pushed down the tree in a single pass:
+   * at each node it is split around the node's element and the halves are
+   * inserted into the two subtrees, which are then joined back together
+   * with the node. Every subtree is visited at most once and each touched
+   * node is rebalanced once, so inserting m elements into a tree of n
+   * costs O(m log(n/m + 1)) rather than m separate descents.
+   * 
+   * @param c Elements to insert, in any order
+   * @return Number of elements inserted, duplicates skipped and rotations
+   */
+  public BatchResult insertAll (Collection<? extends T> c){
+    Object[] a = sortedBatch (c);
+    int n = dedupe (a);
+    long before = rotations;
+    
+    BatchCounts counts = new BatchCounts ();
+    root = insertBatch (root, a, 0, n, counts);
+    joined ();
+    
+    return new BatchResult (counts.applied, a.length - counts.applied, rotations - before);
+  }
+  
+  /**
+   * Remove a batch of elements, in a single pass over the tree as
+   * described for insertAll.
+   * 
+   * @param c Elements to remove, in any order
+   * @return Number of elements removed, elements not found and rotations
+   */
+  public BatchResult removeAll (Collection<? extends T> c){
+    Object[] a = sortedBatch (c);
+    int n = dedupe (a);
+    long before = rotations;
+    
+    BatchCounts counts = new BatchCounts ();
+    root = removeBatch (root, a, 0, n, counts);
+    joined ();
+    
+    return new BatchResult (counts.applied, a.length - counts.applied, rotations - before);
+  }
+  
+  /**
+   * Mutable counters threaded through a batch update.
+   */
+  private static final class BatchCounts {
+    int applied;
+  }
+  
+  @SuppressWarnings("unchecked")
+  private Object[] sortedBatch (Collection<? extends T> c){
+    Object[] a = c.toArray ();
+    Arrays.parallelSort (a, (x, y) -> compare ((T) x, (T) y));
+    return a;
+  }
+  
+  /**
+   * Drop runs of equal elements from a sorted array, keeping the first
+   * of each.
+   * 
+   * @return Number of distinct elements, now at the front of the array
+   */
+  @SuppressWarnings("unchecked")
+  private int dedupe (Object[] a){
+    int n = 0;
+    for (int i = 0; i < a.length; i++)
+      if (n == 0 || compare ((T) a[i], (T) a[n - 1]) != 0)
+        a[n++] = a[i];
+    return n;
+  }
+  
+  /**
+   * Find the first index in a sorted range whose element is not less
+   * than x.
+   */
+  @SuppressWarnings("unchecked")
+  private int lowerBound (Object[] a, int lo, int hi, T x){
+    while (lo < hi){
+      int mid = (lo + hi) >>> 1;
+      if (compare ((T) a[mid], x) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+  
+  private AvlNode<T> insertBatch (AvlNode<T> t, Object[] a, int lo, int hi, BatchCounts counts){
+    if (lo >= hi)
+      return t;
+    if (t == null){
+      counts.applied += hi - lo;
+      return buildBalanced (a, lo, hi);
+    }
+    
+    int i = lowerBound (a, lo, hi, t.element);
+    int j = (i < hi && compare (t.element, elementAt (a, i)) == 0) ? i + 1 : i;
+    
+    AvlNode<T> l = insertBatch (t.left, a, lo, i, counts);
+    AvlNode<T> r = insertBatch (t.right, a, j, hi, counts);
+    return join (l, t, r);
+  }
+  
+  private AvlNode<T> removeBatch (AvlNode<T> t, Object[] a, int lo, int hi, BatchCounts counts){
+    if (t == null || lo >= hi)
+      return t;
+    
+    int i = lowerBound (a, lo, hi, t.element);
+    boolean found = i < hi && compare (t.element, elementAt (a, i)) == 0;
+    
+    AvlNode<T> l = removeBatch (t.left, a, lo, i, counts);
+    AvlNode<T> r = removeBatch (t.right, a, found ? i + 1 : i, hi, counts);
+    if (found){
+      counts.applied++;
+      return join2 (l, r);
+    }
+    return join (l, t, r);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private T elementAt (Object[] a, int i){
+    return (T) a[i];
+  }
+  
+  /**
+   * Join two trees around a middle node: every element of l must be
+   * smaller than k's element, and every element of r larger. The heights
+   * of l and r may differ arbitrarily; the taller tree is descended along
+   * its inner spine until a subtree of matching height is found, k is
+   * placed there, and the spine is rebalanced on the way back up. Costs
+   * O(|height(l) - height(r)| + 1).
+   * 
+   * Under WAVL the same is done with ranks, and the spine is rebalanced
+   * as after an insert (Blelloch, Ferizovic and Sun give the join for
+   * weak AVL trees), so the result is a WAVL tree in the same time.
+   * 
+   * @param l Left tree
+   * @param k Middle node; its children are overwritten
+   * @param r Right tree
+   * @return Root of the joined tree
+   */
+  protected AvlNode<T> join (AvlNode<T> l, AvlNode<T> k, AvlNode<T> r){
+    int hl = height (l);
+    int hr = height (r);
+    
+    if (hl > hr + 1)
+      return joinRight (l, k, r);
+    if (hr > hl + 1)
+      return joinLeft (l, k, r);
+    
+    k.left = l;
+    k.right = r;
+    update (k);
+    return k;
+  }
+  
+  /**
+   * Join for the case where l is the taller tree.
+   */
+  private AvlNode<T> joinRight (AvlNode<T> l, AvlNode<T> k, AvlNode<T> r){
+    if (height (l.right) <= height (r) + 1){
+      k.left = l.right;
+      k.right = r;
+      update (k);
+      l.right = k;
+    }
+    else {
+      l.right = joinRight (l.right, k, r);
+    }
+    return balanceJoined (l);
+  }
+  
+  /**
+   * Join for the case where r is the taller tree.
+   */
+  private AvlNode<T> joinLeft (AvlNode<T> l, AvlNode<T> k, AvlNode<T> r){
+    if (height (r.left) <= height (l) + 1){
+      k.left = l;
+      k.right = r.left;
+      update (k);
+      r.left = k;
+    }
+    else {
+      r.left = joinLeft (l, k, r.left);
+    }
+    return balanceJoined (r);
+  }
+  
+  /**
+   * Rebalance a node on the spine a join descended, now that the subtree
+   * below has changed. Under WAVL only a node with a child of its own rank
+   * is rebalanced, promoting it or rotating as after an insert; any other
+   * node keeps its rank.
+   */
+  private AvlNode<T> balanceJoined (AvlNode<T> t){
+    if (policy == BalancePolicy.WAVL && height (t.left) != t.height && height (t.right) != t.height){
+      refresh (t);
+      return t;
+    }
+    return balance (t);
+  }
+  
+  /**
+   * Join two trees without a middle node: every element of l must be
+   * smaller than every element of r.
+   * 
+   * @param l Left tree
+   * @param r Right tree
+   * @return Root of the joined tree
+   */
+  protected AvlNode<T> join2 (AvlNode<T> l, AvlNode<T> r){
+    if (l == null)
+      return r;
+    if (r == null)
+      return l;
+    
+    AvlNode<T> first = findMin (r);
+    return join (l, first, removeMin (r));
+  }
+  
+  /**
+   * Unlink the leftmost node of a subtree, rebalancing along the way.
+   * 
+   * @param t Root of the subtree
+   * @return New root of the subtree
+   */
+  private AvlNode<T> removeMin (AvlNode<T> t){
+    if (t.left == null)
+      return t.right;
+    t.left = removeMin (t.left);
+    if (policy == BalancePolicy.WAVL)
+      return removeStepWavl (t, true, AvlTreeMetrics.Cause.BULK);
+    return balance (t);
+  }
+  
+  /**
+   * Record a change made by joins. Under WAVL the result is rank balanced
+   * but may be out of AVL shape.
+   */
+  private void joined (){
+    if (policy == BalancePolicy.WAVL)
+      avlShape = root == null;
+    modCount++;
+  }
+  
+  /**
+   * Make another tree fit to be joined into this one: a WAVL tree may be
+   * out of the AVL shape the joins of an AVL tree need, and is then
+   * rebuilt in O(n). Any AVL tree is also a WAVL tree.
+   */
+  private void prepareOperand (AvlTree<T> other){
+    if (policy == BalancePolicy.AVL)
+      other.ensureAvlShape ();
+  }
+  
+  /**
+   * Result of splitting a tree around a key.
+   */
+  public static class Split<T> {
+    /**
+     * Elements smaller than the key
+     */
+    public final AvlTree<T> left;
+    
+    /**
+     * The element equal to the key, or null if there was none
+     */
+    public final T element;
+    
+    /**
+     * Elements larger than the key
+     */
+    public final AvlTree<T> right;
+    
+    Split (AvlTree<T> left, T element, AvlTree<T> right){
+      this.left = left;
+      this.element = element;
+      this.right = right;
+    }
+  }
+  
+  /**
+   * Split the tree around a key, in O(log n). The nodes are moved into
+   * the two resulting trees and this tree is left empty.
+   * 
+   * @param key Key to split at
+   * @return Trees of the elements below and above key, plus the element
+   *         equal to key if there was one
+   */
+  public Split<T> split (T key){
+    SplitNodes<T> parts = new SplitNodes<T> ();
+    split (root, key, parts);
+    root = null;
+    modCount++;
+    
+    AvlTree<T> left = newEmptyTree ();
+    left.root = parts.left;
+    left.joined ();
+    AvlTree<T> right = newEmptyTree ();
+    right.root = parts.right;
+    right.joined ();
+    return new Split<T> (left, parts.match == null ? null : parts.match.element, right);
+  }
+  
+  /**
+   * Join two trees around a key, in O(log n). Every element of left must
+   * be smaller than key, and every element of right larger. The nodes of
+   * right are moved into left, which is returned; right is left empty.
+   * The result keeps left's BalancePolicy; if that is AVL and right is a
+   * WAVL tree out of AVL shape, right is first rebuilt in O(n).
+   * 
+   * @param left  Tree of smaller elements
+   * @param key   Middle element
+   * @param right Tree of larger elements
+   * @return left, now holding all of the elements
+   * @throws IllegalArgumentException if the elements are not ordered as
+   *         described
+   */
+  public static <T> AvlTree<T> join (AvlTree<T> left, T key, AvlTree<T> right){
+    if (!left.isEmpty () && left.compare (left.findMax (), key) >= 0)
+      throw new IllegalArgumentException ("Left tree has elements not below " + key);
+    if (!right.isEmpty () && left.compare (right.findMin (), key) <= 0)
+      throw new IllegalArgumentException ("Right tree has elements not above " + key);
+    
+    left.prepareOperand (right);
+    left.root = left.join (left.root, left.newNode (key, null, null), right.root);
+    left.joined ();
+    right.root = null;
+    right.modCount++;
+    return left;
+  }
+  
+  /**
+   * Remove every element from one key to another, in O(log n) however
+   * many elements that is: the tree is split at both ends and the two
+   * outer parts are joined back together.
+   * 
+   * @param from          Low end of the range
+   * @param fromInclusive Whether an element equal to from is removed
+   * @param to            High end of the range
+   * @param toInclusive   Whether an element equal to to is removed
+   * @return Number of elements removed
+   * @throws IllegalArgumentException if from is greater than to
+   */
+  public int removeRange (T from, boolean fromInclusive, T to, boolean toInclusive){
+    int cmp = compare (from, to);
+    if (cmp > 0)
+      throw new IllegalArgumentException ("fromKey > toKey");
+    int before = size (root);
+    
+    SplitNodes<T> low = new SplitNodes<T> ();
+    split (root, from, low);
+    AvlNode<T> l = low.left;
+    // An empty range such as [x, x) keeps x
+    if (low.match != null && (!fromInclusive || (cmp == 0 && !toInclusive)))
+      l = join (l, low.match, null);
+    
+    SplitNodes<T> high = new SplitNodes<T> ();
+    split (low.right, to, high);
+    AvlNode<T> r = high.right;
+    if (high.match != null && !toInclusive)
+      r = join (null, high.match, r);
+    
+    root = join2 (l, r);
+    joined ();
+    return before - size (root);
+  }
+  
+  /**
+   * Remove every element from from, inclusive, to to, exclusive.
+   * 
+   * @param from Low end of the range
+   * @param to   High end of the range
+   * @return Number of elements removed
+   * @throws IllegalArgumentException if from is greater than to
+   */
+  public int removeRange (T from, T to){
+    return removeRange (from, true, to, false);
+  }
+  
+  /**
+   * Remove every element below a key, in O(log n).
+   * 
+   * @param to        Key to remove up to
+   * @param inclusive Whether an element equal to to is removed too
+   * @return Number of elements removed
+   */
+  public int removeHead (T to, boolean inclusive){
+    int before = size (root);
+    SplitNodes<T> parts = new SplitNodes<T> ();
+    split (root, to, parts);
+    root = parts.right;
+    if (parts.match != null && !inclusive)
+      root = join (null, parts.match, root);
+    joined ();
+    return before - size (root);
+  }
+  
+  /**
+   * Remove every element below a key, in O(log n).
+   * 
+   * @param to Key to remove up to, exclusive
+   * @return Number of elements removed
+   */
+  public int removeHead (T to){
+    return removeHead (to, false);
+  }
+  
+  /**
+   * Remove every element above a key, in O(log n).
+   * 
+   * @param from      Key to remove from
+   * @param inclusive Whether an element equal to from is removed too
+   * @return Number of elements removed
+   */
+  public int removeTail (T from, boolean inclusive){
+    int before = size (root);
+    SplitNodes<T> parts = new SplitNodes<T> ();
+    split (root, from, parts);
+    root = parts.left;
+    if (parts.match != null && !inclusive)
+      root = join (root, parts.match, null);
+    joined ();
+    return before - size (root);
+  }
+  
+  /**
+   * Remove every element from a key up.
+   * 
+   * @param from Key to remove from, inclusive
+   * @return Number of elements removed
+   */
+  public int removeTail (T from){
+    return removeTail (from, true);
+  }
+  
+  /**
+   * Remove every element matching a predicate.
+   * 
+   * The predicate is first run over all of the elements in order, so if
+   * it throws the tree is unchanged. The tree is then rebuilt in one
+   * bottom-up pass that joins the kept parts of each subtree, skipping
+   * subtrees with nothing to remove; removing k elements costs
+   * O(k log(n/k + 1)) on top of the O(n) scan.
+   * 
+   * @param filter Returns true for the elements to remove
+   * @return Number of elements removed
+   */
+  public int removeIf (Predicate<? super T> filter){
+    BitSet marks = new BitSet ();
+    int i = 0;
+    for (T x : this){
+      if (filter.test (x))
+        marks.set (i);
+      i++;
+    }
+    if (marks.isEmpty ())
+      return 0;
+    
+    int before = size (root);
+    root = removeMarked (root, marks, 0);
+    joined ();
+    return before - size (root);
+  }
+  
+  /**
+   * Join-based filter for removeIf.
+   * 
+   * @param t      Subtree
+   * @param marks  In-order positions of the elements to remove
+   * @param offset Position of the first element of t
+   * @return Root of what is left of t
+   */
+  private AvlNode<T> removeMarked (AvlNode<T> t, BitSet marks, int offset){
+    if (t == null)
+      return null;
+    int next = marks.nextSetBit (offset);
+    if (next < 0 || next >= offset + t.size)
+      return t;
+    
+    int at = offset + size (t.left);
+    AvlNode<T> l = removeMarked (t.left, marks, offset);
+    AvlNode<T> r = removeMarked (t.right, marks, at + 1);
+    return marks.get (at) ? join2 (l, r) : join (l, t, r);
+  }
+  
+  /**
+   * Add every element of another tree to this one. The other tree is
+   * consumed: its nodes are reused and it is left empty. Where both trees
+   * hold equal elements, this tree's element is kept.
+   * 
+   * Runs in O(m log(n/m + 1)) for trees of sizes m &lt;= n, recursing in
+   * parallel on the common fork/join pool for large trees. If this is an
+   * AVL tree and the other a WAVL tree out of AVL shape, the other is
+   * first rebuilt in time linear in its size; the same goes for
+   * intersection and difference.
+   * 
+   * The union of a tree with itself leaves it unchanged.
+   * 
+   * @param other Tree to merge into this one
+   */
+  public void union (AvlTree<T> other){
+    if (other == this)
+      return;
+    prepareOperand (other);
+    root = setOperation (UNION, root, other.root);
+    other.root = null;
+    joined ();
+    other.modCount++;
+  }
+  
+  /**
+   * Keep only the elements that are also in another tree. The other tree
+   * is consumed and left empty; intersecting a tree with itself leaves it
+   * unchanged.
+   * 
+   * @param other Tree to intersect with
+   */
+  public void intersection (AvlTree<T> other){
+    if (other == this)
+      return;
+    prepareOperand (other);
+    root = setOperation (INTERSECTION, root, other.root);
+    other.root = null;
+    joined ();
+    other.modCount++;
+  }
+  
+  /**
+   * Remove every element that is also in another tree. The other tree is
+   * consumed and left empty; the difference of a tree with itself empties
+   * it.
+   * 
+   * @param other Tree of elements to remove
+   */
+  public void difference (AvlTree<T> other){
+    if (other == this){
+      makeEmpty ();
+      return;
+    }
+    prepareOperand (other);
+    root = setOperation (DIFFERENCE, root, other.root);
+    other.root = null;
+    joined ();
+    other.modCount++;
+  }
+  
+  private static final int UNION = 0;
+  private static final int INTERSECTION = 1;
+  private static final int DIFFERENCE = 2;
+  
+  /**
+   * Set operations recurse in parallel while both operands are at least
+   * this high, i.e. hold at least a few hundred elements each.
+   */
+  private static final int PARALLEL_SET_HEIGHT = 9;
+  
+  private AvlNode<T> setOperation (int op, AvlNode<T> t1, AvlNode<T> t2){
+    if (min (height (t1), height (t2)) >= PARALLEL_SET_HEIGHT)
+      return ForkJoinPool.commonPool ().invoke (new SetTask (op, t1, t2));
+    return applySetOperation (op, t1, t2);
+  }
+  
+  private static int min (int a, int b){
+    return a < b ? a : b;
+  }
+  
+  /**
+   * Join-based set algebra (Blelloch, Ferizovic and Sun, "Just Join for
+   * Parallel Ordered Sets"): split one tree around the root of the other,
+   * recurse on the two halves, and join the results.
+   */
+  private AvlNode<T> applySetOperation (int op, AvlNode<T> t1, AvlNode<T> t2){
+    if (t1 == null)
+      return op == UNION ? t2 : null;
+    if (t2 == null)
+      return op == INTERSECTION ? null : t1;
+    
+    // Split the other tree around the root of the one we keep nodes from
+    AvlNode<T> pivot = (op == DIFFERENCE) ? t2 : t1;
+    AvlNode<T> a = (op == DIFFERENCE) ? t2 : t1;
+    SplitNodes<T> parts = new SplitNodes<T> ();
+    split ((op == DIFFERENCE) ? t1 : t2, pivot.element, parts);
+    AvlNode<T> aLeft = a.left;
+    AvlNode<T> aRight = a.right;
+    
+    AvlNode<T> l, r;
+    if (ForkJoinTask.inForkJoinPool () && min (height (t1), height (t2)) >= PARALLEL_SET_HEIGHT){
+      SetTask leftTask = (op == DIFFERENCE) ? new SetTask (op, parts.left, aLeft) : new SetTask (op, aLeft, parts.left);
+      leftTask.fork ();
+      r = (op == DIFFERENCE) ? applySetOperation (op, parts.right, aRight) : applySetOperation (op, aRight, parts.right);
+      l = leftTask.join ();
+    }
+    else {
+      l = (op == DIFFERENCE) ? applySetOperation (op, parts.left, aLeft) : applySetOperation (op, aLeft, parts.left);
+      r = (op == DIFFERENCE) ? applySetOperation (op, parts.right, aRight) : applySetOperation (op, aRight, parts.right);
+    }
+    
+    switch (op){
+      case UNION:
+        return join (l, t1, r);
+      case INTERSECTION:
+        return parts.match != null ? join (l, t1, r) : join2 (l, r);
+      default:
+        // The pivot came from t2, so t1's copy (if any) is parts.match
+        return join2 (l, r);
+    }
+  }
+  
+  /**
+   * Fork/join task for one level of a set operation.
+   */
+  private final class SetTask extends RecursiveTask<AvlNode<T>> {
+    private final int op;
+    private final AvlNode<T> t1, t2;
+    
+    SetTask (int op, AvlNode<T> t1, AvlNode<T> t2){
+      this.op = op;
+      this.t1 = t1;
+      this.t2 = t2;
+    }
+    
+    @Override
+    protected AvlNode<T> compute (){
+      return applySetOperation (op, t1, t2);
+    }
+  }
+  
+  /**
+   * The three parts of a split subtree.
+   */
+  private static final class SplitNodes<T> {
+    AvlNode<T> left;
+    AvlNode<T> match;
+    AvlNode<T> right;
+  }
+  
+  /**
+   * Split a subtree around a key into the elements below it, the node
+   * equal to it (if any) and the elements above it. The subtree's nodes
+   * are reused.
+   * 
+   * @param t   Root of the subtree
+   * @param key Key to split at
+   * @param out Receives the three parts
+   */
+  private void split (AvlNode<T> t, T key, SplitNodes<T> out){
+    if (t == null){
+      out.left = null;
+      out.match = null;
+      out.right = null;
+      return;
+    }
+    
+    int cmp = compare (key, t.element);
+    if (cmp == 0){
+      out.left = t.left;
+      out.match = t;
+      out.right = t.right;
+    }
+    else if (cmp < 0){
+      AvlNode<T> right = t.right;
+      split (t.left, key, out);
+      out.right = join (out.right, t, right);
+    }
+    else {
+      AvlNode<T> left = t.left;
+      split (t.right, key, out);
+      out.left = join (left, t, out.left);
+    }
+  }
+  
+  /**
+   * Iterator wrapper that rejects out-of-order elements.
+   */
+  private final class SortedSource {
+    private final Iterator<? extends T> it;
+    private T last;
+    
+    SortedSource (Iterator<? extends T> it){
+      this.it = it;
+    }
+    
+    T next (){
+      T x = it.next ();
+      if (last != null && compare (last, x) >= 0)
+        throw new IllegalArgumentException ("Input is not strictly increasing at " + x);
+      last = x;
+      return x;
+    }
+  }
+  
+    /**
+     * Find the smallest item in the tree.
+     * @return smallest item or null if empty.
+     */
+    public T findMin( )
+    {
+        if( isEmpty( ) ) return null;
+
+        return findMin( root ).element;
+    }
+
+    /**
+     * Find the largest item in the tree.
+     * @return the largest item of null if empty.
+     */
+    public T findMax( )
+    {
+        if( isEmpty( ) ) return null;
+        return findMax( root ).element;
+    }
+
+    /**
+     * Internal method to find the smallest item in a subtree.
+     * @param t the node that roots the tree.
+     * @return node containing the smallest item.
+     */
+    private AvlNode<T> findMin(AvlNode<T> t)
+    {
+        if( t == null )
+            return t;
+
+        while( t.left != null )
+            t = t.left;
+        return t;
+    }
+
+    /**
+     * Internal method to find the largest item in a subtree.
+     * @param t the node that roots the tree.
+     * @return node containing the largest item.
+     */
+    private AvlNode<T> findMax( AvlNode<T> t )
+    {
+        if( t == null )
+            return t;
+
+        while( t.right != null )
+            t = t.right;
+        return t;
+    }
+
+
+  /**
+   * Remove from the tree. Nothing is done if x is not found.
+   * 
+   * @param x the item to remove.
+   * @return True if the item was found and removed
+   */
+  public boolean remove (T x){
+    AvlNode<T> t = findPath (x);
+    if (t == null){
+      metrics.removed (pathDepth, false);
+      releasePath ();
+      return false;
+    }
+    metrics.removed (pathDepth + 1, true);
+    removeAtPath (t);
+    return true;
+  }
+  
+  /**
+   * Determine the number of elements in the tree, in O(1).
+   * 
+   * @return Number of elements
+   */
+  public int size (){
+    return size (root);
+  }
+  
+  /**
+   * Count the elements smaller than x, in O(log n). x does not need to
+   * be in the tree.
+   * 
+   * @param x Element to rank
+   * @return Number of elements in the tree that are less than x
+   */
+  public int rank (T x){
+    int rank = 0;
+    AvlNode<T> t = root;
+    while (t != null){
+      int cmp = compare (x, t.element);
+      if (cmp <= 0){
+        if (cmp == 0)
+          return rank + size (t.left);
+        t = t.left;
+      }
+      else {
+        rank += size (t.left) + 1;
+        t = t.right;
+      }
+    }
+    return rank;
+  }
+  
+  /**
+   * Find the k-th smallest element, in O(log n).
+   * 
+   * @param k Zero-based position in sorted order
+   * @return Element with exactly k smaller elements in the tree
+   * @throws IndexOutOfBoundsException if k is not in [0, size())
+   */
+  public T select (int k){
+    if (k < 0 || k >= size ())
+      throw new IndexOutOfBoundsException ("Index: " + k + ", Size: " + size ());
+    
+    AvlNode<T> t = root;
+    while (true){
+      int leftSize = size (t.left);
+      if (k < leftSize)
+        t = t.left;
+      else if (k > leftSize){
+        k -= leftSize + 1;
+        t = t.right;
+      }
+      else
+        return t.element;
+    }
+  }
+
+  /**
+   * Search for an element within the tree. 
+   *
+   * @param x Element to find
+   * @param t Root of the tree
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains(T x){
+    int depth = 0;
+    long px = prefixOf (x);
+    AvlNode<T> t = root;
+    while (t != null){
+      int cmp = compare (x, px, t);
+      depth++;
+      if (cmp == 0){
+        metrics.lookedUp (depth, true);
+        return true;
+      }
+      t = cmp < 0 ? t.left : t.right;
+    }
+    metrics.lookedUp (depth, false);
+    return false;
+  }
+
+  /**
+   * Find the node holding the element equal to x.
+   *
+   * @param x Element to find
+   * @return The node, or null if x is not in the tree
+   */
+  protected AvlNode<T> findNode (T x){
+    long px = prefixOf (x);
+    AvlNode<T> t = root;
+    while (t != null){
+      int cmp = compare (x, px, t);
+      if (cmp == 0)
+        return t;
+      t = cmp < 0 ? t.left : t.right;
+    }
+    return null;
+  }
+
+  /**
+   * Internal find method; search for an element starting at the given node.
+   *
+   * @param x Element to find
+   * @param t Root of the tree
+   * @return True if the element is found, false otherwise
+   */
+  protected boolean contains(T x, AvlNode<T> t) {
+    if (t == null){
+      return false; // The node was not found
+
+    } else if (compare (x, t.element) < 0){
+      return contains(x, t.left);
+    } else if (compare (x, t.element) > 0){
+      return contains(x, t.right); 
+    }
+
+    return true; // Can only reach here if node was found
+  }
+  
+  /**
+   * Find the greatest element less than or equal to x.
+   *
+   * @param x Element to search for
+   * @return The element, or null if there is none
+   */
+  public T floor (T x){
+    return elementOf (floorNode (x, true));
+  }
+
+  /**
+   * Find the greatest element strictly less than x.
+   *
+   * @param x Element to search for
+   * @return The element, or null if there is none
+   */
+  public T lower (T x){
+    return elementOf (floorNode (x, false));
+  }
+
+  /**
+   * Find the least element greater than or equal to x.
+   *
+   * @param x Element to search for
+   * @return The element, or null if there is none
+   */
+  public T ceiling (T x){
+    return elementOf (ceilingNode (x, true));
+  }
+
+  /**
+   * Find the least element strictly greater than x.
+   *
+   * @param x Element to search for
+   * @return The element, or null if there is none
+   */
+  public T higher (T x){
+    return elementOf (ceilingNode (x, false));
+  }
+
+  private static <T> T elementOf (AvlNode<T> t){
+    return t == null ? null : t.element;
+  }
+
+  /**
+   * Find the node holding the greatest element below x (or equal to it,
+   * if inclusive).
+   */
+  private AvlNode<T> floorNode (T x, boolean inclusive){
+    AvlNode<T> t = root;
+    AvlNode<T> best = null;
+    while (t != null){
+      int cmp = compare (x, t.element);
+      if (cmp > 0 || (cmp == 0 && inclusive)){
+        if (cmp == 0)
+          return t;
+        best = t;
+        t = t.right;
+      }
+      else {
+        t = t.left;
+      }
+    }
+    return best;
+  }
+
   /**
-   * Deletes all nodes from the tree.
+   * Find the node holding the least element above x (or equal to it,
+   * if inclusive).
+   */
+  private AvlNode<T> ceilingNode (T x, boolean inclusive){
+    AvlNode<T> t = root;
+    AvlNode<T> best = null;
+    while (t != null){
+      int cmp = compare (x, t.element);
+      if (cmp < 0 || (cmp == 0 && inclusive)){
+        if (cmp == 0)
+          return t;
+        best = t;
+        t = t.left;
+      }
+      else {
+        t = t.right;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Count the elements below x, or at most x if inclusive.
+   */
+  private int rank (T x, boolean inclusive){
+    return inclusive ? rank (x) + (contains (x) ? 1 : 0) : rank (x);
+  }
+
+  /**
+   * Iterate over the elements in ascending order.
+   *
+   * The iterator walks the tree with an explicit stack bounded by the
+   * tree height, so each step is amortized O(1) and allocates nothing.
+   * It is fail-fast and supports remove.
    *
+   * @return Ascending iterator
    */
-  public void makeEmpty(){
-    root = null;
+  @Override
+  public Iterator<T> iterator (){
+    return new TreeIterator (null, false, false, null, false, false, false);
   }
-  
+
   /**
-   * Determine if the tree is empty.
-   * 
-   * @return True if the tree is empty 
+   * Spliterator over the elements in ascending order. It is SORTED,
+   * DISTINCT, ORDERED and exactly SIZED, and splits in O(1) by handing
+   * off the left subtree of the subtree it still has to cover, so the
+   * halves are as even as the tree is balanced. It binds to the tree
+   * when created and is fail-fast.
+   *
+   * @return Ascending spliterator
    */
-  public boolean isEmpty(){
-    return (root == null);
+  @Override
+  public Spliterator<T> spliterator (){
+    return new TreeSpliterator (null, false, root, modCount);
   }
 
+  /**
+   * @return Sequential stream of the elements in ascending order
+   */
+  public Stream<T> stream (){
+    return StreamSupport.stream (spliterator (), false);
+  }
 
+  /**
+   * @return Parallel stream of the elements, in ascending encounter order
+   */
+  public Stream<T> parallelStream (){
+    return StreamSupport.stream (spliterator (), true);
+  }
 
-    /**
-     * Find the smallest item in the tree.
-     * @return smallest item or null if empty.
-     */
-    public T findMin( )
-    {
-        if( isEmpty( ) ) return null;
+  /**
+   * Iterate over the elements in descending order.
+   *
+   * @return Descending iterator
+   */
+  public Iterator<T> descendingIterator (){
+    return new TreeIterator (null, false, false, null, false, false, true);
+  }
 
-        return findMin( root ).element;
+  /**
+   * View of all of the elements in descending order. Changes to the
+   * view write through to the tree and vice versa.
+   *
+   * @return Descending view of the tree
+   */
+  public NavigableSet<T> descendingSet (){
+    return new SubSet (null, false, false, null, false, false, true);
+  }
+
+  /**
+   * View of the elements within a range. The view is backed by the tree:
+   * changes write through both ways, and inserting an element outside
+   * the range through the view fails with IllegalArgumentException.
+   * Its size() is O(log n).
+   *
+   * @param from          Low end of the range
+   * @param fromInclusive Whether from itself is in the range
+   * @param to            High end of the range
+   * @param toInclusive   Whether to itself is in the range
+   * @return View of the range
+   * @throws IllegalArgumentException if from is greater than to
+   */
+  public NavigableSet<T> subSet (T from, boolean fromInclusive, T to, boolean toInclusive){
+    if (compare (from, to) > 0)
+      throw new IllegalArgumentException ("from > to");
+    return new SubSet (from, fromInclusive, true, to, toInclusive, true, false);
+  }
+
+  /**
+   * View of the elements below to (or equal to it, if inclusive).
+   *
+   * @param to        High end of the range
+   * @param inclusive Whether to itself is in the range
+   * @return View of the range
+   */
+  public NavigableSet<T> headSet (T to, boolean inclusive){
+    return new SubSet (null, false, false, to, inclusive, true, false);
+  }
+
+  /**
+   * View of the elements above from (or equal to it, if inclusive).
+   *
+   * @param from      Low end of the range
+   * @param inclusive Whether from itself is in the range
+   * @return View of the range
+   */
+  public NavigableSet<T> tailSet (T from, boolean inclusive){
+    return new SubSet (from, inclusive, true, null, false, false, false);
+  }
+
+  /**
+   * Lazy in-order iterator over an optionally bounded range.
+   *
+   * The stack holds the nodes whose elements are still to be returned
+   * and whose opposite subtree has not been entered yet; its depth never
+   * exceeds the height of the tree.
+   */
+  private final class TreeIterator implements Iterator<T> {
+    private final T lo, hi;
+    private final boolean loInclusive, hasLo, hiInclusive, hasHi;
+    private final boolean descending;
+
+    private AvlNode<T>[] stack;
+    private int depth;
+    private AvlNode<T> lastReturned;
+    private int expectedModCount;
+
+    TreeIterator (T lo, boolean loInclusive, boolean hasLo,
+                  T hi, boolean hiInclusive, boolean hasHi, boolean descending){
+      this.lo = lo;
+      this.loInclusive = loInclusive;
+      this.hasLo = hasLo;
+      this.hi = hi;
+      this.hiInclusive = hiInclusive;
+      this.hasHi = hasHi;
+      this.descending = descending;
+      this.expectedModCount = modCount;
+
+      if (descending)
+        seek (hi, hiInclusive, hasHi);
+      else
+        seek (lo, loInclusive, hasLo);
     }
 
     /**
-     * Find the largest item in the tree.
-     * @return the largest item of null if empty.
+     * Fill the stack with the path to the first element at or beyond the
+     * given start point, in iteration order.
      */
-    public T findMax( )
-    {
-        if( isEmpty( ) ) return null;
-        return findMax( root ).element;
+    @SuppressWarnings("unchecked")
+    private void seek (T from, boolean inclusive, boolean bounded){
+      int needed = height (root) + 1;
+      if (stack == null || stack.length < needed)
+        stack = (AvlNode<T>[]) new AvlNode[max (needed, 1)];
+      depth = 0;
+
+      AvlNode<T> t = root;
+      while (t != null){
+        boolean take;
+        if (!bounded)
+          take = true;
+        else {
+          int cmp = compare (t.element, from);
+          take = descending ? (cmp < 0 || (cmp == 0 && inclusive))
+                            : (cmp > 0 || (cmp == 0 && inclusive));
+        }
+        if (take){
+          stack[depth++] = t;
+          t = descending ? t.right : t.left;
+        }
+        else {
+          t = descending ? t.left : t.right;
+        }
+      }
+      trimEnd ();
     }
 
     /**
-     * Internal method to find the smallest item in a subtree.
-     * @param t the node that roots the tree.
-     * @return node containing the smallest item.
+     * Empty the stack if its top is past the far end of the range.
      */
-    private AvlNode<T> findMin(AvlNode<T> t)
-    {
-        if( t == null )
-            return t;
+    private void trimEnd (){
+      if (depth == 0)
+        return;
+      T x = stack[depth - 1].element;
+      boolean past;
+      if (descending)
+        past = hasLo && (compare (x, lo) < 0 || (!loInclusive && compare (x, lo) == 0));
+      else
+        past = hasHi && (compare (x, hi) > 0 || (!hiInclusive && compare (x, hi) == 0));
+      if (past){
+        while (depth > 0)
+          stack[--depth] = null;
+      }
+    }
 
-        while( t.left != null )
-            t = t.left;
-        return t;
+    @Override
+    public boolean hasNext (){
+      return depth > 0;
     }
 
-    /**
-     * Internal method to find the largest item in a subtree.
-     * @param t the node that roots the tree.
-     * @return node containing the largest item.
-     */
-    private AvlNode<T> findMax( AvlNode<T> t )
-    {
-        if( t == null )
-            return t;
+    @Override
+    public T next (){
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException ();
+      if (depth == 0)
+        throw new NoSuchElementException ();
 
-        while( t.right != null )
-            t = t.right;
-        return t;
+      AvlNode<T> t = stack[--depth];
+      stack[depth] = null;
+
+      AvlNode<T> c = descending ? t.left : t.right;
+      while (c != null){
+        stack[depth++] = c;
+        c = descending ? c.right : c.left;
+      }
+      trimEnd ();
+
+      lastReturned = t;
+      return t.element;
     }
 
+    @Override
+    public void remove (){
+      if (lastReturned == null)
+        throw new IllegalStateException ();
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException ();
 
-// A version of remove from http://www.dreamincode.net/forums/topic/214510-working-example-of-avl-tree-remove-method/
-// but it needs some attention and does not appear to be 100% correct
+      // Removal may rotate the nodes on the stack, so find our place again
+      T last = lastReturned.element;
+      AvlTree.this.remove (last);
+      lastReturned = null;
+      expectedModCount = modCount;
+      seek (last, false, true);
+    }
+  }
 
   /**
-   * Remove from the tree. Nothing is done if x is not found.
-   * @param x the item to remove.
+   * Spliterator over an optional leading element followed by a whole
+   * subtree.
+   *
+   * Splitting (head, t) gives away (head, t.left) and keeps
+   * (t.element, t.right), so neither half is ever copied. Traversal by
+   * forEachRemaining recurses over the subtree; tryAdvance switches to
+   * an explicit stack as in TreeIterator, after which the spliterator no
+   * longer splits.
    */
-  public void remove( T x ) {
-      root = remove(x, root);
-  }
+  private final class TreeSpliterator implements Spliterator<T> {
+    private T head;
+    private boolean hasHead;
+    private AvlNode<T> subtree;
+    private final int expectedModCount;
 
-  public AvlNode<T> remove(T x, AvlNode<T> t) {
-      if (t==null)    {
-          System.out.println("Sorry but you're mistaken, " + t + " doesn't exist in this tree :)\n");
-          return null;
-      }
-      System.out.println("Remove starts... " + t.element + " and " + x);
-  
-      if (x.compareTo(t.element) < 0 ) {
-          t.left = remove(x,t.left);
-          int l = t.left != null ? t.left.height : 0;
-  
-          if((t.right != null) && (t.right.height - l >= 2)) {
-              int rightHeight = t.right.right != null ? t.right.right.height : 0;
-              int leftHeight = t.right.left != null ? t.right.left.height : 0;
-  
-              if(rightHeight >= leftHeight)
-                  t = rotateWithLeftChild(t);            
-              else
-                  t = doubleWithRightChild(t);
-          }
+    /**
+     * Traversal stack once tryAdvance has entered the subtree, and the
+     * number of elements still to come
+     */
+    private AvlNode<T>[] stack;
+    private int depth;
+    private long remaining;
+
+    TreeSpliterator (T head, boolean hasHead, AvlNode<T> subtree, int expectedModCount){
+      this.head = head;
+      this.hasHead = hasHead;
+      this.subtree = subtree;
+      this.expectedModCount = expectedModCount;
+    }
+
+    @Override
+    public Spliterator<T> trySplit (){
+      AvlNode<T> t = subtree;
+      if (stack != null || t == null || (!hasHead && t.left == null))
+        return null;
+
+      TreeSpliterator prefix = new TreeSpliterator (head, hasHead, t.left, expectedModCount);
+      head = t.element;
+      hasHead = true;
+      subtree = t.right;
+      return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance (Consumer<? super T> action){
+      if (action == null)
+        throw new NullPointerException ();
+      checkForComodification ();
+
+      if (hasHead){
+        T x = head;
+        head = null;
+        hasHead = false;
+        action.accept (x);
+        return true;
       }
-      else if (x.compareTo(t.element) > 0) {
-          t.right = remove(x,t.right);
-          int r = t.right != null ? t.right.height : 0;
-          if((t.left != null) && (t.left.height - r >= 2)) {
-              int leftHeight = t.left.left != null ? t.left.left.height : 0;
-              int rightHeight = t.left.right != null ? t.left.right.height : 0;
-              if(leftHeight >= rightHeight)
-                  t = rotateWithRightChild(t);               
-              else
-                  t = doubleWithLeftChild(t);
-          }
+      if (stack == null)
+        enterSubtree ();
+      if (depth == 0)
+        return false;
+
+      AvlNode<T> t = stack[--depth];
+      stack[depth] = null;
+      for (AvlNode<T> c = t.right; c != null; c = c.left)
+        stack[depth++] = c;
+      remaining--;
+      action.accept (t.element);
+      return true;
+    }
+
+    /**
+     * Start stepping through the subtree with an explicit stack.
+     */
+    @SuppressWarnings("unchecked")
+    private void enterSubtree (){
+      stack = (AvlNode<T>[]) new AvlNode[max (height (subtree) + 1, 1)];
+      remaining = size (subtree);
+      for (AvlNode<T> c = subtree; c != null; c = c.left)
+        stack[depth++] = c;
+      subtree = null;
+    }
+
+    @Override
+    public void forEachRemaining (Consumer<? super T> action){
+      if (action == null)
+        throw new NullPointerException ();
+      if (stack != null){
+        while (tryAdvance (action))
+          ;
+        return;
       }
-      /*
-         Here, we have ended up when we are node which shall be removed. 
-         Check if there is a left-hand node, if so pick out the largest element out, and move down to the root.
-       */
-      else if(t.left != null) {
-          t.element = findMax(t.left).element;
-          remove(t.element, t.left);
-       
-          if((t.right != null) && (t.right.height - t.left.height >= 2)) {
-              int rightHeight = t.right.right != null ? t.right.right.height : 0;
-              int leftHeight = t.right.left != null ? t.right.left.height : 0;
-       
-              if(rightHeight >= leftHeight)
-                  t = rotateWithLeftChild(t);            
-              else
-                  t = doubleWithRightChild(t);
-          }
+      checkForComodification ();
+
+      if (hasHead){
+        T x = head;
+        head = null;
+        hasHead = false;
+        action.accept (x);
       }
-       
-      else
-          t = (t.left != null) ? t.left : t.right;
-       
-      if(t != null) {
-          int leftHeight = t.left != null ? t.left.height : 0;
-          int rightHeight = t.right!= null ? t.right.height : 0;
-          t.height = Math.max(leftHeight,rightHeight) + 1;
+      AvlNode<T> t = subtree;
+      subtree = null;
+      forEach (t, action);
+      checkForComodification ();
+    }
+
+    private void forEach (AvlNode<T> t, Consumer<? super T> action){
+      while (t != null){
+        forEach (t.left, action);
+        action.accept (t.element);
+        t = t.right;
       }
-      return t;
-  } //End of remove...
+    }
 
-  /**
-   * Search for an element within the tree. 
-   *
-   * @param x Element to find
-   * @param t Root of the tree
-   * @return True if the element is found, false otherwise
-   */
-  public boolean contains(T x){
-    return contains(x, root); 
+    private void checkForComodification (){
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException ();
+    }
+
+    @Override
+    public long estimateSize (){
+      if (stack != null)
+        return remaining;
+      return (hasHead ? 1 : 0) + size (subtree);
+    }
+
+    @Override
+    public int characteristics (){
+      return ORDERED | DISTINCT | SORTED | SIZED | SUBSIZED;
+    }
+
+    @Override
+    public Comparator<? super T> getComparator (){
+      // Null for natural ordering
+      return comparator;
+    }
   }
 
   /**
-   * Internal find method; search for an element starting at the given node.
+   * Range view of the tree, in ascending or descending order.
    *
-   * @param x Element to find
-   * @param t Root of the tree
-   * @return True if the element is found, false otherwise
+   * Bounds are always kept in ascending terms (lo &lt;= hi); the
+   * descending flag only swaps the direction of the navigation methods.
    */
-  protected boolean contains(T x, AvlNode<T> t) {
-    if (t == null){
-      return false; // The node was not found
+  private final class SubSet extends AbstractSet<T> implements NavigableSet<T> {
+    private final T lo, hi;
+    private final boolean loInclusive, hasLo, hiInclusive, hasHi;
+    private final boolean descending;
 
-    } else if (x.compareTo(t.element) < 0){
-      return contains(x, t.left);
-    } else if (x.compareTo(t.element) > 0){
-      return contains(x, t.right); 
+    SubSet (T lo, boolean loInclusive, boolean hasLo,
+            T hi, boolean hiInclusive, boolean hasHi, boolean descending){
+      this.lo = lo;
+      this.loInclusive = loInclusive;
+      this.hasLo = hasLo;
+      this.hi = hi;
+      this.hiInclusive = hiInclusive;
+      this.hasHi = hasHi;
+      this.descending = descending;
     }
 
-    return true; // Can only reach here if node was found
+    private boolean tooLow (T x){
+      if (!hasLo)
+        return false;
+      int cmp = compare (x, lo);
+      return cmp < 0 || (cmp == 0 && !loInclusive);
+    }
+
+    private boolean tooHigh (T x){
+      if (!hasHi)
+        return false;
+      int cmp = compare (x, hi);
+      return cmp > 0 || (cmp == 0 && !hiInclusive);
+    }
+
+    private boolean inRange (T x){
+      return !tooLow (x) && !tooHigh (x);
+    }
+
+    /**
+     * A bound for a nested view must lie within this view's range (an
+     * exclusive bound may also sit exactly on an exclusive end of it).
+     */
+    private boolean inClosedRange (T x, boolean inclusive){
+      if (hasLo){
+        int cmp = compare (x, lo);
+        if (cmp < 0 || (cmp == 0 && !loInclusive && inclusive))
+          return false;
+      }
+      if (hasHi){
+        int cmp = compare (x, hi);
+        if (cmp > 0 || (cmp == 0 && !hiInclusive && inclusive))
+          return false;
+      }
+      return true;
+    }
+
+    private T lowest (){
+      AvlNode<T> t = hasLo ? ceilingNode (lo, loInclusive) : findMin (root);
+      return (t == null || tooHigh (t.element)) ? null : t.element;
+    }
+
+    private T highest (){
+      AvlNode<T> t = hasHi ? floorNode (hi, hiInclusive) : findMax (root);
+      return (t == null || tooLow (t.element)) ? null : t.element;
+    }
+
+    /** Ascending ceiling (or higher, if not inclusive) within the range. */
+    private T ascendingCeiling (T x, boolean inclusive){
+      if (tooLow (x))
+        return lowest ();
+      AvlNode<T> t = ceilingNode (x, inclusive);
+      return (t == null || tooHigh (t.element)) ? null : t.element;
+    }
+
+    /** Ascending floor (or lower, if not inclusive) within the range. */
+    private T ascendingFloor (T x, boolean inclusive){
+      if (tooHigh (x))
+        return highest ();
+      AvlNode<T> t = floorNode (x, inclusive);
+      return (t == null || tooLow (t.element)) ? null : t.element;
+    }
+
+    @Override
+    public Comparator<? super T> comparator (){
+      Comparator<? super T> c = AvlTree.this.comparator;
+      if (!descending)
+        return c;
+      return c == null ? Collections.reverseOrder () : Collections.reverseOrder (c);
+    }
+
+    @Override
+    public T first (){
+      T x = descending ? highest () : lowest ();
+      if (x == null)
+        throw new NoSuchElementException ();
+      return x;
+    }
+
+    @Override
+    public T last (){
+      T x = descending ? lowest () : highest ();
+      if (x == null)
+        throw new NoSuchElementException ();
+      return x;
+    }
+
+    @Override
+    public T lower (T x){
+      return descending ? ascendingCeiling (x, false) : ascendingFloor (x, false);
+    }
+
+    @Override
+    public T floor (T x){
+      return descending ? ascendingCeiling (x, true) : ascendingFloor (x, true);
+    }
+
+    @Override
+    public T ceiling (T x){
+      return descending ? ascendingFloor (x, true) : ascendingCeiling (x, true);
+    }
+
+    @Override
+    public T higher (T x){
+      return descending ? ascendingFloor (x, false) : ascendingCeiling (x, false);
+    }
+
+    @Override
+    public T pollFirst (){
+      T x = descending ? highest () : lowest ();
+      if (x != null)
+        AvlTree.this.remove (x);
+      return x;
+    }
+
+    @Override
+    public T pollLast (){
+      T x = descending ? lowest () : highest ();
+      if (x != null)
+        AvlTree.this.remove (x);
+      return x;
+    }
+
+    @Override
+    public int size (){
+      int upTo = hasHi ? AvlTree.this.rank (hi, hiInclusive) : AvlTree.this.size ();
+      int below = hasLo ? AvlTree.this.rank (lo, !loInclusive) : 0;
+      return max (upTo - below, 0);
+    }
+
+    @Override
+    public boolean isEmpty (){
+      return lowest () == null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains (Object o){
+      T x = (T) o;
+      return inRange (x) && AvlTree.this.contains (x);
+    }
+
+    @Override
+    public boolean add (T x){
+      if (!inRange (x))
+        throw new IllegalArgumentException ("Element out of range: " + x);
+      return insert (x);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove (Object o){
+      T x = (T) o;
+      return inRange (x) && AvlTree.this.remove (x);
+    }
+
+    @Override
+    public Iterator<T> iterator (){
+      return new TreeIterator (lo, loInclusive, hasLo, hi, hiInclusive, hasHi, descending);
+    }
+
+    @Override
+    public Iterator<T> descendingIterator (){
+      return new TreeIterator (lo, loInclusive, hasLo, hi, hiInclusive, hasHi, !descending);
+    }
+
+    @Override
+    public NavigableSet<T> descendingSet (){
+      return new SubSet (lo, loInclusive, hasLo, hi, hiInclusive, hasHi, !descending);
+    }
+
+    @Override
+    public NavigableSet<T> subSet (T from, boolean fromInclusive, T to, boolean toInclusive){
+      checkBound (from, fromInclusive);
+      checkBound (to, toInclusive);
+      if (descending)
+        return range (to, toInclusive, true, from, fromInclusive, true);
+      return range (from, fromInclusive, true, to, toInclusive, true);
+    }
+
+    @Override
+    public NavigableSet<T> headSet (T to, boolean inclusive){
+      checkBound (to, inclusive);
+      if (descending)
+        return range (to, inclusive, true, hi, hiInclusive, hasHi);
+      return range (lo, loInclusive, hasLo, to, inclusive, true);
+    }
+
+    @Override
+    public NavigableSet<T> tailSet (T from, boolean inclusive){
+      checkBound (from, inclusive);
+      if (descending)
+        return range (lo, loInclusive, hasLo, from, inclusive, true);
+      return range (from, inclusive, true, hi, hiInclusive, hasHi);
+    }
+
+    private void checkBound (T x, boolean inclusive){
+      if (!inClosedRange (x, inclusive))
+        throw new IllegalArgumentException ("Bound out of range: " + x);
+    }
+
+    /**
+     * Create a nested view with the given ascending bounds.
+     */
+    private NavigableSet<T> range (T newLo, boolean newLoInclusive, boolean newHasLo,
+                                   T newHi, boolean newHiInclusive, boolean newHasHi){
+      if (newHasLo && newHasHi && compare (newLo, newHi) > 0)
+        throw new IllegalArgumentException ("fromElement > toElement");
+      return new SubSet (newLo, newLoInclusive, newHasLo, newHi, newHiInclusive, newHasHi, descending);
+    }
+
+    @Override
+    public SortedSet<T> subSet (T from, T to){
+      return subSet (from, true, to, false);
+    }
+
+    @Override
+    public SortedSet<T> headSet (T to){
+      return headSet (to, false);
+    }
+
+    @Override
+    public SortedSet<T> tailSet (T from){
+      return tailSet (from, true);
+    }
   }
-  
+
   /***********************************************************************/
   // Diagnostic functions for the tree
   public boolean checkBalanceOfTree(AvlTree.AvlNode<Integer> current) {
@@ -0,0 +1,353 @@
+package justinethier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Comparator;
+
+/**
+ * Streaming binary serialization of an AvlTree.
+ *
+ * The tree is written in prefix order, one record per node:
+ *
+ * <pre>
+ *   header:  int magic 'AVLT', byte version, int node count
+ *   node:    byte flags (1 = has left child, 2 = has right child),
+ *            varint payload length, payload written by the ElementCodec
+ * </pre>
+ *
+ * Because the shape travels with the elements, the reader rebuilds the
+ * exact same balanced tree in a single linear pass with no comparisons
+ * beyond validating the order, instead of re-inserting every element.
+ * Both directions stream through a fixed-size buffer, so memory use
+ * does not depend on the size of the tree.
+ *
+ * The ordering is not written. A tree must be read back with the
+ * ordering it was written in, and the reader checks the elements against
+ * it.
+ */
+class AvlTreeCodec<T> {
+
+  static final int MAGIC = 0x41564C54;
+  static final int VERSION = 1;
+
+  private static final int HAS_LEFT = 1;
+  private static final int HAS_RIGHT = 2;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final ElementCodec<T> codec;
+
+  /**
+   * @param codec Converts elements to and from bytes
+   */
+  public AvlTreeCodec (ElementCodec<T> codec){
+    this.codec = codec;
+  }
+
+  /**
+   * Write a tree to a stream. The stream is flushed but not closed.
+   *
+   * @param tree Tree to write
+   * @param out  Destination
+   * @throws IOException if the stream fails
+   */
+  public void write (AvlTree<T> tree, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream (new BufferedOutputStream (out, BUFFER_SIZE));
+    data.writeInt (MAGIC);
+    data.writeByte (VERSION);
+    data.writeInt (tree.size ());
+
+    ElementBuffer element = new ElementBuffer ();
+    DataOutputStream elementData = new DataOutputStream (element);
+
+    if (tree.hasAvlShape ()){
+      // Prefix order with an explicit stack, right child pushed first
+      @SuppressWarnings("unchecked")
+      AvlTree.AvlNode<T>[] stack = (AvlTree.AvlNode<T>[]) new AvlTree.AvlNode[tree.height (tree.root) + 2];
+      int depth = 0;
+      if (tree.root != null)
+        stack[depth++] = tree.root;
+
+      while (depth > 0){
+        AvlTree.AvlNode<T> t = stack[--depth];
+        writeNode (data, element, elementData, t.element, t.left != null, t.right != null);
+        if (t.right != null)
+          stack[depth++] = t.right;
+        if (t.left != null)
+          stack[depth++] = t.left;
+      }
+    }
+    else {
+      // The reader takes heights from the shape, which is only right for
+      // an AVL tree, so a WAVL tree out of AVL shape is written in perfect
+      // balance, leaving the tree itself untouched. Each range of nodes
+      // is rooted at its middle; the ranges nest at most 32 deep.
+      AvlTree.AvlNode<T>[] nodes = tree.nodesInOrder ();
+      int[] los = new int[64];
+      int[] his = new int[64];
+      int depth = 0;
+      if (nodes.length > 0){
+        his[0] = nodes.length;
+        depth++;
+      }
+
+      while (depth > 0){
+        depth--;
+        int lo = los[depth];
+        int hi = his[depth];
+        int mid = (lo + hi) >>> 1;
+        writeNode (data, element, elementData, nodes[mid].element, mid > lo, hi > mid + 1);
+        if (hi > mid + 1){
+          los[depth] = mid + 1;
+          his[depth++] = hi;
+        }
+        if (mid > lo){
+          los[depth] = lo;
+          his[depth++] = mid;
+        }
+      }
+    }
+    data.flush ();
+  }
+
+  private void writeNode (DataOutputStream data, ElementBuffer element, DataOutputStream elementData,
+                          T x, boolean hasLeft, boolean hasRight) throws IOException {
+    element.reset ();
+    codec.write (x, elementData);
+
+    data.writeByte ((hasLeft ? HAS_LEFT : 0) | (hasRight ? HAS_RIGHT : 0));
+    writeVarint (data, element.size ());
+    element.writeTo (data);
+  }
+
+  /**
+   * Write a tree to a channel.
+   *
+   * @param tree Tree to write
+   * @param ch   Destination
+   * @throws IOException if the channel fails
+   */
+  public void write (AvlTree<T> tree, WritableByteChannel ch) throws IOException {
+    write (tree, Channels.newOutputStream (ch));
+  }
+
+  /**
+   * Read a tree of naturally ordered elements written by write.
+   *
+   * @param in Source
+   * @return The tree
+   * @throws IOException if the stream fails or does not hold a valid tree
+   */
+  public AvlTree<T> read (InputStream in) throws IOException {
+    return read (in, null);
+  }
+
+  /**
+   * Read a tree written by write from a tree with the given ordering.
+   *
+   * @param in         Source
+   * @param comparator Ordering of the written tree, or null for natural
+   *                   ordering
+   * @return The tree, ordered by comparator
+   * @throws IOException if the stream fails or does not hold a valid tree
+   *         in that ordering
+   */
+  public AvlTree<T> read (InputStream in, Comparator<? super T> comparator) throws IOException {
+    AvlTree<T> tree = new AvlTree<T> (comparator);
+    readInto (in, tree);
+    return tree;
+  }
+
+  /**
+   * Read a tree written by write.
+   *
+   * @param ch Source
+   * @return The tree
+   * @throws IOException if the channel fails or does not hold a valid tree
+   */
+  public AvlTree<T> read (ReadableByteChannel ch) throws IOException {
+    return read (Channels.newInputStream (ch));
+  }
+
+  /**
+   * Replace the contents of a tree with one read from a stream. The
+   * elements must be in the tree's own ordering. The tree is only
+   * modified once the whole stream has been read and validated.
+   * Reading may consume buffered bytes beyond the end of the tree.
+   *
+   * @param in   Source
+   * @param tree Tree to fill
+   * @throws IOException if the stream fails or does not hold a valid tree
+   */
+  public void readInto (InputStream in, AvlTree<T> tree) throws IOException {
+    CountingInputStream counter = new CountingInputStream (new BufferedInputStream (in, BUFFER_SIZE));
+    DataInputStream data = new DataInputStream (counter);
+
+    if (data.readInt () != MAGIC)
+      throw new StreamCorruptedException ("Not a serialized AvlTree");
+    int version = data.readUnsignedByte ();
+    if (version != VERSION)
+      throw new StreamCorruptedException ("Unsupported version " + version);
+    int size = data.readInt ();
+    if (size < 0)
+      throw new StreamCorruptedException ("Negative node count");
+
+    Reader reader = new Reader (tree, data, counter);
+    AvlTree.AvlNode<T> root = size == 0 ? null : reader.readSubtree (null, null, maxHeight (size));
+    if (AvlTree.size (root) != size)
+      throw new StreamCorruptedException ("Expected " + size + " nodes, read " + AvlTree.size (root));
+
+    tree.makeEmpty ();
+    tree.root = root;
+  }
+
+  /**
+   * The greatest height of an AVL tree of n nodes, about 1.44 log2 n: the
+   * sparsest tree of height h has one node more than the sparsest trees
+   * of heights h - 1 and h - 2 together.
+   */
+  static int maxHeight (int n){
+    long sparsest = 1, previous = 0;
+    int h = 0;
+    while (sparsest + previous + 1 <= n){
+      long next = sparsest + previous + 1;
+      previous = sparsest;
+      sparsest = next;
+      h++;
+    }
+    return h;
+  }
+
+  /**
+   * Recursive reader. Each subtree is given the height it may still
+   * have, starting from the greatest height of an AVL tree of the
+   * declared size, so the recursion stays shallow whatever the stream
+   * holds.
+   */
+  private final class Reader {
+    private final AvlTree<T> tree;
+    private final DataInputStream data;
+    private final CountingInputStream counter;
+
+    Reader (AvlTree<T> tree, DataInputStream data, CountingInputStream counter){
+      this.tree = tree;
+      this.data = data;
+      this.counter = counter;
+    }
+
+    /**
+     * Read a subtree whose elements must lie strictly between lo and hi
+     * (either may be null for no bound), and whose height must not exceed
+     * maxHeight.
+     */
+    AvlTree.AvlNode<T> readSubtree (T lo, T hi, int maxHeight) throws IOException {
+      int flags = data.readUnsignedByte ();
+      if ((flags & ~(HAS_LEFT | HAS_RIGHT)) != 0)
+        throw new StreamCorruptedException ("Bad node flags " + flags);
+      if (flags != 0 && maxHeight == 0)
+        throw new StreamCorruptedException ("Tree is deeper than an AVL tree of its size can be");
+
+      int length = readVarint (data);
+      long start = counter.count;
+      T x = codec.read (data, length);
+      if (counter.count - start != length)
+        throw new StreamCorruptedException ("Element codec read " + (counter.count - start)
+                                            + " bytes of a " + length + " byte element");
+      if ((lo != null && tree.compare (lo, x) >= 0) || (hi != null && tree.compare (hi, x) <= 0))
+        throw new StreamCorruptedException ("Elements out of order at " + x);
+
+      AvlTree.AvlNode<T> t = tree.newNode (x, null, null);
+      if ((flags & HAS_LEFT) != 0)
+        t.left = readSubtree (lo, x, maxHeight - 1);
+      if ((flags & HAS_RIGHT) != 0)
+        t.right = readSubtree (x, hi, maxHeight - 1);
+
+      if (Math.abs (tree.height (t.left) - tree.height (t.right)) > 1)
+        throw new StreamCorruptedException ("Unbalanced subtree at " + x);
+      tree.update (t);
+      return t;
+    }
+  }
+
+  private static void writeVarint (DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0){
+      out.writeByte ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte (value);
+  }
+
+  private static int readVarint (DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7){
+      int b = in.readUnsignedByte ();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0){
+        if (value < 0)
+          break;
+        return value;
+      }
+    }
+    throw new StreamCorruptedException ("Malformed length");
+  }
+
+  /**
+   * Reusable buffer for one encoded element, so its length can be
+   * written before its bytes.
+   */
+  private static final class ElementBuffer extends ByteArrayOutputStream {
+    ElementBuffer (){
+      super (64);
+    }
+  }
+
+  /**
+   * Counts the bytes read through it, to check element framing.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream (InputStream in){
+      super (in);
+    }
+
+    @Override
+    public int read () throws IOException {
+      int b = in.read ();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read (byte[] b, int off, int len) throws IOException {
+      int n = in.read (b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+
+    @Override
+    public long skip (long n) throws IOException {
+      long skipped = in.skip (n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported (){
+      return false;
+    }
+  }
+}
@@ -0,0 +1,425 @@
+package justinethier;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Sorted map on top of AvlTree, with each value kept in the node of its
+ * key.
+ *
+ * Every operation makes a single descent from the root. The updating
+ * ones record the path on the way down (AvlTree.findPath) and then change
+ * the tree right where the descent ended, so put, compute, merge and the
+ * rest never search twice, and only rebalance when a key is added or
+ * removed; replacing a value touches nothing but its node.
+ *
+ * Keys may not be null; values may. As with HashMap, a remapping function
+ * that returns null removes the mapping, and one that structurally
+ * modifies the map throws ConcurrentModificationException.
+ */
+class AvlTreeMap<K extends Comparable<? super K>, V> extends AbstractMap<K, V> {
+
+  /**
+   * Node holding a key and its value; also the map's Entry.
+   */
+  static final class MapNode<K, V> extends AvlTree.AvlNode<K> implements Map.Entry<K, V> {
+    V value;
+
+    MapNode (K key, AvlTree.AvlNode<K> lt, AvlTree.AvlNode<K> rt){
+      super (key, lt, rt);
+    }
+
+    @Override
+    public K getKey (){
+      return element;
+    }
+
+    @Override
+    public V getValue (){
+      return value;
+    }
+
+    @Override
+    public V setValue (V v){
+      V old = value;
+      value = v;
+      return old;
+    }
+
+    @Override
+    public boolean equals (Object o){
+      if (!(o instanceof Map.Entry))
+        return false;
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return element.equals (e.getKey ()) && (value == null ? e.getValue () == null : value.equals (e.getValue ()));
+    }
+
+    @Override
+    public int hashCode (){
+      return element.hashCode () ^ (value == null ? 0 : value.hashCode ());
+    }
+
+    @Override
+    public String toString (){
+      return element + "=" + value;
+    }
+  }
+
+  /**
+   * The tree of keys, made of MapNodes.
+   */
+  private static final class KeyTree<K extends Comparable<? super K>, V> extends AvlTree<K> {
+    @Override
+    protected AvlNode<K> newNode (K x, AvlNode<K> lt, AvlNode<K> rt){
+      return new MapNode<K, V> (x, lt, rt);
+    }
+
+    @Override
+    protected AvlTree<K> newEmptyTree (){
+      return new KeyTree<K, V> ();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void moveContents (AvlNode<K> from, AvlNode<K> to){
+      super.moveContents (from, to);
+      ((MapNode<K, V>) to).value = ((MapNode<K, V>) from).value;
+    }
+  }
+
+  private final KeyTree<K, V> tree = new KeyTree<K, V> ();
+
+  /**
+   * Number of calls to findPath, so that a remapping function that used
+   * the map in the middle of an update can be detected.
+   */
+  private int pathUses;
+
+  /**
+   * Creates an empty map.
+   */
+  public AvlTreeMap (){
+  }
+
+  @Override
+  public int size (){
+    return tree.size ();
+  }
+
+  @Override
+  public boolean isEmpty (){
+    return tree.isEmpty ();
+  }
+
+  @Override
+  public void clear (){
+    tree.makeEmpty ();
+  }
+
+  @SuppressWarnings("unchecked")
+  private MapNode<K, V> node (Object key){
+    return (MapNode<K, V>) tree.findNode ((K) key);
+  }
+
+  @Override
+  public boolean containsKey (Object key){
+    return node (key) != null;
+  }
+
+  @Override
+  public V get (Object key){
+    MapNode<K, V> n = node (key);
+    return n == null ? null : n.value;
+  }
+
+  @Override
+  public V getOrDefault (Object key, V defaultValue){
+    MapNode<K, V> n = node (key);
+    return n == null ? defaultValue : n.value;
+  }
+
+  /**
+   * @return Smallest key, or null if the map is empty
+   */
+  public K firstKey (){
+    return tree.findMin ();
+  }
+
+  /**
+   * @return Largest key, or null if the map is empty
+   */
+  public K lastKey (){
+    return tree.findMax ();
+  }
+
+  //
+  // Updates
+  //
+
+  @SuppressWarnings("unchecked")
+  private MapNode<K, V> findPath (K key){
+    if (key == null)
+      throw new NullPointerException ();
+    pathUses++;
+    return (MapNode<K, V>) tree.findPath (key);
+  }
+
+  /**
+   * Add a mapping where findPath found none, ending the path.
+   */
+  @SuppressWarnings("unchecked")
+  private void attach (K key, V value){
+    MapNode<K, V> leaf = (MapNode<K, V>) tree.newNode (key, null, null);
+    leaf.value = value;
+    tree.attachAtPath (leaf);
+  }
+
+  /**
+   * Give key the value a remapping function chose, at the node findPath
+   * found for it or where it belongs, ending the path. Null removes the
+   * mapping.
+   */
+  private V settle (K key, MapNode<K, V> n, V v){
+    if (n == null){
+      if (v != null)
+        attach (key, v);
+      else
+        tree.releasePath ();
+    }
+    else if (v == null){
+      tree.removeAtPath (n);
+    }
+    else {
+      n.value = v;
+      tree.releasePath ();
+    }
+    return v;
+  }
+
+  /**
+   * Called after a remapping function returns. If it used the map, the
+   * recorded path is gone: that is an error if the map changed shape, and
+   * otherwise just costs a second descent.
+   *
+   * @return The node for key, found again if need be
+   */
+  private MapNode<K, V> afterRemapping (K key, MapNode<K, V> n, int uses, int modCount){
+    if (pathUses == uses)
+      return n;
+    if (tree.modificationCount () != modCount)
+      throw new ConcurrentModificationException ();
+    return findPath (key);
+  }
+
+  @Override
+  public V put (K key, V value){
+    MapNode<K, V> n = findPath (key);
+    if (n == null){
+      attach (key, value);
+      return null;
+    }
+    V old = n.value;
+    n.value = value;
+    tree.releasePath ();
+    return old;
+  }
+
+  @Override
+  public V putIfAbsent (K key, V value){
+    MapNode<K, V> n = findPath (key);
+    if (n == null){
+      attach (key, value);
+      return null;
+    }
+    V old = n.value;
+    if (old == null)
+      n.value = value;
+    tree.releasePath ();
+    return old;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove (Object key){
+    MapNode<K, V> n = findPath ((K) key);
+    if (n == null){
+      tree.releasePath ();
+      return null;
+    }
+    V old = n.value;
+    tree.removeAtPath (n);
+    return old;
+  }
+
+  @Override
+  public V compute (K key, BiFunction<? super K, ? super V, ? extends V> remapping){
+    if (remapping == null)
+      throw new NullPointerException ();
+    MapNode<K, V> n = findPath (key);
+    int uses = pathUses;
+    int modCount = tree.modificationCount ();
+
+    V v = remapping.apply (key, n == null ? null : n.value);
+    n = afterRemapping (key, n, uses, modCount);
+    return settle (key, n, v);
+  }
+
+  @Override
+  public V computeIfPresent (K key, BiFunction<? super K, ? super V, ? extends V> remapping){
+    if (remapping == null)
+      throw new NullPointerException ();
+    MapNode<K, V> n = findPath (key);
+    if (n == null || n.value == null){
+      tree.releasePath ();
+      return null;
+    }
+    int uses = pathUses;
+    int modCount = tree.modificationCount ();
+
+    V v = remapping.apply (key, n.value);
+    n = afterRemapping (key, n, uses, modCount);
+    return settle (key, n, v);
+  }
+
+  @Override
+  public V computeIfAbsent (K key, Function<? super K, ? extends V> mapping){
+    if (mapping == null)
+      throw new NullPointerException ();
+    MapNode<K, V> n = findPath (key);
+    if (n != null && n.value != null){
+      tree.releasePath ();
+      return n.value;
+    }
+    int uses = pathUses;
+    int modCount = tree.modificationCount ();
+
+    V v = mapping.apply (key);
+    n = afterRemapping (key, n, uses, modCount);
+    if (v == null){
+      tree.releasePath ();
+      return null;
+    }
+    return settle (key, n, v);
+  }
+
+  @Override
+  public V merge (K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping){
+    if (value == null || remapping == null)
+      throw new NullPointerException ();
+    MapNode<K, V> n = findPath (key);
+    if (n == null || n.value == null)
+      return settle (key, n, value);
+    int uses = pathUses;
+    int modCount = tree.modificationCount ();
+
+    V v = remapping.apply (n.value, value);
+    n = afterRemapping (key, n, uses, modCount);
+    return settle (key, n, v);
+  }
+
+  //
+  // Iteration
+  //
+
+  /**
+   * The mappings in ascending key order. The entries are the map's nodes,
+   * so setValue writes through.
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet (){
+    return new AbstractSet<Map.Entry<K, V>> (){
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator (){
+        return new EntryIterator ();
+      }
+
+      @Override
+      public int size (){
+        return tree.size ();
+      }
+
+      @Override
+      public void clear (){
+        tree.makeEmpty ();
+      }
+    };
+  }
+
+  /**
+   * Fail-fast in-order iterator over the nodes, as AvlTree's iterator.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+    private AvlTree.AvlNode<K>[] stack;
+    private int depth;
+    private MapNode<K, V> lastReturned;
+    private int expectedModCount = tree.modificationCount ();
+
+    EntryIterator (){
+      seekAfter (null);
+    }
+
+    /**
+     * Fill the stack with the path to the first key after from, or the
+     * smallest key if from is null.
+     */
+    @SuppressWarnings("unchecked")
+    private void seekAfter (K from){
+      stack = (AvlTree.AvlNode<K>[]) new AvlTree.AvlNode[tree.max (tree.height (tree.root) + 1, 1)];
+      depth = 0;
+      AvlTree.AvlNode<K> t = tree.root;
+      while (t != null){
+        if (from == null || t.element.compareTo (from) > 0){
+          stack[depth++] = t;
+          t = t.left;
+        }
+        else {
+          t = t.right;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext (){
+      return depth > 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, V> next (){
+      if (tree.modificationCount () != expectedModCount)
+        throw new ConcurrentModificationException ();
+      if (depth == 0)
+        throw new NoSuchElementException ();
+
+      AvlTree.AvlNode<K> t = stack[--depth];
+      stack[depth] = null;
+      for (AvlTree.AvlNode<K> c = t.right; c != null; c = c.left)
+        stack[depth++] = c;
+      lastReturned = (MapNode<K, V>) t;
+      return lastReturned;
+    }
+
+    @Override
+    public void remove (){
+      if (lastReturned == null)
+        throw new IllegalStateException ();
+      if (tree.modificationCount () != expectedModCount)
+        throw new ConcurrentModificationException ();
+
+      // Removal may rotate the nodes on the stack, or move another key
+      // into the returned node, so find our place again
+      K last = lastReturned.element;
+      tree.remove (last);
+      lastReturned = null;
+      expectedModCount = tree.modificationCount ();
+      seekAfter (last);
+    }
+  }
+}
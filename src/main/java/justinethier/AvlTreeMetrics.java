@@ -0,0 +1,109 @@
+package justinethier;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Instrumentation hooks called by an AvlTree as it works.
+ *
+ * A tree starts out with NONE, whose methods do nothing; with only that
+ * implementation in use the calls are inlined away by the JIT, so an
+ * uninstrumented tree pays nothing for them. Install a
+ * RecordingAvlTreeMetrics with AvlTree.setMetrics to collect statistics.
+ *
+ * Hooks are called on the thread doing the operation, so an
+ * implementation shared between trees used by several threads must be
+ * thread-safe.
+ */
+interface AvlTreeMetrics {
+
+  /**
+   * Rebalancing cases, named after the path from the unbalanced node to
+   * its taller grandchild.
+   */
+  enum Rotation {
+    /** Single rotation with the left child */
+    LL,
+
+    /** Double rotation: left child with its right child, then the node */
+    LR,
+
+    /** Single rotation with the right child */
+    RR,
+
+    /** Double rotation: right child with its left child, then the node */
+    RL
+  }
+
+  /**
+   * Operation that a rotation was part of.
+   */
+  enum Cause {
+    INSERT,
+    REMOVE,
+
+    /** Batch updates, set operations, joins and splits */
+    BULK
+  }
+
+  /**
+   * Called after a single insert.
+   *
+   * @param comparisons Number of comparisons made
+   * @param result      What happened to the element
+   */
+  void inserted (int comparisons, InsertResult result);
+
+  /**
+   * Called after a single remove.
+   *
+   * @param comparisons Number of comparisons made
+   * @param found       True if the element was found and removed
+   */
+  void removed (int comparisons, boolean found);
+
+  /**
+   * Called after a membership test. Each level costs one comparison, so
+   * the depth is also the number of comparisons made.
+   *
+   * @param depth Number of nodes visited
+   * @param found True if the element was found
+   */
+  void lookedUp (int depth, boolean found);
+
+  /**
+   * Called for every rotation.
+   *
+   * @param rotation Rebalancing case
+   * @param cause    Operation being rebalanced after
+   */
+  void rotated (Rotation rotation, Cause cause);
+
+  /**
+   * Called when the metrics are installed on a tree.
+   *
+   * @param size Reads the current size of the tree
+   */
+  default void bind (IntSupplier size){
+  }
+
+  /**
+   * Metrics that record nothing.
+   */
+  AvlTreeMetrics NONE = new AvlTreeMetrics (){
+    @Override
+    public void inserted (int comparisons, InsertResult result){
+    }
+
+    @Override
+    public void removed (int comparisons, boolean found){
+    }
+
+    @Override
+    public void lookedUp (int depth, boolean found){
+    }
+
+    @Override
+    public void rotated (Rotation rotation, Cause cause){
+    }
+  };
+}
@@ -0,0 +1,115 @@
+package justinethier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event carrying the activity of an instrumented tree over the last
+ * period. One is emitted per registered RecordingAvlTreeMetrics each
+ * period while a recording has the event enabled, so a burst of
+ * rotations shows up as a spike in the per-case counts.
+ */
+@Name("justinethier.AvlTreeMetrics")
+@Label("AVL Tree Metrics")
+@Category("AVL Tree")
+@Description("Operations and rotations of an AvlTree since the previous event")
+@Period("1 s")
+@StackTrace(false)
+class AvlTreeMetricsEvent extends Event {
+
+  @Label("Tree")
+  String tree;
+
+  @Label("Size")
+  int size;
+
+  @Label("Insertions")
+  long insertions;
+
+  @Label("Duplicate Rejections")
+  long duplicates;
+
+  @Label("Removals")
+  long removals;
+
+  @Label("Lookups")
+  long lookups;
+
+  @Label("Comparisons per Lookup")
+  double comparisonsPerLookup;
+
+  @Label("LL Rotations")
+  long rotationsLL;
+
+  @Label("LR Rotations")
+  long rotationsLR;
+
+  @Label("RR Rotations")
+  long rotationsRR;
+
+  @Label("RL Rotations")
+  long rotationsRL;
+
+  @Label("Insert Rotations")
+  long insertRotations;
+
+  @Label("Remove Rotations")
+  long removeRotations;
+
+  @Label("Bulk Rotations")
+  long bulkRotations;
+
+  /**
+   * Start emitting events for some metrics.
+   *
+   * @param name    Name identifying the tree
+   * @param metrics Metrics to report
+   * @return Hook to pass to uninstall
+   */
+  static Runnable install (final String name, final RecordingAvlTreeMetrics metrics){
+    Runnable hook = new Runnable (){
+      private RecordingAvlTreeMetrics.Snapshot last = metrics.snapshot ();
+
+      @Override
+      public void run (){
+        RecordingAvlTreeMetrics.Snapshot now = metrics.snapshot ();
+        RecordingAvlTreeMetrics.Snapshot d = now.since (last);
+        last = now;
+
+        AvlTreeMetricsEvent e = new AvlTreeMetricsEvent ();
+        e.tree = name;
+        e.size = d.size;
+        e.insertions = d.insertions;
+        e.duplicates = d.duplicates;
+        e.removals = d.removals;
+        e.lookups = d.lookups;
+        e.comparisonsPerLookup = d.comparisonsPerLookup ();
+        e.rotationsLL = d.rotations (AvlTreeMetrics.Rotation.LL);
+        e.rotationsLR = d.rotations (AvlTreeMetrics.Rotation.LR);
+        e.rotationsRR = d.rotations (AvlTreeMetrics.Rotation.RR);
+        e.rotationsRL = d.rotations (AvlTreeMetrics.Rotation.RL);
+        e.insertRotations = d.rotations (AvlTreeMetrics.Cause.INSERT);
+        e.removeRotations = d.rotations (AvlTreeMetrics.Cause.REMOVE);
+        e.bulkRotations = d.rotations (AvlTreeMetrics.Cause.BULK);
+        e.commit ();
+      }
+    };
+    FlightRecorder.addPeriodicEvent (AvlTreeMetricsEvent.class, hook);
+    return hook;
+  }
+
+  /**
+   * Stop emitting events for metrics passed to install.
+   *
+   * @param hook Hook returned by install
+   */
+  static void uninstall (Runnable hook){
+    FlightRecorder.removePeriodicEvent (hook);
+  }
+}
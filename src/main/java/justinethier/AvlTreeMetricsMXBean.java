@@ -0,0 +1,83 @@
+package justinethier;
+
+import java.util.Map;
+
+/**
+ * Management interface through which a RecordingAvlTreeMetrics is
+ * published over JMX. Counts are cumulative since creation or the last
+ * reset.
+ */
+public interface AvlTreeMetricsMXBean {
+
+  /**
+   * @return Current number of elements in the tree
+   */
+  int getSize ();
+
+  /**
+   * @return Elements added by single inserts
+   */
+  long getInsertions ();
+
+  /**
+   * @return Inserts rejected because an equal element was present
+   */
+  long getDuplicateRejections ();
+
+  /**
+   * @return Inserts that replaced an equal element
+   */
+  long getReplacements ();
+
+  /**
+   * @return Elements removed by single removes
+   */
+  long getRemovals ();
+
+  /**
+   * @return Removes of elements that were not present
+   */
+  long getRemoveMisses ();
+
+  /**
+   * @return Membership tests
+   */
+  long getLookups ();
+
+  /**
+   * @return Membership tests that found their element
+   */
+  long getLookupHits ();
+
+  /**
+   * @return Mean comparisons per insert, or 0 if there were none
+   */
+  double getComparisonsPerInsert ();
+
+  /**
+   * @return Mean comparisons per remove, or 0 if there were none
+   */
+  double getComparisonsPerRemove ();
+
+  /**
+   * @return Mean comparisons per membership test, or 0 if there were none
+   */
+  double getComparisonsPerLookup ();
+
+  /**
+   * @return Rotations keyed by cause and case, e.g. "INSERT.LR"
+   */
+  Map<String, Long> getRotations ();
+
+  /**
+   * @return Number of membership tests by nodes visited: element i counts
+   *         the lookups that visited i nodes, with the last element also
+   *         counting every deeper one
+   */
+  long[] getLookupDepthHistogram ();
+
+  /**
+   * Set every count back to zero.
+   */
+  void reset ();
+}
@@ -0,0 +1,35 @@
+package justinethier;
+
+/**
+ * How an AvlTree rebalances after a single insert or remove.
+ *
+ * Both policies store a rank in each node's height field. The rank
+ * difference of a child is its parent's rank minus its own, with a
+ * missing child ranked -1.
+ */
+enum BalancePolicy {
+  /**
+   * Strict AVL: the rank is the height, and the children of a node differ
+   * in height by at most one. A remove may rotate at every level on its
+   * way back to the root.
+   */
+  AVL,
+
+  /**
+   * Weak AVL (Haeupler, Sen and Tarjan, "Rank-Balanced Trees"): every
+   * rank difference is 1 or 2, and leaves have rank 0. Inserts rebalance
+   * exactly as under AVL, and a tree that only ever grows is an AVL
+   * tree. A remove does at most one single or double rotation, demoting
+   * ranks instead of rotating further up; the height stays within
+   * 2 log2 n.
+   *
+   * Removals may leave the tree out of AVL shape. The operations built on
+   * join (split, join, union, intersection, difference, insertAll,
+   * removeAll, removeRange and the like) work on ranks and keep their
+   * bounds, though their results need not be in AVL shape either.
+   * AvlTreeCodec.write, PersistentAvlTree.copyOf and the joins of an AVL
+   * tree with a WAVL operand need AVL shape, and first rebuild such a
+   * tree into perfect balance in O(n).
+   */
+  WAVL
+}
@@ -0,0 +1,35 @@
+package justinethier;
+
+/**
+ * Statistics for one batched update of a tree.
+ */
+final class BatchResult {
+
+  /**
+   * Number of elements that were inserted (or removed).
+   */
+  public final int applied;
+
+  /**
+   * Number of batch elements that caused no change: duplicates, either
+   * already in the tree or repeated within the batch, for an insert, and
+   * elements not found in the tree for a removal.
+   */
+  public final int skipped;
+
+  /**
+   * Number of rotations performed while rebalancing.
+   */
+  public final long rotations;
+
+  BatchResult (int applied, int skipped, long rotations){
+    this.applied = applied;
+    this.skipped = skipped;
+    this.rotations = rotations;
+  }
+
+  @Override
+  public String toString (){
+    return "BatchResult[applied=" + applied + ", skipped=" + skipped + ", rotations=" + rotations + "]";
+  }
+}
@@ -0,0 +1,824 @@
+package justinethier;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe AVL tree with optimistic, non-blocking reads.
+ *
+ * This follows Bronson, Casper, Chafi and Olukotun, "A Practical
+ * Concurrent Binary Search Tree" (PPoPP 2010):
+ *
+ * <ul>
+ * <li>Every node carries a version number. A rotation marks the node that
+ *     moves down as shrinking before it starts, and bumps its version when
+ *     it is done; removing a node from the tree marks it unlinked.
+ *     Readers descend hand over hand, and after reading a child they check
+ *     that the parent's version is unchanged. If it changed, the subtree
+ *     they are in may no longer cover the key, so they back up one level
+ *     and retry from there. Readers never take a lock; when they meet a
+ *     node in the middle of a rotation they spin until it finishes.</li>
+ * <li>Writers lock only the nodes they change, always parent before
+ *     child. Removing an element with two children does not restructure
+ *     the tree; the node just stays behind as an unmarked routing node,
+ *     and is unlinked later once it has a free child slot.</li>
+ * <li>Balance is relaxed: after an update the writer walks up fixing
+ *     heights and rotating, one node at a time under local locks, so
+ *     concurrent writers may briefly see the tree out of balance. Once
+ *     updates stop the tree is a proper AVL tree again. To make that hold,
+ *     this differs from the paper in two places: a double rotation that
+ *     leaves a routing node with one child splices it out right away
+ *     instead of refusing to rotate, and a node whose height is settled
+ *     is only passed over with its lock held.</li>
+ * </ul>
+ *
+ * Heights here count a leaf as 1 and a missing child as 0, as in the
+ * paper. findMin and findMax are weakly consistent under concurrent
+ * updates, as is size.
+ */
+class ConcurrentAvlTree<T extends Comparable<? super T>> {
+
+  /**
+   * Tree node. Key never changes; everything else is read without locks
+   * and so is volatile.
+   */
+  static final class Node<T> {
+    final T key;
+    volatile int height;
+    volatile long version;
+
+    /**
+     * False for routing nodes, which only direct searches
+     */
+    volatile boolean present;
+
+    volatile Node<T> parent;
+    volatile Node<T> left;
+    volatile Node<T> right;
+
+    Node (T key, Node<T> parent){
+      this.key = key;
+      this.parent = parent;
+      this.height = 1;
+      this.present = true;
+    }
+
+    Node<T> child (int dir){
+      return dir < 0 ? left : right;
+    }
+
+    void setChild (int dir, Node<T> n){
+      if (dir < 0)
+        left = n;
+      else
+        right = n;
+    }
+  }
+
+  private static final long UNLINKED = 1L;
+  private static final long SHRINKING = 2L;
+  private static final long SHRINK_COUNT_INCR = 4L;
+
+  /**
+   * Spins before a reader waiting on a rotation starts yielding.
+   */
+  private static final int SPIN_COUNT = 100;
+
+  private static final Object RETRY = new Object ();
+
+  private static final int UNLINK_REQUIRED = -1;
+  private static final int REBALANCE_REQUIRED = -2;
+  private static final int NOTHING_REQUIRED = -3;
+
+  /**
+   * Sentinel above the root, which is its right child. Its version never
+   * changes, so searches starting from it never need to retry.
+   */
+  final Node<T> rootHolder = new Node<T> (null, null);
+
+  private final LongAdder size = new LongAdder ();
+
+  /**
+   * @return Number of elements; not exact while updates are running
+   */
+  public int size (){
+    long n = size.sum ();
+    return n < 0 ? 0 : (int) Math.min (n, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree has no elements
+   */
+  public boolean isEmpty (){
+    return findMin () == null;
+  }
+
+  private static int height (Node<?> t){
+    return t == null ? 0 : t.height;
+  }
+
+  private static boolean isShrinking (long version){
+    return (version & SHRINKING) != 0;
+  }
+
+  /**
+   * Wait for a rotation of n to complete, without locking.
+   */
+  private static void waitUntilNotChanging (Node<?> n){
+    long v = n.version;
+    if (isShrinking (v)){
+      for (int i = 0; i < SPIN_COUNT; i++)
+        if (n.version != v)
+          return;
+      while (n.version == v)
+        Thread.yield ();
+    }
+  }
+
+  //
+  // Search
+  //
+
+  /**
+   * Search for an element within the tree. Never blocks.
+   *
+   * @param x Element to find
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains (T x){
+    while (true){
+      Object r = attemptGet (x, rootHolder, 1, 0L);
+      if (r != RETRY)
+        return r == Boolean.TRUE;
+    }
+  }
+
+  /**
+   * Search the dir child of node, whose version was nodeV when the
+   * search entered it.
+   */
+  private Object attemptGet (T x, Node<T> node, int dir, long nodeV){
+    while (true){
+      Node<T> child = node.child (dir);
+      if (node.version != nodeV)
+        return RETRY;
+      if (child == null)
+        return Boolean.FALSE;
+
+      int c = x.compareTo (child.key);
+      if (c == 0)
+        return child.present;
+
+      long chV = child.version;
+      if (isShrinking (chV)){
+        waitUntilNotChanging (child);
+      }
+      else if (chV != UNLINKED && child == node.child (dir)){
+        if (node.version != nodeV)
+          return RETRY;
+        Object r = attemptGet (x, child, c, chV);
+        if (r != RETRY)
+          return r;
+      }
+    }
+  }
+
+  /**
+   * Find the smallest element in the tree. Never blocks.
+   *
+   * @return smallest element, or null if the tree is empty
+   */
+  public T findMin (){
+    return findExtreme (-1);
+  }
+
+  /**
+   * Find the largest element in the tree. Never blocks.
+   *
+   * @return largest element, or null if the tree is empty
+   */
+  public T findMax (){
+    return findExtreme (1);
+  }
+
+  @SuppressWarnings("unchecked")
+  private T findExtreme (int side){
+    while (true){
+      Object r = attemptExtreme (rootHolder, 1, 0L, side);
+      if (r != RETRY)
+        return (T) r;
+    }
+  }
+
+  /**
+   * Find the first present key, towards side, in the dir subtree of node.
+   *
+   * @return The key, null if the subtree holds none, or RETRY
+   */
+  private Object attemptExtreme (Node<T> node, int dir, long nodeV, int side){
+    while (true){
+      Node<T> child = node.child (dir);
+      if (node.version != nodeV)
+        return RETRY;
+      if (child == null)
+        return null;
+
+      long chV = child.version;
+      if (isShrinking (chV)){
+        waitUntilNotChanging (child);
+        continue;
+      }
+      if (chV == UNLINKED || child != node.child (dir))
+        continue;
+      if (node.version != nodeV)
+        return RETRY;
+
+      Object r = attemptExtreme (child, side, chV, side);
+      if (r == RETRY)
+        continue;
+      if (r != null)
+        return r;
+
+      if (child.present){
+        if (child.version != chV)
+          continue;
+        return child.key;
+      }
+
+      // A routing node; look on its other side
+      r = attemptExtreme (child, -side, chV, side);
+      if (r != RETRY)
+        return r;
+    }
+  }
+
+  //
+  // Insert
+  //
+
+  /**
+   * Insert an element into the tree.
+   *
+   * @param x Element to insert into the tree
+   * @return True - Success, the Element was added.
+   *         False - the element was a duplicate.
+   */
+  public boolean insert (T x){
+    if (x == null)
+      throw new NullPointerException ();
+
+    while (true){
+      Object r = attemptInsert (x, rootHolder, 1, 0L);
+      if (r != RETRY){
+        boolean added = r == Boolean.FALSE;
+        if (added)
+          size.increment ();
+        return added;
+      }
+    }
+  }
+
+  /**
+   * @return Whether x was present before, or RETRY
+   */
+  private Object attemptInsert (T x, Node<T> node, int dir, long nodeV){
+    Object r;
+    do {
+      Node<T> child = node.child (dir);
+      if (node.version != nodeV)
+        return RETRY;
+
+      if (child == null){
+        r = attemptAttachLeaf (x, node, dir, nodeV);
+      }
+      else {
+        int c = x.compareTo (child.key);
+        if (c == 0){
+          r = attemptMarkPresent (child);
+        }
+        else {
+          r = RETRY;
+          long chV = child.version;
+          if (isShrinking (chV)){
+            waitUntilNotChanging (child);
+          }
+          else if (chV != UNLINKED && child == node.child (dir)){
+            if (node.version != nodeV)
+              return RETRY;
+            r = attemptInsert (x, child, c, chV);
+          }
+        }
+      }
+    } while (r == RETRY);
+    return r;
+  }
+
+  private Object attemptAttachLeaf (T x, Node<T> node, int dir, long nodeV){
+    synchronized (node){
+      if (node.version != nodeV || node.child (dir) != null)
+        return RETRY;
+      node.setChild (dir, new Node<T> (x, node));
+    }
+    fixHeightAndRebalance (node);
+    return Boolean.FALSE;
+  }
+
+  private Object attemptMarkPresent (Node<T> n){
+    synchronized (n){
+      if (n.version == UNLINKED)
+        return RETRY;
+      boolean prev = n.present;
+      n.present = true;
+      return prev;
+    }
+  }
+
+  //
+  // Remove
+  //
+
+  /**
+   * Remove an element from the tree.
+   *
+   * @param x Element to remove
+   * @return True if the element was found and removed
+   */
+  public boolean remove (T x){
+    while (true){
+      Object r = attemptRemove (x, rootHolder, 1, 0L);
+      if (r != RETRY){
+        boolean removed = r == Boolean.TRUE;
+        if (removed)
+          size.decrement ();
+        return removed;
+      }
+    }
+  }
+
+  /**
+   * @return Whether x was present, or RETRY
+   */
+  private Object attemptRemove (T x, Node<T> node, int dir, long nodeV){
+    Object r;
+    do {
+      Node<T> child = node.child (dir);
+      if (node.version != nodeV)
+        return RETRY;
+      if (child == null)
+        return Boolean.FALSE;
+
+      int c = x.compareTo (child.key);
+      if (c == 0){
+        r = attemptRemoveNode (node, child);
+      }
+      else {
+        r = RETRY;
+        long chV = child.version;
+        if (isShrinking (chV)){
+          waitUntilNotChanging (child);
+        }
+        else if (chV != UNLINKED && child == node.child (dir)){
+          if (node.version != nodeV)
+            return RETRY;
+          r = attemptRemove (x, child, c, chV);
+        }
+      }
+    } while (r == RETRY);
+    return r;
+  }
+
+  private Object attemptRemoveNode (Node<T> parent, Node<T> n){
+    if (!n.present)
+      return Boolean.FALSE;
+
+    if (n.left != null && n.right != null){
+      // Leave n in place as a routing node
+      synchronized (n){
+        if (n.version == UNLINKED || n.left == null || n.right == null)
+          return RETRY;
+        boolean prev = n.present;
+        n.present = false;
+        return prev;
+      }
+    }
+
+    synchronized (parent){
+      if (parent.version == UNLINKED || n.parent != parent)
+        return RETRY;
+      synchronized (n){
+        if (!n.present)
+          return Boolean.FALSE;
+        if (!attemptUnlink (parent, n))
+          return RETRY;
+      }
+    }
+    fixHeightAndRebalance (parent);
+    return Boolean.TRUE;
+  }
+
+  /**
+   * Splice out n, which must have at most one child. Caller holds the
+   * locks of parent and n.
+   */
+  private boolean attemptUnlink (Node<T> parent, Node<T> n){
+    Node<T> parentL = parent.left;
+    Node<T> parentR = parent.right;
+    if (parentL != n && parentR != n)
+      return false;
+
+    Node<T> l = n.left;
+    Node<T> r = n.right;
+    if (l != null && r != null)
+      return false;
+
+    Node<T> splice = l != null ? l : r;
+    if (parentL == n)
+      parent.left = splice;
+    else
+      parent.right = splice;
+    if (splice != null)
+      splice.parent = parent;
+
+    n.version = UNLINKED;
+    n.present = false;
+    return true;
+  }
+
+  //
+  // Rebalancing
+  //
+
+  /**
+   * Work out what a node needs without locking it.
+   *
+   * @return The height it should have, or one of the *_REQUIRED codes
+   */
+  private int nodeCondition (Node<T> n){
+    Node<T> l = n.left;
+    Node<T> r = n.right;
+    if ((l == null || r == null) && !n.present)
+      return UNLINK_REQUIRED;
+
+    int h = n.height;
+    int hL = height (l);
+    int hR = height (r);
+    int hRepl = 1 + Math.max (hL, hR);
+    int bal = hL - hR;
+    if (bal < -1 || bal > 1)
+      return REBALANCE_REQUIRED;
+    return h != hRepl ? hRepl : NOTHING_REQUIRED;
+  }
+
+  /**
+   * Walk up from a changed node, fixing heights, unlinking routing nodes
+   * and rotating until nothing more needs to be done.
+   */
+  private void fixHeightAndRebalance (Node<T> n){
+    while (n != null && n.parent != null){
+      // Only a hint for which locks to take. Deciding that n is fine
+      // without its lock could race with a writer that holds the lock
+      // and is about to store a height computed from stale child heights.
+      int c = nodeCondition (n);
+      if (n.version == UNLINKED)
+        return;
+
+      if (c != UNLINK_REQUIRED && c != REBALANCE_REQUIRED){
+        synchronized (n){
+          n = fixHeight (n);
+        }
+      }
+      else {
+        Node<T> parent = n.parent;
+        synchronized (parent){
+          if (parent.version != UNLINKED && n.parent == parent){
+            synchronized (n){
+              n = rebalance (parent, n);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Correct the height of n, whose lock is held.
+   *
+   * @return The next node to fix, or null if done
+   */
+  private Node<T> fixHeight (Node<T> n){
+    int c = nodeCondition (n);
+    switch (c){
+      case REBALANCE_REQUIRED:
+      case UNLINK_REQUIRED:
+        return n;
+      case NOTHING_REQUIRED:
+        return null;
+      default:
+        n.height = c;
+        return n.parent;
+    }
+  }
+
+  /**
+   * Unlink, rotate or fix the height of n. Caller holds the locks of
+   * parent and n.
+   *
+   * @return The next node to fix, or null if done
+   */
+  private Node<T> rebalance (Node<T> parent, Node<T> n){
+    // Unlinked since it was checked; whoever unlinked it fixes the parent
+    if (n.version == UNLINKED)
+      return null;
+
+    Node<T> l = n.left;
+    Node<T> r = n.right;
+    if ((l == null || r == null) && !n.present){
+      if (attemptUnlink (parent, n))
+        return fixHeight (parent);
+      return n;
+    }
+
+    int h = n.height;
+    int hL0 = height (l);
+    int hR0 = height (r);
+    int hRepl = 1 + Math.max (hL0, hR0);
+    int bal = hL0 - hR0;
+
+    if (bal > 1)
+      return rebalanceToRight (parent, n, l, hR0);
+    if (bal < -1)
+      return rebalanceToLeft (parent, n, r, hL0);
+    if (hRepl != h){
+      n.height = hRepl;
+      return fixHeight (parent);
+    }
+    return null;
+  }
+
+  private Node<T> rebalanceToRight (Node<T> parent, Node<T> n, Node<T> nL, int hR0){
+    synchronized (nL){
+      int hL = nL.height;
+      if (hL - hR0 <= 1)
+        return n;
+
+      Node<T> nLR = nL.right;
+      int hLL0 = height (nL.left);
+      int hLR0 = height (nLR);
+      if (hLL0 >= hLR0)
+        return rotateRight (parent, n, nL, hR0, hLL0, nLR, hLR0);
+
+      synchronized (nLR){
+        int hLR = nLR.height;
+        if (hLL0 >= hLR)
+          return rotateRight (parent, n, nL, hR0, hLL0, nLR, hLR);
+
+        int hLRL = height (nLR.left);
+        int b = hLL0 - hLRL;
+        if (b >= -1 && b <= 1)
+          return rotateRightOverLeft (parent, n, nL, hR0, hLL0, nLR, hLRL);
+      }
+      // Fix the left child first; n is revisited afterwards
+      return rebalanceToLeft (n, nL, nLR, hLL0);
+    }
+  }
+
+  private Node<T> rebalanceToLeft (Node<T> parent, Node<T> n, Node<T> nR, int hL0){
+    synchronized (nR){
+      int hR = nR.height;
+      if (hL0 - hR >= -1)
+        return n;
+
+      Node<T> nRL = nR.left;
+      int hRR0 = height (nR.right);
+      int hRL0 = height (nRL);
+      if (hRR0 >= hRL0)
+        return rotateLeft (parent, n, hL0, nR, nRL, hRL0, hRR0);
+
+      synchronized (nRL){
+        int hRL = nRL.height;
+        if (hRR0 >= hRL)
+          return rotateLeft (parent, n, hL0, nR, nRL, hRL, hRR0);
+
+        int hRLR = height (nRL.right);
+        int b = hRR0 - hRLR;
+        if (b >= -1 && b <= 1)
+          return rotateLeftOverRight (parent, n, hL0, nR, nRL, hRR0, hRLR);
+      }
+      return rebalanceToRight (n, nR, nRL, hRR0);
+    }
+  }
+
+  /**
+   * Rotate n down to the right under its left child nL. Caller holds the
+   * locks of parent, n and nL.
+   */
+  private Node<T> rotateRight (Node<T> parent, Node<T> n, Node<T> nL, int hR, int hLL, Node<T> nLR, int hLR){
+    long nodeV = n.version;
+    int hN0 = n.height;
+    Node<T> parentL = parent.left;
+
+    n.version = nodeV | SHRINKING;
+
+    n.left = nLR;
+    if (nLR != null)
+      nLR.parent = n;
+
+    nL.right = n;
+    n.parent = nL;
+
+    if (parentL == n)
+      parent.left = nL;
+    else
+      parent.right = nL;
+    nL.parent = parent;
+
+    hLR = height (nLR);
+    int hRepl = 1 + Math.max (hLR, hR);
+    n.height = hRepl;
+    nL.height = 1 + Math.max (hLL, hRepl);
+
+    n.version = nodeV + SHRINK_COUNT_INCR;
+
+    int balN = hLR - hR;
+    if (balN < -1 || balN > 1 || ((nLR == null || hR == 0) && !n.present)){
+      // Work continues at n, below the new subtree root, so leave the root
+      // with the height its parent last saw; the walk up from n then
+      // carries on past it if the subtree height really changed
+      nL.height = hN0;
+      return n;
+    }
+    int balL = hLL - hRepl;
+    if (balL < -1 || balL > 1)
+      return nL;
+    if (hLL == 0 && !nL.present)
+      return nL;
+    return fixHeight (parent);
+  }
+
+  /**
+   * Mirror image of rotateRight.
+   */
+  private Node<T> rotateLeft (Node<T> parent, Node<T> n, int hL, Node<T> nR, Node<T> nRL, int hRL, int hRR){
+    long nodeV = n.version;
+    int hN0 = n.height;
+    Node<T> parentL = parent.left;
+
+    n.version = nodeV | SHRINKING;
+
+    n.right = nRL;
+    if (nRL != null)
+      nRL.parent = n;
+
+    nR.left = n;
+    n.parent = nR;
+
+    if (parentL == n)
+      parent.left = nR;
+    else
+      parent.right = nR;
+    nR.parent = parent;
+
+    hRL = height (nRL);
+    int hRepl = 1 + Math.max (hL, hRL);
+    n.height = hRepl;
+    nR.height = 1 + Math.max (hRepl, hRR);
+
+    n.version = nodeV + SHRINK_COUNT_INCR;
+
+    int balN = hRL - hL;
+    if (balN < -1 || balN > 1 || ((nRL == null || hL == 0) && !n.present)){
+      nR.height = hN0;
+      return n;
+    }
+    int balR = hRR - hRepl;
+    if (balR < -1 || balR > 1)
+      return nR;
+    if (hRR == 0 && !nR.present)
+      return nR;
+    return fixHeight (parent);
+  }
+
+  /**
+   * Double rotation: nLR moves up above both n and its parent nL. Caller
+   * holds the locks of parent, n, nL and nLR.
+   */
+  private Node<T> rotateRightOverLeft (Node<T> parent, Node<T> n, Node<T> nL, int hR, int hLL, Node<T> nLR, int hLRL){
+    long nodeV = n.version;
+    int hN0 = n.height;
+    long leftV = nL.version;
+    Node<T> parentL = parent.left;
+    Node<T> nLRL = nLR.left;
+    Node<T> nLRR = nLR.right;
+
+    n.version = nodeV | SHRINKING;
+    nL.version = leftV | SHRINKING;
+
+    n.left = nLRR;
+    if (nLRR != null)
+      nLRR.parent = n;
+
+    nL.right = nLRL;
+    if (nLRL != null)
+      nLRL.parent = nL;
+
+    nLR.left = nL;
+    nL.parent = nLR;
+    nLR.right = n;
+    n.parent = nLR;
+
+    if (parentL == n)
+      parent.left = nLR;
+    else
+      parent.right = nLR;
+    nLR.parent = parent;
+
+    hLRL = height (nLRL);
+    int hLRR = height (nLRR);
+    int hRepl = 1 + Math.max (hLRR, hR);
+    n.height = hRepl;
+    int hLRepl = 1 + Math.max (hLL, hLRL);
+    nL.height = hLRepl;
+    nLR.height = 1 + Math.max (hLRepl, hRepl);
+
+    n.version = nodeV + SHRINK_COUNT_INCR;
+    nL.version = leftV + SHRINK_COUNT_INCR;
+
+    // A routing nL may have been left with one child; its lock and its
+    // new parent's are held, so splice it out now
+    if (!nL.present && attemptUnlink (nLR, nL)){
+      hLRepl = height (nLR.left);
+      nLR.height = 1 + Math.max (hLRepl, hRepl);
+    }
+
+    int balN = hLRR - hR;
+    if (balN < -1 || balN > 1 || ((nLRR == null || hR == 0) && !n.present)){
+      nLR.height = hN0;
+      return n;
+    }
+    int balLR = hLRepl - hRepl;
+    if (balLR < -1 || balLR > 1)
+      return nLR;
+    return fixHeight (parent);
+  }
+
+  /**
+   * Mirror image of rotateRightOverLeft.
+   */
+  private Node<T> rotateLeftOverRight (Node<T> parent, Node<T> n, int hL, Node<T> nR, Node<T> nRL, int hRR, int hRLR){
+    long nodeV = n.version;
+    int hN0 = n.height;
+    long rightV = nR.version;
+    Node<T> parentL = parent.left;
+    Node<T> nRLL = nRL.left;
+    Node<T> nRLR = nRL.right;
+
+    n.version = nodeV | SHRINKING;
+    nR.version = rightV | SHRINKING;
+
+    n.right = nRLL;
+    if (nRLL != null)
+      nRLL.parent = n;
+
+    nR.left = nRLR;
+    if (nRLR != null)
+      nRLR.parent = nR;
+
+    nRL.right = nR;
+    nR.parent = nRL;
+    nRL.left = n;
+    n.parent = nRL;
+
+    if (parentL == n)
+      parent.left = nRL;
+    else
+      parent.right = nRL;
+    nRL.parent = parent;
+
+    hRLR = height (nRLR);
+    int hRLL = height (nRLL);
+    int hRepl = 1 + Math.max (hL, hRLL);
+    n.height = hRepl;
+    int hRRepl = 1 + Math.max (hRLR, hRR);
+    nR.height = hRRepl;
+    nRL.height = 1 + Math.max (hRepl, hRRepl);
+
+    n.version = nodeV + SHRINK_COUNT_INCR;
+    nR.version = rightV + SHRINK_COUNT_INCR;
+
+    if (!nR.present && attemptUnlink (nRL, nR)){
+      hRRepl = height (nRL.right);
+      nRL.height = 1 + Math.max (hRepl, hRRepl);
+    }
+
+    int balN = hRLL - hL;
+    if (balN < -1 || balN > 1 || ((nRLL == null || hL == 0) && !n.present)){
+      nRL.height = hN0;
+      return n;
+    }
+    int balRL = hRRepl - hRepl;
+    if (balRL < -1 || balRL > 1)
+      return nRL;
+    return fixHeight (parent);
+  }
+}
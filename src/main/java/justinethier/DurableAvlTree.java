@@ -0,0 +1,695 @@
+package justinethier;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * AvlTree that survives crashes, kept in a directory as a checkpoint
+ * plus a write-ahead log of the updates made since.
+ *
+ * Every insert or remove that changes the tree appends a record to the
+ * log, and returns only once the record is on disk:
+ *
+ * <pre>
+ *   record:  int body length, int CRC-32 of the body,
+ *            body: long sequence number, byte op (1 insert, 2 remove),
+ *                  element written by the ElementCodec
+ * </pre>
+ *
+ * Commits are grouped. Writers append to a shared buffer under the
+ * tree's lock, then wait for their record to become durable; the first
+ * of them to find no write in progress becomes the leader, writes and
+ * forces everything buffered so far, and wakes the others, so under
+ * concurrent writers one fsync covers many records.
+ *
+ * A checkpoint writes the whole tree with AvlTreeCodec to a temporary
+ * file, forces it and renames it over the previous one, tagged with the
+ * sequence number of the last record it includes. The log is a series
+ * of segment files; a checkpoint starts a new segment and deletes the
+ * older ones once it is in place. Writers are only held up while the
+ * elements are copied out of the tree and the new segment is created,
+ * not while the checkpoint is written. Checkpoints run by themselves
+ * whenever the current segment outgrows a given size, in the writer
+ * that notices, or can be requested.
+ *
+ * open recovers by loading the checkpoint and replaying the records
+ * after it. A record cut short or failing its CRC ends the log: the
+ * tail of the last segment is discarded, as left by a crash in the
+ * middle of a write, while a bad record followed by more data is
+ * reported as corruption.
+ *
+ * Operations are serialized by a single lock, except for the wait for
+ * the disk. Updates are visible to readers as soon as they are applied,
+ * before they are durable. If a log write fails the tree refuses all
+ * further updates, since it may hold changes the log does not.
+ *
+ * Only one instance may have a directory open at a time.
+ */
+class DurableAvlTree<T extends Comparable<? super T>> implements Closeable {
+
+  static final int CHECKPOINT_MAGIC = 0x41564C43;
+  static final int VERSION = 1;
+
+  static final byte INSERT = 1;
+  static final byte REMOVE = 2;
+
+  static final String CHECKPOINT = "checkpoint.avl";
+  private static final String CHECKPOINT_TMP = "checkpoint.avl.tmp";
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * Record length and CRC
+   */
+  private static final int RECORD_HEADER = 8;
+
+  /**
+   * Sequence number and op, ahead of the element
+   */
+  private static final int BODY_HEADER = 9;
+
+  /**
+   * Longest record body accepted on recovery; anything longer is taken
+   * for a damaged length
+   */
+  private static final int MAX_BODY = 1 << 30;
+
+  /**
+   * Default segment size that triggers a checkpoint
+   */
+  static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+  private final Path dir;
+  private final ElementCodec<T> codec;
+  private final boolean force;
+  private final long checkpointBytes;
+  private final AvlTree<T> tree = new AvlTree<T> ();
+
+  /**
+   * Guards the tree and everything below
+   */
+  private final Object lock = new Object ();
+
+  /**
+   * Sequence number of the last record appended, and of the last one
+   * written to the log
+   */
+  private long lastLsn;
+  private long durableLsn;
+
+  /**
+   * Records not yet handed to a leader, and the buffer the next leader
+   * swaps in; spare is null while a write is in progress.
+   */
+  private LogBuffer pending = new LogBuffer ();
+  private LogBuffer spare = new LogBuffer ();
+  private boolean writing;
+
+  private FileChannel segment;
+  private long segmentNumber;
+
+  /**
+   * Bytes appended to the current segment, written or not
+   */
+  private long segmentBytes;
+
+  private boolean checkpointing;
+  private IOException failure;
+  private boolean closed;
+
+  private DurableAvlTree (Path dir, ElementCodec<T> codec, boolean force, long checkpointBytes){
+    this.dir = dir;
+    this.codec = codec;
+    this.force = force;
+    this.checkpointBytes = checkpointBytes;
+  }
+
+  /**
+   * Open a durable tree with forced commits and the default checkpoint
+   * interval, creating the directory if need be.
+   *
+   * @param dir   Directory holding the checkpoint and log
+   * @param codec Converts elements to and from bytes
+   * @return The recovered tree
+   * @throws IOException if the directory cannot be read or holds a
+   *         damaged checkpoint or log
+   */
+  public static <T extends Comparable<? super T>> DurableAvlTree<T> open (Path dir, ElementCodec<T> codec) throws IOException {
+    return open (dir, codec, true, DEFAULT_CHECKPOINT_BYTES);
+  }
+
+  /**
+   * Open a durable tree, creating the directory if need be, and recover
+   * its contents.
+   *
+   * @param dir             Directory holding the checkpoint and log
+   * @param codec           Converts elements to and from bytes
+   * @param force           If true, a commit returns once its record is
+   *                        forced to disk. If false, once the record is
+   *                        written to the operating system, which
+   *                        survives the process crashing but not the
+   *                        machine.
+   * @param checkpointBytes Log segment size that triggers a checkpoint,
+   *                        or 0 for checkpoints only on request
+   * @return The recovered tree
+   * @throws IOException if the directory cannot be read or holds a
+   *         damaged checkpoint or log
+   */
+  public static <T extends Comparable<? super T>> DurableAvlTree<T> open (Path dir, ElementCodec<T> codec,
+                                                                         boolean force, long checkpointBytes) throws IOException {
+    Files.createDirectories (dir);
+    DurableAvlTree<T> t = new DurableAvlTree<T> (dir, codec, force, checkpointBytes);
+    t.recover ();
+    return t;
+  }
+
+  //
+  // Queries
+  //
+
+  /**
+   * Search for an element within the tree.
+   *
+   * @param x Element to find
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains (T x){
+    synchronized (lock){
+      return tree.contains (x);
+    }
+  }
+
+  /**
+   * @return Number of elements in the tree
+   */
+  public int size (){
+    synchronized (lock){
+      return tree.size ();
+    }
+  }
+
+  /**
+   * @return Smallest element, or null if the tree is empty
+   */
+  public T findMin (){
+    synchronized (lock){
+      return tree.findMin ();
+    }
+  }
+
+  /**
+   * @return Largest element, or null if the tree is empty
+   */
+  public T findMax (){
+    synchronized (lock){
+      return tree.findMax ();
+    }
+  }
+
+  /**
+   * @return The elements in ascending order, as of the call
+   */
+  public List<T> toList (){
+    synchronized (lock){
+      List<T> list = new ArrayList<T> (tree.size ());
+      for (T x : tree)
+        list.add (x);
+      return list;
+    }
+  }
+
+  //
+  // Updates
+  //
+
+  /**
+   * Insert an element, returning once the insertion is durable.
+   *
+   * @param x Element to insert into the tree
+   * @return True if the element was added, false if it was a duplicate
+   * @throws IOException if the log cannot be written
+   */
+  public boolean insert (T x) throws IOException {
+    return update (x, INSERT);
+  }
+
+  /**
+   * Remove an element, returning once the removal is durable.
+   *
+   * @param x Element to remove
+   * @return True if the element was found and removed
+   * @throws IOException if the log cannot be written
+   */
+  public boolean remove (T x) throws IOException {
+    return update (x, REMOVE);
+  }
+
+  private boolean update (T x, byte op) throws IOException {
+    long lsn;
+    boolean checkpointDue;
+    synchronized (lock){
+      checkOpen ();
+      // Encode first, so a codec failure leaves the tree untouched
+      int mark = pending.size ();
+      try {
+        pending.append (lastLsn + 1, op, x, codec);
+      }
+      catch (IOException | RuntimeException e){
+        pending.truncate (mark);
+        throw e;
+      }
+      boolean changed = op == INSERT ? tree.insert (x) : tree.remove (x);
+      if (!changed){
+        pending.truncate (mark);
+        return false;
+      }
+      lsn = ++lastLsn;
+      segmentBytes += pending.size () - mark;
+      checkpointDue = checkpointBytes > 0 && segmentBytes >= checkpointBytes && !checkpointing;
+    }
+    awaitDurable (lsn);
+    if (checkpointDue)
+      checkpoint ();
+    return true;
+  }
+
+  private void checkOpen () throws IOException {
+    if (closed)
+      throw new IllegalStateException ("Closed");
+    if (failure != null)
+      throw new IOException ("Write-ahead log failed", failure);
+  }
+
+  /**
+   * Wait until every record up to lsn is in the log, writing them as the
+   * leader if no other thread is.
+   */
+  private void awaitDurable (long lsn) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true){
+        LogBuffer batch;
+        FileChannel ch;
+        long upTo;
+        synchronized (lock){
+          while (durableLsn < lsn && failure == null && writing){
+            try {
+              lock.wait ();
+            }
+            catch (InterruptedException e){
+              // The record is already in the tree; it has to be waited for
+              interrupted = true;
+            }
+          }
+          if (durableLsn >= lsn)
+            return;
+          if (failure != null)
+            throw new IOException ("Write-ahead log failed", failure);
+
+          // Lead: take everything appended so far
+          batch = pending;
+          pending = spare;
+          spare = null;
+          ch = segment;
+          upTo = lastLsn;
+          writing = true;
+        }
+
+        IOException error = null;
+        try {
+          batch.writeTo (ch);
+          if (force)
+            ch.force (false);
+        }
+        catch (IOException e){
+          error = e;
+        }
+
+        synchronized (lock){
+          batch.reset ();
+          spare = batch;
+          writing = false;
+          if (error != null)
+            failure = error;
+          else
+            durableLsn = upTo;
+          lock.notifyAll ();
+        }
+      }
+    }
+    finally {
+      if (interrupted)
+        Thread.currentThread ().interrupt ();
+    }
+  }
+
+  //
+  // Checkpoints
+  //
+
+  /**
+   * Write a checkpoint of the whole tree and delete the log it makes
+   * redundant.
+   *
+   * @return True if a checkpoint was written, false if another one was
+   *         already in progress
+   * @throws IOException if the checkpoint or the log cannot be written
+   */
+  public boolean checkpoint () throws IOException {
+    T[] elements;
+    long lsn;
+    FileChannel old;
+    long number;
+    synchronized (lock){
+      checkOpen ();
+      if (checkpointing)
+        return false;
+      checkpointing = true;
+
+      try {
+        elements = copyElements ();
+        lsn = lastLsn;
+        // Later records go to a new segment. Records up to lsn still
+        // buffered may follow them there; replay skips them.
+        FileChannel next = openSegment (segmentNumber + 1);
+        old = segment;
+        number = ++segmentNumber;
+        segment = next;
+        segmentBytes = pending.size ();
+      }
+      catch (IOException | RuntimeException e){
+        checkpointing = false;
+        throw e;
+      }
+    }
+
+    try {
+      try {
+        AvlTree<T> copy = new AvlTree<T> ();
+        copy.buildFromSorted (elements);
+        writeCheckpoint (copy, lsn);
+      }
+      finally {
+        // No record past lsn is written to the old segment; close it once
+        // any leader still writing to it is done
+        awaitDurable (lsn);
+        old.close ();
+      }
+      deleteSegmentsBefore (number);
+    }
+    finally {
+      synchronized (lock){
+        checkpointing = false;
+        lock.notifyAll ();
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T[] copyElements (){
+    T[] a = (T[]) new Comparable[tree.size ()];
+    int i = 0;
+    for (T x : tree)
+      a[i++] = x;
+    return a;
+  }
+
+  private void writeCheckpoint (AvlTree<T> copy, long lsn) throws IOException {
+    Path tmp = dir.resolve (CHECKPOINT_TMP);
+    try (FileChannel ch = FileChannel.open (tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)){
+      ByteBuffer header = ByteBuffer.allocate (13);
+      header.putInt (CHECKPOINT_MAGIC);
+      header.put ((byte) VERSION);
+      header.putLong (lsn);
+      header.flip ();
+      while (header.hasRemaining ())
+        ch.write (header);
+      new AvlTreeCodec<T> (codec).write (copy, ch);
+      ch.force (true);
+    }
+    Files.move (tmp, dir.resolve (CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory ();
+  }
+
+  /**
+   * Make file creations, renames and deletions in the directory durable.
+   */
+  private void forceDirectory (){
+    if (!force)
+      return;
+    try (FileChannel ch = FileChannel.open (dir, StandardOpenOption.READ)){
+      ch.force (true);
+    }
+    catch (IOException e){
+      // Not every platform can open a directory; there the rename is as
+      // durable as the file system makes it
+    }
+  }
+
+  private void deleteSegmentsBefore (long number) throws IOException {
+    for (long n : segmentNumbers ())
+      if (n < number)
+        Files.deleteIfExists (segmentPath (n));
+    forceDirectory ();
+  }
+
+  //
+  // Segments
+  //
+
+  private Path segmentPath (long number){
+    return dir.resolve (String.format ("%s%016x%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private FileChannel openSegment (long number) throws IOException {
+    FileChannel ch = FileChannel.open (segmentPath (number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    forceDirectory ();
+    return ch;
+  }
+
+  /**
+   * @return Numbers of the segments in the directory, ascending
+   */
+  private List<Long> segmentNumbers () throws IOException {
+    List<Long> numbers = new ArrayList<Long> ();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream (dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+      for (Path f : files){
+        String name = f.getFileName ().toString ();
+        String hex = name.substring (SEGMENT_PREFIX.length (), name.length () - SEGMENT_SUFFIX.length ());
+        try {
+          numbers.add (Long.parseUnsignedLong (hex, 16));
+        }
+        catch (NumberFormatException e){
+          // Not one of ours
+        }
+      }
+    }
+    Collections.sort (numbers);
+    return numbers;
+  }
+
+  //
+  // Recovery
+  //
+
+  private void recover () throws IOException {
+    Files.deleteIfExists (dir.resolve (CHECKPOINT_TMP));
+
+    long checkpointLsn = 0;
+    Path cp = dir.resolve (CHECKPOINT);
+    if (Files.exists (cp)){
+      try (DataInputStream in = new DataInputStream (new BufferedInputStream (Files.newInputStream (cp)))){
+        if (in.readInt () != CHECKPOINT_MAGIC)
+          throw new StreamCorruptedException (cp + " is not an AvlTree checkpoint");
+        int version = in.readUnsignedByte ();
+        if (version != VERSION)
+          throw new StreamCorruptedException (cp + " has unsupported version " + version);
+        checkpointLsn = in.readLong ();
+        new AvlTreeCodec<T> (codec).readInto (in, tree);
+      }
+    }
+
+    List<Long> numbers = segmentNumbers ();
+    for (int i = 0; i < numbers.size (); i++){
+      Path file = segmentPath (numbers.get (i));
+      long end = replay (file, checkpointLsn);
+      if (end < Files.size (file)){
+        for (int j = i + 1; j < numbers.size (); j++)
+          if (Files.size (segmentPath (numbers.get (j))) > 0)
+            throw new StreamCorruptedException ("Damaged record in " + file + " at offset " + end);
+        // Torn write at the end of the log; it was never acknowledged
+        try (FileChannel ch = FileChannel.open (file, StandardOpenOption.WRITE)){
+          ch.truncate (end);
+          ch.force (true);
+        }
+        break;
+      }
+    }
+    lastLsn = durableLsn = Math.max (lastLsn, checkpointLsn);
+
+    if (numbers.isEmpty ()){
+      segmentNumber = 0;
+      segment = openSegment (0);
+    }
+    else {
+      segmentNumber = numbers.get (numbers.size () - 1);
+      segment = FileChannel.open (segmentPath (segmentNumber), StandardOpenOption.WRITE);
+      segment.position (segment.size ());
+    }
+    segmentBytes = segment.size ();
+  }
+
+  /**
+   * Apply the records of one segment that come after the checkpoint.
+   * Sequence numbers must run on without gaps from one record to the
+   * next, and the first must not leave a gap after the checkpoint.
+   *
+   * @return Offset just past the last whole, intact record
+   */
+  private long replay (Path file, long checkpointLsn) throws IOException {
+    long offset = 0;
+    byte[] header = new byte[RECORD_HEADER];
+    CRC32 crc = new CRC32 ();
+    try (InputStream in = new BufferedInputStream (Files.newInputStream (file), 1 << 16)){
+      while (true){
+        if (readFully (in, header, header.length) < header.length)
+          return offset;
+        ByteBuffer h = ByteBuffer.wrap (header);
+        int length = h.getInt ();
+        int sum = h.getInt ();
+        if (length < BODY_HEADER || length > MAX_BODY)
+          return offset;
+        byte[] body = new byte[length];
+        if (readFully (in, body, length) < length)
+          return offset;
+        crc.reset ();
+        crc.update (body, 0, length);
+        if ((int) crc.getValue () != sum)
+          return offset;
+
+        DataInputStream data = new DataInputStream (new ByteArrayInputStream (body));
+        long lsn = data.readLong ();
+        byte op = data.readByte ();
+        if (lastLsn == 0 ? lsn > checkpointLsn + 1 : lsn != lastLsn + 1)
+          throw new StreamCorruptedException ("Record " + lsn + " in " + file + " does not follow "
+                                              + (lastLsn == 0 ? "checkpoint " + checkpointLsn : "record " + lastLsn));
+        if (op != INSERT && op != REMOVE)
+          throw new StreamCorruptedException ("Bad op " + op + " in record " + lsn);
+        T x = codec.read (data, length - BODY_HEADER);
+        if (lsn > checkpointLsn){
+          if (op == INSERT)
+            tree.insert (x);
+          else
+            tree.remove (x);
+        }
+        lastLsn = lsn;
+        offset += RECORD_HEADER + length;
+      }
+    }
+  }
+
+  private static int readFully (InputStream in, byte[] b, int len) throws IOException {
+    int n = 0;
+    while (n < len){
+      int r = in.read (b, n, len - n);
+      if (r < 0)
+        break;
+      n += r;
+    }
+    return n;
+  }
+
+  /**
+   * Write every buffered record and close the log. Further updates throw
+   * IllegalStateException.
+   *
+   * @throws IOException if the remaining records cannot be written
+   */
+  @Override
+  public void close () throws IOException {
+    long lsn;
+    synchronized (lock){
+      if (closed)
+        return;
+      closed = true;
+      lsn = failure == null ? lastLsn : 0;
+    }
+    try {
+      awaitDurable (lsn);
+    }
+    finally {
+      synchronized (lock){
+        boolean interrupted = false;
+        while (checkpointing || writing){
+          try {
+            lock.wait ();
+          }
+          catch (InterruptedException e){
+            interrupted = true;
+          }
+        }
+        segment.close ();
+        if (interrupted)
+          Thread.currentThread ().interrupt ();
+      }
+    }
+  }
+
+  /**
+   * Buffer of encoded records, in the on-disk format.
+   */
+  private static final class LogBuffer extends ByteArrayOutputStream {
+    private final DataOutputStream data = new DataOutputStream (this);
+    private final CRC32 crc = new CRC32 ();
+
+    LogBuffer (){
+      super (4096);
+    }
+
+    <T> void append (long lsn, byte op, T x, ElementCodec<T> codec) throws IOException {
+      int start = count;
+      data.writeLong (0);
+      data.writeLong (lsn);
+      data.writeByte (op);
+      codec.write (x, data);
+
+      int length = count - start - RECORD_HEADER;
+      crc.reset ();
+      crc.update (buf, start + RECORD_HEADER, length);
+      ByteBuffer h = ByteBuffer.wrap (buf, start, RECORD_HEADER);
+      h.putInt (length);
+      h.putInt ((int) crc.getValue ());
+    }
+
+    void truncate (int size){
+      count = size;
+    }
+
+    void writeTo (WritableByteChannel ch) throws IOException {
+      ByteBuffer b = ByteBuffer.wrap (buf, 0, count);
+      while (b.hasRemaining ())
+        ch.write (b);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package justinethier;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts tree elements to and from bytes for AvlTreeCodec.
+ *
+ * The codec only has to write the element itself. The tree codec frames
+ * every element with its length, so read is told how many bytes the
+ * element occupies and sees exactly the bytes that write produced.
+ */
+interface ElementCodec<T> {
+
+  /**
+   * Write one element.
+   *
+   * @param value Element to encode
+   * @param out   Destination
+   * @throws IOException if the destination fails
+   */
+  void write (T value, DataOutput out) throws IOException;
+
+  /**
+   * Read one element written by write.
+   *
+   * @param in     Source, positioned at the start of the element
+   * @param length Number of bytes the element occupies
+   * @return Decoded element
+   * @throws IOException if the source fails or is malformed
+   */
+  T read (DataInput in, int length) throws IOException;
+
+  /**
+   * Four-byte big-endian ints.
+   */
+  ElementCodec<Integer> INTEGER = new ElementCodec<Integer> (){
+    @Override
+    public void write (Integer value, DataOutput out) throws IOException {
+      out.writeInt (value);
+    }
+
+    @Override
+    public Integer read (DataInput in, int length) throws IOException {
+      return in.readInt ();
+    }
+  };
+
+  /**
+   * Eight-byte big-endian longs.
+   */
+  ElementCodec<Long> LONG = new ElementCodec<Long> (){
+    @Override
+    public void write (Long value, DataOutput out) throws IOException {
+      out.writeLong (value);
+    }
+
+    @Override
+    public Long read (DataInput in, int length) throws IOException {
+      return in.readLong ();
+    }
+  };
+
+  /**
+   * UTF-8 bytes, with no length of their own since the frame has one.
+   * Unlike DataOutput.writeUTF this has no 64K limit.
+   */
+  ElementCodec<String> STRING = new ElementCodec<String> (){
+    @Override
+    public void write (String value, DataOutput out) throws IOException {
+      out.write (value.getBytes (StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String read (DataInput in, int length) throws IOException {
+      byte[] bytes = new byte[length];
+      in.readFully (bytes);
+      return new String (bytes, StandardCharsets.UTF_8);
+    }
+  };
+}
@@ -0,0 +1,100 @@
+package justinethier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts tree elements to and from a fixed number of bytes at a given
+ * offset of a buffer, for MappedAvlTree.
+ *
+ * All access is absolute, so the buffer's position is never touched and
+ * one mapped buffer can be shared by any number of reading threads.
+ */
+interface FixedWidthCodec<T extends Comparable<? super T>> {
+
+  /**
+   * @return Number of bytes every element occupies
+   */
+  int width ();
+
+  /**
+   * Store an element.
+   *
+   * @param buf    Destination
+   * @param offset Position of the first byte
+   * @param value  Element to store
+   */
+  void put (ByteBuffer buf, int offset, T value);
+
+  /**
+   * Load an element.
+   *
+   * @param buf    Source
+   * @param offset Position of the first byte
+   * @return The element
+   */
+  T get (ByteBuffer buf, int offset);
+
+  /**
+   * Compare a stored element with a key. Codecs should override this to
+   * compare in place, so searches do not create an element per node.
+   *
+   * @param buf    Source
+   * @param offset Position of the stored element
+   * @param key    Key to compare against
+   * @return Negative, zero or positive as the stored element is less
+   *         than, equal to or greater than the key
+   */
+  default int compare (ByteBuffer buf, int offset, T key){
+    return get (buf, offset).compareTo (key);
+  }
+
+  /**
+   * Four-byte ints.
+   */
+  FixedWidthCodec<Integer> INTEGER = new FixedWidthCodec<Integer> (){
+    @Override
+    public int width (){
+      return 4;
+    }
+
+    @Override
+    public void put (ByteBuffer buf, int offset, Integer value){
+      buf.putInt (offset, value);
+    }
+
+    @Override
+    public Integer get (ByteBuffer buf, int offset){
+      return buf.getInt (offset);
+    }
+
+    @Override
+    public int compare (ByteBuffer buf, int offset, Integer key){
+      return Integer.compare (buf.getInt (offset), key);
+    }
+  };
+
+  /**
+   * Eight-byte longs.
+   */
+  FixedWidthCodec<Long> LONG = new FixedWidthCodec<Long> (){
+    @Override
+    public int width (){
+      return 8;
+    }
+
+    @Override
+    public void put (ByteBuffer buf, int offset, Long value){
+      buf.putLong (offset, value);
+    }
+
+    @Override
+    public Long get (ByteBuffer buf, int offset){
+      return buf.getLong (offset);
+    }
+
+    @Override
+    public int compare (ByteBuffer buf, int offset, Long key){
+      return Long.compare (buf.getLong (offset), key);
+    }
+  };
+}
@@ -0,0 +1,15 @@
+package justinethier;
+
+/**
+ * Outcome of inserting an element into a tree.
+ */
+enum InsertResult {
+  /** The element was not present and has been added. */
+  INSERTED,
+
+  /** An equal element was already present; the tree is unchanged. */
+  ALREADY_PRESENT,
+
+  /** An equal element was present and has been replaced by the new one. */
+  REPLACED
+}
@@ -0,0 +1,644 @@
+package justinethier;
+
+import java.lang.StringBuilder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * AVL tree of int keys whose nodes are sorted blocks of keys rather than
+ * single keys.
+ *
+ * Each node holds up to blockSize keys in a sorted array, and the tree
+ * orders the blocks by their key ranges, so it has about blockSize / 2
+ * times fewer nodes than IntAvlTree and is log2 of that less deep. A
+ * lookup follows a handful of pointers and finishes with a binary search
+ * inside one array; a range scan reads whole arrays in order.
+ *
+ * A full block splits in half when a key is added to it, except that a
+ * key beyond either end of the whole tree starts a new block, so keys
+ * arriving in order fill their blocks completely. A block that drops
+ * below a quarter full is merged with a neighbouring block when the two
+ * fit in one, and otherwise takes keys from it.
+ */
+class IntBlockAvlTree {
+  /**
+   * Tree node holding a sorted block of keys.
+   */
+  protected static class Block {
+
+    /**
+     * Keys of the block, sorted, in the first count slots
+     */
+    protected final int[] keys;
+
+    /**
+     * Number of keys in the block; never zero in a non-empty tree
+     */
+    protected int      count;
+
+    /**
+     * Copies of the first and last keys, so that a descent only touches
+     * the keys array of the block it ends in
+     */
+    protected int      min, max;
+
+    /**
+     * Left child; its keys are all below this block's
+     */
+    protected Block    left;
+
+    /**
+     * Right child; its keys are all above this block's
+     */
+    protected Block    right;
+
+    /**
+     * Height of node
+     */
+    protected int      height;
+
+    /**
+     * Constructor; creates an empty block without any children
+     *
+     * @param capacity Maximum number of keys
+     */
+    public Block (int capacity){
+      keys = new int[capacity];
+    }
+
+    void updateBounds (){
+      if (count > 0){
+        min = keys[0];
+        max = keys[count - 1];
+      }
+    }
+  }
+
+  static final int DEFAULT_BLOCK_SIZE = 64;
+
+  public Block root;
+
+  /**
+   * Maximum number of keys per block.
+   */
+  private final int blockSize;
+
+  /**
+   * Number of keys in the tree.
+   */
+  private int size;
+
+  /**
+   * Number of blocks in the tree.
+   */
+  private int blocks;
+
+  /**
+   * Scratch space for the root-to-leaf path walked by updates.
+   */
+  private Block[] path;
+
+  /**
+   * Creates an empty tree with blocks of DEFAULT_BLOCK_SIZE keys.
+   */
+  public IntBlockAvlTree (){
+    this (DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Creates an empty tree with blocks of the given size. 32 to 128 keys
+   * keep a block within a few cache lines to a few pages of them.
+   *
+   * @param blockSize Maximum number of keys per block
+   * @throws IllegalArgumentException if blockSize is less than 4
+   */
+  public IntBlockAvlTree (int blockSize){
+    if (blockSize < 4)
+      throw new IllegalArgumentException ("Block size must be at least 4: " + blockSize);
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Determine the height of the given node.
+   *
+   * @param t Node
+   * @return Height of the given node.
+   */
+  public int height (Block t){
+    return t == null ? -1 : t.height;
+  }
+
+  /**
+   * @return Number of keys in the tree
+   */
+  public int size (){
+    return size;
+  }
+
+  /**
+   * @return Number of blocks in the tree
+   */
+  public int blockCount (){
+    return blocks;
+  }
+
+  /**
+   * @return Maximum number of keys per block
+   */
+  public int blockSize (){
+    return blockSize;
+  }
+
+  /**
+   * Insert a key into the tree.
+   *
+   * @param x Key to insert into the tree
+   * @return True - Success, the key was added.
+   *         False - the key was a duplicate.
+   */
+  public boolean insert (int x){
+    if (root == null){
+      root = newBlock ();
+      root.keys[0] = x;
+      root.count = 1;
+      root.updateBounds ();
+      size = 1;
+      return true;
+    }
+
+    // Find the block whose range x falls in, or the block at the end of
+    // the gap it falls in, noting whether any block lies beyond it
+    Block[] path = pathFor (root);
+    int depth = 0;
+    boolean hasSuccessor = false, hasPredecessor = false;
+    Block t = root;
+    while (true){
+      if (x < t.min && t.left != null){
+        path[depth++] = t;
+        hasSuccessor = true;
+        t = t.left;
+      }
+      else if (x > t.max && t.right != null){
+        path[depth++] = t;
+        hasPredecessor = true;
+        t = t.right;
+      }
+      else {
+        break;
+      }
+    }
+
+    int i = Arrays.binarySearch (t.keys, 0, t.count, x);
+    if (i >= 0){
+      clearPath (path, depth);
+      return false;
+    }
+    i = -i - 1;
+    size++;
+
+    if (t.count < blockSize){
+      insertAt (t, i, x);
+      clearPath (path, depth);
+      return true;
+    }
+
+    Block b = newBlock ();
+    path[depth++] = t;
+    if (i == blockSize && !hasSuccessor && t.right == null){
+      // Past the largest key: start a new block instead of splitting
+      b.keys[0] = x;
+      b.count = 1;
+      b.updateBounds ();
+      t.right = b;
+    }
+    else if (i == 0 && !hasPredecessor && t.left == null){
+      b.keys[0] = x;
+      b.count = 1;
+      b.updateBounds ();
+      t.left = b;
+    }
+    else {
+      // Move the upper half into a new block hung as t's successor
+      int half = blockSize / 2;
+      System.arraycopy (t.keys, half, b.keys, 0, blockSize - half);
+      b.count = blockSize - half;
+      t.count = half;
+      b.updateBounds ();
+      t.updateBounds ();
+      if (i <= half)
+        insertAt (t, i, x);
+      else
+        insertAt (b, i - half, x);
+
+      if (t.right == null){
+        t.right = b;
+      }
+      else {
+        Block s = t.right;
+        path[depth++] = s;
+        while (s.left != null){
+          s = s.left;
+          path[depth++] = s;
+        }
+        s.left = b;
+      }
+    }
+    rebalancePath (path, depth);
+    return true;
+  }
+
+  /**
+   * Remove a key from the tree. Nothing is done if x is not found.
+   *
+   * @param x Key to remove
+   * @return True if the key was found and removed
+   */
+  public boolean remove (int x){
+    Block[] path = pathFor (root);
+    int depth = 0;
+    int successor = -1, predecessor = -1;
+    Block t = root;
+
+    while (t != null){
+      if (x < t.min){
+        path[depth++] = t;
+        successor = depth - 1;
+        t = t.left;
+      }
+      else if (x > t.max){
+        path[depth++] = t;
+        predecessor = depth - 1;
+        t = t.right;
+      }
+      else {
+        break;
+      }
+    }
+    int i = t == null ? -1 : Arrays.binarySearch (t.keys, 0, t.count, x);
+    if (i < 0){
+      clearPath (path, depth);
+      return false;
+    }
+
+    System.arraycopy (t.keys, i + 1, t.keys, i, t.count - i - 1);
+    t.count--;
+    t.updateBounds ();
+    size--;
+
+    if (t.count < blockSize / 4)
+      refill (t, path, depth, successor, predecessor);
+    else
+      clearPath (path, depth);
+    return true;
+  }
+
+  /**
+   * Merge an underfull block with a neighbour, or move keys over from
+   * the neighbour if the two do not fit in one block. The successor is
+   * preferred; when it is the nearer ancestor, t has no right child and
+   * is unlinked itself, and otherwise the successor is a leftmost node
+   * below t and is unlinked instead. The predecessor is handled the same
+   * way with the sides swapped.
+   *
+   * @param t           Block that has become underfull
+   * @param path        Ancestors of t, from the root down
+   * @param depth       Number of ancestors
+   * @param successor   Position on the path of the ancestor holding the
+   *                    next block, or -1
+   * @param predecessor Position on the path of the ancestor holding the
+   *                    previous block, or -1
+   */
+  private void refill (Block t, Block[] path, int depth, int successor, int predecessor){
+    if (t.right != null){
+      path[depth++] = t;
+      Block s = t.right;
+      while (s.left != null){
+        path[depth++] = s;
+        s = s.left;
+      }
+      if (t.count + s.count <= blockSize){
+        moveFront (s, t, s.count);
+        replaceChild (path[depth - 1], s, s.right);
+        blocks--;
+        rebalancePath (path, depth);
+        return;
+      }
+      moveFront (s, t, (s.count - t.count) / 2);
+    }
+    else if (successor >= 0){
+      Block s = path[successor];
+      if (t.count + s.count <= blockSize){
+        moveBack (t, s, t.count);
+        replaceChild (path[depth - 1], t, t.left);
+        blocks--;
+        rebalancePath (path, depth);
+        return;
+      }
+      moveFront (s, t, (s.count - t.count) / 2);
+    }
+    else if (t.left != null){
+      path[depth++] = t;
+      Block p = t.left;
+      while (p.right != null){
+        path[depth++] = p;
+        p = p.right;
+      }
+      if (t.count + p.count <= blockSize){
+        moveBack (p, t, p.count);
+        replaceChild (path[depth - 1], p, p.left);
+        blocks--;
+        rebalancePath (path, depth);
+        return;
+      }
+      moveBack (p, t, (p.count - t.count) / 2);
+    }
+    else if (predecessor >= 0){
+      Block p = path[predecessor];
+      if (t.count + p.count <= blockSize){
+        moveFront (t, p, t.count);
+        replaceChild (path[depth - 1], t, t.right);
+        blocks--;
+        rebalancePath (path, depth);
+        return;
+      }
+      moveBack (p, t, (p.count - t.count) / 2);
+    }
+    else if (t.count == 0){
+      // t was the only block
+      root = null;
+      blocks = 0;
+    }
+    clearPath (path, depth);
+  }
+
+  /**
+   * Move the n smallest keys of a block to the end of the block before it.
+   */
+  private static void moveFront (Block from, Block to, int n){
+    System.arraycopy (from.keys, 0, to.keys, to.count, n);
+    to.count += n;
+    System.arraycopy (from.keys, n, from.keys, 0, from.count - n);
+    from.count -= n;
+    from.updateBounds ();
+    to.updateBounds ();
+  }
+
+  /**
+   * Move the n largest keys of a block to the front of the block after it.
+   */
+  private static void moveBack (Block from, Block to, int n){
+    System.arraycopy (to.keys, 0, to.keys, n, to.count);
+    System.arraycopy (from.keys, from.count - n, to.keys, 0, n);
+    to.count += n;
+    from.count -= n;
+    from.updateBounds ();
+    to.updateBounds ();
+  }
+
+  private static void insertAt (Block b, int i, int x){
+    System.arraycopy (b.keys, i, b.keys, i + 1, b.count - i);
+    b.keys[i] = x;
+    b.count++;
+    b.updateBounds ();
+  }
+
+  private void replaceChild (Block parent, Block child, Block replacement){
+    if (parent.left == child)
+      parent.left = replacement;
+    else
+      parent.right = replacement;
+  }
+
+  private Block newBlock (){
+    blocks++;
+    return new Block (blockSize);
+  }
+
+  /**
+   * Search for a key within the tree.
+   *
+   * @param x Key to find
+   * @return True if the key is found, false otherwise
+   */
+  public boolean contains (int x){
+    Block t = root;
+    while (t != null){
+      if (x < t.min)
+        t = t.left;
+      else if (x > t.max)
+        t = t.right;
+      else
+        return Arrays.binarySearch (t.keys, 0, t.count, x) >= 0;
+    }
+    return false;
+  }
+
+  /**
+   * Find the smallest key in the tree.
+   *
+   * @return smallest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public int findMin (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    Block t = root;
+    while (t.left != null)
+      t = t.left;
+    return t.min;
+  }
+
+  /**
+   * Find the largest key in the tree.
+   *
+   * @return largest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public int findMax (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    Block t = root;
+    while (t.right != null)
+      t = t.right;
+    return t.max;
+  }
+
+  /**
+   * Pass every key from lo to hi, both inclusive, to an action in
+   * ascending order. Whole blocks inside the range are read straight
+   * through.
+   *
+   * @param lo     Smallest key to visit
+   * @param hi     Largest key to visit
+   * @param action Called with each key
+   */
+  public void forEachInRange (int lo, int hi, IntConsumer action){
+    forEachInRange (root, lo, hi, action);
+  }
+
+  private static void forEachInRange (Block t, int lo, int hi, IntConsumer action){
+    if (t == null)
+      return;
+    if (lo < t.min)
+      forEachInRange (t.left, lo, hi, action);
+    if (lo <= t.max && hi >= t.min){
+      int i = lo <= t.min ? 0 : Arrays.binarySearch (t.keys, 0, t.count, lo);
+      if (i < 0)
+        i = -i - 1;
+      int[] keys = t.keys;
+      for (int n = t.count; i < n && keys[i] <= hi; i++)
+        action.accept (keys[i]);
+    }
+    if (hi > t.max)
+      forEachInRange (t.right, lo, hi, action);
+  }
+
+  /**
+   * @return Every key in the tree, in ascending order
+   */
+  public int[] toArray (){
+    int[] a = new int[size];
+    copyInOrder (root, a, 0);
+    return a;
+  }
+
+  private static int copyInOrder (Block t, int[] a, int i){
+    if (t == null)
+      return i;
+    i = copyInOrder (t.left, a, i);
+    System.arraycopy (t.keys, 0, a, i, t.count);
+    return copyInOrder (t.right, a, i + t.count);
+  }
+
+  /**
+   * Deletes all nodes from the tree.
+   */
+  public void makeEmpty (){
+    root = null;
+    size = 0;
+    blocks = 0;
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree is empty
+   */
+  public boolean isEmpty (){
+    return (root == null);
+  }
+
+  /**
+   * Serialize the tree to a string using an infix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializeInfix (){
+    StringBuilder str = new StringBuilder ();
+    forEachInRange (Integer.MIN_VALUE, Integer.MAX_VALUE, x -> str.append (x).append (' '));
+    return str.toString ();
+  }
+
+  private Block[] pathFor (Block t){
+    int needed = height (t) + 2;
+    if (path == null || path.length < needed)
+      path = new Block[Math.max (needed, 32)];
+    return path;
+  }
+
+  private static void clearPath (Block[] path, int depth){
+    while (--depth >= 0)
+      path[depth] = null;
+  }
+
+  /**
+   * Rebalance every node on a path from the bottom up, stopping once a
+   * subtree keeps its previous height.
+   */
+  private void rebalancePath (Block[] path, int depth){
+    int i = depth - 1;
+    for (; i >= 0; i--){
+      Block t = path[i];
+      path[i] = null;
+
+      int oldHeight = t.height;
+      Block r = balance (t);
+
+      if (i == 0)
+        root = r;
+      else if (path[i - 1].left == t)
+        path[i - 1].left = r;
+      else
+        path[i - 1].right = r;
+
+      if (r.height == oldHeight)
+        break;
+    }
+    clearPath (path, i);
+  }
+
+  /**
+   * Restore the AVL property at a node and recompute its height.
+   *
+   * @param t Node to balance
+   * @return New root of the subtree
+   */
+  protected Block balance (Block t){
+    int lh = height (t.left);
+    int rh = height (t.right);
+
+    if (lh - rh == 2){
+      if (height (t.left.left) < height (t.left.right))
+        t.left = rotateWithRightChild (t.left);
+      t = rotateWithLeftChild (t);
+    }
+    else if (rh - lh == 2){
+      if (height (t.right.right) < height (t.right.left))
+        t.right = rotateWithLeftChild (t.right);
+      t = rotateWithRightChild (t);
+    }
+    else {
+      t.height = Math.max (lh, rh) + 1;
+    }
+    return t;
+  }
+
+  /**
+   * Rotate binary tree node with left child.
+   *
+   * @param k2 Root of tree we are rotating
+   * @return New root
+   */
+  protected Block rotateWithLeftChild (Block k2){
+    Block k1 = k2.left;
+
+    k2.left = k1.right;
+    k1.right = k2;
+
+    k2.height = Math.max (height (k2.left), height (k2.right)) + 1;
+    k1.height = Math.max (height (k1.left), k2.height) + 1;
+
+    return (k1);
+  }
+
+  /**
+   * Rotate binary tree node with right child.
+   *
+   * @param k1 Root of tree we are rotating.
+   * @return New root
+   */
+  protected Block rotateWithRightChild (Block k1){
+    Block k2 = k1.right;
+
+    k1.right = k2.left;
+    k2.left = k1;
+
+    k1.height = Math.max (height (k1.left), height (k1.right)) + 1;
+    k2.height = Math.max (height (k2.right), k1.height) + 1;
+
+    return (k2);
+  }
+}
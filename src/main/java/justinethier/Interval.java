@@ -0,0 +1,77 @@
+package justinethier;
+
+/**
+ * Closed interval [low, high] over some ordered point type, such as a
+ * time range.
+ *
+ * Intervals are ordered by low end, then by high end. A subclass that
+ * carries data must extend compareTo to tell apart intervals with the
+ * same ends, or an IntervalTree will keep only one of them.
+ *
+ * @param <P> Point type
+ */
+class Interval<P extends Comparable<? super P>> implements Comparable<Interval<P>> {
+
+  /**
+   * Low end, inclusive
+   */
+  public final P low;
+
+  /**
+   * High end, inclusive
+   */
+  public final P high;
+
+  /**
+   * @param low  Low end, inclusive
+   * @param high High end, inclusive
+   * @throws IllegalArgumentException if low is after high
+   */
+  public Interval (P low, P high){
+    if (low.compareTo (high) > 0)
+      throw new IllegalArgumentException ("low > high: [" + low + ", " + high + "]");
+    this.low = low;
+    this.high = high;
+  }
+
+  /**
+   * @param point A point
+   * @return True if the point lies within the interval
+   */
+  public boolean contains (P point){
+    return low.compareTo (point) <= 0 && point.compareTo (high) <= 0;
+  }
+
+  /**
+   * @param from Low end of another interval, inclusive
+   * @param to   High end of another interval, inclusive
+   * @return True if the two intervals share at least one point
+   */
+  public boolean overlaps (P from, P to){
+    return low.compareTo (to) <= 0 && from.compareTo (high) <= 0;
+  }
+
+  @Override
+  public int compareTo (Interval<P> o){
+    int cmp = low.compareTo (o.low);
+    return cmp != 0 ? cmp : high.compareTo (o.high);
+  }
+
+  @Override
+  public boolean equals (Object o){
+    if (!(o instanceof Interval))
+      return false;
+    Interval<?> i = (Interval<?>) o;
+    return low.equals (i.low) && high.equals (i.high);
+  }
+
+  @Override
+  public int hashCode (){
+    return 31 * low.hashCode () + high.hashCode ();
+  }
+
+  @Override
+  public String toString (){
+    return "[" + low + ", " + high + "]";
+  }
+}
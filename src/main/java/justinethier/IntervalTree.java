@@ -0,0 +1,227 @@
+package justinethier;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Interval tree: an AVL tree of intervals ordered by low end, in which
+ * every node also records the greatest high end in its subtree.
+ *
+ * The maximum is recomputed by update, so the AVL rotations and every
+ * other restructuring keep it correct. It lets queries skip any subtree
+ * whose intervals all end before the query starts, while the ordering
+ * by low end cuts off everything that starts after the query ends.
+ *
+ * @param <P> Point type
+ */
+class IntervalTree<P extends Comparable<? super P>> extends AvlTree<Interval<P>> {
+
+  /**
+   * Node that also holds the greatest high end in its subtree.
+   */
+  protected static class IntervalNode<P extends Comparable<? super P>> extends AvlNode<Interval<P>> {
+
+    /**
+     * Greatest high end of the intervals in the subtree rooted here
+     */
+    protected P maxHigh;
+
+    public IntervalNode (Interval<P> theElement, AvlNode<Interval<P>> lt, AvlNode<Interval<P>> rt){
+      super (theElement, lt, rt);
+      maxHigh = theElement.high;
+    }
+  }
+
+  @Override
+  protected AvlNode<Interval<P>> newNode (Interval<P> x, AvlNode<Interval<P>> lt, AvlNode<Interval<P>> rt){
+    return new IntervalNode<P> (x, lt, rt);
+  }
+
+  @Override
+  protected AvlTree<Interval<P>> newEmptyTree (){
+    return new IntervalTree<P> ();
+  }
+
+  @Override
+  protected void update (AvlNode<Interval<P>> t){
+    super.update (t);
+    P m = t.element.high;
+    m = later (m, t.left);
+    m = later (m, t.right);
+    ((IntervalNode<P>) t).maxHigh = m;
+  }
+
+  private P later (P p, AvlNode<Interval<P>> t){
+    if (t == null)
+      return p;
+    P q = maxHigh (t);
+    return q.compareTo (p) > 0 ? q : p;
+  }
+
+  private static <P extends Comparable<? super P>> P maxHigh (AvlNode<Interval<P>> t){
+    return ((IntervalNode<P>) t).maxHigh;
+  }
+
+  /**
+   * Insert the interval [low, high].
+   *
+   * @param low  Low end, inclusive
+   * @param high High end, inclusive
+   * @return True if the interval was added, false if it was already there
+   */
+  public boolean insert (P low, P high){
+    return insert (new Interval<P> (low, high));
+  }
+
+  /**
+   * Remove the interval [low, high].
+   *
+   * @param low  Low end, inclusive
+   * @param high High end, inclusive
+   * @return True if the interval was found and removed
+   */
+  public boolean remove (P low, P high){
+    return remove (new Interval<P> (low, high));
+  }
+
+  /**
+   * @return Greatest high end of any interval, or null if the tree is
+   *         empty
+   */
+  public P maxHigh (){
+    return root == null ? null : maxHigh (root);
+  }
+
+  /**
+   * Find some interval overlapping [from, to], in O(log n).
+   *
+   * @param from Low end of the query, inclusive
+   * @param to   High end of the query, inclusive
+   * @return An overlapping interval, or null if there is none
+   */
+  public Interval<P> findOverlapping (P from, P to){
+    AvlNode<Interval<P>> t = root;
+    while (t != null){
+      if (t.element.overlaps (from, to))
+        return t.element;
+      // If the left subtree reaches from at all, it holds an overlap
+      // unless every interval there starts after to, and then so does
+      // every interval on the right
+      if (t.left != null && maxHigh (t.left).compareTo (from) >= 0)
+        t = t.left;
+      else
+        t = t.right;
+    }
+    return null;
+  }
+
+  /**
+   * Iterate lazily, in ascending order, over the intervals that contain
+   * a point.
+   *
+   * @param point Point to stab with
+   * @return Iterator over the intervals containing point
+   */
+  public Iterator<Interval<P>> stabbing (P point){
+    return overlapping (point, point);
+  }
+
+  /**
+   * Iterate lazily, in ascending order, over the intervals that overlap
+   * [from, to].
+   *
+   * The walk keeps its place on an explicit stack, so every node is
+   * visited at most once over the whole iteration, and each step does
+   * only the work needed to find the next match: subtrees ending before
+   * from are skipped whole, and the walk stops at the first interval
+   * starting after to. The first match costs O(log n). Every interval
+   * starting within [from, to] overlaps, so each of those costs amortized
+   * O(1); the k matches starting before from are reached through
+   * ancestors that need not overlap, O(k log(n/k)) in all. The iterator
+   * is fail-fast.
+   *
+   * @param from Low end of the query, inclusive
+   * @param to   High end of the query, inclusive
+   * @return Iterator over the overlapping intervals
+   * @throws IllegalArgumentException if from is after to
+   */
+  public Iterator<Interval<P>> overlapping (P from, P to){
+    if (from.compareTo (to) > 0)
+      throw new IllegalArgumentException ("from > to");
+    return new OverlapIterator (from, to);
+  }
+
+  /**
+   * In-order walk that prunes by maxHigh and stops past the query.
+   *
+   * The stack holds nodes whose element is still to be examined and whose
+   * right subtree has not been entered, as in AvlTree's iterator.
+   */
+  private final class OverlapIterator implements Iterator<Interval<P>> {
+    private final P from, to;
+    private final int expectedModCount;
+    private AvlNode<Interval<P>>[] stack;
+    private int depth;
+    private Interval<P> next;
+
+    @SuppressWarnings("unchecked")
+    OverlapIterator (P from, P to){
+      this.from = from;
+      this.to = to;
+      this.expectedModCount = modificationCount ();
+      stack = (AvlNode<Interval<P>>[]) new AvlNode[max (height (root) + 1, 1)];
+      pushLeft (root);
+      advance ();
+    }
+
+    /**
+     * Push the left spine of a subtree, leaving out any part that ends
+     * before from.
+     */
+    private void pushLeft (AvlNode<Interval<P>> t){
+      while (t != null && maxHigh (t).compareTo (from) >= 0){
+        stack[depth++] = t;
+        t = t.left;
+      }
+    }
+
+    /**
+     * Find the next overlapping interval, or set next to null.
+     */
+    private void advance (){
+      next = null;
+      while (depth > 0){
+        AvlNode<Interval<P>> t = stack[--depth];
+        stack[depth] = null;
+        if (t.element.low.compareTo (to) > 0){
+          // Everything still to come starts even later
+          while (depth > 0)
+            stack[--depth] = null;
+          return;
+        }
+        pushLeft (t.right);
+        if (t.element.high.compareTo (from) >= 0){
+          next = t.element;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext (){
+      return next != null;
+    }
+
+    @Override
+    public Interval<P> next (){
+      if (modificationCount () != expectedModCount)
+        throw new ConcurrentModificationException ();
+      if (next == null)
+        throw new NoSuchElementException ();
+      Interval<P> x = next;
+      advance ();
+      return x;
+    }
+  }
+}
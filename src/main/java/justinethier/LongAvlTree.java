@@ -0,0 +1,354 @@
+package justinethier;
+
+import java.lang.StringBuilder;
+import java.util.NoSuchElementException;
+
+/**
+ * AVL tree of primitive long keys.
+ *
+ * Same operations and balancing as AvlTree, but nodes hold the key
+ * directly, so nothing is boxed and comparisons are plain long
+ * compares instead of calls through Comparable. Lookups do not allocate.
+ */
+class LongAvlTree {
+  /**
+   * Tree node holding a single long key.
+   */
+  protected static class LongNode {
+
+    /**
+     * Node key
+     */
+    protected long     key;
+
+    /**
+     * Left child
+     */
+    protected LongNode left;
+
+    /**
+     * Right child
+     */
+    protected LongNode right;
+
+    /**
+     * Height of node
+     */
+    protected int      height;
+
+    /**
+     * Constructor; creates a node without any children
+     *
+     * @param theKey  The key contained in this node
+     */
+    public LongNode (long theKey){
+      key = theKey;
+    }
+  }
+
+  public LongNode root;
+
+  /**
+   * Scratch space for the root-to-leaf path walked by updates.
+   */
+  private LongNode[] path;
+
+  /**
+   * Determine the height of the given node.
+   *
+   * @param t Node
+   * @return Height of the given node.
+   */
+  public int height (LongNode t){
+    return t == null ? -1 : t.height;
+  }
+
+  /**
+   * Insert a key into the tree.
+   *
+   * @param x Key to insert into the tree
+   * @return True - Success, the key was added.
+   *         False - the key was a duplicate.
+   */
+  public boolean insert (long x){
+    if (root == null){
+      root = new LongNode (x);
+      return true;
+    }
+
+    LongNode[] path = pathFor (root);
+    int depth = 0;
+    LongNode t = root;
+
+    while (true){
+      if (x == t.key)
+        return false;
+      path[depth++] = t;
+
+      LongNode next = x < t.key ? t.left : t.right;
+      if (next == null)
+        break;
+      t = next;
+    }
+
+    if (x < t.key)
+      t.left = new LongNode (x);
+    else
+      t.right = new LongNode (x);
+
+    rebalancePath (path, depth);
+    return true;
+  }
+
+  /**
+   * Remove a key from the tree. Nothing is done if x is not found.
+   *
+   * @param x Key to remove
+   * @return True if the key was found and removed
+   */
+  public boolean remove (long x){
+    LongNode[] path = pathFor (root);
+    int depth = 0;
+    LongNode t = root;
+
+    while (t != null && x != t.key){
+      path[depth++] = t;
+      t = x < t.key ? t.left : t.right;
+    }
+    if (t == null){
+      clearPath (path, depth);
+      return false;
+    }
+
+    LongNode replacement;
+    if (t.left != null && t.right != null){
+      // Pull the successor's key up into t, then unlink the successor
+      path[depth++] = t;
+      LongNode s = t.right;
+      while (s.left != null){
+        path[depth++] = s;
+        s = s.left;
+      }
+      t.key = s.key;
+      t = s;
+      replacement = s.right;
+    }
+    else {
+      replacement = (t.left != null) ? t.left : t.right;
+    }
+
+    if (depth == 0)
+      root = replacement;
+    else if (path[depth - 1].left == t)
+      path[depth - 1].left = replacement;
+    else
+      path[depth - 1].right = replacement;
+
+    rebalancePath (path, depth);
+    return true;
+  }
+
+  /**
+   * Search for a key within the tree.
+   *
+   * @param x Key to find
+   * @return True if the key is found, false otherwise
+   */
+  public boolean contains (long x){
+    LongNode t = root;
+    while (t != null){
+      if (x == t.key)
+        return true;
+      t = x < t.key ? t.left : t.right;
+    }
+    return false;
+  }
+
+  /**
+   * Find the smallest key in the tree.
+   *
+   * @return smallest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public long findMin (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    LongNode t = root;
+    while (t.left != null)
+      t = t.left;
+    return t.key;
+  }
+
+  /**
+   * Find the largest key in the tree.
+   *
+   * @return largest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public long findMax (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    LongNode t = root;
+    while (t.right != null)
+      t = t.right;
+    return t.key;
+  }
+
+  /**
+   * Deletes all nodes from the tree.
+   */
+  public void makeEmpty (){
+    root = null;
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree is empty
+   */
+  public boolean isEmpty (){
+    return (root == null);
+  }
+
+  /**
+   * Serialize the tree to a string using an infix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializeInfix (){
+    StringBuilder str = new StringBuilder ();
+    serializeInfix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializeInfix (LongNode t, StringBuilder str, String sep){
+    if (t != null){
+      serializeInfix (t.left, str, sep);
+      str.append (t.key);
+      str.append (sep);
+      serializeInfix (t.right, str, sep);
+    }
+  }
+
+  /**
+   * Serialize the tree to a string using a prefix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializePrefix (){
+    StringBuilder str = new StringBuilder ();
+    serializePrefix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializePrefix (LongNode t, StringBuilder str, String sep){
+    if (t != null){
+      str.append (t.key);
+      str.append (sep);
+      serializePrefix (t.left, str, sep);
+      serializePrefix (t.right, str, sep);
+    }
+  }
+
+  private LongNode[] pathFor (LongNode t){
+    int needed = height (t) + 2;
+    if (path == null || path.length < needed)
+      path = new LongNode[Math.max (needed, 32)];
+    return path;
+  }
+
+  private static void clearPath (LongNode[] path, int depth){
+    while (--depth >= 0)
+      path[depth] = null;
+  }
+
+  /**
+   * Rebalance every node on a path from the bottom up, stopping once a
+   * subtree keeps its previous height.
+   */
+  private void rebalancePath (LongNode[] path, int depth){
+    int i = depth - 1;
+    for (; i >= 0; i--){
+      LongNode t = path[i];
+      path[i] = null;
+
+      int oldHeight = t.height;
+      LongNode r = balance (t);
+
+      if (i == 0)
+        root = r;
+      else if (path[i - 1].left == t)
+        path[i - 1].left = r;
+      else
+        path[i - 1].right = r;
+
+      if (r.height == oldHeight)
+        break;
+    }
+    clearPath (path, i);
+  }
+
+  /**
+   * Restore the AVL property at a node and recompute its height.
+   *
+   * @param t Node to balance
+   * @return New root of the subtree
+   */
+  protected LongNode balance (LongNode t){
+    int lh = height (t.left);
+    int rh = height (t.right);
+
+    if (lh - rh == 2){
+      if (height (t.left.left) < height (t.left.right))
+        t.left = rotateWithRightChild (t.left);
+      t = rotateWithLeftChild (t);
+    }
+    else if (rh - lh == 2){
+      if (height (t.right.right) < height (t.right.left))
+        t.right = rotateWithLeftChild (t.right);
+      t = rotateWithRightChild (t);
+    }
+    else {
+      t.height = Math.max (lh, rh) + 1;
+    }
+    return t;
+  }
+
+  /**
+   * Rotate binary tree node with left child.
+   *
+   * @param k2 Root of tree we are rotating
+   * @return New root
+   */
+  protected LongNode rotateWithLeftChild (LongNode k2){
+    LongNode k1 = k2.left;
+
+    k2.left = k1.right;
+    k1.right = k2;
+
+    k2.height = Math.max (height (k2.left), height (k2.right)) + 1;
+    k1.height = Math.max (height (k1.left), k2.height) + 1;
+
+    return (k1);
+  }
+
+  /**
+   * Rotate binary tree node with right child.
+   *
+   * @param k1 Root of tree we are rotating.
+   * @return New root
+   */
+  protected LongNode rotateWithRightChild (LongNode k1){
+    LongNode k2 = k1.right;
+
+    k1.right = k2.left;
+    k2.left = k1;
+
+    k1.height = Math.max (height (k1.left), height (k1.right)) + 1;
+    k2.height = Math.max (height (k2.right), k1.height) + 1;
+
+    return (k2);
+  }
+}
@@ -0,0 +1,322 @@
+package justinethier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only AvlTree image in a memory-mapped file.
+ *
+ * write exports a tree as a header followed by one fixed-width record per
+ * node, [left index][right index][element], and open maps such a file and
+ * answers queries straight from the mapped bytes: nothing is copied onto
+ * the heap, opening costs one mmap call, and every process that maps the
+ * same file shares its pages through the page cache.
+ *
+ * Records are stored in sorted order, so record i holds the element of
+ * rank i. Searches follow the child indices down the original tree shape,
+ * while findMin, findMax, select and range scans go to records directly
+ * and scan sequentially through the file.
+ *
+ * A single mapping is limited to 2GB, which bounds the image size. All
+ * reads are absolute, so one instance can be shared by any number of
+ * threads. The mapping is released when the instance is garbage collected.
+ */
+class MappedAvlTree<T extends Comparable<? super T>> implements Iterable<T> {
+
+  static final int MAGIC = 0x41564C4D;
+  static final int VERSION = 1;
+
+  /**
+   * Header: magic, version, element width, node count, root index, padded
+   * so records start on an 8-byte boundary.
+   */
+  static final int HEADER_SIZE = 24;
+
+  /**
+   * Child index of a missing child.
+   */
+  static final int NIL = -1;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final MappedByteBuffer buf;
+  private final FixedWidthCodec<T> codec;
+  private final int recordWidth;
+  private final int size;
+  private final int root;
+
+  private MappedAvlTree (MappedByteBuffer buf, FixedWidthCodec<T> codec, int size, int root){
+    this.buf = buf;
+    this.codec = codec;
+    this.recordWidth = 8 + codec.width ();
+    this.size = size;
+    this.root = root;
+  }
+
+  /**
+   * Export a tree to a file. The image is written to a temporary file
+   * beside the target and then renamed over it, so processes that have
+   * the previous image mapped keep a consistent view.
+   *
+   * @param tree  Tree to export
+   * @param codec Converts elements to bytes
+   * @param file  Destination
+   * @throws IOException if writing fails
+   * @throws IllegalArgumentException if the image would exceed 2GB, or
+   *         if the tree is ordered by a comparator; an image is searched
+   *         in natural order
+   */
+  public static <T extends Comparable<? super T>> void write (AvlTree<T> tree, FixedWidthCodec<T> codec, Path file) throws IOException {
+    if (tree.comparator () != null)
+      throw new IllegalArgumentException ("Tree is not in natural order");
+    int recordWidth = 8 + codec.width ();
+    int size = tree.size ();
+    if (HEADER_SIZE + (long) size * recordWidth > Integer.MAX_VALUE)
+      throw new IllegalArgumentException ("Tree of " + size + " elements is too large to map");
+
+    Path dir = file.toAbsolutePath ().getParent ();
+    Path tmp = Files.createTempFile (dir, file.getFileName ().toString (), ".tmp");
+    try {
+      try (FileChannel ch = FileChannel.open (tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+        writeImage (tree, codec, ch);
+        ch.force (true);
+      }
+      Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists (tmp);
+    }
+  }
+
+  private static <T extends Comparable<? super T>> void writeImage (AvlTree<T> tree, FixedWidthCodec<T> codec, FileChannel ch) throws IOException {
+    int recordWidth = 8 + codec.width ();
+    ByteBuffer out = ByteBuffer.allocate (Math.max (BUFFER_SIZE, HEADER_SIZE + recordWidth));
+
+    out.putInt (MAGIC);
+    out.putInt (VERSION);
+    out.putInt (codec.width ());
+    out.putInt (tree.size ());
+    out.putInt (tree.root == null ? NIL : AvlTree.size (tree.root.left));
+    out.position (HEADER_SIZE);
+
+    // In-order walk; a child's index follows from its subtree sizes
+    @SuppressWarnings("unchecked")
+    AvlTree.AvlNode<T>[] stack = (AvlTree.AvlNode<T>[]) new AvlTree.AvlNode[tree.height (tree.root) + 1];
+    int depth = 0;
+    int index = 0;
+    AvlTree.AvlNode<T> t = tree.root;
+
+    while (t != null || depth > 0){
+      while (t != null){
+        stack[depth++] = t;
+        t = t.left;
+      }
+      t = stack[--depth];
+
+      if (out.remaining () < recordWidth)
+        flush (out, ch);
+      int pos = out.position ();
+      out.putInt (pos, t.left == null ? NIL : index - 1 - AvlTree.size (t.left.right));
+      out.putInt (pos + 4, t.right == null ? NIL : index + 1 + AvlTree.size (t.right.left));
+      codec.put (out, pos + 8, t.element);
+      out.position (pos + recordWidth);
+
+      index++;
+      t = t.right;
+    }
+    flush (out, ch);
+  }
+
+  private static void flush (ByteBuffer out, FileChannel ch) throws IOException {
+    out.flip ();
+    while (out.hasRemaining ())
+      ch.write (out);
+    out.clear ();
+  }
+
+  /**
+   * Map an image written by write.
+   *
+   * Only the header and file length are checked; the records are trusted,
+   * so that opening stays independent of the image size.
+   *
+   * @param file  Image to map
+   * @param codec Converts bytes to elements; must match the one used to write
+   * @return The mapped tree
+   * @throws IOException if the file cannot be mapped or is not a valid image
+   */
+  public static <T extends Comparable<? super T>> MappedAvlTree<T> open (Path file, FixedWidthCodec<T> codec) throws IOException {
+    MappedByteBuffer buf;
+    try (FileChannel ch = FileChannel.open (file, StandardOpenOption.READ)){
+      long length = ch.size ();
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+        throw new IOException (file + " is not a mappable AvlTree image");
+      buf = ch.map (FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+
+    if (buf.getInt (0) != MAGIC)
+      throw new IOException (file + " is not an AvlTree image");
+    if (buf.getInt (4) != VERSION)
+      throw new IOException (file + " has unsupported version " + buf.getInt (4));
+    if (buf.getInt (8) != codec.width ())
+      throw new IOException (file + " holds " + buf.getInt (8) + "-byte elements, codec expects " + codec.width ());
+
+    int size = buf.getInt (12);
+    int root = buf.getInt (16);
+    long expected = HEADER_SIZE + (long) size * (8 + codec.width ());
+    if (size < 0 || buf.capacity () != expected)
+      throw new IOException (file + " is truncated or has trailing data");
+    if (size == 0 ? root != NIL : (root < 0 || root >= size))
+      throw new IOException (file + " has an invalid root");
+
+    return new MappedAvlTree<T> (buf, codec, size, root);
+  }
+
+  /**
+   * @return Number of elements in the tree
+   */
+  public int size (){
+    return size;
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree is empty
+   */
+  public boolean isEmpty (){
+    return size == 0;
+  }
+
+  /**
+   * Search for an element within the tree.
+   *
+   * @param x Element to find
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains (T x){
+    int i = root;
+    while (i != NIL){
+      int off = HEADER_SIZE + i * recordWidth;
+      int c = codec.compare (buf, off + 8, x);
+      if (c == 0)
+        return true;
+      i = buf.getInt (c > 0 ? off : off + 4);
+    }
+    return false;
+  }
+
+  /**
+   * Find the smallest element in the tree.
+   *
+   * @return smallest element, or null if the tree is empty
+   */
+  public T findMin (){
+    return size == 0 ? null : elementAt (0);
+  }
+
+  /**
+   * Find the largest element in the tree.
+   *
+   * @return largest element, or null if the tree is empty
+   */
+  public T findMax (){
+    return size == 0 ? null : elementAt (size - 1);
+  }
+
+  /**
+   * Find the element of a given rank.
+   *
+   * @param index Rank of the element, from 0 for the smallest
+   * @return The element
+   * @throws IndexOutOfBoundsException if index is not in [0, size ())
+   */
+  public T select (int index){
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException ("Index: " + index + ", Size: " + size);
+    return elementAt (index);
+  }
+
+  /**
+   * Iterate over all elements in ascending order.
+   *
+   * @return Iterator over the tree
+   */
+  @Override
+  public Iterator<T> iterator (){
+    return new IndexIterator (0, size);
+  }
+
+  /**
+   * Iterate in ascending order over the elements between two bounds.
+   *
+   * @param from          Lower bound
+   * @param fromInclusive True if an element equal to from is included
+   * @param to            Upper bound
+   * @param toInclusive   True if an element equal to to is included
+   * @return Iterator over the range
+   */
+  public Iterator<T> range (T from, boolean fromInclusive, T to, boolean toInclusive){
+    int lo = boundIndex (from, !fromInclusive);
+    int hi = boundIndex (to, toInclusive);
+    return new IndexIterator (lo, Math.max (lo, hi));
+  }
+
+  /**
+   * Count the elements less than x, or less than or equal to x when
+   * orEqual is set; that is the index of the first element past the bound.
+   */
+  private int boundIndex (T x, boolean orEqual){
+    int i = root;
+    int best = size;
+    while (i != NIL){
+      int off = HEADER_SIZE + i * recordWidth;
+      int c = codec.compare (buf, off + 8, x);
+      if (c > 0 || (c == 0 && !orEqual)){
+        best = i;
+        i = buf.getInt (off);
+      }
+      else {
+        i = buf.getInt (off + 4);
+      }
+    }
+    return best;
+  }
+
+  private T elementAt (int index){
+    return codec.get (buf, HEADER_SIZE + index * recordWidth + 8);
+  }
+
+  /**
+   * Iterator over a run of records.
+   */
+  private final class IndexIterator implements Iterator<T> {
+    private int next;
+    private final int end;
+
+    IndexIterator (int from, int end){
+      this.next = from;
+      this.end = end;
+    }
+
+    @Override
+    public boolean hasNext (){
+      return next < end;
+    }
+
+    @Override
+    public T next (){
+      if (next >= end)
+        throw new NoSuchElementException ();
+      return elementAt (next++);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package justinethier;
+
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Associative summary of a sequence of elements, such as a count, a sum
+ * or a maximum, that can be combined from the summaries of its parts.
+ *
+ * combine must be associative and identity must be neutral for it;
+ * combine need not be commutative, as parts are always combined in
+ * element order.
+ *
+ * @param <T> Element type
+ * @param <A> Summary type
+ */
+interface Monoid<T, A> {
+
+  /**
+   * @return Summary of no elements
+   */
+  A identity ();
+
+  /**
+   * @param x An element
+   * @return Summary of that element alone
+   */
+  A lift (T x);
+
+  /**
+   * @param a Summary of a run of elements
+   * @param b Summary of the run that follows it
+   * @return Summary of both runs together
+   */
+  A combine (A a, A b);
+
+  /**
+   * Build a monoid from its parts.
+   *
+   * @param identity Summary of no elements
+   * @param lift     Summary of one element
+   * @param combine  Associative combination of adjacent summaries
+   * @return The monoid
+   */
+  static <T, A> Monoid<T, A> of (final A identity, final Function<? super T, ? extends A> lift,
+                                 final BinaryOperator<A> combine){
+    return new Monoid<T, A> (){
+      @Override
+      public A identity (){
+        return identity;
+      }
+
+      @Override
+      public A lift (T x){
+        return lift.apply (x);
+      }
+
+      @Override
+      public A combine (A a, A b){
+        return combine.apply (a, b);
+      }
+    };
+  }
+}
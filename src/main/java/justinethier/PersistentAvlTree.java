@@ -0,0 +1,338 @@
+package justinethier;
+
+import java.lang.StringBuilder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, persistent AVL tree.
+ *
+ * Nodes are never modified after construction. insert and remove copy
+ * only the nodes on the path from the root to the change, rebalancing
+ * with freshly built nodes instead of rotating in place, and return a new
+ * tree that shares every other node with the old one. Each version is
+ * therefore a consistent snapshot that can be read by any number of
+ * threads without locking while a writer goes on producing new versions;
+ * publishing a version is a single reference write, for example to a
+ * volatile field or an AtomicReference.
+ */
+final class PersistentAvlTree<T extends Comparable<? super T>> implements Iterable<T> {
+
+  /**
+   * Immutable tree node.
+   */
+  static final class Node<T> {
+    final T       element;
+    final Node<T> left;
+    final Node<T> right;
+    final int     height;
+    final int     size;
+
+    Node (T element, Node<T> left, Node<T> right){
+      this.element = element;
+      this.left = left;
+      this.right = right;
+      this.height = Math.max (height (left), height (right)) + 1;
+      this.size = size (left) + size (right) + 1;
+    }
+  }
+
+  private static final PersistentAvlTree<?> EMPTY = new PersistentAvlTree<Comparable<Object>> (null);
+
+  final Node<T> root;
+
+  private PersistentAvlTree (Node<T> root){
+    this.root = root;
+  }
+
+  /**
+   * @return The empty tree
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Comparable<? super T>> PersistentAvlTree<T> empty (){
+    return (PersistentAvlTree<T>) EMPTY;
+  }
+
+  /**
+   * Create a persistent copy of a mutable tree with the same shape, in
+   * linear time. A WAVL tree out of AVL shape is copied into perfect
+   * balance instead, since the persistent tree only rebalances height
+   * differences of two; the tree itself is left untouched.
+   *
+   * @param tree Tree to copy
+   * @return Persistent tree holding the same elements
+   * @throws IllegalArgumentException if the tree is ordered by a
+   *         comparator; a persistent tree uses the natural ordering
+   */
+  public static <T extends Comparable<? super T>> PersistentAvlTree<T> copyOf (AvlTree<T> tree){
+    if (tree.comparator () != null)
+      throw new IllegalArgumentException ("Tree is not in natural order");
+    if (tree.root == null)
+      return PersistentAvlTree.<T>empty ();
+    if (tree.hasAvlShape ())
+      return new PersistentAvlTree<T> (copy (tree.root));
+    AvlTree.AvlNode<T>[] nodes = tree.nodesInOrder ();
+    return new PersistentAvlTree<T> (copyBalanced (nodes, 0, nodes.length));
+  }
+
+  private static <T> Node<T> copy (AvlTree.AvlNode<T> t){
+    return t == null ? null : new Node<T> (t.element, copy (t.left), copy (t.right));
+  }
+
+  private static <T> Node<T> copyBalanced (AvlTree.AvlNode<T>[] nodes, int lo, int hi){
+    if (lo >= hi)
+      return null;
+    int mid = (lo + hi) >>> 1;
+    return new Node<T> (nodes[mid].element, copyBalanced (nodes, lo, mid), copyBalanced (nodes, mid + 1, hi));
+  }
+
+  static int height (Node<?> t){
+    return t == null ? -1 : t.height;
+  }
+
+  static int size (Node<?> t){
+    return t == null ? 0 : t.size;
+  }
+
+  /**
+   * @return Number of elements in the tree
+   */
+  public int size (){
+    return size (root);
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree is empty
+   */
+  public boolean isEmpty (){
+    return root == null;
+  }
+
+  /**
+   * Insert an element.
+   *
+   * @param x Element to insert
+   * @return Tree that also holds x; this tree if x was already present
+   */
+  public PersistentAvlTree<T> insert (T x){
+    Node<T> r = insert (root, x);
+    return r == root ? this : new PersistentAvlTree<T> (r);
+  }
+
+  private static <T extends Comparable<? super T>> Node<T> insert (Node<T> t, T x){
+    if (t == null)
+      return new Node<T> (x, null, null);
+
+    int c = x.compareTo (t.element);
+    if (c < 0){
+      Node<T> l = insert (t.left, x);
+      return l == t.left ? t : balance (t.element, l, t.right);
+    }
+    if (c > 0){
+      Node<T> r = insert (t.right, x);
+      return r == t.right ? t : balance (t.element, t.left, r);
+    }
+    return t;
+  }
+
+  /**
+   * Remove an element.
+   *
+   * @param x Element to remove
+   * @return Tree without x; this tree if x was not present
+   */
+  public PersistentAvlTree<T> remove (T x){
+    Node<T> r = remove (root, x);
+    if (r == root)
+      return this;
+    return r == null ? PersistentAvlTree.<T>empty () : new PersistentAvlTree<T> (r);
+  }
+
+  private static <T extends Comparable<? super T>> Node<T> remove (Node<T> t, T x){
+    if (t == null)
+      return null;
+
+    int c = x.compareTo (t.element);
+    if (c < 0){
+      Node<T> l = remove (t.left, x);
+      return l == t.left ? t : balance (t.element, l, t.right);
+    }
+    if (c > 0){
+      Node<T> r = remove (t.right, x);
+      return r == t.right ? t : balance (t.element, t.left, r);
+    }
+
+    if (t.left == null)
+      return t.right;
+    if (t.right == null)
+      return t.left;
+
+    // Replace with the successor, which moves up out of the right subtree
+    Node<T> s = t.right;
+    while (s.left != null)
+      s = s.left;
+    return balance (s.element, t.left, removeMin (t.right));
+  }
+
+  private static <T> Node<T> removeMin (Node<T> t){
+    if (t.left == null)
+      return t.right;
+    return balance (t.element, removeMin (t.left), t.right);
+  }
+
+  /**
+   * Build a node from an element and two subtrees whose heights differ
+   * by at most two, rotating with new nodes if they differ by two.
+   */
+  private static <T> Node<T> balance (T x, Node<T> l, Node<T> r){
+    int lh = height (l);
+    int rh = height (r);
+
+    if (lh - rh == 2){
+      if (height (l.left) >= height (l.right))
+        return new Node<T> (l.element, l.left, new Node<T> (x, l.right, r));
+      Node<T> lr = l.right;
+      return new Node<T> (lr.element, new Node<T> (l.element, l.left, lr.left), new Node<T> (x, lr.right, r));
+    }
+    if (rh - lh == 2){
+      if (height (r.right) >= height (r.left))
+        return new Node<T> (r.element, new Node<T> (x, l, r.left), r.right);
+      Node<T> rl = r.left;
+      return new Node<T> (rl.element, new Node<T> (x, l, rl.left), new Node<T> (r.element, rl.right, r.right));
+    }
+    return new Node<T> (x, l, r);
+  }
+
+  /**
+   * Search for an element within the tree.
+   *
+   * @param x Element to find
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains (T x){
+    Node<T> t = root;
+    while (t != null){
+      int c = x.compareTo (t.element);
+      if (c == 0)
+        return true;
+      t = c < 0 ? t.left : t.right;
+    }
+    return false;
+  }
+
+  /**
+   * Find the smallest element in the tree.
+   *
+   * @return smallest element, or null if the tree is empty
+   */
+  public T findMin (){
+    Node<T> t = root;
+    if (t == null)
+      return null;
+    while (t.left != null)
+      t = t.left;
+    return t.element;
+  }
+
+  /**
+   * Find the largest element in the tree.
+   *
+   * @return largest element, or null if the tree is empty
+   */
+  public T findMax (){
+    Node<T> t = root;
+    if (t == null)
+      return null;
+    while (t.right != null)
+      t = t.right;
+    return t.element;
+  }
+
+  /**
+   * Iterate over the elements in ascending order. The iterator sees this
+   * version only, whatever versions are created meanwhile.
+   *
+   * @return Iterator over the tree
+   */
+  @Override
+  public Iterator<T> iterator (){
+    return new NodeIterator<T> (root);
+  }
+
+  /**
+   * Serialize the tree to a string using an infix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializeInfix (){
+    StringBuilder str = new StringBuilder ();
+    serializeInfix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializeInfix (Node<T> t, StringBuilder str, String sep){
+    if (t != null){
+      serializeInfix (t.left, str, sep);
+      str.append (t.element.toString ());
+      str.append (sep);
+      serializeInfix (t.right, str, sep);
+    }
+  }
+
+  /**
+   * Serialize the tree to a string using a prefix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializePrefix (){
+    StringBuilder str = new StringBuilder ();
+    serializePrefix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializePrefix (Node<T> t, StringBuilder str, String sep){
+    if (t != null){
+      str.append (t.element.toString ());
+      str.append (sep);
+      serializePrefix (t.left, str, sep);
+      serializePrefix (t.right, str, sep);
+    }
+  }
+
+  /**
+   * In-order iterator with an explicit stack; nodes never change, so it
+   * needs no modification checks.
+   */
+  private static final class NodeIterator<T> implements Iterator<T> {
+    private final Object[] stack;
+    private int depth;
+
+    NodeIterator (Node<T> root){
+      stack = new Object[height (root) + 1];
+      pushLeft (root);
+    }
+
+    private void pushLeft (Node<T> t){
+      for (; t != null; t = t.left)
+        stack[depth++] = t;
+    }
+
+    @Override
+    public boolean hasNext (){
+      return depth > 0;
+    }
+
+    @Override
+    public T next (){
+      if (depth == 0)
+        throw new NoSuchElementException ();
+      @SuppressWarnings("unchecked")
+      Node<T> t = (Node<T>) stack[--depth];
+      stack[depth] = null;
+      pushLeft (t.right);
+      return t.element;
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package justinethier;
+
+import java.lang.StringBuilder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * AVL tree of int keys whose nodes live in parallel primitive arrays.
+ *
+ * A node is an int handle indexing the keys, left, right and height
+ * arrays, so the whole tree is four arrays as far as the garbage collector
+ * is concerned, no matter how many keys it holds. Handle 0 is reserved as
+ * the null child; its height is stored as -1 so that height lookups need
+ * no null check. Removed slots are chained into a free list through the
+ * left array and reused before the arrays grow.
+ */
+class PooledIntAvlTree {
+
+  /**
+   * Handle of the null node.
+   */
+  protected static final int NIL = 0;
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  protected int[]  keys;
+  protected int[]  left;
+  protected int[]  right;
+
+  /**
+   * Node heights; an AVL tree of 2^31 nodes is less than 46 high, so a
+   * byte per node is enough.
+   */
+  protected byte[] height;
+
+  public int root = NIL;
+
+  /**
+   * Number of keys in the tree.
+   */
+  private int size;
+
+  /**
+   * First never-used slot.
+   */
+  private int next = 1;
+
+  /**
+   * Head of the chain of released slots, linked through left[].
+   */
+  private int freeList = NIL;
+
+  /**
+   * Scratch space for the root-to-leaf path walked by updates.
+   */
+  private int[] path = new int[64];
+
+  /**
+   * Creates an empty tree with room for a few nodes.
+   */
+  public PooledIntAvlTree (){
+    this (DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates an empty tree sized to hold the given number of keys
+   * without growing.
+   *
+   * @param capacity Expected number of keys
+   */
+  public PooledIntAvlTree (int capacity){
+    int slots = Math.max (capacity, 1) + 1;
+    keys = new int[slots];
+    left = new int[slots];
+    right = new int[slots];
+    height = new byte[slots];
+    height[NIL] = -1;
+  }
+
+  /**
+   * @return Number of keys in the tree
+   */
+  public int size (){
+    return size;
+  }
+
+  /**
+   * @return Number of node slots the arrays can hold before growing
+   */
+  public int capacity (){
+    return keys.length - 1;
+  }
+
+  /**
+   * Determine if the tree is empty.
+   *
+   * @return True if the tree is empty
+   */
+  public boolean isEmpty (){
+    return root == NIL;
+  }
+
+  /**
+   * Deletes all keys from the tree. The arrays are kept for reuse.
+   */
+  public void makeEmpty (){
+    root = NIL;
+    size = 0;
+    next = 1;
+    freeList = NIL;
+  }
+
+  /**
+   * Shrink the arrays to the highest slot ever handed out. Released slots
+   * below it stay on the free list.
+   */
+  public void trimToSize (){
+    resize (next);
+  }
+
+  /**
+   * Insert a key into the tree.
+   *
+   * @param x Key to insert into the tree
+   * @return True - Success, the key was added.
+   *         False - the key was a duplicate.
+   */
+  public boolean insert (int x){
+    if (root == NIL){
+      root = allocate (x);
+      return true;
+    }
+
+    int depth = 0;
+    int t = root;
+    int[] keys = this.keys;
+
+    while (true){
+      int k = keys[t];
+      if (x == k)
+        return false;
+      path[depth++] = t;
+
+      int child = x < k ? left[t] : right[t];
+      if (child == NIL)
+        break;
+      t = child;
+    }
+
+    // allocate may replace the arrays, so do not reuse the local copy
+    int n = allocate (x);
+    if (x < this.keys[t])
+      left[t] = n;
+    else
+      right[t] = n;
+
+    rebalancePath (depth);
+    return true;
+  }
+
+  /**
+   * Remove a key from the tree. Nothing is done if x is not found.
+   *
+   * @param x Key to remove
+   * @return True if the key was found and removed
+   */
+  public boolean remove (int x){
+    int depth = 0;
+    int t = root;
+
+    while (t != NIL && x != keys[t]){
+      path[depth++] = t;
+      t = x < keys[t] ? left[t] : right[t];
+    }
+    if (t == NIL)
+      return false;
+
+    int replacement;
+    if (left[t] != NIL && right[t] != NIL){
+      // Pull the successor's key up into t, then unlink the successor
+      path[depth++] = t;
+      int s = right[t];
+      while (left[s] != NIL){
+        path[depth++] = s;
+        s = left[s];
+      }
+      keys[t] = keys[s];
+      t = s;
+      replacement = right[s];
+    }
+    else {
+      replacement = (left[t] != NIL) ? left[t] : right[t];
+    }
+
+    if (depth == 0)
+      root = replacement;
+    else if (left[path[depth - 1]] == t)
+      left[path[depth - 1]] = replacement;
+    else
+      right[path[depth - 1]] = replacement;
+
+    release (t);
+    rebalancePath (depth);
+    return true;
+  }
+
+  /**
+   * Search for a key within the tree.
+   *
+   * @param x Key to find
+   * @return True if the key is found, false otherwise
+   */
+  public boolean contains (int x){
+    int[] keys = this.keys;
+    int t = root;
+    while (t != NIL){
+      int k = keys[t];
+      if (x == k)
+        return true;
+      t = x < k ? left[t] : right[t];
+    }
+    return false;
+  }
+
+  /**
+   * Find the smallest key in the tree.
+   *
+   * @return smallest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public int findMin (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    int t = root;
+    while (left[t] != NIL)
+      t = left[t];
+    return keys[t];
+  }
+
+  /**
+   * Find the largest key in the tree.
+   *
+   * @return largest key
+   * @throws NoSuchElementException if the tree is empty
+   */
+  public int findMax (){
+    if (isEmpty ())
+      throw new NoSuchElementException ();
+
+    int t = root;
+    while (right[t] != NIL)
+      t = right[t];
+    return keys[t];
+  }
+
+  /**
+   * Serialize the tree to a string using an infix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializeInfix (){
+    StringBuilder str = new StringBuilder ();
+    serializeInfix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializeInfix (int t, StringBuilder str, String sep){
+    if (t != NIL){
+      serializeInfix (left[t], str, sep);
+      str.append (keys[t]);
+      str.append (sep);
+      serializeInfix (right[t], str, sep);
+    }
+  }
+
+  /**
+   * Serialize the tree to a string using a prefix traversal.
+   *
+   * @return String representation of the tree
+   */
+  public String serializePrefix (){
+    StringBuilder str = new StringBuilder ();
+    serializePrefix (root, str, " ");
+    return str.toString ();
+  }
+
+  private void serializePrefix (int t, StringBuilder str, String sep){
+    if (t != NIL){
+      str.append (keys[t]);
+      str.append (sep);
+      serializePrefix (left[t], str, sep);
+      serializePrefix (right[t], str, sep);
+    }
+  }
+
+  /**
+   * Take a slot for a new leaf, from the free list if possible.
+   */
+  private int allocate (int x){
+    int n;
+    if (freeList != NIL){
+      n = freeList;
+      freeList = left[n];
+    }
+    else {
+      if (next == keys.length)
+        resize (keys.length + (keys.length >> 1) + 1);
+      n = next++;
+    }
+    keys[n] = x;
+    left[n] = NIL;
+    right[n] = NIL;
+    height[n] = 0;
+    size++;
+    return n;
+  }
+
+  /**
+   * Return a slot to the free list.
+   */
+  private void release (int n){
+    left[n] = freeList;
+    right[n] = NIL;
+    freeList = n;
+    size--;
+  }
+
+  private void resize (int slots){
+    keys = Arrays.copyOf (keys, slots);
+    left = Arrays.copyOf (left, slots);
+    right = Arrays.copyOf (right, slots);
+    height = Arrays.copyOf (height, slots);
+  }
+
+  /**
+   * Rebalance every node on the path from the bottom up, stopping once a
+   * subtree keeps its previous height.
+   */
+  private void rebalancePath (int depth){
+    for (int i = depth - 1; i >= 0; i--){
+      int t = path[i];
+      int oldHeight = height[t];
+      int r = balance (t);
+
+      if (i == 0)
+        root = r;
+      else if (left[path[i - 1]] == t)
+        left[path[i - 1]] = r;
+      else
+        right[path[i - 1]] = r;
+
+      if (height[r] == oldHeight)
+        break;
+    }
+  }
+
+  /**
+   * Restore the AVL property at a node and recompute its height.
+   *
+   * @param t Node to balance
+   * @return New root of the subtree
+   */
+  protected int balance (int t){
+    int lh = height[left[t]];
+    int rh = height[right[t]];
+
+    if (lh - rh == 2){
+      int l = left[t];
+      if (height[left[l]] < height[right[l]])
+        left[t] = rotateWithRightChild (l);
+      return rotateWithLeftChild (t);
+    }
+    if (rh - lh == 2){
+      int r = right[t];
+      if (height[right[r]] < height[left[r]])
+        right[t] = rotateWithLeftChild (r);
+      return rotateWithRightChild (t);
+    }
+    height[t] = (byte)(Math.max (lh, rh) + 1);
+    return t;
+  }
+
+  /**
+   * Rotate binary tree node with left child.
+   *
+   * @param k2 Root of tree we are rotating
+   * @return New root
+   */
+  protected int rotateWithLeftChild (int k2){
+    int k1 = left[k2];
+
+    left[k2] = right[k1];
+    right[k1] = k2;
+
+    height[k2] = (byte)(Math.max (height[left[k2]], height[right[k2]]) + 1);
+    height[k1] = (byte)(Math.max (height[left[k1]], height[k2]) + 1);
+
+    return k1;
+  }
+
+  /**
+   * Rotate binary tree node with right child.
+   *
+   * @param k1 Root of tree we are rotating.
+   * @return New root
+   */
+  protected int rotateWithRightChild (int k1){
+    int k2 = right[k1];
+
+    right[k1] = left[k2];
+    left[k2] = k1;
+
+    height[k1] = (byte)(Math.max (height[left[k1]], height[right[k1]]) + 1);
+    height[k2] = (byte)(Math.max (height[right[k2]], height[k1]) + 1);
+
+    return k2;
+  }
+}
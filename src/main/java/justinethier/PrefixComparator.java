@@ -0,0 +1,82 @@
+package justinethier;
+
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Comparator that can also summarize a key as a 64-bit prefix, for keys
+ * that are expensive to compare in full.
+ *
+ * The prefix must be consistent with the ordering: whenever
+ * compare(a, b) &lt;= 0, prefix(a) &lt;= prefix(b), comparing the prefixes
+ * as signed longs. In particular, equal keys have equal prefixes. An
+ * AvlTree given a PrefixComparator stores each element's prefix in its
+ * node, so a search computes the prefix of its key once and then settles
+ * most levels with a single long comparison, calling compare only when
+ * the prefixes are equal.
+ *
+ * @param <T> Key type
+ */
+interface PrefixComparator<T> extends Comparator<T> {
+
+  /**
+   * @param x A key
+   * @return Order-preserving 64-bit prefix of the key
+   */
+  long prefix (T x);
+
+  /**
+   * Combine an ordering with a prefix function for it.
+   *
+   * @param order  Full ordering
+   * @param prefix Prefix consistent with order, as described above
+   * @return The prefix comparator
+   */
+  static <T> PrefixComparator<T> of (final Comparator<? super T> order, final ToLongFunction<? super T> prefix){
+    return new PrefixComparator<T> (){
+      @Override
+      public int compare (T a, T b){
+        return order.compare (a, b);
+      }
+
+      @Override
+      public long prefix (T x){
+        return prefix.applyAsLong (x);
+      }
+    };
+  }
+
+  /**
+   * Natural ordering of strings. The prefix packs the first eight
+   * characters into a byte each; it stops at the first character of
+   * 0xFF or above, which is recorded as 0xFF, so that strings beyond
+   * Latin-1 stay correctly ordered and simply fall back to compareTo
+   * more often.
+   */
+  PrefixComparator<String> STRING = new PrefixComparator<String> (){
+    @Override
+    public int compare (String a, String b){
+      return a.compareTo (b);
+    }
+
+    @Override
+    public long prefix (String s){
+      int n = Math.min (s.length (), 8);
+      long p = 0;
+      int i = 0;
+      while (i < n){
+        int c = s.charAt (i++);
+        if (c >= 0xFF){
+          p = (p << 8) | 0xFF;
+          break;
+        }
+        p = (p << 8) | c;
+      }
+      if (i < 8)
+        p <<= 8 * (8 - i);
+      // Bytes compare unsigned; flip the sign bit so that signed long
+      // comparison agrees
+      return p ^ Long.MIN_VALUE;
+    }
+  };
+}
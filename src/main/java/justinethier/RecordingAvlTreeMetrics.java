@@ -0,0 +1,385 @@
+package justinethier;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * AvlTreeMetrics that count everything reported to them.
+ *
+ * Counts are kept in LongAdders, so recording is cheap even when the
+ * metrics are shared by trees on several threads, and they can be read
+ * at any time while the trees are in use. snapshot takes a consistent
+ * enough copy for reporting; register publishes the counts over JMX and
+ * as a periodic JFR event, so that bursts of rotations show up next to
+ * the rest of a recording.
+ *
+ * The size reported is that of the tree the metrics were last installed
+ * on.
+ */
+class RecordingAvlTreeMetrics implements AvlTreeMetrics, AvlTreeMetricsMXBean {
+
+  /**
+   * Lookups are bucketed by depth up to this many nodes; an AVL tree is
+   * never this deep before it runs out of memory.
+   */
+  static final int DEPTH_BUCKETS = 64;
+
+  private static final AvlTreeMetrics.Rotation[] ROTATIONS = AvlTreeMetrics.Rotation.values ();
+  private static final AvlTreeMetrics.Cause[] CAUSES = AvlTreeMetrics.Cause.values ();
+
+  private final LongAdder insertions = new LongAdder ();
+  private final LongAdder duplicates = new LongAdder ();
+  private final LongAdder replacements = new LongAdder ();
+  private final LongAdder insertComparisons = new LongAdder ();
+  private final LongAdder removals = new LongAdder ();
+  private final LongAdder removeMisses = new LongAdder ();
+  private final LongAdder removeComparisons = new LongAdder ();
+  private final LongAdder lookups = new LongAdder ();
+  private final LongAdder lookupHits = new LongAdder ();
+  private final LongAdder lookupComparisons = new LongAdder ();
+
+  /**
+   * Indexed by cause, then rotation case
+   */
+  private final LongAdder[] rotations = adders (CAUSES.length * ROTATIONS.length);
+
+  private final LongAdder[] depths = adders (DEPTH_BUCKETS);
+
+  private volatile IntSupplier size = () -> 0;
+
+  /**
+   * Name under which the metrics are registered, or null
+   */
+  private ObjectName objectName;
+
+  /**
+   * Periodic JFR hook, or null
+   */
+  private Runnable jfrHook;
+
+  private static LongAdder[] adders (int n){
+    LongAdder[] a = new LongAdder[n];
+    for (int i = 0; i < n; i++)
+      a[i] = new LongAdder ();
+    return a;
+  }
+
+  private static int rotationIndex (AvlTreeMetrics.Rotation rotation, AvlTreeMetrics.Cause cause){
+    return cause.ordinal () * ROTATIONS.length + rotation.ordinal ();
+  }
+
+  @Override
+  public void inserted (int comparisons, InsertResult result){
+    insertComparisons.add (comparisons);
+    switch (result){
+      case INSERTED:        insertions.increment (); break;
+      case ALREADY_PRESENT: duplicates.increment (); break;
+      case REPLACED:        replacements.increment (); break;
+    }
+  }
+
+  @Override
+  public void removed (int comparisons, boolean found){
+    removeComparisons.add (comparisons);
+    (found ? removals : removeMisses).increment ();
+  }
+
+  @Override
+  public void lookedUp (int depth, boolean found){
+    lookups.increment ();
+    lookupComparisons.add (depth);
+    if (found)
+      lookupHits.increment ();
+    depths[Math.min (depth, DEPTH_BUCKETS - 1)].increment ();
+  }
+
+  @Override
+  public void rotated (AvlTreeMetrics.Rotation rotation, AvlTreeMetrics.Cause cause){
+    rotations[rotationIndex (rotation, cause)].increment ();
+  }
+
+  @Override
+  public void bind (IntSupplier size){
+    this.size = size;
+  }
+
+  //
+  // Snapshots
+  //
+
+  /**
+   * Copy of the counts at one point in time. Counts that are updated
+   * while the copy is taken may or may not be included.
+   */
+  static final class Snapshot {
+    public final int size;
+    public final long insertions;
+    public final long duplicates;
+    public final long replacements;
+    public final long insertComparisons;
+    public final long removals;
+    public final long removeMisses;
+    public final long removeComparisons;
+    public final long lookups;
+    public final long lookupHits;
+    public final long lookupComparisons;
+    private final long[] rotations;
+    private final long[] depths;
+
+    private Snapshot (RecordingAvlTreeMetrics m){
+      size = m.size.getAsInt ();
+      insertions = m.insertions.sum ();
+      duplicates = m.duplicates.sum ();
+      replacements = m.replacements.sum ();
+      insertComparisons = m.insertComparisons.sum ();
+      removals = m.removals.sum ();
+      removeMisses = m.removeMisses.sum ();
+      removeComparisons = m.removeComparisons.sum ();
+      lookups = m.lookups.sum ();
+      lookupHits = m.lookupHits.sum ();
+      lookupComparisons = m.lookupComparisons.sum ();
+      rotations = sums (m.rotations);
+      depths = sums (m.depths);
+    }
+
+    private Snapshot (Snapshot now, Snapshot then){
+      size = now.size;
+      insertions = now.insertions - then.insertions;
+      duplicates = now.duplicates - then.duplicates;
+      replacements = now.replacements - then.replacements;
+      insertComparisons = now.insertComparisons - then.insertComparisons;
+      removals = now.removals - then.removals;
+      removeMisses = now.removeMisses - then.removeMisses;
+      removeComparisons = now.removeComparisons - then.removeComparisons;
+      lookups = now.lookups - then.lookups;
+      lookupHits = now.lookupHits - then.lookupHits;
+      lookupComparisons = now.lookupComparisons - then.lookupComparisons;
+      rotations = difference (now.rotations, then.rotations);
+      depths = difference (now.depths, then.depths);
+    }
+
+    private static long[] sums (LongAdder[] a){
+      long[] s = new long[a.length];
+      for (int i = 0; i < a.length; i++)
+        s[i] = a[i].sum ();
+      return s;
+    }
+
+    private static long[] difference (long[] a, long[] b){
+      long[] d = new long[a.length];
+      for (int i = 0; i < a.length; i++)
+        d[i] = a[i] - b[i];
+      return d;
+    }
+
+    /**
+     * Counts accumulated between an earlier snapshot and this one. The
+     * size is this snapshot's.
+     *
+     * @param earlier Snapshot of the same metrics
+     * @return Differences of every count
+     */
+    public Snapshot since (Snapshot earlier){
+      return new Snapshot (this, earlier);
+    }
+
+    /**
+     * @return Rotations of one case done for one kind of operation
+     */
+    public long rotations (AvlTreeMetrics.Rotation rotation, AvlTreeMetrics.Cause cause){
+      return rotations[rotationIndex (rotation, cause)];
+    }
+
+    /**
+     * @return Rotations of one case, for all operations
+     */
+    public long rotations (AvlTreeMetrics.Rotation rotation){
+      long n = 0;
+      for (AvlTreeMetrics.Cause c : CAUSES)
+        n += rotations (rotation, c);
+      return n;
+    }
+
+    /**
+     * @return Rotations of every case done for one kind of operation
+     */
+    public long rotations (AvlTreeMetrics.Cause cause){
+      long n = 0;
+      for (AvlTreeMetrics.Rotation r : ROTATIONS)
+        n += rotations (r, cause);
+      return n;
+    }
+
+    /**
+     * @return Number of lookups by nodes visited, as described for
+     *         getLookupDepthHistogram
+     */
+    public long[] depthHistogram (){
+      return depths.clone ();
+    }
+
+    private static double mean (long total, long count){
+      return count == 0 ? 0 : (double) total / count;
+    }
+
+    public double comparisonsPerInsert (){
+      return mean (insertComparisons, insertions + duplicates + replacements);
+    }
+
+    public double comparisonsPerRemove (){
+      return mean (removeComparisons, removals + removeMisses);
+    }
+
+    public double comparisonsPerLookup (){
+      return mean (lookupComparisons, lookups);
+    }
+  }
+
+  /**
+   * @return Copy of the current counts
+   */
+  public Snapshot snapshot (){
+    return new Snapshot (this);
+  }
+
+  //
+  // AvlTreeMetricsMXBean
+  //
+
+  @Override
+  public int getSize (){
+    return size.getAsInt ();
+  }
+
+  @Override
+  public long getInsertions (){
+    return insertions.sum ();
+  }
+
+  @Override
+  public long getDuplicateRejections (){
+    return duplicates.sum ();
+  }
+
+  @Override
+  public long getReplacements (){
+    return replacements.sum ();
+  }
+
+  @Override
+  public long getRemovals (){
+    return removals.sum ();
+  }
+
+  @Override
+  public long getRemoveMisses (){
+    return removeMisses.sum ();
+  }
+
+  @Override
+  public long getLookups (){
+    return lookups.sum ();
+  }
+
+  @Override
+  public long getLookupHits (){
+    return lookupHits.sum ();
+  }
+
+  @Override
+  public double getComparisonsPerInsert (){
+    return snapshot ().comparisonsPerInsert ();
+  }
+
+  @Override
+  public double getComparisonsPerRemove (){
+    return snapshot ().comparisonsPerRemove ();
+  }
+
+  @Override
+  public double getComparisonsPerLookup (){
+    return snapshot ().comparisonsPerLookup ();
+  }
+
+  @Override
+  public Map<String, Long> getRotations (){
+    Map<String, Long> m = new LinkedHashMap<String, Long> ();
+    for (AvlTreeMetrics.Cause c : CAUSES)
+      for (AvlTreeMetrics.Rotation r : ROTATIONS)
+        m.put (c + "." + r, rotations[rotationIndex (r, c)].sum ());
+    return m;
+  }
+
+  @Override
+  public long[] getLookupDepthHistogram (){
+    return snapshot ().depthHistogram ();
+  }
+
+  @Override
+  public void reset (){
+    for (LongAdder a : new LongAdder[] {insertions, duplicates, replacements, insertComparisons,
+                                        removals, removeMisses, removeComparisons,
+                                        lookups, lookupHits, lookupComparisons})
+      a.reset ();
+    for (LongAdder a : rotations)
+      a.reset ();
+    for (LongAdder a : depths)
+      a.reset ();
+  }
+
+  //
+  // Publishing
+  //
+
+  /**
+   * Publish the metrics on the platform MBean server, as
+   * justinethier:type=AvlTree,name=&lt;name&gt;, and as an
+   * AvlTreeMetricsEvent emitted once a second into any JFR recording
+   * that enables it. JFR is skipped on JVMs that lack it.
+   *
+   * @param name Name identifying the tree
+   * @throws JMException if the name is invalid or already in use
+   * @throws IllegalStateException if the metrics are already registered
+   */
+  public synchronized void register (String name) throws JMException {
+    if (objectName != null)
+      throw new IllegalStateException ("Already registered as " + objectName);
+
+    ObjectName on = new ObjectName ("justinethier:type=AvlTree,name=" + ObjectName.quote (name));
+    ManagementFactory.getPlatformMBeanServer ().registerMBean (this, on);
+    objectName = on;
+
+    try {
+      jfrHook = AvlTreeMetricsEvent.install (name, this);
+    }
+    catch (NoClassDefFoundError e){
+      // No jdk.jfr module; JMX alone will have to do
+    }
+  }
+
+  /**
+   * Withdraw the metrics from JMX and JFR. Does nothing if they are not
+   * registered.
+   *
+   * @throws JMException if the MBean server refuses
+   */
+  public synchronized void unregister () throws JMException {
+    if (jfrHook != null){
+      AvlTreeMetricsEvent.uninstall (jfrHook);
+      jfrHook = null;
+    }
+    if (objectName != null){
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+      if (server.isRegistered (objectName))
+        server.unregisterMBean (objectName);
+      objectName = null;
+    }
+  }
+}
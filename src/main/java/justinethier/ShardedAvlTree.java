@@ -0,0 +1,465 @@
+package justinethier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Thread-safe ordered set split by key range over several AvlTrees.
+ *
+ * Each shard owns the keys from its lower bound up to the next shard's
+ * lower bound, in its own AvlTree behind its own lock, so writers to
+ * different ranges never contend. Shards are found through an immutable
+ * partition table; changing the partitioning builds a new table and marks
+ * the replaced shards retired. An operation that locks a shard and finds
+ * it retired just looks its key up again in the new table.
+ *
+ * A shard that grows past maxShardSize is split in two at its median
+ * with AvlTree.split as part of the insert that made it too large.
+ * rebalance additionally splits shards that took a disproportionate
+ * share of the operations since the last call, and merges runs of small
+ * neighbours with AvlTree.join; call it periodically from a maintenance
+ * thread. Both cost O(log n) per shard touched.
+ *
+ * findMin, findMax, size and iteration visit the shards one at a time,
+ * so they are weakly consistent: they reflect every update that finished
+ * before they started, and may or may not reflect concurrent ones.
+ * Iteration copies one shard at a time under its lock.
+ */
+class ShardedAvlTree<T extends Comparable<? super T>> implements Iterable<T> {
+
+  /**
+   * One key range and its tree.
+   */
+  static final class Shard<T extends Comparable<? super T>> {
+
+    /**
+     * Smallest key the shard may hold; null for the first shard
+     */
+    final T lo;
+
+    final AvlTree<T> tree;
+
+    /**
+     * Set, under the shard's lock, once a new table has replaced it
+     */
+    boolean retired;
+
+    /**
+     * Operations since the last rebalance, under the shard's lock
+     */
+    long ops;
+
+    Shard (T lo, AvlTree<T> tree){
+      this.lo = lo;
+      this.tree = tree;
+    }
+  }
+
+  /**
+   * Shards in key order; never modified once published.
+   */
+  private volatile Shard<T>[] shards;
+
+  /**
+   * Serializes changes to the partition table.
+   */
+  private final Object tableLock = new Object ();
+
+  private final int maxShardSize;
+
+  /**
+   * Creates an empty set with one shard, which splits as it grows.
+   *
+   * @param maxShardSize Size at which a shard is split in two
+   */
+  public ShardedAvlTree (int maxShardSize){
+    this (maxShardSize, new ArrayList<T> ());
+  }
+
+  /**
+   * Creates an empty set pre-split at the given keys, so that concurrent
+   * writers are spread out from the start.
+   *
+   * @param maxShardSize Size at which a shard is split in two
+   * @param splitPoints  Lower bounds of every shard but the first
+   */
+  public ShardedAvlTree (int maxShardSize, Collection<? extends T> splitPoints){
+    if (maxShardSize < 2)
+      throw new IllegalArgumentException ("maxShardSize must be at least 2");
+    this.maxShardSize = maxShardSize;
+
+    Object[] points = splitPoints.toArray ();
+    Arrays.sort (points);
+    ArrayList<Shard<T>> list = new ArrayList<Shard<T>> ();
+    list.add (new Shard<T> (null, new AvlTree<T> ()));
+    T prev = null;
+    for (Object p : points){
+      @SuppressWarnings("unchecked")
+      T lo = (T) p;
+      if (prev == null || prev.compareTo (lo) != 0)
+        list.add (new Shard<T> (lo, new AvlTree<T> ()));
+      prev = lo;
+    }
+    shards = toArray (list);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends Comparable<? super T>> Shard<T>[] toArray (ArrayList<Shard<T>> list){
+    return list.toArray (new Shard[list.size ()]);
+  }
+
+  /**
+   * @return Number of shards currently in use
+   */
+  public int shardCount (){
+    return shards.length;
+  }
+
+  /**
+   * Index of the shard whose range holds x.
+   */
+  private static <T extends Comparable<? super T>> int indexFor (Shard<T>[] table, T x){
+    int lo = 1;
+    int hi = table.length - 1;
+    int found = 0;
+    while (lo <= hi){
+      int mid = (lo + hi) >>> 1;
+      if (table[mid].lo.compareTo (x) <= 0){
+        found = mid;
+        lo = mid + 1;
+      }
+      else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Insert an element into the set.
+   *
+   * @param x Element to insert
+   * @return True - Success, the Element was added.
+   *         False - the element was a duplicate.
+   */
+  public boolean insert (T x){
+    if (x == null)
+      throw new NullPointerException ();
+
+    while (true){
+      Shard<T>[] table = shards;
+      Shard<T> s = table[indexFor (table, x)];
+      boolean added;
+      boolean full;
+      synchronized (s){
+        if (s.retired)
+          continue;
+        added = s.tree.insert (x);
+        s.ops++;
+        full = added && s.tree.size () > maxShardSize;
+      }
+      if (full)
+        splitShard (s);
+      return added;
+    }
+  }
+
+  /**
+   * Remove an element from the set.
+   *
+   * @param x Element to remove
+   * @return True if the element was found and removed
+   */
+  public boolean remove (T x){
+    while (true){
+      Shard<T>[] table = shards;
+      Shard<T> s = table[indexFor (table, x)];
+      synchronized (s){
+        if (s.retired)
+          continue;
+        s.ops++;
+        return s.tree.remove (x);
+      }
+    }
+  }
+
+  /**
+   * Search for an element within the set.
+   *
+   * @param x Element to find
+   * @return True if the element is found, false otherwise
+   */
+  public boolean contains (T x){
+    while (true){
+      Shard<T>[] table = shards;
+      Shard<T> s = table[indexFor (table, x)];
+      synchronized (s){
+        if (s.retired)
+          continue;
+        s.ops++;
+        return s.tree.contains (x);
+      }
+    }
+  }
+
+  /**
+   * Find the smallest element in the set.
+   *
+   * @return smallest element, or null if the set is empty
+   */
+  public T findMin (){
+    retry:
+    while (true){
+      Shard<T>[] table = shards;
+      for (Shard<T> s : table){
+        synchronized (s){
+          if (s.retired)
+            continue retry;
+          T min = s.tree.findMin ();
+          if (min != null)
+            return min;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Find the largest element in the set.
+   *
+   * @return largest element, or null if the set is empty
+   */
+  public T findMax (){
+    retry:
+    while (true){
+      Shard<T>[] table = shards;
+      for (int i = table.length - 1; i >= 0; i--){
+        Shard<T> s = table[i];
+        synchronized (s){
+          if (s.retired)
+            continue retry;
+          T max = s.tree.findMax ();
+          if (max != null)
+            return max;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * @return Number of elements, summed shard by shard
+   */
+  public int size (){
+    retry:
+    while (true){
+      long n = 0;
+      for (Shard<T> s : shards){
+        synchronized (s){
+          if (s.retired)
+            continue retry;
+          n += s.tree.size ();
+        }
+      }
+      return (int) Math.min (n, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Determine if the set is empty.
+   *
+   * @return True if the set is empty
+   */
+  public boolean isEmpty (){
+    return findMin () == null;
+  }
+
+  //
+  // Repartitioning
+  //
+
+  /**
+   * Split a shard at its median if it is still too large.
+   */
+  private void splitShard (Shard<T> s){
+    synchronized (tableLock){
+      Shard<T>[] table = shards;
+      synchronized (s){
+        if (s.retired || s.tree.size () <= maxShardSize)
+          return;
+        shards = splitAt (table, s);
+      }
+    }
+  }
+
+  /**
+   * Replace s by its two halves. Caller holds tableLock and the lock of s.
+   *
+   * @return The new table
+   */
+  private Shard<T>[] splitAt (Shard<T>[] table, Shard<T> s){
+    T median = s.tree.select (s.tree.size () / 2);
+    AvlTree.Split<T> halves = s.tree.split (median);
+    halves.right.insert (median);
+
+    Shard<T> low = new Shard<T> (s.lo, halves.left);
+    Shard<T> high = new Shard<T> (median, halves.right);
+    low.ops = high.ops = s.ops / 2;
+    s.retired = true;
+
+    int i = Arrays.asList (table).indexOf (s);
+    ArrayList<Shard<T>> list = new ArrayList<Shard<T>> (Arrays.asList (table));
+    list.set (i, low);
+    list.add (i + 1, high);
+    return toArray (list);
+  }
+
+  /**
+   * Adjust the partitioning to the load seen since the last call: split
+   * every shard that took more than hotFactor times its fair share of
+   * the operations, and merge neighbouring shards that together hold
+   * less than a quarter of maxShardSize. Operation counts are then reset.
+   *
+   * @param hotFactor How many times the average load makes a shard hot
+   */
+  public void rebalance (double hotFactor){
+    synchronized (tableLock){
+      Shard<T>[] table = shards;
+      long total = 0;
+      for (Shard<T> s : table){
+        synchronized (s){
+          total += s.ops;
+        }
+      }
+      double limit = hotFactor * total / table.length;
+
+      // Each change is published at once, since operations that meet a
+      // retired shard retry until the new table appears
+      for (Shard<T> s : table){
+        synchronized (s){
+          if (s.tree.size () >= 2 && (s.ops > limit || s.tree.size () > maxShardSize))
+            shards = splitAt (shards, s);
+        }
+      }
+
+      ArrayList<Shard<T>> list = new ArrayList<Shard<T>> (Arrays.asList (shards));
+      for (int i = 1; i < list.size (); i++){
+        Shard<T> m = mergeIfSmall (list.get (i - 1), list.get (i));
+        if (m != null){
+          list.set (i - 1, m);
+          list.remove (i--);
+          shards = toArray (list);
+        }
+      }
+
+      for (Shard<T> s : list){
+        synchronized (s){
+          s.ops = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * Merge two neighbouring shards if they are small together.
+   *
+   * @return The merged shard, or null if they were left alone
+   */
+  private Shard<T> mergeIfSmall (Shard<T> a, Shard<T> b){
+    synchronized (a){
+      synchronized (b){
+        if (a.tree.size () + b.tree.size () >= maxShardSize / 4)
+          return null;
+
+        AvlTree<T> tree;
+        if (b.tree.isEmpty ()){
+          tree = a.tree;
+        }
+        else {
+          T k = b.tree.findMin ();
+          b.tree.remove (k);
+          tree = AvlTree.join (a.tree, k, b.tree);
+        }
+        Shard<T> m = new Shard<T> (a.lo, tree);
+        m.ops = a.ops + b.ops;
+        a.retired = true;
+        b.retired = true;
+        return m;
+      }
+    }
+  }
+
+  //
+  // Iteration
+  //
+
+  /**
+   * Iterate over the elements in ascending order. Each shard is copied
+   * under its lock when the iterator reaches it, so updates never block
+   * on an iteration in progress.
+   *
+   * @return Iterator over the set
+   */
+  @Override
+  public Iterator<T> iterator (){
+    return new ShardIterator ();
+  }
+
+  private final class ShardIterator implements Iterator<T> {
+    private Object[] chunk = new Object[0];
+    private int pos;
+    private T last;
+    private boolean done;
+
+    @Override
+    public boolean hasNext (){
+      if (pos < chunk.length)
+        return true;
+      if (!done)
+        fill ();
+      return pos < chunk.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next (){
+      if (!hasNext ())
+        throw new NoSuchElementException ();
+      last = (T) chunk[pos];
+      chunk[pos++] = null;
+      return last;
+    }
+
+    /**
+     * Copy the elements after last from the first shard that has any.
+     */
+    private void fill (){
+      retry:
+      while (true){
+        Shard<T>[] table = shards;
+        int i = last == null ? 0 : indexFor (table, last);
+        for (; i < table.length; i++){
+          Shard<T> s = table[i];
+          ArrayList<T> copy = new ArrayList<T> ();
+          synchronized (s){
+            if (s.retired)
+              continue retry;
+            Iterable<T> rest = last == null ? s.tree : s.tree.tailSet (last, false);
+            for (T x : rest)
+              copy.add (x);
+          }
+          if (!copy.isEmpty ()){
+            chunk = copy.toArray ();
+            pos = 0;
+            return;
+          }
+        }
+        done = true;
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package justinethier;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * AVL tree whose nodes each cache the sum of a long-valued property over
+ * their subtree, giving O(log n) sums over any range of elements. This
+ * is AggregatingAvlTree specialized to a long sum, so that neither the
+ * cached sums nor the results are boxed.
+ *
+ * Sums wrap around on overflow, as long arithmetic does.
+ */
+class SummingAvlTree<T extends Comparable<? super T>> extends AvlTree<T> {
+
+  /**
+   * Node that also holds the sum over its subtree.
+   */
+  protected static class SumNode<T> extends AvlNode<T> {
+
+    /**
+     * Sum over the subtree rooted here, this node included
+     */
+    protected long sum;
+
+    public SumNode (T theElement, AvlNode<T> lt, AvlNode<T> rt){
+      super (theElement, lt, rt);
+    }
+  }
+
+  private final ToLongFunction<? super T> value;
+
+  /**
+   * Creates an empty tree.
+   *
+   * @param value The value of an element to be summed
+   */
+  public SummingAvlTree (ToLongFunction<? super T> value){
+    this.value = value;
+  }
+
+  @Override
+  protected AvlNode<T> newNode (T x, AvlNode<T> lt, AvlNode<T> rt){
+    SumNode<T> t = new SumNode<T> (x, lt, rt);
+    if (lt == null && rt == null)
+      t.sum = value.applyAsLong (x);
+    return t;
+  }
+
+  @Override
+  protected AvlTree<T> newEmptyTree (){
+    return new SummingAvlTree<T> (value);
+  }
+
+  @Override
+  protected void update (AvlNode<T> t){
+    super.update (t);
+    ((SumNode<T>) t).sum = sum (t.left) + value.applyAsLong (t.element) + sum (t.right);
+  }
+
+  private static long sum (AvlNode<?> t){
+    return t == null ? 0 : ((SumNode<?>) t).sum;
+  }
+
+  /**
+   * Sum over the whole tree, in O(1).
+   *
+   * @return Sum of the values of every element
+   */
+  public long sum (){
+    return sum (root);
+  }
+
+  /**
+   * Sum over the elements from from, inclusive, to to, exclusive.
+   *
+   * @param from Low end of the range
+   * @param to   High end of the range
+   * @return Sum of the values of the elements in the range
+   */
+  public long sum (T from, T to){
+    return sum (from, true, to, false);
+  }
+
+  /**
+   * Sum over the elements within a range, in O(log n), as described for
+   * AggregatingAvlTree.aggregate.
+   *
+   * @param from          Low end of the range
+   * @param fromInclusive Whether from itself is in the range
+   * @param to            High end of the range
+   * @param toInclusive   Whether to itself is in the range
+   * @return Sum of the values of the elements in the range, 0 if none
+   */
+  public long sum (T from, boolean fromInclusive, T to, boolean toInclusive){
+    AvlNode<T> t = root;
+    while (t != null){
+      if (AggregatingAvlTree.below (t.element, from, fromInclusive))
+        t = t.right;
+      else if (AggregatingAvlTree.above (t.element, to, toInclusive))
+        t = t.left;
+      else
+        break;
+    }
+    if (t == null)
+      return 0;
+
+    long total = value.applyAsLong (t.element);
+    for (AvlNode<T> n = t.left; n != null; ){
+      if (AggregatingAvlTree.below (n.element, from, fromInclusive)){
+        n = n.right;
+      }
+      else {
+        total += value.applyAsLong (n.element) + sum (n.right);
+        n = n.left;
+      }
+    }
+    for (AvlNode<T> n = t.right; n != null; ){
+      if (AggregatingAvlTree.above (n.element, to, toInclusive)){
+        n = n.left;
+      }
+      else {
+        total += sum (n.left) + value.applyAsLong (n.element);
+        n = n.right;
+      }
+    }
+    return total;
+  }
+}
@@ -133,6 +133,8 @@ public class Test {
    * 
    * TODO: this code would be better served in another Test class.
    * 
+   * This is a smoke test only; for timings use the JMH suites in the
+   * benchmarks module (see InsertBenchmark).
    * 
    * @return Tree with insertions
    */
@@ -145,10 +147,8 @@ public class Test {
     // Delete any old nodes from the tree
     t.makeEmpty();
     
-    // Clear the counts
-    t.countInsertions = 0;
-    t.countSingleRotations = 0;
-    t.countDoubleRotations = 0;
+    // Start counting afresh
+    t.setMetrics(new RecordingAvlTreeMetrics());
     
     // Generate and insert 100 random numbers
     for (int i = 0; i < count; i++){
@@ -167,14 +167,15 @@ public class Test {
   public static void main (String []args){
     AvlTree<Integer> t = new AvlTree<Integer>();
     int testCases = 10, i;
-    int insertionCount = 0;
-    int singleRotationCount = 0;
-    int doubleRotationCount = 0;
+    long insertionCount = 0;
+    long singleRotationCount = 0;
+    long doubleRotationCount = 0;
     
       Test.performInsertions(t);
-      insertionCount      += t.countInsertions;
-      singleRotationCount += t.countSingleRotations;
-      doubleRotationCount += t.countDoubleRotations;
+      RecordingAvlTreeMetrics.Snapshot m = ((RecordingAvlTreeMetrics) t.getMetrics()).snapshot();
+      insertionCount      += m.insertions;
+      singleRotationCount += m.rotations(AvlTreeMetrics.Rotation.LL) + m.rotations(AvlTreeMetrics.Rotation.RR);
+      doubleRotationCount += m.rotations(AvlTreeMetrics.Rotation.LR) + m.rotations(AvlTreeMetrics.Rotation.RL);
     
     System.out.println ("Total Insertions:       " + insertionCount);
     System.out.println ("Total Single Rotations: " + singleRotationCount);
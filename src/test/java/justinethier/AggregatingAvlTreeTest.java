@@ -0,0 +1,118 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class AggregatingAvlTreeTest {
+  // Concatenation is associative but not commutative, so it also checks
+  // that ranges are combined in order
+  private static final Monoid<Integer, String> CONCAT =
+    Monoid.of("", x -> x + ",", (a, b) -> a + b);
+
+  private AggregatingAvlTree<Integer, String> tree = new AggregatingAvlTree<Integer, String>(CONCAT);
+
+  private static String concat(Iterable<Integer> values) {
+    StringBuilder str = new StringBuilder();
+    for (Integer i : values)
+      str.append(i).append(',');
+    return str.toString();
+  }
+
+  private void checkRanges(TreeSet<Integer> expected, Random r, int bound) {
+    assertEquals(concat(expected), tree.aggregate());
+    for (int i = 0; i < 50; i++) {
+      int from = r.nextInt(bound);
+      int to = from + r.nextInt(bound / 4 + 1);
+      boolean fi = r.nextBoolean();
+      boolean ti = r.nextBoolean();
+      assertEquals(concat(expected.subSet(from, fi, to, ti)), tree.aggregate(from, fi, to, ti));
+    }
+  }
+
+  @Test
+  public void testMatchesScanUnderUpdates() {
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    Random r = new Random(17);
+    for (int i = 0; i < 3000; i++) {
+      int x = r.nextInt(1000);
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+      if (i % 100 == 0)
+        checkRanges(expected, r, 1000);
+    }
+    checkRanges(expected, r, 1000);
+  }
+
+  @Test
+  public void testBulkOperationsKeepAggregates() {
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    Random r = new Random(18);
+    List<Integer> batch = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i++)
+      batch.add(r.nextInt(5000));
+    tree.insertAll(batch);
+    expected.addAll(batch);
+    checkRanges(expected, r, 5000);
+
+    batch.clear();
+    for (int i = 0; i < 500; i++)
+      batch.add(r.nextInt(5000));
+    tree.removeAll(batch);
+    expected.removeAll(batch);
+    checkRanges(expected, r, 5000);
+
+    AvlTree.Split<Integer> halves = tree.split(2500);
+    AggregatingAvlTree<Integer, String> left = (AggregatingAvlTree<Integer, String>) halves.left;
+    AggregatingAvlTree<Integer, String> right = (AggregatingAvlTree<Integer, String>) halves.right;
+    assertEquals(concat(expected.headSet(2500, false)), left.aggregate());
+    assertEquals(concat(expected.tailSet(2500, false)), right.aggregate());
+
+    tree = (AggregatingAvlTree<Integer, String>) AvlTree.join(left, 2500, right);
+    expected.add(2500);
+    checkRanges(expected, r, 5000);
+  }
+
+  @Test
+  public void testEmptyAndSingleton() {
+    assertEquals("", tree.aggregate());
+    assertEquals("", tree.aggregate(0, 10));
+    tree.insert(5);
+    assertEquals("5,", tree.aggregate(5, true, 5, true));
+    assertEquals("", tree.aggregate(5, false, 5, true));
+    assertEquals("", tree.aggregate(6, 10));
+  }
+
+  @Test
+  public void testReplaceRefreshesAggregates() {
+    AggregatingAvlTree<Entry, Long> weights = new AggregatingAvlTree<Entry, Long>(
+      Monoid.<Entry, Long>of(0L, e -> e.weight, Long::sum));
+    for (int i = 0; i < 100; i++)
+      weights.insert(new Entry(i, 1));
+    weights.insert(new Entry(50, 1000), true);
+    assertEquals(Long.valueOf(1099), weights.aggregate());
+    assertEquals(Long.valueOf(1009), weights.aggregate(new Entry(45, 0), new Entry(55, 0)));
+  }
+
+  static final class Entry implements Comparable<Entry> {
+    final int key;
+    final long weight;
+
+    Entry(int key, long weight) {
+      this.key = key;
+      this.weight = weight;
+    }
+
+    public int compareTo(Entry o) {
+      return Integer.compare(key, o.key);
+    }
+  }
+}
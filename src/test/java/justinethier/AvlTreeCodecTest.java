@@ -0,0 +1,214 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AvlTreeCodecTest {
+
+  private static <T extends Comparable<? super T>> byte[] bytesOf(AvlTreeCodec<T> codec, AvlTree<T> tree) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.write(tree, out);
+    return out.toByteArray();
+  }
+
+  private static int checkedSize(AvlTree<?> tree, AvlTree.AvlNode<?> n) {
+    if (n == null)
+      return 0;
+    int size = checkedSize(tree, n.left) + checkedSize(tree, n.right) + 1;
+    assertEquals(size, n.size);
+    assertEquals(Math.max(n.left == null ? -1 : n.left.height, n.right == null ? -1 : n.right.height) + 1, n.height);
+    return size;
+  }
+
+  @Test
+  public void testRoundTripKeepsShape() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> tree = new AvlTree<Integer>();
+    Random r = new Random(10);
+    for (int i = 0; i < 5000; i++)
+      tree.insert(r.nextInt(100000) - 50000);
+
+    AvlTree<Integer> copy = codec.read(new ByteArrayInputStream(bytesOf(codec, tree)));
+    assertEquals(tree.serializePrefix(), copy.serializePrefix());
+    assertEquals(tree.size(), checkedSize(copy, copy.root));
+    assertTrue(copy.insert(1 << 20));
+  }
+
+  @Test
+  public void testWavlTreeIsWrittenWithoutReshaping() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> tree = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 4096; i++)
+      tree.insert(i);
+    // Thinning out the tree leaves it out of AVL shape
+    for (int i = 0; i < 4096; i++)
+      if (i % 16 != 0)
+        tree.remove(i);
+    String shape = tree.serializePrefix();
+    Iterator<Integer> it = tree.iterator();
+    assertEquals(Integer.valueOf(0), it.next());
+
+    AvlTree<Integer> copy = codec.read(new ByteArrayInputStream(bytesOf(codec, tree)));
+    assertEquals(Integer.valueOf(16), it.next());
+    assertEquals(shape, tree.serializePrefix());
+    assertEquals(tree.serializeInfix(), copy.serializeInfix());
+    assertEquals(256, checkedSize(copy, copy.root));
+  }
+
+  @Test
+  public void testRoundTripWithComparator() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> tree = new AvlTree<Integer>(Comparator.reverseOrder());
+    for (int i = 0; i < 1000; i++)
+      tree.insert(i * 7 % 1000);
+    byte[] bytes = bytesOf(codec, tree);
+
+    AvlTree<Integer> copy = codec.read(new ByteArrayInputStream(bytes), Comparator.reverseOrder());
+    assertEquals(tree.serializePrefix(), copy.serializePrefix());
+    assertEquals(Integer.valueOf(999), copy.findMin());
+    assertTrue(copy.insert(-1));
+    assertEquals(Integer.valueOf(-1), copy.findMax());
+    // Read under the natural ordering, the elements are out of order
+    assertCorrupt(codec, bytes);
+  }
+
+  @Test
+  public void testEmptyTree() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> copy = codec.read(new ByteArrayInputStream(bytesOf(codec, new AvlTree<Integer>())));
+    assertTrue(copy.isEmpty());
+  }
+
+  @Test
+  public void testStringsThroughChannels() throws IOException {
+    AvlTreeCodec<String> codec = new AvlTreeCodec<String>(ElementCodec.STRING);
+    AvlTree<String> tree = new AvlTree<String>();
+    StringBuilder longString = new StringBuilder();
+    for (int i = 0; i < 100000; i++)
+      longString.append((char) ('a' + i % 26));
+    tree.insert(longString.toString());
+    tree.insert("");
+    tree.insert("été");
+    for (int i = 0; i < 1000; i++)
+      tree.insert("key" + i);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    codec.write(tree, Channels.newChannel(out));
+    AvlTree<String> copy = codec.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+    assertEquals(tree.serializePrefix(), copy.serializePrefix());
+    assertTrue(copy.contains(longString.toString()));
+    assertTrue(copy.contains(""));
+  }
+
+  @Test
+  public void testReadIntoReplacesContents() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> source = new AvlTree<Integer>();
+    for (int i = 0; i < 100; i++)
+      source.insert(i);
+    AvlTree<Integer> target = new AvlTree<Integer>();
+    target.insert(-1);
+
+    codec.readInto(new ByteArrayInputStream(bytesOf(codec, source)), target);
+    assertFalse(target.contains(-1));
+    assertEquals(100, target.size());
+    assertEquals(source.serializeInfix(), target.serializeInfix());
+  }
+
+  @Test
+  public void testRejectsCorruptStreams() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> tree = new AvlTree<Integer>();
+    tree.insert(2);
+    tree.insert(1);
+    tree.insert(3);
+    byte[] good = bytesOf(codec, tree);
+    // header is 9 bytes, each node 1 flag byte + 1 length byte + 4 bytes
+
+    byte[] badMagic = good.clone();
+    badMagic[0] = 0;
+    assertCorrupt(codec, badMagic);
+
+    byte[] outOfOrder = good.clone();
+    outOfOrder[9 + 6 + 5] = 9;   // left child 1 becomes 9, greater than root 2
+    assertCorrupt(codec, outOfOrder);
+
+    byte[] badLength = good.clone();
+    badLength[9 + 1] = 3;        // root claims 3 bytes but the codec reads 4
+    assertCorrupt(codec, badLength);
+
+    byte[] badCount = good.clone();
+    badCount[8] = 4;
+    assertCorrupt(codec, badCount);
+
+    byte[] truncated = new byte[good.length - 1];
+    System.arraycopy(good, 0, truncated, 0, truncated.length);
+    try {
+      codec.read(new ByteArrayInputStream(truncated));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testRejectsUnbalancedShape() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    AvlTree<Integer> tree = new AvlTree<Integer>();
+    // Hand-built chain 1 -> 2 -> 3, which no AVL tree can have
+    tree.root = new AvlTree.AvlNode<Integer>(1);
+    tree.root.right = new AvlTree.AvlNode<Integer>(2);
+    tree.root.right.right = new AvlTree.AvlNode<Integer>(3);
+    tree.update(tree.root.right.right);
+    tree.update(tree.root.right);
+    tree.update(tree.root);
+    assertCorrupt(codec, bytesOf(codec, tree));
+  }
+
+  @Test
+  public void testRejectsDeepChainWithoutOverflow() throws IOException {
+    AvlTreeCodec<Integer> codec = new AvlTreeCodec<Integer>(ElementCodec.INTEGER);
+    // A chain of left children far deeper than the stack could recurse
+    int n = 200000;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(AvlTreeCodec.MAGIC);
+    out.writeByte(AvlTreeCodec.VERSION);
+    out.writeInt(n);
+    for (int i = n; i > 0; i--) {
+      out.writeByte(i > 1 ? 1 : 0);
+      out.writeByte(4);
+      out.writeInt(i);
+    }
+    assertCorrupt(codec, bytes.toByteArray());
+  }
+
+  @Test
+  public void testMaxHeight() {
+    assertEquals(0, AvlTreeCodec.maxHeight(1));
+    assertEquals(1, AvlTreeCodec.maxHeight(2));
+    assertEquals(2, AvlTreeCodec.maxHeight(4));
+    assertEquals(2, AvlTreeCodec.maxHeight(6));
+    assertEquals(3, AvlTreeCodec.maxHeight(7));
+    // Within 1.44 log2(n + 2)
+    assertTrue(AvlTreeCodec.maxHeight(Integer.MAX_VALUE) <= 44);
+  }
+
+  private static void assertCorrupt(AvlTreeCodec<Integer> codec, byte[] bytes) throws IOException {
+    try {
+      codec.read(new ByteArrayInputStream(bytes));
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class AvlTreeMapTest {
+  private AvlTreeMap<Integer, Integer> map = new AvlTreeMap<Integer, Integer>();
+
+  @Test
+  public void testMatchesTreeMap() {
+    TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+    Random r = new Random(19);
+    for (int i = 0; i < 50000; i++) {
+      Integer k = r.nextInt(500);
+      Integer v = r.nextInt(10);
+      switch (r.nextInt(8)) {
+      case 0:
+        assertEquals(expected.put(k, v), map.put(k, v));
+        break;
+      case 1:
+        assertEquals(expected.putIfAbsent(k, v), map.putIfAbsent(k, v));
+        break;
+      case 2:
+        assertEquals(expected.remove(k), map.remove(k));
+        break;
+      case 3:
+        assertEquals(expected.compute(k, (key, old) -> old == null ? v : (old + v) % 7 == 0 ? null : old + v),
+                     map.compute(k, (key, old) -> old == null ? v : (old + v) % 7 == 0 ? null : old + v));
+        break;
+      case 4:
+        assertEquals(expected.computeIfPresent(k, (key, old) -> old > 20 ? null : old * 2),
+                     map.computeIfPresent(k, (key, old) -> old > 20 ? null : old * 2));
+        break;
+      case 5:
+        assertEquals(expected.computeIfAbsent(k, key -> v == 0 ? null : key + v),
+                     map.computeIfAbsent(k, key -> v == 0 ? null : key + v));
+        break;
+      case 6:
+        assertEquals(expected.merge(k, v, (a, b) -> a + b > 30 ? null : a + b),
+                     map.merge(k, v, (a, b) -> a + b > 30 ? null : a + b));
+        break;
+      default:
+        assertEquals(expected.get(k), map.get(k));
+        assertEquals(expected.containsKey(k), map.containsKey(k));
+      }
+    }
+    assertEquals(expected, map);
+    assertEquals(expected.toString(), map.toString());
+    assertEquals(expected.firstKey(), map.firstKey());
+    assertEquals(expected.lastKey(), map.lastKey());
+  }
+
+  @Test
+  public void testCounterUpdates() {
+    for (int i = 0; i < 1000; i++)
+      map.merge(i % 10, 1, Integer::sum);
+    assertEquals(10, map.size());
+    for (Map.Entry<Integer, Integer> e : map.entrySet())
+      assertEquals(Integer.valueOf(100), e.getValue());
+  }
+
+  @Test
+  public void testNullValuesAndKeys() {
+    assertNull(map.put(1, null));
+    assertTrue(map.containsKey(1));
+    assertNull(map.putIfAbsent(1, 5));
+    assertEquals(Integer.valueOf(5), map.get(1));
+    assertEquals(Integer.valueOf(9), map.getOrDefault(2, 9));
+    try {
+      map.put(null, 1);
+      fail();
+    } catch (NullPointerException e) {
+    }
+  }
+
+  @Test
+  public void testEntryIterator() {
+    for (int i = 0; i < 100; i++)
+      map.put(i, i);
+    Iterator<Map.Entry<Integer, Integer>> it = map.entrySet().iterator();
+    int expect = 0;
+    while (it.hasNext()) {
+      Map.Entry<Integer, Integer> e = it.next();
+      assertEquals(expect++, e.getKey().intValue());
+      if (e.getKey() % 2 == 0)
+        it.remove();
+      else
+        e.setValue(-e.getValue());
+    }
+    assertEquals(50, map.size());
+    assertEquals(Integer.valueOf(-51), map.get(51));
+    assertNull(map.get(50));
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testRemappingFunctionMayReadAndUpdateValues() {
+    map.put(1, 10);
+    map.put(2, 20);
+    // Replacing another value leaves the shape alone, so it is allowed
+    assertEquals(Integer.valueOf(40), map.compute(3, (k, v) -> map.merge(2, 20, Integer::sum)));
+    assertEquals(Integer.valueOf(40), map.get(2));
+    assertEquals(Integer.valueOf(40), map.get(3));
+    assertEquals(3, map.size());
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testRemappingFunctionMayNotAddKeys() {
+    map.put(1, 10);
+    map.compute(2, (k, v) -> map.put(3, 30));
+  }
+}
@@ -2,7 +2,20 @@ package justinethier;// Test file from http://www.dreamincode.net/forums/topic/2
 
 import static org.junit.Assert.*;
 
-import org.junit.Ignore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import org.junit.Test;
 
 
@@ -60,7 +73,6 @@ public class AvlTreeTest {
   }
 
   @Test
-  @Ignore("Should be fixed")
   public void testRemove() {
     assertTrue(tree.isEmpty());
 
@@ -121,4 +133,1010 @@ public class AvlTreeTest {
     assertTrue(checkOrderingOfTree(tree.root));
     assertFalse(tree.contains(83));
   }
+
+  private String infixOf(Iterable<Integer> values) {
+    StringBuilder str = new StringBuilder();
+    for (Integer i : values)
+      str.append(i).append(' ');
+    return str.toString();
+  }
+
+  @Test
+  public void testInsertResult() {
+    assertEquals(InsertResult.INSERTED, tree.insert(5, false));
+    assertEquals(InsertResult.ALREADY_PRESENT, tree.insert(5, false));
+    assertEquals(InsertResult.REPLACED, tree.insert(5, true));
+    assertEquals(InsertResult.INSERTED, tree.insert(6, true));
+
+    assertTrue(tree.insert(7));
+    assertFalse(tree.insert(7));
+    assertEquals(3, tree.size());
+  }
+
+  @Test
+  public void testInsertReplacesElement() {
+    AvlTree<Keyed> keyed = new AvlTree<Keyed>();
+    assertTrue(keyed.insert(new Keyed(1000, "first")));
+    assertEquals(InsertResult.ALREADY_PRESENT, keyed.insert(new Keyed(1000, "second"), false));
+    assertEquals("first", keyed.findMin().payload);
+    assertEquals(InsertResult.REPLACED, keyed.insert(new Keyed(1000, "third"), true));
+    assertEquals("third", keyed.findMin().payload);
+    assertEquals(1, keyed.size());
+  }
+
+  @Test
+  public void testSequentialInsert() {
+    for (int i = 0; i < 1000; i++)
+      tree.insert(i);
+    assertTrue(checkBalanceOfTree(tree.root));
+    assertEquals(getDepth(tree.root) - 1, tree.root.height);
+    assertEquals(Integer.valueOf(0), tree.findMin());
+    assertEquals(Integer.valueOf(999), tree.findMax());
+  }
+
+  @Test
+  public void testRandomInsertWithDuplicates() {
+    Random r = new Random(1);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(5000);
+      assertEquals(expected.add(x), tree.insert(x));
+    }
+    assertTrue(checkBalanceOfTree(tree.root));
+    assertEquals(getDepth(tree.root) - 1, tree.root.height);
+    assertEquals(infixOf(expected), tree.serializeInfix());
+  }
+
+  /**
+   * Check that every stored height matches the real one and that the tree
+   * is balanced; returns the height of n.
+   */
+  private int checkedHeight(AvlTree.AvlNode<Integer> n) {
+    if (n == null)
+      return -1;
+    int l = checkedHeight(n.left);
+    int r = checkedHeight(n.right);
+    assertTrue("unbalanced at " + n.element, Math.abs(l - r) < 2);
+    assertEquals("height at " + n.element, Math.max(l, r) + 1, n.height);
+    return n.height;
+  }
+
+  private Integer[] range(int from, int to) {
+    Integer[] a = new Integer[to - from];
+    for (int i = from; i < to; i++)
+      a[i - from] = i;
+    return a;
+  }
+
+  @Test
+  public void testBuildFromSortedArray() {
+    for (int n = 0; n < 70; n++) {
+      tree.buildFromSorted(range(0, n));
+      if (n > 0)
+        checkedHeight(tree.root);
+      assertEquals(infixOf(Arrays.asList(range(0, n))), tree.serializeInfix());
+    }
+
+    // Large enough to take the parallel path
+    Integer[] a = range(0, 200000);
+    tree.buildFromSorted(a);
+    checkedHeight(tree.root);
+    assertEquals(17, tree.root.height);
+    assertTrue(tree.contains(123456));
+    assertTrue(tree.insert(-1));
+    assertFalse(tree.insert(5));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuildFromSortedRejectsDuplicates() {
+    tree.buildFromSorted(new Integer[] {1, 2, 2, 3});
+  }
+
+  @Test
+  public void testBuildFromSortedIterator() {
+    List<Integer> list = Arrays.asList(range(0, 1000));
+    tree.buildFromSorted(list.iterator(), list.size());
+    checkedHeight(tree.root);
+    assertEquals(infixOf(list), tree.serializeInfix());
+
+    tree.buildFromSorted(IntStream.range(0, 77).boxed());
+    checkedHeight(tree.root);
+    assertEquals(Integer.valueOf(76), tree.findMax());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuildFromSortedStreamRejectsUnsorted() {
+    tree.buildFromSorted(IntStream.of(1, 3, 2).boxed());
+  }
+
+  @Test
+  public void testBuildFromUnsorted() {
+    Random r = new Random(9);
+    List<Integer> list = new ArrayList<Integer>();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 100000; i++) {
+      int x = r.nextInt(60000);
+      list.add(x);
+      expected.add(x);
+    }
+    Collections.shuffle(list, r);
+
+    tree.buildFromUnsorted(list);
+    checkedHeight(tree.root);
+    assertEquals(infixOf(expected), tree.serializeInfix());
+  }
+
+  @Test
+  public void testInsertAllAndRemoveAll() {
+    Random r = new Random(21);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int round = 0; round < 40; round++) {
+      int batchSize = r.nextInt(round % 2 == 0 ? 20 : 3000);
+      List<Integer> batch = new ArrayList<Integer>();
+      for (int i = 0; i < batchSize; i++)
+        batch.add(r.nextInt(10000));
+
+      int before = expected.size();
+      BatchResult result;
+      if (r.nextInt(3) > 0) {
+        result = tree.insertAll(batch);
+        expected.addAll(batch);
+        assertEquals(expected.size() - before, result.applied);
+      } else {
+        result = tree.removeAll(batch);
+        expected.removeAll(batch);
+        assertEquals(before - expected.size(), result.applied);
+      }
+      assertEquals(batch.size() - result.applied, result.skipped);
+
+      if (!expected.isEmpty())
+        checkedHeight(tree.root);
+      assertEquals(infixOf(expected), tree.serializeInfix());
+    }
+  }
+
+  @Test
+  public void testInsertAllReportsDuplicatesAndRotations() {
+    for (int i = 0; i < 100; i++)
+      tree.insert(i);
+
+    BatchResult result = tree.insertAll(Arrays.asList(5, 5, 200, 201, 202, 203, 204, 205, 206, 207));
+    assertEquals(8, result.applied);
+    assertEquals(2, result.skipped);
+    assertTrue(result.rotations > 0);
+    checkedHeight(tree.root);
+
+    result = tree.removeAll(Arrays.asList(range(0, 100)));
+    assertEquals(100, result.applied);
+    checkedHeight(tree.root);
+    assertEquals(infixOf(Arrays.asList(range(200, 208))), tree.serializeInfix());
+  }
+
+  private AvlTree<Integer> randomTree(Random r, int count, int range, TreeSet<Integer> mirror) {
+    AvlTree<Integer> t = new AvlTree<Integer>();
+    for (int i = 0; i < count; i++) {
+      int x = r.nextInt(range);
+      t.insert(x);
+      mirror.add(x);
+    }
+    return t;
+  }
+
+  @Test
+  public void testSplitAndJoin() {
+    for (int i = 0; i < 100; i++)
+      tree.insert(2 * i);
+
+    AvlTree.Split<Integer> split = tree.split(50);
+    assertTrue(tree.isEmpty());
+    assertEquals(Integer.valueOf(50), split.element);
+    assertEquals(Integer.valueOf(48), split.left.findMax());
+    assertEquals(Integer.valueOf(52), split.right.findMin());
+    checkedHeight(split.left.root);
+    checkedHeight(split.right.root);
+
+    split = split.right.split(51);
+    assertNull(split.element);
+    assertEquals(Integer.valueOf(52), split.right.findMin());
+
+    AvlTree<Integer> joined = AvlTree.join(split.left, 51, split.right);
+    assertTrue(split.right.isEmpty());
+    checkedHeight(joined.root);
+    assertEquals(Integer.valueOf(51), joined.findMin());
+    assertEquals(Integer.valueOf(198), joined.findMax());
+  }
+
+  @Test
+  public void testJoinUnevenHeights() {
+    AvlTree<Integer> small = new AvlTree<Integer>();
+    small.insert(-5);
+    tree.buildFromSorted(range(0, 5000));
+    AvlTree<Integer> joined = AvlTree.join(small, -1, tree);
+    checkedHeight(joined.root);
+    assertEquals(Integer.valueOf(-5), joined.findMin());
+    assertTrue(joined.contains(-1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJoinRejectsOverlap() {
+    AvlTree<Integer> other = new AvlTree<Integer>();
+    other.insert(3);
+    tree.insert(5);
+    AvlTree.join(tree, 4, other);
+  }
+
+  @Test
+  public void testSetOperations() {
+    Random r = new Random(33);
+    // Small trees run sequentially, large ones in parallel
+    int[][] sizes = {{0, 10}, {50, 3}, {300, 400}, {40000, 30000}, {60000, 500}};
+    for (int[] size : sizes) {
+      for (int op = 0; op < 3; op++) {
+        TreeSet<Integer> a = new TreeSet<Integer>();
+        TreeSet<Integer> b = new TreeSet<Integer>();
+        AvlTree<Integer> ta = randomTree(r, size[0], 100000, a);
+        AvlTree<Integer> tb = randomTree(r, size[1], 100000, b);
+
+        if (op == 0) {
+          ta.union(tb);
+          a.addAll(b);
+        } else if (op == 1) {
+          ta.intersection(tb);
+          a.retainAll(b);
+        } else {
+          ta.difference(tb);
+          a.removeAll(b);
+        }
+
+        assertTrue(tb.isEmpty());
+        if (!a.isEmpty())
+          checkedHeight(ta.root);
+        assertEquals(infixOf(a), ta.serializeInfix());
+      }
+    }
+  }
+
+  @Test
+  public void testSetOperationsWithItself() {
+    for (int i = 0; i < 100; i++)
+      insert(i * 3);
+    String shape = tree.serializePrefix();
+
+    tree.union(tree);
+    assertEquals(shape, tree.serializePrefix());
+    assertEquals(100, tree.size());
+
+    tree.intersection(tree);
+    assertEquals(shape, tree.serializePrefix());
+    assertEquals(100, tree.size());
+
+    tree.difference(tree);
+    assertTrue(tree.isEmpty());
+    assertEquals(0, tree.size());
+  }
+
+  /**
+   * Check that every stored subtree size is right; returns the size of n.
+   */
+  private int checkedSize(AvlTree.AvlNode<Integer> n) {
+    if (n == null)
+      return 0;
+    int size = checkedSize(n.left) + checkedSize(n.right) + 1;
+    assertEquals("size at " + n.element, size, n.size);
+    return size;
+  }
+
+  @Test
+  public void testRandomInsertAndRemove() {
+    Random r = new Random(17);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int x = r.nextInt(3000);
+      if (r.nextBoolean())
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+    }
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+    assertEquals(expected.size(), tree.size());
+    assertEquals(infixOf(expected), tree.serializeInfix());
+
+    for (int x : new ArrayList<Integer>(expected))
+      assertTrue(tree.remove(x));
+    assertTrue(tree.isEmpty());
+    assertEquals(0, tree.size());
+  }
+
+  @Test
+  public void testRankAndSelect() {
+    Random r = new Random(19);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 5000; i++) {
+      int x = r.nextInt(20000);
+      tree.insert(x);
+      expected.add(x);
+    }
+    tree.insertAll(Arrays.asList(range(20000, 21000)));
+    expected.addAll(Arrays.asList(range(20000, 21000)));
+    tree.removeAll(Arrays.asList(range(0, 1000)));
+    expected.removeAll(Arrays.asList(range(0, 1000)));
+    checkedSize(tree.root);
+
+    List<Integer> sorted = new ArrayList<Integer>(expected);
+    assertEquals(sorted.size(), tree.size());
+    for (int k = 0; k < sorted.size(); k++)
+      assertEquals(sorted.get(k), tree.select(k));
+    for (int x = -1; x < 21001; x += 7)
+      assertEquals(expected.headSet(x).size(), tree.rank(x));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testSelectOutOfRange() {
+    insert(1, 2, 3);
+    tree.select(3);
+  }
+
+  @Test
+  public void testSizeAfterSetOperations() {
+    tree.buildFromSorted(range(0, 1000));
+    checkedSize(tree.root);
+    AvlTree<Integer> other = new AvlTree<Integer>();
+    other.buildFromUnsorted(Arrays.asList(range(500, 1500)));
+    tree.union(other);
+    checkedSize(tree.root);
+    assertEquals(1500, tree.size());
+
+    AvlTree.Split<Integer> split = tree.split(700);
+    assertEquals(700, split.left.size());
+    assertEquals(799, split.right.size());
+    checkedSize(split.left.root);
+    checkedSize(split.right.root);
+  }
+
+  private static List<Integer> listOf(Iterator<Integer> it) {
+    List<Integer> list = new ArrayList<Integer>();
+    while (it.hasNext())
+      list.add(it.next());
+    return list;
+  }
+
+  private void assertSameView(NavigableSet<Integer> expected, NavigableSet<Integer> actual, Random r) {
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.isEmpty(), actual.isEmpty());
+    assertEquals(new ArrayList<Integer>(expected), listOf(actual.iterator()));
+    assertEquals(listOf(expected.descendingIterator()), listOf(actual.descendingIterator()));
+    if (!expected.isEmpty()) {
+      assertEquals(expected.first(), actual.first());
+      assertEquals(expected.last(), actual.last());
+    }
+    for (int i = 0; i < 50; i++) {
+      int x = r.nextInt(1200) - 100;
+      assertEquals(expected.floor(x), actual.floor(x));
+      assertEquals(expected.lower(x), actual.lower(x));
+      assertEquals(expected.ceiling(x), actual.ceiling(x));
+      assertEquals(expected.higher(x), actual.higher(x));
+      assertEquals(expected.contains(x), actual.contains(x));
+    }
+  }
+
+  @Test
+  public void testNavigation() {
+    Random r = new Random(23);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 400; i++) {
+      int x = r.nextInt(1000);
+      tree.insert(x);
+      expected.add(x);
+    }
+    for (int i = 0; i < 200; i++) {
+      int x = r.nextInt(1200) - 100;
+      assertEquals(expected.floor(x), tree.floor(x));
+      assertEquals(expected.lower(x), tree.lower(x));
+      assertEquals(expected.ceiling(x), tree.ceiling(x));
+      assertEquals(expected.higher(x), tree.higher(x));
+    }
+
+    List<Integer> ascending = new ArrayList<Integer>();
+    for (Integer x : tree)
+      ascending.add(x);
+    assertEquals(new ArrayList<Integer>(expected), ascending);
+    assertEquals(listOf(expected.descendingIterator()), listOf(tree.descendingIterator()));
+    assertSameView(expected.descendingSet(), tree.descendingSet(), r);
+  }
+
+  @Test
+  public void testRangeViews() {
+    Random r = new Random(29);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 300; i++) {
+      int x = r.nextInt(1000);
+      tree.insert(x);
+      expected.add(x);
+    }
+    for (int i = 0; i < 100; i++) {
+      int a = r.nextInt(1100) - 50;
+      int b = a + r.nextInt(600);
+      boolean ai = r.nextBoolean(), bi = r.nextBoolean();
+
+      assertSameView(expected.subSet(a, ai, b, bi), tree.subSet(a, ai, b, bi), r);
+      assertSameView(expected.headSet(b, bi), tree.headSet(b, bi), r);
+      assertSameView(expected.tailSet(a, ai), tree.tailSet(a, ai), r);
+      assertSameView(expected.subSet(a, ai, b, bi).descendingSet(),
+          tree.subSet(a, ai, b, bi).descendingSet(), r);
+
+      int c = a + r.nextInt(b - a + 1);
+      assertSameView(expected.subSet(a, true, b, true).headSet(c, false),
+          tree.subSet(a, true, b, true).headSet(c, false), r);
+      assertSameView(expected.subSet(a, true, b, true).descendingSet().headSet(c, true),
+          tree.subSet(a, true, b, true).descendingSet().headSet(c, true), r);
+    }
+  }
+
+  @Test
+  public void testViewWritesThrough() {
+    tree.buildFromSorted(range(0, 100));
+    NavigableSet<Integer> view = tree.subSet(10, true, 20, false);
+    assertEquals(10, view.size());
+    assertTrue(view.remove(15));
+    assertFalse(view.remove(50));
+    assertFalse(tree.contains(15));
+    assertTrue(tree.contains(50));
+    assertEquals(Integer.valueOf(10), view.pollFirst());
+    assertEquals(Integer.valueOf(19), view.pollLast());
+    assertEquals(97, tree.size());
+    assertTrue(view.add(15));
+    try {
+      view.add(20);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      view.headSet(25, true);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    tree.buildFromSorted(range(0, 1000));
+    Iterator<Integer> it = tree.iterator();
+    while (it.hasNext())
+      if (it.next() % 3 != 0)
+        it.remove();
+    assertEquals(334, tree.size());
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+
+    it = tree.descendingSet().iterator();
+    int last = Integer.MAX_VALUE;
+    while (it.hasNext()) {
+      int x = it.next();
+      assertTrue(x < last);
+      last = x;
+      if (x % 2 == 0)
+        it.remove();
+    }
+    assertEquals(167, tree.size());
+    assertEquals(Integer.valueOf(3), tree.findMin());
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testIteratorFailsFast() {
+    insert(1, 2, 3);
+    Iterator<Integer> it = tree.iterator();
+    it.next();
+    tree.insert(4);
+    it.next();
+  }
+
+  @Test
+  public void testStream() {
+    tree.buildFromSorted(range(0, 100000));
+    assertEquals(4999950000L, tree.stream().mapToLong(Integer::longValue).sum());
+    assertEquals(4999950000L, tree.parallelStream().mapToLong(Integer::longValue).sum());
+    assertEquals(50000, tree.stream().parallel().filter(x -> x % 2 == 0).count());
+
+    List<Integer> odd = new ArrayList<Integer>();
+    tree.parallelStream().filter(x -> x % 2 == 1).forEachOrdered(odd::add);
+    assertEquals(50000, odd.size());
+    for (int i = 0; i < odd.size(); i++)
+      assertEquals(2 * i + 1, odd.get(i).intValue());
+
+    assertEquals(0, new AvlTree<Integer>().stream().count());
+  }
+
+  @Test
+  public void testSpliteratorReportsComparator() {
+    assertNull(tree.spliterator().getComparator());
+
+    AvlTree<Integer> reversed = new AvlTree<Integer>(Comparator.reverseOrder());
+    for (int i = 0; i < 10; i++)
+      reversed.insert(i);
+    assertSame(reversed.comparator(), reversed.spliterator().getComparator());
+    // A SORTED stream whose comparator differs from the natural order
+    // must still be sorted
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9),
+        reversed.stream().sorted().collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testSpliteratorSplitsExactly() {
+    tree.buildFromSorted(range(0, 1000));
+    Spliterator<Integer> right = tree.spliterator();
+    assertTrue(right.hasCharacteristics(Spliterator.SORTED | Spliterator.DISTINCT
+        | Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED));
+
+    // Splits hand off roughly half each time and keep the order
+    List<Spliterator<Integer>> parts = new ArrayList<Spliterator<Integer>>();
+    while (true) {
+      long before = right.estimateSize();
+      Spliterator<Integer> left = right.trySplit();
+      if (left == null)
+        break;
+      assertEquals(before, left.estimateSize() + right.estimateSize());
+      assertTrue(left.estimateSize() <= 2 * right.estimateSize() + 1);
+      parts.add(left);
+    }
+    parts.add(right);
+
+    final List<Integer> seen = new ArrayList<Integer>();
+    for (Spliterator<Integer> p : parts) {
+      // Step through the first element, then hand over the rest
+      long n = p.estimateSize();
+      assertTrue(p.tryAdvance(seen::add));
+      assertEquals(n - 1, p.estimateSize());
+      p.forEachRemaining(seen::add);
+      assertEquals(0, p.estimateSize());
+      assertFalse(p.tryAdvance(seen::add));
+    }
+    assertEquals(Arrays.asList(range(0, 1000)), seen);
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testSpliteratorFailsFast() {
+    insert(1, 2, 3);
+    Spliterator<Integer> s = tree.spliterator();
+    s.tryAdvance(x -> tree.insert(4));
+    s.tryAdvance(x -> {});
+  }
+
+  @Test
+  public void testInsertNearSequential() {
+    RecordingAvlTreeMetrics metrics = new RecordingAvlTreeMetrics();
+    tree.setMetrics(metrics);
+    for (int i = 0; i < 10000; i++)
+      assertTrue(tree.insertNear(i));
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+    assertEquals(10000, tree.size());
+    assertEquals(Integer.valueOf(9999), tree.findMax());
+    // Appends climb one level and compare against the last key
+    assertTrue(metrics.snapshot().comparisonsPerInsert() < 4);
+
+    assertFalse(tree.insertNear(9999));
+    assertFalse(tree.insertNear(0));
+    assertEquals(InsertResult.REPLACED, tree.insertNear(5000, true));
+  }
+
+  @Test
+  public void testInsertNearMatchesTreeSet() {
+    Random r = new Random(21);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    int base = 0;
+    for (int i = 0; i < 50000; i++) {
+      base += r.nextInt(3);
+      int x = base + r.nextInt(40) - 20;
+      switch (r.nextInt(20)) {
+      case 0:
+        // Interleaved updates invalidate the finger
+        assertEquals(expected.remove(x), tree.remove(x));
+        break;
+      case 1:
+        x = r.nextInt(base + 1);
+        assertEquals(expected.add(x), tree.insert(x));
+        break;
+      case 2:
+        x = r.nextInt(base + 1);
+        assertEquals(expected.add(x), tree.insertNear(x));
+        break;
+      default:
+        assertEquals(expected.add(x), tree.insertNear(x));
+        break;
+      }
+      if (i % 5000 == 0) {
+        checkedHeight(tree.root);
+        checkedSize(tree.root);
+      }
+    }
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+    assertEquals(expected.size(), tree.size());
+    assertEquals(infixOf(expected), tree.serializeInfix());
+
+    tree.makeEmpty();
+    assertTrue(tree.insertNear(7));
+    assertEquals(1, tree.size());
+  }
+
+  @Test
+  public void testInsertNearDescending() {
+    RecordingAvlTreeMetrics metrics = new RecordingAvlTreeMetrics();
+    tree.setMetrics(metrics);
+    for (int i = 10000; i > 0; i--)
+      assertTrue(tree.insertNear(i));
+    checkedHeight(tree.root);
+    assertEquals(Integer.valueOf(1), tree.findMin());
+    assertTrue(metrics.snapshot().comparisonsPerInsert() < 4);
+  }
+
+  /**
+   * Check the WAVL rank rule: every rank difference is 1 or 2 and leaves
+   * have rank 0. Returns the rank of n, -1 for a missing node.
+   */
+  private int checkedRank(AvlTree.AvlNode<Integer> n) {
+    if (n == null)
+      return -1;
+    int l = checkedRank(n.left);
+    int r = checkedRank(n.right);
+    if (n.left == null && n.right == null)
+      assertEquals("rank of leaf " + n.element, 0, n.height);
+    assertTrue("left rank difference at " + n.element, n.height - l == 1 || n.height - l == 2);
+    assertTrue("right rank difference at " + n.element, n.height - r == 1 || n.height - r == 2);
+    return n.height;
+  }
+
+  @Test
+  public void testWavlMatchesTreeSet() {
+    tree = new AvlTree<Integer>(BalancePolicy.WAVL);
+    assertEquals(BalancePolicy.WAVL, tree.balancePolicy());
+    Random r = new Random(23);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int x = r.nextInt(3000);
+      switch (r.nextInt(3)) {
+      case 0:
+        assertEquals(expected.add(x), tree.insert(x));
+        break;
+      case 1:
+        assertEquals(expected.add(x), tree.insertNear(x));
+        break;
+      default:
+        assertEquals(expected.remove(x), tree.remove(x));
+        break;
+      }
+      if (i % 5000 == 0) {
+        checkedRank(tree.root);
+        checkedSize(tree.root);
+      }
+    }
+    checkedRank(tree.root);
+    checkedSize(tree.root);
+    assertEquals(expected.size(), tree.size());
+    assertEquals(infixOf(expected), tree.serializeInfix());
+    // Within 2 log2 n
+    assertTrue(getDepth(tree.root) <= 2 * 32 - 2 * Integer.numberOfLeadingZeros(tree.size()));
+
+    for (int x : new ArrayList<Integer>(expected)) {
+      assertTrue(tree.remove(x));
+      if (x % 97 == 0)
+        checkedRank(tree.root);
+    }
+    assertTrue(tree.isEmpty());
+  }
+
+  @Test
+  public void testWavlRemoveRotatesAtMostOnce() {
+    tree = new AvlTree<Integer>(BalancePolicy.WAVL);
+    RecordingAvlTreeMetrics metrics = new RecordingAvlTreeMetrics();
+    tree.setMetrics(metrics);
+    Random r = new Random(24);
+    for (int i = 0; i < 20000; i++)
+      tree.insert(r.nextInt(100000));
+    long before = metrics.snapshot().rotations(AvlTreeMetrics.Cause.REMOVE);
+    while (!tree.isEmpty()) {
+      tree.remove(r.nextBoolean() ? tree.findMin() : tree.select(r.nextInt(tree.size())));
+      // A double rotation is recorded as one LR or RL
+      long after = metrics.snapshot().rotations(AvlTreeMetrics.Cause.REMOVE);
+      assertTrue(after - before <= 1);
+      before = after;
+    }
+  }
+
+  private void assertSameShape(AvlTree.AvlNode<Integer> a, AvlTree.AvlNode<Integer> b) {
+    if (a == null || b == null) {
+      assertSame(a, b);
+      return;
+    }
+    assertEquals(a.element, b.element);
+    assertEquals(a.height, b.height);
+    assertSameShape(a.left, b.left);
+    assertSameShape(a.right, b.right);
+  }
+
+  @Test
+  public void testWavlInsertOnlyIsAvl() {
+    AvlTree<Integer> wavl = new AvlTree<Integer>(BalancePolicy.WAVL);
+    Random r = new Random(25);
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(50000);
+      tree.insert(x);
+      wavl.insert(x);
+    }
+    checkedHeight(wavl.root);
+    assertSameShape(tree.root, wavl.root);
+  }
+
+  @Test
+  public void testWavlBulkOperationsAfterRemoves() {
+    Random r = new Random(26);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    AvlTree<Integer> a = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 5000; i++) {
+      int x = r.nextInt(20000);
+      expected.add(x);
+      a.insert(x);
+    }
+    for (int i = 0; i < 4000; i++) {
+      int x = r.nextInt(20000);
+      assertEquals(expected.remove(x), a.remove(x));
+    }
+
+    List<Integer> more = new ArrayList<Integer>();
+    for (int i = 0; i < 1000; i++)
+      more.add(r.nextInt(20000));
+    a.insertAll(more);
+    expected.addAll(more);
+    checkedRank(a.root);
+    assertEquals(infixOf(expected), a.serializeInfix());
+
+    for (int i = 0; i < 1000; i++) {
+      int x = r.nextInt(20000);
+      assertEquals(expected.remove(x), a.remove(x));
+    }
+    AvlTree.Split<Integer> parts = a.split(10000);
+    checkedRank(parts.left.root);
+    checkedRank(parts.right.root);
+    assertEquals(BalancePolicy.WAVL, parts.left.balancePolicy());
+    parts.right.remove(parts.right.findMin());
+    expected.remove(expected.ceiling(10001));
+
+    AvlTree<Integer> joined = AvlTree.join(parts.left, 10000, parts.right);
+    expected.add(10000);
+    checkedRank(joined.root);
+    assertEquals(infixOf(expected), joined.serializeInfix());
+
+    AvlTree<Integer> b = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 3000; i++)
+      b.insert(r.nextInt(20000));
+    for (int i = 0; i < 2000; i++)
+      b.remove(r.nextInt(20000));
+    TreeSet<Integer> other = new TreeSet<Integer>();
+    for (Integer x : b)
+      other.add(x);
+    joined.union(b);
+    expected.addAll(other);
+    checkedRank(joined.root);
+    checkedSize(joined.root);
+    assertEquals(infixOf(expected), joined.serializeInfix());
+  }
+
+  @Test
+  public void testWavlJoinsKeepRankRule() {
+    Random r = new Random(28);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    AvlTree<Integer> a = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int round = 0; round < 100; round++) {
+      List<Integer> batch = new ArrayList<Integer>();
+      for (int i = 0; i < 200; i++)
+        batch.add(r.nextInt(20000));
+      AvlTree<Integer> b = new AvlTree<Integer>(BalancePolicy.WAVL);
+      for (Integer x : batch)
+        b.insert(x);
+      for (int i = 0; i < 100; i++)
+        b.remove(batch.get(r.nextInt(batch.size())));
+      TreeSet<Integer> other = new TreeSet<Integer>();
+      for (Integer x : b)
+        other.add(x);
+
+      switch (round % 6) {
+      case 0:
+        a.insertAll(batch);
+        expected.addAll(batch);
+        break;
+      case 1:
+        a.removeAll(batch);
+        expected.removeAll(batch);
+        break;
+      case 2:
+        a.union(b);
+        expected.addAll(other);
+        break;
+      case 3:
+        a.difference(b);
+        expected.removeAll(other);
+        break;
+      case 4:
+        int m = r.nextInt(7) + 2;
+        a.removeIf(x -> x % m == 0);
+        expected.removeIf(x -> x % m == 0);
+        break;
+      default:
+        for (int i = 0; i < 300; i++) {
+          int x = r.nextInt(20000);
+          assertEquals(expected.remove(x), a.remove(x));
+        }
+        break;
+      }
+      checkedRank(a.root);
+      checkedSize(a.root);
+      assertEquals(infixOf(expected), a.serializeInfix());
+    }
+
+    AvlTree<Integer> b = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 20000; i += 3)
+      b.insert(i);
+    a.intersection(b);
+    expected.removeIf(x -> x % 3 != 0);
+    checkedRank(a.root);
+    assertEquals(infixOf(expected), a.serializeInfix());
+  }
+
+  @Test
+  public void testWavlJoinsDoNotRebuild() {
+    tree = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 4096; i++)
+      tree.insert(i);
+    // Thinning out the tree leaves it out of AVL shape
+    for (int i = 0; i < 4096; i++)
+      if (i % 16 != 0)
+        tree.remove(i);
+    AvlTree.AvlNode<Integer> n = tree.root.right.right;
+    AvlTree.AvlNode<Integer> l = n.left, r = n.right;
+
+    // Splitting off the smallest elements only touches the left spine
+    assertEquals(3, tree.removeHead(48));
+    checkedRank(tree.root);
+    assertSame(l, n.left);
+    assertSame(r, n.right);
+  }
+
+  @Test
+  public void testRemoveRange() {
+    Random r = new Random(27);
+    for (int round = 0; round < 200; round++) {
+      TreeSet<Integer> expected = new TreeSet<Integer>();
+      AvlTree<Integer> t = new AvlTree<Integer>(round % 2 == 0 ? BalancePolicy.AVL : BalancePolicy.WAVL);
+      for (int i = 0; i < 2000; i++) {
+        int x = r.nextInt(5000);
+        expected.add(x);
+        t.insert(x);
+      }
+      for (int i = 0; i < 300; i++) {
+        int x = r.nextInt(5000);
+        expected.remove(x);
+        t.remove(x);
+      }
+      int from = r.nextInt(5200) - 100;
+      int to = round % 10 == 0 ? from : from + r.nextInt(2000);
+      boolean fromInclusive = r.nextBoolean();
+      boolean toInclusive = r.nextBoolean();
+
+      NavigableSet<Integer> range = expected.subSet(from, fromInclusive, to, toInclusive);
+      int n = range.size();
+      range.clear();
+      assertEquals(n, t.removeRange(from, fromInclusive, to, toInclusive));
+      if (t.balancePolicy() == BalancePolicy.WAVL)
+        checkedRank(t.root);
+      else
+        checkedHeight(t.root);
+      checkedSize(t.root);
+      assertEquals(infixOf(expected), t.serializeInfix());
+    }
+  }
+
+  @Test
+  public void testRemoveHeadAndTail() {
+    for (int i = 0; i < 1000; i++)
+      insert(2 * i);
+    assertEquals(50, tree.removeHead(100));
+    assertEquals(Integer.valueOf(100), tree.findMin());
+    assertEquals(1, tree.removeHead(100, true));
+    assertEquals(Integer.valueOf(102), tree.findMin());
+    assertEquals(0, tree.removeHead(50));
+
+    assertEquals(50, tree.removeTail(1900));
+    assertEquals(Integer.valueOf(1898), tree.findMax());
+    assertEquals(0, tree.removeTail(1898, false));
+    assertEquals(1, tree.removeTail(1897));
+    assertEquals(Integer.valueOf(1896), tree.findMax());
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+    assertEquals(898, tree.size());
+
+    assertEquals(898, tree.removeRange(0, 5000));
+    assertTrue(tree.isEmpty());
+    assertEquals(0, tree.removeTail(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRemoveRangeRejectsInvertedBounds() {
+    insert(1, 2, 3);
+    tree.removeRange(3, 1);
+  }
+
+  @Test
+  public void testRemoveIf() {
+    Random r = new Random(28);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(100000);
+      expected.add(x);
+      tree.insert(x);
+    }
+    AvlTree.AvlNode<Integer> root = tree.root;
+    assertEquals(0, tree.removeIf(x -> x < 0));
+    assertSame(root, tree.root);
+
+    int n = expected.size();
+    expected.removeIf(x -> x % 3 == 0);
+    assertEquals(n - expected.size(), tree.removeIf(x -> x % 3 == 0));
+    checkedHeight(tree.root);
+    checkedSize(tree.root);
+    assertEquals(infixOf(expected), tree.serializeInfix());
+
+    // A contiguous run, then everything
+    n = expected.size();
+    expected.removeIf(x -> x >= 40000 && x < 60000);
+    assertEquals(n - expected.size(), tree.removeIf(x -> x >= 40000 && x < 60000));
+    checkedHeight(tree.root);
+    assertEquals(infixOf(expected), tree.serializeInfix());
+    assertEquals(expected.size(), tree.removeIf(x -> true));
+    assertTrue(tree.isEmpty());
+  }
+
+  @Test
+  public void testRemoveIfLeavesTreeOnException() {
+    insert(1, 2, 3, 4, 5);
+    try {
+      tree.removeIf(x -> {
+        if (x == 4)
+          throw new IllegalStateException();
+        return true;
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals("1 2 3 4 5 ", tree.serializeInfix());
+  }
+
+  /**
+   * Ordered and compared by key alone, so a replacing insert shows in
+   * the payload.
+   */
+  static final class Keyed implements Comparable<Keyed> {
+    final int key;
+    final String payload;
+
+    Keyed(int key, String payload) {
+      this.key = key;
+      this.payload = payload;
+    }
+
+    public int compareTo(Keyed o) {
+      return Integer.compare(key, o.key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Keyed && ((Keyed) o).key == key;
+    }
+
+    @Override
+    public int hashCode() {
+      return key;
+    }
+  }
 }
@@ -0,0 +1,152 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentAvlTreeTest {
+  private ConcurrentAvlTree<Integer> tree = new ConcurrentAvlTree<Integer>();
+
+  /**
+   * Checks links, ordering, heights and balance of a quiescent tree, and
+   * collects the present keys in order.
+   */
+  private static int checkSubtree(ConcurrentAvlTree.Node<Integer> n, ConcurrentAvlTree.Node<Integer> parent,
+                                  Integer lo, Integer hi, List<Integer> present) {
+    if (n == null)
+      return 0;
+    assertSame(parent, n.parent);
+    assertTrue(lo == null || n.key > lo);
+    assertTrue(hi == null || n.key < hi);
+    int hL = checkSubtree(n.left, n, lo, n.key, present);
+    if (n.present)
+      present.add(n.key);
+    else
+      assertTrue("routing node with a free child slot", n.left != null && n.right != null);
+    int hR = checkSubtree(n.right, n, n.key, hi, present);
+    assertTrue(Math.abs(hL - hR) < 2);
+    assertEquals(Math.max(hL, hR) + 1, n.height);
+    return n.height;
+  }
+
+  private List<Integer> checkedContents() {
+    List<Integer> present = new ArrayList<Integer>();
+    checkSubtree(tree.rootHolder.right, tree.rootHolder, null, null, present);
+    return present;
+  }
+
+  @Test
+  public void testSingleThreadMatchesTreeSet() {
+    Random r = new Random(13);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int x = r.nextInt(2000);
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+      assertEquals(expected.contains(x), tree.contains(x));
+    }
+    assertEquals(new ArrayList<Integer>(expected), checkedContents());
+    assertEquals(expected.size(), tree.size());
+    assertEquals(expected.first(), tree.findMin());
+    assertEquals(expected.last(), tree.findMax());
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(tree.isEmpty());
+    assertNull(tree.findMin());
+    assertNull(tree.findMax());
+    assertFalse(tree.remove(1));
+    assertTrue(tree.insert(1));
+    assertTrue(tree.insert(2));
+    assertTrue(tree.insert(0));
+    // 1 has two children, so it becomes a routing node
+    assertTrue(tree.remove(1));
+    assertFalse(tree.contains(1));
+    assertTrue(tree.insert(1));
+    assertTrue(tree.remove(0));
+    assertTrue(tree.remove(1));
+    assertTrue(tree.remove(2));
+    assertTrue(tree.isEmpty());
+  }
+
+  @Test
+  public void testConcurrentWritersAndReaders() throws Throwable {
+    final int threads = 4;
+    final int perThread = 20000;
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    // Multiples of 'threads' are stable and must always be found
+    for (int i = 0; i < threads * perThread; i += threads)
+      tree.insert(i);
+
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 1; t < threads; t++) {
+      final int lane = t;
+      workers.add(new Thread() {
+        public void run() {
+          Random r = new Random(lane);
+          for (int i = 0; i < 200000; i++) {
+            int x = r.nextInt(perThread) * threads + lane;
+            if (r.nextBoolean())
+              tree.insert(x);
+            else
+              tree.remove(x);
+          }
+          // Leave exactly the lane's even slots behind
+          for (int k = 0; k < perThread; k++) {
+            int x = k * threads + lane;
+            if (k % 2 == 0)
+              tree.insert(x);
+            else
+              tree.remove(x);
+          }
+        }
+      });
+    }
+    for (int t = 0; t < 2; t++) {
+      final int seed = 100 + t;
+      workers.add(new Thread() {
+        public void run() {
+          Random r = new Random(seed);
+          try {
+            while (!done.get()) {
+              int x = r.nextInt(perThread) * threads;
+              assertTrue(tree.contains(x));
+              assertEquals(0, tree.findMin().intValue());
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+
+    for (Thread w : workers)
+      w.start();
+    for (int i = 0; i < threads - 1; i++)
+      workers.get(i).join();
+    done.set(true);
+    for (Thread w : workers)
+      w.join();
+    if (failure.get() != null)
+      throw failure.get();
+
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < threads * perThread; i++)
+      if (i % threads == 0 || (i / threads) % 2 == 0)
+        expected.add(i);
+    assertEquals(expected, checkedContents());
+    assertEquals(expected.size(), tree.size());
+  }
+}
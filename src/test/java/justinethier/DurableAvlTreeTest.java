@@ -0,0 +1,232 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurableAvlTreeTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path dir() {
+    return folder.getRoot().toPath().resolve("tree");
+  }
+
+  private DurableAvlTree<Integer> open(long checkpointBytes) throws IOException {
+    return DurableAvlTree.open(dir(), ElementCodec.INTEGER, false, checkpointBytes);
+  }
+
+  private List<Path> segments() throws IOException {
+    List<Path> list = new ArrayList<Path>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir(), "wal-*.log")) {
+      for (Path f : files)
+        list.add(f);
+    }
+    Collections.sort(list);
+    return list;
+  }
+
+  @Test
+  public void testRecoversFromLog() throws IOException {
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    Random r = new Random(22);
+    DurableAvlTree<Integer> tree = open(0);
+    for (int i = 0; i < 5000; i++) {
+      int x = r.nextInt(2000);
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+    }
+    // No close: every acknowledged update must already be in the log
+    DurableAvlTree<Integer> recovered = open(0);
+    assertEquals(new ArrayList<Integer>(expected), recovered.toList());
+    recovered.close();
+    tree.close();
+  }
+
+  @Test
+  public void testForcedCommits() throws IOException {
+    DurableAvlTree<Integer> tree = DurableAvlTree.open(dir(), ElementCodec.INTEGER);
+    for (int i = 0; i < 50; i++)
+      assertTrue(tree.insert(i));
+    assertFalse(tree.insert(7));
+    assertTrue(tree.remove(7));
+    tree.close();
+
+    tree = DurableAvlTree.open(dir(), ElementCodec.INTEGER);
+    assertEquals(49, tree.size());
+    assertFalse(tree.contains(7));
+    assertEquals(Integer.valueOf(0), tree.findMin());
+    assertEquals(Integer.valueOf(49), tree.findMax());
+    tree.close();
+  }
+
+  @Test
+  public void testCheckpointTruncatesLog() throws IOException {
+    DurableAvlTree<Integer> tree = open(0);
+    for (int i = 0; i < 1000; i++)
+      tree.insert(i);
+    assertTrue(tree.checkpoint());
+    assertEquals(1, segments().size());
+    assertEquals(0, Files.size(segments().get(0)));
+    assertTrue(Files.exists(dir().resolve(DurableAvlTree.CHECKPOINT)));
+
+    for (int i = 0; i < 1000; i += 2)
+      tree.remove(i);
+    tree.insert(5000);
+    tree.close();
+
+    tree = open(0);
+    assertEquals(501, tree.size());
+    assertTrue(tree.contains(999));
+    assertFalse(tree.contains(998));
+    assertTrue(tree.contains(5000));
+
+    // Checkpoint again after recovery, then recover from it alone
+    assertTrue(tree.checkpoint());
+    tree.close();
+    tree = open(0);
+    assertEquals(501, tree.size());
+    tree.close();
+  }
+
+  @Test
+  public void testAutomaticCheckpoints() throws IOException {
+    DurableAvlTree<Integer> tree = open(4096);
+    for (int i = 0; i < 10000; i++)
+      tree.insert(i);
+    // 21-byte records: a checkpoint about every 200 inserts
+    assertTrue(Files.exists(dir().resolve(DurableAvlTree.CHECKPOINT)));
+    assertTrue(Files.size(segments().get(segments().size() - 1)) < 4096 + 21);
+    assertEquals(1, segments().size());
+
+    DurableAvlTree<Integer> recovered = open(4096);
+    assertEquals(10000, recovered.size());
+    recovered.close();
+    tree.close();
+  }
+
+  @Test
+  public void testTornTailIsDiscarded() throws IOException {
+    DurableAvlTree<Integer> tree = open(0);
+    for (int i = 0; i < 100; i++)
+      tree.insert(i);
+    tree.close();
+
+    // Half of a record, as from a crash in the middle of a write
+    Path log = segments().get(0);
+    long size = Files.size(log);
+    try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      ch.truncate(size - 10);
+    }
+    tree = open(0);
+    assertEquals(99, tree.size());
+    assertFalse(tree.contains(99));
+    assertEquals(size - 21, Files.size(log));
+    tree.insert(1000);
+    tree.close();
+
+    tree = open(0);
+    assertEquals(100, tree.size());
+    assertTrue(tree.contains(1000));
+    tree.close();
+  }
+
+  @Test
+  public void testBadChecksumEndsLog() throws IOException {
+    DurableAvlTree<Integer> tree = open(0);
+    for (int i = 0; i < 10; i++)
+      tree.insert(i);
+    tree.close();
+
+    Path log = segments().get(0);
+    try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      // Flip the element of the last record
+      ch.write(ByteBuffer.wrap(new byte[] {(byte) 0x55}), Files.size(log) - 1);
+    }
+    tree = open(0);
+    assertEquals(9, tree.size());
+    tree.close();
+  }
+
+  @Test(expected = StreamCorruptedException.class)
+  public void testDamageBeforeLaterSegmentsIsCorruption() throws IOException {
+    DurableAvlTree<Integer> tree = open(0);
+    for (int i = 0; i < 10; i++)
+      tree.insert(i);
+    Path first = segments().get(0);
+    // Leaves the first segment in place until the checkpoint succeeds
+    Files.createDirectory(dir().resolve(DurableAvlTree.CHECKPOINT + ".tmp"));
+    try {
+      tree.checkpoint();
+      fail();
+    }
+    catch (IOException e) {
+      // expected
+    }
+    tree.insert(100);
+    tree.close();
+    Files.delete(dir().resolve(DurableAvlTree.CHECKPOINT + ".tmp"));
+
+    try (FileChannel ch = FileChannel.open(first, StandardOpenOption.WRITE)) {
+      ch.write(ByteBuffer.wrap(new byte[] {(byte) 0x55}), 30);
+    }
+    open(0);
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    final DurableAvlTree<Integer> tree = DurableAvlTree.open(dir(), ElementCodec.INTEGER, true, 1 << 14);
+    final int threads = 4;
+    final int perThread = 300;
+    Thread[] workers = new Thread[threads];
+    final IOException[] error = new IOException[1];
+    for (int t = 0; t < threads; t++) {
+      final int base = t * perThread;
+      workers[t] = new Thread(() -> {
+        try {
+          for (int i = 0; i < perThread; i++)
+            tree.insert(base + i);
+        }
+        catch (IOException e) {
+          error[0] = e;
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread w : workers)
+      w.join();
+    assertNull(error[0]);
+    assertEquals(threads * perThread, tree.size());
+    tree.close();
+
+    DurableAvlTree<Integer> recovered = DurableAvlTree.open(dir(), ElementCodec.INTEGER);
+    assertEquals(threads * perThread, recovered.size());
+    assertEquals(Integer.valueOf(threads * perThread - 1), recovered.findMax());
+    recovered.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosedTreeRejectsUpdates() throws IOException {
+    DurableAvlTree<Integer> tree = open(0);
+    tree.close();
+    tree.insert(1);
+  }
+}
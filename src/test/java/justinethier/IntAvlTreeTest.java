@@ -0,0 +1,77 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class IntAvlTreeTest {
+  private IntAvlTree tree = new IntAvlTree();
+
+  /**
+   * Check balance and stored heights; returns the real height.
+   */
+  private int checkedHeight(IntAvlTree.IntNode n) {
+    if (n == null)
+      return -1;
+    int l = checkedHeight(n.left);
+    int r = checkedHeight(n.right);
+    assertTrue("unbalanced at " + n.key, Math.abs(l - r) < 2);
+    assertEquals("height at " + n.key, Math.max(l, r) + 1, n.height);
+    return n.height;
+  }
+
+  @Test
+  public void testInsertAndContains() {
+    assertTrue(tree.insert(5));
+    assertTrue(tree.insert(3));
+    assertTrue(tree.insert(8));
+    assertFalse(tree.insert(3));
+
+    assertTrue(tree.contains(3));
+    assertFalse(tree.contains(4));
+    assertEquals(3, tree.findMin());
+    assertEquals(8, tree.findMax());
+    assertEquals("3 5 8 ", tree.serializeInfix());
+    assertEquals("5 3 8 ", tree.serializePrefix());
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testFindMinOfEmptyTree() {
+    tree.findMin();
+  }
+
+  @Test
+  public void testRemove() {
+    for (int i = 0; i < 100; i++)
+      tree.insert(i);
+    for (int i = 0; i < 50; i++)
+      assertTrue(tree.remove(i));
+    assertFalse(tree.remove(0));
+    checkedHeight(tree.root);
+    assertEquals(50, tree.findMin());
+    assertEquals(99, tree.findMax());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random r = new Random(3);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int x = r.nextInt(2000) - 1000;
+      if (r.nextBoolean())
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+    }
+    checkedHeight(tree.root);
+
+    StringBuilder str = new StringBuilder();
+    for (Integer i : expected)
+      str.append(i).append(' ');
+    assertEquals(str.toString(), tree.serializeInfix());
+  }
+}
@@ -0,0 +1,155 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class IntBlockAvlTreeTest {
+  private IntBlockAvlTree tree = new IntBlockAvlTree(8);
+
+  /**
+   * Check balance, stored heights, block order and fill; returns the
+   * real height.
+   */
+  private int checkedHeight(IntBlockAvlTree.Block n, long lo, long hi) {
+    if (n == null)
+      return -1;
+    assertTrue("empty block", n.count > 0);
+    for (int i = 0; i < n.count; i++) {
+      assertTrue("out of order at " + n.keys[i], n.keys[i] > lo && n.keys[i] < hi);
+      lo = n.keys[i];
+    }
+    assertEquals(n.keys[0], n.min);
+    assertEquals(n.keys[n.count - 1], n.max);
+    int l = checkedHeight(n.left, Long.MIN_VALUE, n.min);
+    int r = checkedHeight(n.right, n.max, Long.MAX_VALUE);
+    assertTrue("unbalanced at " + n.min, Math.abs(l - r) < 2);
+    assertEquals("height at " + n.min, Math.max(l, r) + 1, n.height);
+    return n.height;
+  }
+
+  private void check(IntBlockAvlTree t) {
+    checkedHeight(t.root, Long.MIN_VALUE, Long.MAX_VALUE);
+    int[] keys = t.toArray();
+    for (int i = 1; i < keys.length; i++)
+      assertTrue(keys[i - 1] < keys[i]);
+    assertEquals(t.size(), keys.length);
+  }
+
+  @Test
+  public void testInsertAndContains() {
+    assertTrue(tree.insert(5));
+    assertTrue(tree.insert(3));
+    assertTrue(tree.insert(8));
+    assertFalse(tree.insert(3));
+
+    assertTrue(tree.contains(3));
+    assertFalse(tree.contains(4));
+    assertEquals(3, tree.findMin());
+    assertEquals(8, tree.findMax());
+    assertEquals("3 5 8 ", tree.serializeInfix());
+    assertEquals(1, tree.blockCount());
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testFindMinOfEmptyTree() {
+    tree.findMin();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsTinyBlocks() {
+    new IntBlockAvlTree(2);
+  }
+
+  @Test
+  public void testSequentialInsertFillsBlocks() {
+    for (int i = 0; i < 8000; i++)
+      assertTrue(tree.insert(i));
+    check(tree);
+    assertEquals(1000, tree.blockCount());
+
+    IntBlockAvlTree descending = new IntBlockAvlTree(8);
+    for (int i = 8000; i > 0; i--)
+      assertTrue(descending.insert(i));
+    check(descending);
+    assertEquals(1000, descending.blockCount());
+  }
+
+  @Test
+  public void testRemoveMergesBlocks() {
+    for (int i = 0; i < 8000; i++)
+      tree.insert(i);
+    for (int i = 0; i < 8000; i++)
+      if (i % 8 != 0)
+        assertTrue(tree.remove(i));
+    assertFalse(tree.remove(1));
+    check(tree);
+    assertEquals(1000, tree.size());
+    // No block left under a quarter full
+    assertTrue(tree.blockCount() <= 500);
+
+    for (int i = 0; i < 8000; i += 8)
+      assertTrue(tree.remove(i));
+    assertTrue(tree.isEmpty());
+    assertEquals(0, tree.blockCount());
+    assertEquals(0, tree.size());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random r = new Random(24);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 100000; i++) {
+      int x = r.nextInt(4000) - 2000;
+      if (r.nextInt(5) < 3)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+      assertEquals(expected.contains(x), tree.contains(x));
+      if (i % 10000 == 0)
+        check(tree);
+    }
+    check(tree);
+    assertEquals(expected.size(), tree.size());
+
+    StringBuilder str = new StringBuilder();
+    for (Integer i : expected)
+      str.append(i).append(' ');
+    assertEquals(str.toString(), tree.serializeInfix());
+
+    for (int x : new ArrayList<Integer>(expected)) {
+      assertTrue(tree.remove(x));
+      if (x % 101 == 0)
+        check(tree);
+    }
+    assertTrue(tree.isEmpty());
+  }
+
+  @Test
+  public void testForEachInRange() {
+    Random r = new Random(25);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    IntBlockAvlTree t = new IntBlockAvlTree();
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(100000);
+      expected.add(x);
+      t.insert(x);
+    }
+    for (int i = 0; i < 200; i++) {
+      int lo = r.nextInt(110000) - 5000;
+      int hi = lo + r.nextInt(i < 100 ? 100 : 20000);
+      List<Integer> seen = new ArrayList<Integer>();
+      t.forEachInRange(lo, hi, seen::add);
+      assertEquals(new ArrayList<Integer>(expected.subSet(lo, true, hi, true)), seen);
+    }
+    List<Integer> all = new ArrayList<Integer>();
+    t.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, all::add);
+    assertEquals(new ArrayList<Integer>(expected), all);
+  }
+}
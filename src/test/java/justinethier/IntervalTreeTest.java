@@ -0,0 +1,152 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class IntervalTreeTest {
+  private IntervalTree<Integer> tree = new IntervalTree<Integer>();
+
+  private static List<Interval<Integer>> listOf(Iterator<Interval<Integer>> it) {
+    List<Interval<Integer>> list = new ArrayList<Interval<Integer>>();
+    while (it.hasNext())
+      list.add(it.next());
+    return list;
+  }
+
+  private static List<Interval<Integer>> scan(TreeSet<Interval<Integer>> all, int from, int to) {
+    List<Interval<Integer>> list = new ArrayList<Interval<Integer>>();
+    for (Interval<Integer> i : all)
+      if (i.overlaps(from, to))
+        list.add(i);
+    return list;
+  }
+
+  /**
+   * Checks the cached maxima against the subtrees.
+   */
+  private static int checkMaxHigh(AvlTree.AvlNode<Interval<Integer>> t) {
+    if (t == null)
+      return Integer.MIN_VALUE;
+    int m = Math.max(t.element.high, Math.max(checkMaxHigh(t.left), checkMaxHigh(t.right)));
+    assertEquals(m, ((IntervalTree.IntervalNode<Integer>) t).maxHigh.intValue());
+    return m;
+  }
+
+  @Test
+  public void testMatchesScan() {
+    TreeSet<Interval<Integer>> expected = new TreeSet<Interval<Integer>>();
+    Random r = new Random(18);
+    for (int i = 0; i < 5000; i++) {
+      int low = r.nextInt(10000);
+      int high = low + r.nextInt(r.nextInt(10) == 0 ? 3000 : 100);
+      if (r.nextInt(4) > 0)
+        assertEquals(expected.add(new Interval<Integer>(low, high)), tree.insert(low, high));
+      else if (!expected.isEmpty()) {
+        Interval<Integer> victim = expected.ceiling(new Interval<Integer>(low, low));
+        if (victim != null) {
+          assertTrue(tree.remove(victim.low, victim.high));
+          expected.remove(victim);
+        }
+      }
+
+      if (i % 100 == 0) {
+        checkMaxHigh(tree.root);
+        for (int k = 0; k < 20; k++) {
+          int from = r.nextInt(11000);
+          int to = from + r.nextInt(200);
+          assertEquals(scan(expected, from, to), listOf(tree.overlapping(from, to)));
+          assertEquals(scan(expected, from, from), listOf(tree.stabbing(from)));
+          Interval<Integer> any = tree.findOverlapping(from, to);
+          if (any == null)
+            assertTrue(scan(expected, from, to).isEmpty());
+          else
+            assertTrue(any.overlaps(from, to) && expected.contains(any));
+        }
+      }
+    }
+    checkMaxHigh(tree.root);
+  }
+
+  @Test
+  public void testStabbing() {
+    tree.insert(1, 10);
+    tree.insert(2, 3);
+    tree.insert(5, 20);
+    tree.insert(11, 12);
+    tree.insert(15, 15);
+    assertEquals("[[1, 10], [5, 20]]", listOf(tree.stabbing(7)).toString());
+    assertEquals("[[5, 20], [15, 15]]", listOf(tree.stabbing(15)).toString());
+    assertTrue(listOf(tree.stabbing(21)).isEmpty());
+    assertTrue(listOf(tree.stabbing(0)).isEmpty());
+    assertEquals(Integer.valueOf(20), tree.maxHigh());
+
+    assertTrue(tree.remove(5, 20));
+    assertEquals(Integer.valueOf(15), tree.maxHigh());
+    assertEquals("[[1, 10]]", listOf(tree.stabbing(7)).toString());
+  }
+
+  @Test
+  public void testEmptyAndBadInput() {
+    assertFalse(tree.stabbing(1).hasNext());
+    assertNull(tree.findOverlapping(1, 2));
+    assertNull(tree.maxHigh());
+    try {
+      tree.insert(2, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testWalkDoesNotRedescend() {
+    IntervalTree<Point> points = new IntervalTree<Point>();
+    for (int i = 0; i < 100000; i++)
+      points.insert(new Point(2 * i), new Point(2 * i + 1));
+
+    Point.comparisons = 0;
+    Iterator<Interval<Point>> it = points.overlapping(new Point(50000), new Point(150000));
+    int k = 0;
+    while (it.hasNext()) {
+      it.next();
+      k++;
+    }
+    assertEquals(50001, k);
+    // A fixed number of comparisons per node visited, each visited once
+    assertTrue(Point.comparisons < 5 * k);
+  }
+
+  @Test(expected = ConcurrentModificationException.class)
+  public void testIteratorFailsFast() {
+    tree.insert(1, 10);
+    tree.insert(2, 10);
+    Iterator<Interval<Integer>> it = tree.stabbing(5);
+    it.next();
+    tree.insert(3, 10);
+    it.next();
+  }
+
+  /**
+   * Counts its comparisons.
+   */
+  static final class Point implements Comparable<Point> {
+    static int comparisons;
+    final int x;
+
+    Point(int x) {
+      this.x = x;
+    }
+
+    public int compareTo(Point o) {
+      comparisons++;
+      return Integer.compare(x, o.x);
+    }
+  }
+}
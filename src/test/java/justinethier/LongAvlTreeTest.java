@@ -0,0 +1,51 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class LongAvlTreeTest {
+  private LongAvlTree tree = new LongAvlTree();
+
+  private boolean checkBalanceOfTree(LongAvlTree.LongNode n) {
+    if (n == null)
+      return true;
+    return Math.abs(tree.height(n.left) - tree.height(n.right)) < 2
+        && n.height == Math.max(tree.height(n.left), tree.height(n.right)) + 1
+        && checkBalanceOfTree(n.left) && checkBalanceOfTree(n.right);
+  }
+
+  @Test
+  public void testWideKeys() {
+    long big = 1L << 40;
+    assertTrue(tree.insert(big));
+    assertTrue(tree.insert(-big));
+    assertTrue(tree.insert(big + 1));
+    assertFalse(tree.insert(big));
+
+    assertTrue(tree.contains(big + 1));
+    assertFalse(tree.contains(big - 1));
+    assertEquals(-big, tree.findMin());
+    assertEquals(big + 1, tree.findMax());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random r = new Random(5);
+    TreeSet<Long> expected = new TreeSet<Long>();
+    for (int i = 0; i < 50000; i++) {
+      long x = (r.nextInt(2000) - 1000) * 1000000007L;
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+      assertEquals(expected.contains(x), tree.contains(x));
+    }
+    assertTrue(checkBalanceOfTree(tree.root));
+    assertEquals(expected.first().longValue(), tree.findMin());
+    assertEquals(expected.last().longValue(), tree.findMax());
+  }
+}
@@ -0,0 +1,129 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedAvlTreeTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<Integer> listOf(Iterator<Integer> it) {
+    List<Integer> list = new ArrayList<Integer>();
+    while (it.hasNext())
+      list.add(it.next());
+    return list;
+  }
+
+  @Test
+  public void testQueriesMatchTree() throws IOException {
+    Random r = new Random(11);
+    AvlTree<Integer> tree = new AvlTree<Integer>();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(100000) - 50000;
+      tree.insert(x);
+      expected.add(x);
+    }
+
+    Path file = folder.getRoot().toPath().resolve("tree.img");
+    MappedAvlTree.write(tree, FixedWidthCodec.INTEGER, file);
+    MappedAvlTree<Integer> mapped = MappedAvlTree.open(file, FixedWidthCodec.INTEGER);
+
+    assertEquals(expected.size(), mapped.size());
+    assertEquals(expected.first(), mapped.findMin());
+    assertEquals(expected.last(), mapped.findMax());
+    assertEquals(new ArrayList<Integer>(expected), listOf(mapped.iterator()));
+    assertEquals(tree.select(1234), mapped.select(1234));
+
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(110000) - 55000;
+      assertEquals(expected.contains(x), mapped.contains(x));
+    }
+
+    for (int i = 0; i < 500; i++) {
+      int from = r.nextInt(110000) - 55000;
+      int to = from + r.nextInt(2000) - 100;
+      boolean fi = r.nextBoolean(), ti = r.nextBoolean();
+      NavigableSet<Integer> range = from > to ? new TreeSet<Integer>() : expected.subSet(from, fi, to, ti);
+      assertEquals(new ArrayList<Integer>(range), listOf(mapped.range(from, fi, to, ti)));
+    }
+  }
+
+  @Test
+  public void testEmptyAndRewrite() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("tree.img");
+    MappedAvlTree.write(new AvlTree<Long>(), FixedWidthCodec.LONG, file);
+    MappedAvlTree<Long> empty = MappedAvlTree.open(file, FixedWidthCodec.LONG);
+    assertTrue(empty.isEmpty());
+    assertNull(empty.findMin());
+    assertFalse(empty.contains(1L));
+    assertFalse(empty.iterator().hasNext());
+
+    AvlTree<Long> tree = new AvlTree<Long>();
+    tree.insert(1L << 40);
+    tree.insert(-5L);
+    MappedAvlTree.write(tree, FixedWidthCodec.LONG, file);
+
+    MappedAvlTree<Long> mapped = MappedAvlTree.open(file, FixedWidthCodec.LONG);
+    assertTrue(mapped.contains(1L << 40));
+    assertEquals(Long.valueOf(-5L), mapped.findMin());
+    assertTrue(empty.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteRejectsComparatorOrder() throws IOException {
+    AvlTree<Integer> tree = new AvlTree<Integer>(Comparator.reverseOrder());
+    for (int i = 0; i < 100; i++)
+      tree.insert(i);
+    MappedAvlTree.write(tree, FixedWidthCodec.INTEGER, folder.getRoot().toPath().resolve("tree.img"));
+  }
+
+  @Test
+  public void testRejectsBadImages() throws IOException {
+    AvlTree<Integer> tree = new AvlTree<Integer>();
+    for (int i = 0; i < 10; i++)
+      tree.insert(i);
+    Path file = folder.getRoot().toPath().resolve("tree.img");
+    MappedAvlTree.write(tree, FixedWidthCodec.INTEGER, file);
+
+    try {
+      MappedAvlTree.open(file, FixedWidthCodec.LONG);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ch.truncate(ch.size() - 1);
+    }
+    try {
+      MappedAvlTree.open(file, FixedWidthCodec.INTEGER);
+      fail();
+    } catch (IOException expected) {
+    }
+
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ch.write(ByteBuffer.allocate(4), 0);
+    }
+    try {
+      MappedAvlTree.open(file, FixedWidthCodec.INTEGER);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
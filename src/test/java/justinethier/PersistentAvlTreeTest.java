@@ -0,0 +1,179 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class PersistentAvlTreeTest {
+
+  private static int checkedHeight(PersistentAvlTree.Node<Integer> n) {
+    if (n == null)
+      return -1;
+    int lh = checkedHeight(n.left), rh = checkedHeight(n.right);
+    assertTrue(Math.abs(lh - rh) < 2);
+    assertEquals(Math.max(lh, rh) + 1, n.height);
+    assertEquals(PersistentAvlTree.size(n.left) + PersistentAvlTree.size(n.right) + 1, n.size);
+    return n.height;
+  }
+
+  private static List<Integer> listOf(Iterable<Integer> values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (Integer i : values)
+      list.add(i);
+    return list;
+  }
+
+  @Test
+  public void testOldVersionsAreUnchanged() {
+    Random r = new Random(12);
+    PersistentAvlTree<Integer> tree = PersistentAvlTree.empty();
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    List<PersistentAvlTree<Integer>> versions = new ArrayList<PersistentAvlTree<Integer>>();
+    List<List<Integer>> contents = new ArrayList<List<Integer>>();
+
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(2000);
+      PersistentAvlTree<Integer> next;
+      if (r.nextInt(3) > 0) {
+        next = tree.insert(x);
+        assertEquals(expected.add(x), next != tree);
+      } else {
+        next = tree.remove(x);
+        assertEquals(expected.remove(x), next != tree);
+      }
+      tree = next;
+      assertEquals(expected.contains(x), tree.contains(x));
+      if (i % 1000 == 0) {
+        versions.add(tree);
+        contents.add(new ArrayList<Integer>(expected));
+      }
+    }
+
+    checkedHeight(tree.root);
+    assertEquals(expected.size(), tree.size());
+    assertEquals(new ArrayList<Integer>(expected), listOf(tree));
+    assertEquals(expected.first(), tree.findMin());
+    assertEquals(expected.last(), tree.findMax());
+    for (int i = 0; i < versions.size(); i++)
+      assertEquals(contents.get(i), listOf(versions.get(i)));
+  }
+
+  @Test
+  public void testUpdatesShareUntouchedSubtrees() {
+    PersistentAvlTree<Integer> tree = PersistentAvlTree.empty();
+    for (int i = 0; i < 1023; i++)
+      tree = tree.insert(i);
+    PersistentAvlTree<Integer> next = tree.insert(-1);
+    assertSame(tree.root.right, next.root.right);
+    assertNotSame(tree.root.left, next.root.left);
+    assertSame(tree, tree.remove(5000));
+  }
+
+  @Test
+  public void testEmptyAndCopy() {
+    PersistentAvlTree<Integer> empty = PersistentAvlTree.empty();
+    assertTrue(empty.isEmpty());
+    assertNull(empty.findMin());
+    assertNull(empty.findMax());
+    assertFalse(empty.iterator().hasNext());
+    assertTrue(empty.insert(1).remove(1).isEmpty());
+
+    AvlTree<Integer> source = new AvlTree<Integer>();
+    for (int i = 0; i < 100; i++)
+      source.insert(i * 7 % 100);
+    PersistentAvlTree<Integer> copy = PersistentAvlTree.copyOf(source);
+    assertEquals(source.serializePrefix(), copy.serializePrefix());
+    assertEquals(source.serializeInfix(), copy.serializeInfix());
+    source.makeEmpty();
+    assertEquals(100, copy.size());
+  }
+
+  @Test
+  public void testCopyOfWavlTree() {
+    AvlTree<Integer> source = new AvlTree<Integer>(BalancePolicy.WAVL);
+    for (int i = 0; i < 4096; i++)
+      source.insert(i);
+    // Thinning out the tree leaves subtree heights differing by more than one
+    for (int i = 0; i < 4096; i++)
+      if (i % 16 != 0)
+        source.remove(i);
+    String shape = source.serializePrefix();
+    Iterator<Integer> it = source.iterator();
+    assertEquals(Integer.valueOf(0), it.next());
+    PersistentAvlTree<Integer> copy = PersistentAvlTree.copyOf(source);
+    // The source is left as it was, so its iterators stay valid
+    assertEquals(Integer.valueOf(16), it.next());
+    assertEquals(shape, source.serializePrefix());
+    checkedHeight(copy.root);
+    assertEquals(source.serializeInfix(), copy.serializeInfix());
+
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 4096; i += 16)
+      expected.add(i);
+    Random r = new Random(24);
+    for (int i = 0; i < 2000; i++) {
+      int x = r.nextInt(4096);
+      if (r.nextBoolean()) {
+        copy = copy.insert(x);
+        expected.add(x);
+      } else {
+        copy = copy.remove(x);
+        expected.remove(x);
+      }
+      checkedHeight(copy.root);
+    }
+    assertEquals(new ArrayList<Integer>(expected), listOf(copy));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCopyRejectsComparatorOrder() {
+    AvlTree<Integer> source = new AvlTree<Integer>(Comparator.reverseOrder());
+    for (int i = 0; i < 100; i++)
+      source.insert(i);
+    PersistentAvlTree.copyOf(source);
+  }
+
+  @Test
+  public void testReadersSeeConsistentSnapshots() throws InterruptedException {
+    final AtomicReference<PersistentAvlTree<Integer>> current =
+        new AtomicReference<PersistentAvlTree<Integer>>(PersistentAvlTree.<Integer>empty());
+    final int writes = 20000;
+
+    Thread writer = new Thread() {
+      public void run() {
+        // Keeps the invariant that the tree holds the range [lo, hi)
+        int lo = 0;
+        for (int hi = 0; hi < writes; hi++) {
+          PersistentAvlTree<Integer> t = current.get().insert(hi);
+          if (hi - lo > 100)
+            t = t.remove(lo++);
+          current.set(t);
+        }
+      }
+    };
+    writer.start();
+
+    while (writer.isAlive()) {
+      PersistentAvlTree<Integer> snapshot = current.get();
+      Integer prev = null;
+      int count = 0;
+      for (Integer x : snapshot) {
+        if (prev != null)
+          assertEquals(prev + 1, x.intValue());
+        prev = x;
+        count++;
+      }
+      assertEquals(snapshot.size(), count);
+    }
+    writer.join();
+    assertEquals(writes - 1, current.get().findMax().intValue());
+  }
+}
@@ -0,0 +1,83 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class PooledIntAvlTreeTest {
+  private PooledIntAvlTree tree = new PooledIntAvlTree();
+
+  /**
+   * Check balance and stored heights; returns the real height.
+   */
+  private int checkedHeight(int n) {
+    if (n == PooledIntAvlTree.NIL)
+      return -1;
+    int l = checkedHeight(tree.left[n]);
+    int r = checkedHeight(tree.right[n]);
+    assertTrue("unbalanced at " + tree.keys[n], Math.abs(l - r) < 2);
+    assertEquals("height at " + tree.keys[n], Math.max(l, r) + 1, tree.height[n]);
+    return tree.height[n];
+  }
+
+  @Test
+  public void testInsertAndContains() {
+    assertTrue(tree.isEmpty());
+    assertTrue(tree.insert(5));
+    assertTrue(tree.insert(3));
+    assertTrue(tree.insert(8));
+    assertFalse(tree.insert(3));
+
+    assertEquals(3, tree.size());
+    assertTrue(tree.contains(3));
+    assertFalse(tree.contains(4));
+    assertEquals(3, tree.findMin());
+    assertEquals(8, tree.findMax());
+    assertEquals("3 5 8 ", tree.serializeInfix());
+    assertEquals("5 3 8 ", tree.serializePrefix());
+  }
+
+  @Test
+  public void testRemovedSlotsAreReused() {
+    for (int i = 0; i < 1000; i++)
+      tree.insert(i);
+    int capacity = tree.capacity();
+
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 1000; i += 2)
+        assertTrue(tree.remove(i));
+      for (int i = 0; i < 1000; i += 2)
+        assertTrue(tree.insert(i));
+    }
+    assertEquals(capacity, tree.capacity());
+    assertEquals(1000, tree.size());
+    checkedHeight(tree.root);
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random r = new Random(11);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 50000; i++) {
+      int x = r.nextInt(3000);
+      if (r.nextBoolean())
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+    }
+    checkedHeight(tree.root);
+    assertEquals(expected.size(), tree.size());
+
+    StringBuilder str = new StringBuilder();
+    for (Integer i : expected)
+      str.append(i).append(' ');
+    assertEquals(str.toString(), tree.serializeInfix());
+
+    tree.makeEmpty();
+    assertTrue(tree.isEmpty());
+    assertFalse(tree.contains(expected.first()));
+  }
+}
@@ -0,0 +1,162 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class PrefixComparatorTest {
+
+  private static String randomString(Random r, int maxLength, int alphabet) {
+    int n = r.nextInt(maxLength + 1);
+    StringBuilder sb = new StringBuilder(n);
+    for (int i = 0; i < n; i++)
+      sb.append((char) r.nextInt(alphabet));
+    return sb.toString();
+  }
+
+  private static <T> List<T> toList(Iterable<T> it) {
+    List<T> list = new ArrayList<T>();
+    for (T x : it)
+      list.add(x);
+    return list;
+  }
+
+  /** PrefixComparator.STRING that counts its full comparisons. */
+  private static final class CountingComparator implements PrefixComparator<String> {
+    int compares;
+
+    @Override
+    public int compare(String a, String b) {
+      compares++;
+      return a.compareTo(b);
+    }
+
+    @Override
+    public long prefix(String s) {
+      return PrefixComparator.STRING.prefix(s);
+    }
+  }
+
+  @Test
+  public void testStringPrefixIsConsistent() {
+    Random r = new Random(200);
+    String[] samples = { "", "a", "a\u0000", "ab", "abcdefgh", "abcdefghi", "abcdefgz",
+                         "þ", "ÿ", "ÿa", "Ā", "￿", "a中", "aÿ" };
+    List<String> keys = new ArrayList<String>();
+    Collections.addAll(keys, samples);
+    for (int i = 0; i < 2000; i++)
+      keys.add(randomString(r, 10, i % 2 == 0 ? 4 : 0x300));
+
+    for (String a : keys) {
+      for (int k = 0; k < 50; k++) {
+        String b = keys.get(r.nextInt(keys.size()));
+        int cmp = a.compareTo(b);
+        long pa = PrefixComparator.STRING.prefix(a);
+        long pb = PrefixComparator.STRING.prefix(b);
+        if (cmp == 0)
+          assertEquals(pa, pb);
+        else if (cmp < 0)
+          assertTrue(a + " / " + b, pa <= pb);
+        else
+          assertTrue(a + " / " + b, pa >= pb);
+      }
+    }
+  }
+
+  @Test
+  public void testStringTreeMatchesTreeSet() {
+    AvlTree<String> tree = new AvlTree<String>(PrefixComparator.STRING);
+    TreeSet<String> expected = new TreeSet<String>();
+    Random r = new Random(201);
+    for (int i = 0; i < 5000; i++) {
+      String s = randomString(r, 12, i % 3 == 0 ? 3 : 0x180);
+      switch (r.nextInt(3)) {
+      case 0:
+      case 1:
+        assertEquals(expected.add(s), tree.insert(s));
+        break;
+      default:
+        assertEquals(expected.remove(s), tree.remove(s));
+        break;
+      }
+      String probe = randomString(r, 12, 0x180);
+      assertEquals(expected.contains(probe), tree.contains(probe));
+    }
+    assertEquals(expected.size(), tree.size());
+    assertEquals(new ArrayList<String>(expected), toList(tree));
+
+    for (String s : expected)
+      assertTrue(tree.contains(s));
+    AvlTree<String> copy = new AvlTree<String>(PrefixComparator.STRING);
+    copy.buildFromUnsorted(expected);
+    assertEquals(new ArrayList<String>(expected), toList(copy));
+    assertTrue(copy.contains(expected.first()));
+  }
+
+  @Test
+  public void testPrefixesSaveComparisons() {
+    CountingComparator counting = new CountingComparator();
+    AvlTree<String> tree = new AvlTree<String>(counting);
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++)
+      keys.add(String.format("%08x-record", i * 7919));
+    for (String s : keys)
+      tree.insert(s);
+
+    counting.compares = 0;
+    for (String s : keys)
+      assertTrue(tree.contains(s));
+    // Distinct eight-character prefixes: only the final match needs the
+    // comparator
+    assertEquals(keys.size(), counting.compares);
+  }
+
+  @Test
+  public void testReverseComparator() {
+    AvlTree<Integer> tree = new AvlTree<Integer>(Collections.reverseOrder());
+    for (int i = 0; i < 100; i++)
+      tree.insert((i * 37) % 100);
+
+    Iterator<Integer> it = tree.iterator();
+    for (int i = 99; i >= 0; i--)
+      assertEquals(Integer.valueOf(i), it.next());
+    assertFalse(it.hasNext());
+
+    assertEquals(Integer.valueOf(99), tree.select(0));
+    assertEquals(0, tree.rank(99));
+    assertEquals(Integer.valueOf(50), tree.floor(50));
+    assertEquals(Integer.valueOf(49), tree.higher(50));
+    assertEquals(toList(tree.subSet(60, true, 50, false)),
+                 Arrays.asList(60, 59, 58, 57, 56, 55, 54, 53, 52, 51));
+    assertTrue(tree.remove(42));
+    assertFalse(tree.contains(42));
+
+    AvlTree.Split<Integer> parts = tree.split(50);
+    assertEquals(Integer.valueOf(99), parts.left.findMin());
+    assertEquals(Integer.valueOf(51), parts.left.findMax());
+    assertEquals(Integer.valueOf(49), parts.right.findMin());
+  }
+
+  @Test
+  public void testOfAndComparator() {
+    Comparator<Integer> order = Comparator.naturalOrder();
+    PrefixComparator<Integer> c = PrefixComparator.of(order, Integer::longValue);
+    AvlTree<Integer> tree = new AvlTree<Integer>(c);
+    assertSame(c, tree.comparator());
+    assertNull(new AvlTree<Integer>().comparator());
+    for (int i = 0; i < 500; i++)
+      tree.insert(i * 2);
+    for (int i = 0; i < 1000; i++)
+      assertEquals(i % 2 == 0, tree.contains(i));
+    assertEquals(Integer.valueOf(10), tree.ceiling(9));
+  }
+}
@@ -0,0 +1,155 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordingAvlTreeMetricsTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private AvlTree<Integer> tree = new AvlTree<Integer>();
+  private RecordingAvlTreeMetrics metrics = new RecordingAvlTreeMetrics();
+
+  @Test
+  public void testDefaultIsNone() {
+    assertSame(AvlTreeMetrics.NONE, tree.getMetrics());
+    tree.setMetrics(metrics);
+    assertSame(metrics, tree.getMetrics());
+    tree.setMetrics(null);
+    assertSame(AvlTreeMetrics.NONE, tree.getMetrics());
+  }
+
+  @Test
+  public void testCountsOperations() {
+    tree.setMetrics(metrics);
+    tree.insert(2);
+    tree.insert(1);
+    tree.insert(3);
+    assertFalse(tree.insert(1));
+    assertEquals(InsertResult.REPLACED, tree.insert(3, true));
+    assertTrue(tree.contains(2));
+    assertTrue(tree.contains(3));
+    assertFalse(tree.contains(4));
+    assertTrue(tree.remove(1));
+    assertFalse(tree.remove(1));
+
+    RecordingAvlTreeMetrics.Snapshot s = metrics.snapshot();
+    assertEquals(2, s.size);
+    assertEquals(3, s.insertions);
+    assertEquals(1, s.duplicates);
+    assertEquals(1, s.replacements);
+    // 0 + 1 + 1 for the inserts, then 2 + 2
+    assertEquals(6, s.insertComparisons);
+    assertEquals(1, s.removals);
+    assertEquals(1, s.removeMisses);
+    assertEquals(3, s.lookups);
+    assertEquals(2, s.lookupHits);
+    assertEquals(5, s.lookupComparisons);
+    long[] depths = s.depthHistogram();
+    assertEquals(1, depths[1]);
+    assertEquals(2, depths[2]);
+  }
+
+  @Test
+  public void testRotationsByCase() {
+    tree.setMetrics(metrics);
+    tree.insert(1);
+    tree.insert(2);
+    tree.insert(3);
+    RecordingAvlTreeMetrics.Snapshot s = metrics.snapshot();
+    assertEquals(1, s.rotations(AvlTreeMetrics.Rotation.RR, AvlTreeMetrics.Cause.INSERT));
+    assertEquals(1, s.rotations(AvlTreeMetrics.Cause.INSERT));
+
+    tree.insert(0);
+    tree.insert(-1);
+    tree.insert(10);
+    tree.insert(5);
+    s = metrics.snapshot().since(s);
+    assertEquals(1, s.rotations(AvlTreeMetrics.Rotation.LL));
+    assertEquals(1, s.rotations(AvlTreeMetrics.Rotation.RL));
+    assertEquals(4, s.insertions);
+
+    // Emptying the left subtree of 2 leaves its right one two higher
+    tree.remove(-1);
+    tree.remove(0);
+    tree.remove(1);
+    s = metrics.snapshot();
+    assertEquals(1, s.rotations(AvlTreeMetrics.Cause.REMOVE));
+    assertTrue(tree.checkBalanceOfTree(tree.root));
+  }
+
+  @Test
+  public void testBatchRotationsStillReported() {
+    tree.setMetrics(metrics);
+    BatchResult r = tree.insertAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+    assertEquals(r.rotations, metrics.snapshot().rotations(AvlTreeMetrics.Cause.BULK));
+  }
+
+  @Test
+  public void testReset() {
+    tree.setMetrics(metrics);
+    for (int i = 0; i < 100; i++)
+      tree.insert(i);
+    metrics.reset();
+    RecordingAvlTreeMetrics.Snapshot s = metrics.snapshot();
+    assertEquals(0, s.insertions);
+    assertEquals(0, s.rotations(AvlTreeMetrics.Cause.INSERT));
+    assertEquals(100, s.size);
+  }
+
+  @Test
+  public void testJmxAndJfr() throws Exception {
+    tree.setMetrics(metrics);
+    Recording recording = new Recording();
+    recording.enable(AvlTreeMetricsEvent.class).with("period", "endChunk");
+    recording.start();
+
+    metrics.register("test tree");
+    try {
+      for (int i = 0; i < 100; i++)
+        tree.insert(i);
+      tree.contains(50);
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("justinethier:type=AvlTree,name=" + ObjectName.quote("test tree"));
+      assertEquals(100, server.getAttribute(name, "Size"));
+      assertEquals(100L, server.getAttribute(name, "Insertions"));
+      assertEquals(1L, server.getAttribute(name, "Lookups"));
+
+      recording.stop();
+    } finally {
+      metrics.unregister();
+    }
+
+    Path file = folder.newFile("metrics.jfr").toPath();
+    recording.dump(file);
+    recording.close();
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    long insertions = 0;
+    long rotations = 0;
+    for (RecordedEvent e : events) {
+      if (e.getEventType().getName().equals("justinethier.AvlTreeMetrics")) {
+        assertEquals("test tree", e.getString("tree"));
+        insertions += e.getLong("insertions");
+        rotations += e.getLong("insertRotations");
+      }
+    }
+    assertEquals(100, insertions);
+    assertEquals(metrics.snapshot().rotations(AvlTreeMetrics.Cause.INSERT), rotations);
+  }
+}
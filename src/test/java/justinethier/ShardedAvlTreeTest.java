@@ -0,0 +1,122 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class ShardedAvlTreeTest {
+
+  private static List<Integer> listOf(Iterable<Integer> values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (Integer i : values)
+      list.add(i);
+    return list;
+  }
+
+  @Test
+  public void testMatchesTreeSetAndSplits() {
+    ShardedAvlTree<Integer> tree = new ShardedAvlTree<Integer>(100);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    Random r = new Random(14);
+    for (int i = 0; i < 20000; i++) {
+      int x = r.nextInt(5000);
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+      assertEquals(expected.contains(x), tree.contains(x));
+    }
+    assertTrue(tree.shardCount() >= expected.size() / 100);
+    assertEquals(expected.size(), tree.size());
+    assertEquals(expected.first(), tree.findMin());
+    assertEquals(expected.last(), tree.findMax());
+    assertEquals(new ArrayList<Integer>(expected), listOf(tree));
+  }
+
+  @Test
+  public void testSplitPointsAndEmptyShards() {
+    ShardedAvlTree<Integer> tree = new ShardedAvlTree<Integer>(1000, Arrays.asList(300, 100, 200, 200));
+    assertEquals(4, tree.shardCount());
+    assertTrue(tree.isEmpty());
+    assertNull(tree.findMin());
+    assertFalse(tree.iterator().hasNext());
+
+    tree.insert(250);
+    tree.insert(-5);
+    tree.insert(1000);
+    assertEquals(Integer.valueOf(-5), tree.findMin());
+    assertEquals(Integer.valueOf(1000), tree.findMax());
+    assertEquals(Arrays.asList(-5, 250, 1000), listOf(tree));
+    assertTrue(tree.remove(-5));
+    assertEquals(Integer.valueOf(250), tree.findMin());
+  }
+
+  @Test
+  public void testRebalanceSplitsHotAndMergesSmall() {
+    ShardedAvlTree<Integer> tree = new ShardedAvlTree<Integer>(1000, Arrays.asList(1000, 2000, 3000));
+    for (int i = 0; i < 4000; i += 4)
+      tree.insert(i);
+    for (int n = 0; n < 100; n++)
+      for (int i = 1000; i < 2000; i += 4)
+        tree.contains(i);
+
+    tree.rebalance(2.0);
+    assertEquals(5, tree.shardCount());
+
+    for (int i = 0; i < 4000; i += 4)
+      if (i < 1000 || i >= 3000)
+        tree.remove(i);
+    // The emptied first shard folds into [1000, 1500); the emptied last
+    // shard stays, as together with [2000, 3000) it holds 250 = 1000 / 4
+    tree.rebalance(1000.0);
+    assertEquals(4, tree.shardCount());
+    assertEquals(500, tree.size());
+    for (int i = 1000; i < 3000; i += 4)
+      assertTrue(tree.contains(i));
+  }
+
+  @Test
+  public void testConcurrentIngestion() throws InterruptedException {
+    final ShardedAvlTree<Integer> tree = new ShardedAvlTree<Integer>(500);
+    final int threads = 4;
+    final int perThread = 20000;
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int lane = t;
+      workers.add(new Thread() {
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            assertTrue(tree.insert(i * threads + lane));
+            if (i % 10 == 9)
+              assertTrue(tree.remove((i - 5) * threads + lane));
+          }
+        }
+      });
+    }
+    Thread rebalancer = new Thread() {
+      public void run() {
+        for (int i = 0; i < 50; i++)
+          tree.rebalance(3.0);
+      }
+    };
+    for (Thread w : workers)
+      w.start();
+    rebalancer.start();
+    for (Thread w : workers)
+      w.join();
+    rebalancer.join();
+
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < threads * perThread; i++)
+      if ((i / threads) % 10 != 4)
+        expected.add(i);
+    assertEquals(expected, listOf(tree));
+    assertEquals(expected.size(), tree.size());
+  }
+}
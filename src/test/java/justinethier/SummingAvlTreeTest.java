@@ -0,0 +1,62 @@
+package justinethier;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SummingAvlTreeTest {
+  private SummingAvlTree<Integer> tree = new SummingAvlTree<Integer>(Integer::longValue);
+
+  private static long sum(Iterable<Integer> values) {
+    long sum = 0;
+    for (Integer i : values)
+      sum += i;
+    return sum;
+  }
+
+  @Test
+  public void testMatchesScan() {
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    Random r = new Random(170);
+    for (int i = 0; i < 5000; i++) {
+      int x = r.nextInt(2000) - 1000;
+      if (r.nextInt(3) > 0)
+        assertEquals(expected.add(x), tree.insert(x));
+      else
+        assertEquals(expected.remove(x), tree.remove(x));
+
+      if (i % 50 == 0) {
+        assertEquals(sum(expected), tree.sum());
+        for (int k = 0; k < 20; k++) {
+          int from = r.nextInt(2000) - 1000;
+          int to = from + r.nextInt(500);
+          boolean fi = r.nextBoolean();
+          boolean ti = r.nextBoolean();
+          assertEquals(sum(expected.subSet(from, fi, to, ti)), tree.sum(from, fi, to, ti));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBuildAndSetOperations() {
+    Integer[] a = new Integer[1000];
+    for (int i = 0; i < a.length; i++)
+      a[i] = i;
+    tree.buildFromSorted(a);
+    assertEquals(499500, tree.sum());
+    assertEquals(45, tree.sum(0, 10));
+    assertEquals(55, tree.sum(0, true, 10, true));
+    assertEquals(0, tree.sum(10, false, 10, true));
+
+    SummingAvlTree<Integer> other = new SummingAvlTree<Integer>(Integer::longValue);
+    for (int i = 500; i < 1500; i++)
+      other.insert(i);
+    tree.union(other);
+    assertEquals(1499L * 1500 / 2, tree.sum());
+    assertEquals(1000 + 1001, tree.sum(1000, 1002));
+  }
+}